@@ -27,7 +27,7 @@ import com.db4o.ObjectContainer;
 import freenet.client.async.ClientContext;
 import freenet.keys.FreenetURI;
 import freenet.support.ExceptionWrapper;
-import freenet.support.LRUHashtable;
+import freenet.support.ConcurrentLRUCache;
 import freenet.support.Logger;
 import freenet.support.MutableBoolean;
 import freenet.support.Logger.LogLevel;
@@ -111,17 +111,16 @@ public class ArchiveManager {
 
 	// ArchiveHandler's
 	final int maxArchiveHandlers;
-	private final LRUHashtable<FreenetURI, ArchiveStoreContext> archiveHandlers;
+	private final ConcurrentLRUCache<FreenetURI, ArchiveStoreContext> archiveHandlers;
 
 	// Data cache
 	/** Maximum number of cached ArchiveStoreItems */
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
 	final long maxCachedData;
-	/** Currently cached data in bytes */
-	private long cachedData;
-	/** Map from ArchiveKey to ArchiveStoreElement */
-	private final LRUHashtable<ArchiveKey, ArchiveStoreItem> storedData;
+	/** Map from ArchiveKey to ArchiveStoreElement. Bounded by both the number of items
+	 * and the space they use; items are closed when they are evicted. */
+	private final ConcurrentLRUCache<ArchiveKey, ArchiveStoreItem> storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
@@ -142,30 +141,44 @@ public class ArchiveManager {
 	 */
 	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
 		maxArchiveHandlers = maxHandlers;
-		archiveHandlers = new LRUHashtable<FreenetURI, ArchiveStoreContext>();
+		archiveHandlers = new ConcurrentLRUCache<FreenetURI, ArchiveStoreContext>(maxHandlers);
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
-		storedData = new LRUHashtable<ArchiveKey, ArchiveStoreItem>();
+		storedData = new ConcurrentLRUCache<ArchiveKey, ArchiveStoreItem>(maxCachedElements, maxCachedData, SPACE_USED, new ConcurrentLRUCache.EvictionListener<ArchiveKey, ArchiveStoreItem>() {
+
+			@Override
+			public void onEvict(ArchiveKey key, ArchiveStoreItem item) {
+				if(logMINOR)
+					Logger.minor(ArchiveManager.this, "Dropping "+item+" : cachedData="+storedData.weight()+" of "+ArchiveManager.this.maxCachedData+" stored items : "+storedData.size()+" of "+ArchiveManager.this.maxCachedElements);
+				item.close();
+			}
+
+		});
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	private static final ConcurrentLRUCache.Weigher<ArchiveKey, ArchiveStoreItem> SPACE_USED =
+		new ConcurrentLRUCache.Weigher<ArchiveKey, ArchiveStoreItem>() {
+
+		@Override
+		public long weigh(ArchiveKey key, ArchiveStoreItem item) {
+			return item.spaceUsed();
+		}
+
+	};
+
 	/** Add an ArchiveHandler by key */
-	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
+	private void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
 		archiveHandlers.push(key, zip);
-		while(archiveHandlers.size() > maxArchiveHandlers)
-			archiveHandlers.popKey(); // dump it
 	}
 
 	/** Get an ArchiveHandler by key */
 	ArchiveStoreContext getCached(FreenetURI key) {
 		if(logMINOR) Logger.minor(this, "Get cached AH for "+key);
-		ArchiveStoreContext handler = archiveHandlers.get(key);
-		if(handler == null) return null;
-		archiveHandlers.push(key, handler);
-		return handler;
+		return archiveHandlers.promote(key);
 	}
 
 	/**
@@ -210,13 +223,8 @@ public class ArchiveManager {
 	public Bucket getCached(FreenetURI key, String filename) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
-		ArchiveStoreItem asi = null;
-		synchronized (this) {
-			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
-		}
+		ArchiveStoreItem asi = storedData.promote(k);
+		if(asi == null) return null;
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
@@ -226,14 +234,9 @@ public class ArchiveManager {
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
-	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
-		storedData.removeKey(item.key);
-		// Hard disk space limit = remove it here.
-		// Soft disk space limit would be to remove it outside the lock.
-		// Soft disk space limit = we go over the limit significantly when we
-		// are overloaded.
-		cachedData -= size;
+	void removeCachedItem(ArchiveStoreItem item) {
+		// Only if it hasn't been replaced already.
+		storedData.remove(item.key, item);
 		if(logMINOR) Logger.minor(this, "removeCachedItem: "+item);
 		item.close();
 	}
@@ -420,7 +423,6 @@ outerTAR:		while(true) {
 					if(size <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, container, context);
 						names.add(name);
-						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, container, context);
@@ -433,7 +435,6 @@ outerTAR:		while(true) {
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
-				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
 
@@ -500,7 +501,6 @@ outerZIP:		while(true) {
 					if(size <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, container, context);
 						names.add(name);
-						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, container, context);
@@ -513,7 +513,6 @@ outerZIP:		while(true) {
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
-				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
 
@@ -638,15 +637,10 @@ outerZIP:		while(true) {
 	private void addErrorElement(ArchiveStoreContext ctx, FreenetURI key, String name, String error, boolean tooBig) {
 		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
 		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
+		ArchiveStoreItem oldItem = storedData.push(element.key, element);
+		if(oldItem != null) {
+			oldItem.close();
+			if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
 		}
 	}
 
@@ -670,15 +664,11 @@ outerZIP:		while(true) {
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
-			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-				oldItem.close();
-			}
+		// Evicts the least recently used items if this takes us over either limit.
+		oldItem = storedData.push(element.key, element);
+		if(oldItem != null) {
+			if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
+			oldItem.close();
 		}
 		if(matchBucket != null) {
 			callback.gotBucket(matchBucket, container, context);
@@ -687,32 +677,6 @@ outerZIP:		while(true) {
 		return element;
 	}
 
-	/**
-	 * Drop any stored data beyond the limit.
-	 * Call synchronized on storedData.
-	 */
-	private void trimStoredData() {
-		synchronized(this) {
-		while(true) {
-			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
-				if(storedData.isEmpty()) {
-					// Race condition? cachedData out of sync?
-					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
-				}
-				item = storedData.popValue();
-				long space = item.spaceUsed();
-				cachedData -= space;
-				// Hard limits = delete file within lock, soft limits = delete outside of lock
-				// Here we use a hard limit
-			if(logMINOR)
-				Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
-			item.close();
-		}
-		}
-	}
-
 	public static void init(ObjectContainer container, ClientContext context, final long nodeDBHandle) {
 		ArchiveHandlerImpl.init(container, context, nodeDBHandle);
 	}
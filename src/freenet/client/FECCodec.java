@@ -30,6 +30,8 @@ import freenet.support.io.Closer;
 public abstract class FECCodec {
 
 	protected transient FECCode fec;
+	/** If set, used instead of fec. */
+	protected transient ReedSolomonCode rsCode;
 	protected final int k, n;
 	// Striping is very costly I/O wise.
 	// So set a maximum buffer size and calculate the stripe size accordingly.
@@ -246,7 +248,10 @@ public abstract class FECCodec {
 					int[] disposableIndexes = new int[packetIndexes.length];
 					System.arraycopy(packetIndexes, 0, disposableIndexes, 0,
 						packetIndexes.length);
-					fec.decode(packets, disposableIndexes);
+					if(rsCode != null)
+						rsCode.decode(packets, disposableIndexes);
+					else
+						fec.decode(packets, disposableIndexes);
 					// packets now contains an array of decoded blocks, in order
 					// Write the data out
 					for(int i = 0; i < k; i++) {
@@ -414,7 +419,10 @@ public abstract class FECCodec {
 					long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 					if(logMINOR)
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
-					fec.encode(dataPackets, checkPackets, toEncode);
+					if(rsCode != null)
+						rsCode.encode(dataPackets, checkPackets, toEncode);
+					else
+						fec.encode(dataPackets, checkPackets, toEncode);
 					//					Runtime.getRuntime().gc();
 //					Runtime.getRuntime().runFinalization();
 //					Runtime.getRuntime().gc();
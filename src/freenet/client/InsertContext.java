@@ -7,6 +7,7 @@ import com.db4o.ObjectContainer;
 
 import freenet.client.events.ClientEventProducer;
 import freenet.client.events.SimpleEventProducer;
+import freenet.keys.Key;
 import freenet.support.Logger;
 import freenet.support.compress.Compressor;
 
@@ -63,13 +64,17 @@ public class InsertContext implements Cloneable {
 		/** 1251/2/3: Basic even splitting, 1 extra check block if data blocks < 128, max 131 data blocks. */
 		COMPAT_1251,
 		/** 1255: Second stage of even splitting, a whole bunch of segments lose one block rather than the last segment losing lots of blocks. And hashes too! */
-		COMPAT_1255;
+		COMPAT_1255,
+		/** 1402: CHKs use AES-256 in CTR mode (Key.ALGO_AES_CTR_256_SHA256), which older nodes can't decode.
+		 * Only used if asked for explicitly, see latest(). */
+		COMPAT_1402;
 		
 		// Inserts should be converted to a specific compatibility mode as soon as possible, to avoid
 		// problems when an insert is restarted on a newer build with a newer default compat mode.
+		/** The mode COMPAT_CURRENT means. This is not always the last one: a mode which nodes
+		 * without this build can't decode stays opt-in until enough of the network can. */
 		public static CompatibilityMode latest() {
-			CompatibilityMode[] values = values();
-			return values[values.length-1];
+			return COMPAT_1255;
 		}
 	}
 	
@@ -84,6 +89,16 @@ public class InsertContext implements Cloneable {
 	public long getCompatibilityCode() {
 		return compatibilityMode;
 	}
+	
+	/** The crypto algorithm for the CHKs we insert, which depends on the compatibility mode. */
+	public byte getCHKCryptoAlgorithm() {
+		CompatibilityMode cmode = getCompatibilityMode();
+		if(cmode == CompatibilityMode.COMPAT_CURRENT)
+			cmode = CompatibilityMode.latest();
+		if(cmode.ordinal() >= CompatibilityMode.COMPAT_1402.ordinal())
+			return Key.ALGO_AES_CTR_256_SHA256;
+		return Key.ALGO_AES_PCFB_256_SHA256;
+	}
 
 	public void setCompatibilityMode(CompatibilityMode mode) {
 		if(mode == CompatibilityMode.COMPAT_CURRENT)
@@ -26,6 +26,7 @@ import freenet.client.async.BaseManifestPutter;
 import freenet.client.async.SplitFileSegmentKeys;
 import freenet.keys.BaseClientKey;
 import freenet.keys.ClientCHK;
+import freenet.keys.Key;
 import freenet.keys.FreenetURI;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.InsertContext.CompatibilityMode;
@@ -508,7 +509,11 @@ public class Metadata implements Cloneable {
 						}
 					}
 				} else {
-					minCompatMode = maxCompatMode = CompatibilityMode.COMPAT_1255;
+					// CTR is only used when inserting with COMPAT_1402.
+					if(splitfileSingleCryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256)
+						minCompatMode = maxCompatMode = CompatibilityMode.COMPAT_1402;
+					else
+						minCompatMode = maxCompatMode = CompatibilityMode.COMPAT_1255;
 					if(params.length < 10)
 						throw new MetadataParseException("Splitfile parameters too short for version 1");
 					short paramsType = Fields.bytesToShort(params, 0);
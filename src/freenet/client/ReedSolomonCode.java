@@ -0,0 +1,425 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Pure Java Reed-Solomon code over GF(2^8), producing exactly the same check blocks as the
+ * onion networks PureCode (Luigi Rizzo's Vandermonde code), so it can be used for existing
+ * splitfiles. Unlike PureCode, the multiplications are done a long at a time from a full
+ * multiplication table, and a stripe is split into chunks which are encoded or decoded on
+ * several threads at once.
+ *
+ * The code is systematic: the first k blocks are the data. Block i is the value at x_i of the
+ * polynomial which goes through the data blocks, where x_0 = 0 and x_i = a^(i-1), and a is the
+ * generator of the field with the polynomial x^8+x^4+x^3+x^2+1.
+ *
+ * Only handles n <= 256. Instances are immutable and can be shared between threads.
+ */
+public final class ReedSolomonCode {
+
+	/** The field polynomial x^8+x^4+x^3+x^2+1, as in the onion code. */
+	private static final int POLYNOMIAL = 0x11D;
+
+	private static final int[] EXP = new int[510];
+	private static final int[] LOG = new int[256];
+	/** MUL[a][b] = a*b. 64KB, but we look up a row at a time, so only the rows used are hot. */
+	private static final byte[][] MUL = new byte[256][256];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			EXP[i + 255] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256) x ^= POLYNOMIAL;
+		}
+		for(int a = 1; a < 256; a++)
+			for(int b = 1; b < 256; b++)
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+	}
+
+	/** Bytes per chunk. Each thread takes a chunk of every block at a time. */
+	private static final int CHUNK_SIZE = 1024;
+	/** Don't bother splitting a stripe into less than this much per thread. */
+	private static final int MIN_BYTES_PER_THREAD = 4096;
+
+	private static int threads = defaultThreads();
+	private static ThreadPoolExecutor helpers;
+
+	/** Number of data blocks */
+	private final int k;
+	/** Number of blocks, including data blocks */
+	private final int n;
+	/** Row i is the coefficients to compute check block k+i from the data blocks. */
+	private final int[][] checkRows;
+
+	public ReedSolomonCode(int k, int n) {
+		if(k < 1 || n <= k || n > 256)
+			throw new IllegalArgumentException("Invalid: k="+k+" n="+n);
+		this.k = k;
+		this.n = n;
+		// Vandermonde matrix for the data points, times its inverse gives the identity.
+		int[][] vdm = new int[k][];
+		for(int i = 0; i < k; i++)
+			vdm[i] = vandermondeRow(i);
+		int[][] inverse = invert(vdm);
+		checkRows = new int[n - k][];
+		for(int i = k; i < n; i++)
+			checkRows[i - k] = multiply(vandermondeRow(i), inverse);
+	}
+
+	/** Powers of x_i from 0 to k-1. 0^0 is 1. */
+	private int[] vandermondeRow(int i) {
+		int[] row = new int[k];
+		if(i == 0) {
+			row[0] = 1;
+			return row;
+		}
+		for(int j = 0; j < k; j++)
+			row[j] = EXP[((i - 1) * j) % 255];
+		return row;
+	}
+
+	/** The coefficients to compute block i from the data blocks. */
+	private int[] encodeRow(int i) {
+		if(i < k) {
+			int[] row = new int[k];
+			row[i] = 1;
+			return row;
+		}
+		return checkRows[i - k];
+	}
+
+	private static int mul(int a, int b) {
+		if(a == 0 || b == 0) return 0;
+		return EXP[LOG[a] + LOG[b]];
+	}
+
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+
+	private static int[] multiply(int[] row, int[][] matrix) {
+		int[] result = new int[matrix[0].length];
+		for(int i = 0; i < row.length; i++) {
+			if(row[i] == 0) continue;
+			for(int j = 0; j < result.length; j++)
+				result[j] ^= mul(row[i], matrix[i][j]);
+		}
+		return result;
+	}
+
+	/** Gauss-Jordan elimination. Doesn't change the matrix passed in. */
+	private static int[][] invert(int[][] matrix) {
+		int size = matrix.length;
+		int[][] a = new int[size][];
+		int[][] b = new int[size][size];
+		for(int i = 0; i < size; i++) {
+			a[i] = matrix[i].clone();
+			b[i][i] = 1;
+		}
+		for(int col = 0; col < size; col++) {
+			int pivot = col;
+			while(pivot < size && a[pivot][col] == 0) pivot++;
+			if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+			int[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+			t = b[pivot]; b[pivot] = b[col]; b[col] = t;
+			int inv = inverse(a[col][col]);
+			for(int j = 0; j < size; j++) {
+				a[col][j] = mul(a[col][j], inv);
+				b[col][j] = mul(b[col][j], inv);
+			}
+			for(int row = 0; row < size; row++) {
+				int c = a[row][col];
+				if(row == col || c == 0) continue;
+				for(int j = 0; j < size; j++) {
+					a[row][j] ^= mul(c, a[col][j]);
+					b[row][j] ^= mul(c, b[col][j]);
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Encode some blocks. Same as FECCode.encode().
+	 * @param src The k data blocks.
+	 * @param repair Where to put the blocks.
+	 * @param index The index of the block to put in each of repair.
+	 */
+	public void encode(Buffer[] src, Buffer[] repair, int[] index) {
+		if(src.length != k) throw new IllegalArgumentException("Need "+k+" data blocks, got "+src.length);
+		if(repair.length != index.length) throw new IllegalArgumentException();
+		int[][] rows = new int[repair.length][];
+		for(int i = 0; i < repair.length; i++) {
+			if(index[i] < 0 || index[i] >= n) throw new IllegalArgumentException("Invalid index "+index[i]);
+			rows[i] = encodeRow(index[i]);
+		}
+		run(src, repair, rows);
+	}
+
+	/**
+	 * Decode the data blocks. Same as FECCode.decode(): on return, pkts[i] contains data block
+	 * i, wherever it started.
+	 * @param pkts k blocks.
+	 * @param index The index of the block in each of pkts. May be changed.
+	 */
+	public void decode(Buffer[] pkts, int[] index) {
+		if(pkts.length != k || index.length != k)
+			throw new IllegalArgumentException("Need "+k+" blocks, got "+pkts.length);
+		boolean[] seen = new boolean[n];
+		boolean done = true;
+		for(int i = 0; i < k; i++) {
+			if(index[i] < 0 || index[i] >= n) throw new IllegalArgumentException("Invalid index "+index[i]);
+			if(seen[index[i]]) throw new IllegalArgumentException("Duplicate index "+index[i]);
+			seen[index[i]] = true;
+			if(index[i] != i) done = false;
+		}
+		if(done) return;
+		// pkts = M * data, so data = M^-1 * pkts.
+		int[][] m = new int[k][];
+		for(int i = 0; i < k; i++)
+			m[i] = encodeRow(index[i]);
+		int[][] inverse = invert(m);
+		int count = 0;
+		for(int i = 0; i < k; i++)
+			if(index[i] != i) count++;
+		Buffer[] targets = new Buffer[count];
+		int[][] rows = new int[count][];
+		int x = 0;
+		for(int i = 0; i < k; i++) {
+			if(index[i] == i) continue;
+			targets[x] = pkts[i];
+			// If block i is somewhere else this is a single 1, so we just move it.
+			rows[x] = inverse[i];
+			x++;
+		}
+		// Safe to write to pkts in place, because each chunk is read fully before it is written.
+		run(pkts, targets, rows);
+		for(int i = 0; i < k; i++)
+			index[i] = i;
+	}
+
+	/** Set each of out to the sum of in multiplied by the corresponding row, in parallel. */
+	private void run(Buffer[] in, Buffer[] out, int[][] rows) {
+		if(out.length == 0) return;
+		int length = out[0].len;
+		for(Buffer b : in)
+			if(b.len != length) throw new IllegalArgumentException("Blocks must be the same length");
+		for(Buffer b : out)
+			if(b.len != length) throw new IllegalArgumentException("Blocks must be the same length");
+		Job job = new Job(in, out, rows, length);
+		int helperCount = Math.min(getThreads(), length / MIN_BYTES_PER_THREAD) - 1;
+		helperCount = Math.min(helperCount, job.chunks - 1);
+		if(helperCount > 0) {
+			ThreadPoolExecutor exec = getHelpers();
+			for(int i = 0; i < helperCount; i++)
+				exec.execute(job);
+		}
+		job.run();
+		job.waitForCompletion();
+	}
+
+	/** Encode or decode one stripe. Chunks are handed out to whoever gets there first. */
+	private static class Job implements Runnable {
+
+		final Buffer[] in;
+		final Buffer[] out;
+		final int[][] rows;
+		final int length;
+		final int chunks;
+		private final AtomicInteger nextChunk = new AtomicInteger();
+		private int chunksLeft;
+		private Throwable failure;
+
+		Job(Buffer[] in, Buffer[] out, int[][] rows, int length) {
+			this.in = in;
+			this.out = out;
+			this.rows = rows;
+			this.length = length;
+			chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			chunksLeft = chunks;
+		}
+
+		@Override
+		public void run() {
+			long[][] acc = null;
+			int chunk;
+			while((chunk = nextChunk.getAndIncrement()) < chunks) {
+				try {
+					if(acc == null) acc = new long[out.length][CHUNK_SIZE / 8];
+					int start = chunk * CHUNK_SIZE;
+					doChunk(in, out, rows, start, Math.min(CHUNK_SIZE, length - start), acc);
+				} catch (Throwable t) {
+					synchronized(this) {
+						if(failure == null) failure = t;
+					}
+				} finally {
+					synchronized(this) {
+						if(--chunksLeft == 0) notifyAll();
+					}
+				}
+			}
+		}
+
+		synchronized void waitForCompletion() {
+			boolean interrupted = false;
+			while(chunksLeft > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The helpers are still using the buffers, so we must wait for them.
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(failure != null) {
+				if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+				if(failure instanceof Error) throw (Error) failure;
+				throw new RuntimeException(failure);
+			}
+		}
+
+	}
+
+	private static void doChunk(Buffer[] in, Buffer[] out, int[][] rows, int start, int len, long[][] acc) {
+		int words = (len + 7) >> 3;
+		for(int i = 0; i < out.length; i++) {
+			long[] a = acc[i];
+			for(int w = 0; w < words; w++) a[w] = 0;
+			int[] row = rows[i];
+			for(int j = 0; j < in.length; j++) {
+				int c = row[j];
+				if(c == 0) continue;
+				Buffer src = in[j];
+				if(c == 1)
+					xor(src.b, src.off + start, a, len);
+				else
+					mulXor(MUL[c], src.b, src.off + start, a, len);
+			}
+		}
+		// Only write when all the outputs are done, since they may be some of the inputs.
+		for(int i = 0; i < out.length; i++)
+			unpack(acc[i], out[i].b, out[i].off + start, len);
+	}
+
+	private static void xor(byte[] src, int pos, long[] acc, int len) {
+		int words = len >> 3;
+		for(int w = 0; w < words; w++, pos += 8) {
+			acc[w] ^= (src[pos] & 0xFFL)
+				| ((src[pos+1] & 0xFFL) << 8)
+				| ((src[pos+2] & 0xFFL) << 16)
+				| ((src[pos+3] & 0xFFL) << 24)
+				| ((src[pos+4] & 0xFFL) << 32)
+				| ((src[pos+5] & 0xFFL) << 40)
+				| ((src[pos+6] & 0xFFL) << 48)
+				| ((src[pos+7] & 0xFFL) << 56);
+		}
+		for(int i = 0; i < (len & 7); i++)
+			acc[words] ^= (src[pos+i] & 0xFFL) << (i * 8);
+	}
+
+	private static void mulXor(byte[] table, byte[] src, int pos, long[] acc, int len) {
+		int words = len >> 3;
+		for(int w = 0; w < words; w++, pos += 8) {
+			acc[w] ^= (table[src[pos] & 0xFF] & 0xFFL)
+				| ((table[src[pos+1] & 0xFF] & 0xFFL) << 8)
+				| ((table[src[pos+2] & 0xFF] & 0xFFL) << 16)
+				| ((table[src[pos+3] & 0xFF] & 0xFFL) << 24)
+				| ((table[src[pos+4] & 0xFF] & 0xFFL) << 32)
+				| ((table[src[pos+5] & 0xFF] & 0xFFL) << 40)
+				| ((table[src[pos+6] & 0xFF] & 0xFFL) << 48)
+				| ((table[src[pos+7] & 0xFF] & 0xFFL) << 56);
+		}
+		for(int i = 0; i < (len & 7); i++)
+			acc[words] ^= (table[src[pos+i] & 0xFF] & 0xFFL) << (i * 8);
+	}
+
+	private static void unpack(long[] acc, byte[] dst, int pos, int len) {
+		int words = len >> 3;
+		for(int w = 0; w < words; w++, pos += 8) {
+			long v = acc[w];
+			dst[pos] = (byte) v;
+			dst[pos+1] = (byte) (v >>> 8);
+			dst[pos+2] = (byte) (v >>> 16);
+			dst[pos+3] = (byte) (v >>> 24);
+			dst[pos+4] = (byte) (v >>> 32);
+			dst[pos+5] = (byte) (v >>> 40);
+			dst[pos+6] = (byte) (v >>> 48);
+			dst[pos+7] = (byte) (v >>> 56);
+		}
+		for(int i = 0; i < (len & 7); i++)
+			dst[pos+i] = (byte) (acc[words] >>> (i * 8));
+	}
+
+	private static int defaultThreads() {
+		// Same as FECQueue: on OS/X, or without native threads, we can't run FEC at a low
+		// enough priority to use more than one core in the background.
+		String osName = System.getProperty("os.name");
+		if(osName.indexOf("Windows") == -1 && ((osName.toLowerCase().indexOf("mac os x") > 0) || (!NativeThread.usingNativeCode())))
+			return 1;
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** How many threads, including the caller's, may work on one stripe. */
+	public static synchronized int getThreads() {
+		return threads;
+	}
+
+	public static synchronized void setThreads(int count) {
+		if(count < 1) throw new IllegalArgumentException();
+		threads = count;
+		if(helpers != null) {
+			int size = Math.max(1, count - 1);
+			// The core size must never be more than the maximum.
+			if(size > helpers.getMaximumPoolSize()) {
+				helpers.setMaximumPoolSize(size);
+				helpers.setCorePoolSize(size);
+			} else {
+				helpers.setCorePoolSize(size);
+				helpers.setMaximumPoolSize(size);
+			}
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getHelpers() {
+		if(helpers == null) {
+			int count = Math.max(1, threads - 1);
+			helpers = new ThreadPoolExecutor(count, count, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				private int counter;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					NativeThread t = new NativeThread(r, "FEC helper thread "+(counter++), NativeThread.LOW_PRIORITY, true);
+					t.setDaemon(true);
+					return t;
+				}
+
+			});
+			helpers.allowCoreThreadTimeOut(true);
+			Logger.normal(ReedSolomonCode.class, "Using up to "+threads+" threads per FEC stripe");
+		}
+		return helpers;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":n="+n+",k="+k;
+	}
+
+}
@@ -6,7 +6,7 @@ package freenet.client;
 import com.onionnetworks.fec.FECCode;
 import com.onionnetworks.fec.PureCode;
 
-import freenet.support.LRUHashtable;
+import freenet.support.ConcurrentLRUCache;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -16,11 +16,14 @@ import freenet.support.Logger.LogLevel;
  */
 public class StandardOnionFECCodec extends FECCodec {
 	// REDFLAG: How big is one of these?
-	private static int MAX_CACHED_CODECS = 8;
+	private static final int MAX_CACHED_CODECS = 8;
 
 	static boolean noNative;
 
-	private static final LRUHashtable<MyKey, StandardOnionFECCodec> recentlyUsedCodecs = new LRUHashtable<MyKey, StandardOnionFECCodec>();
+	/** Set to use the onion networks code even where the pure Java code would do. */
+	static boolean noPureJava;
+
+	private static final ConcurrentLRUCache<MyKey, StandardOnionFECCodec> recentlyUsedCodecs = new ConcurrentLRUCache<MyKey, StandardOnionFECCodec>(MAX_CACHED_CODECS);
 
         private static volatile boolean logMINOR;
 	static {
@@ -57,20 +60,16 @@ public class StandardOnionFECCodec extends FECCodec {
 		}
 	}
 
-	public synchronized static FECCodec getInstance(int dataBlocks, int checkBlocks) {
+	public static FECCodec getInstance(int dataBlocks, int checkBlocks) {
 		if(checkBlocks == 0 || dataBlocks == 0)
 			throw new IllegalArgumentException("data blocks "+dataBlocks+" check blocks "+checkBlocks);
 		MyKey key = new MyKey(dataBlocks, checkBlocks + dataBlocks);
-		StandardOnionFECCodec codec = recentlyUsedCodecs.get(key);
-		if(codec != null) {
-			recentlyUsedCodecs.push(key, codec);
+		StandardOnionFECCodec codec = recentlyUsedCodecs.promote(key);
+		if(codec != null)
 			return codec;
-		}
+		// Two threads may both create one, that's harmless.
 		codec = new StandardOnionFECCodec(dataBlocks, checkBlocks + dataBlocks);
 		recentlyUsedCodecs.push(key, codec);
-		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
-			recentlyUsedCodecs.popKey();
-		}
 		return codec;
 	}
 
@@ -83,11 +82,20 @@ public class StandardOnionFECCodec extends FECCodec {
 	@Override
 	protected void loadFEC() {
 		synchronized(this) {
-			if(fec != null) return;
+			if(fec != null || rsCode != null) return;
 		}
 		FECCode fec2 = null;
 		if(k >= n) throw new IllegalArgumentException("n must be >k: n = "+n+" k = "+k);
 		if(k > 256 || n > 256) Logger.error(this, "Wierd FEC parameters? k = "+k+" n = "+n);
+		if(n <= 256 && !noPureJava) {
+			// Produces the same blocks as PureCode, but much faster, and uses several cores.
+			ReedSolomonCode code = new ReedSolomonCode(k, n);
+			if(logMINOR) Logger.minor(this, "Using pure Java FEC: n="+n+" k="+k);
+			synchronized(this) {
+				rsCode = code;
+			}
+			return;
+		}
 		// native code segfaults if k < 256 and n > 256
 		// native code segfaults if n > k*2 i.e. if we have extra blocks beyond 100% redundancy
 		// FIXME: NATIVE FEC DISABLED PENDING FIXING THE SEGFAULT BUG (easily reproduced with check blocks > data blocks)
@@ -13,13 +13,16 @@ import freenet.support.io.NativeThread;
 
 /**
  * Keeps a queue of SingleBlockInserter's to encode.
- * Encodes them.
+ * Encodes them. Transient single blocks are encoded several at a time, and transient segments
+ * encode their blocks in parallel, through a ParallelBlockEncoder with one thread per core.
  */
 public class BackgroundBlockEncoder implements PrioRunnable {
 
 	// Minimize memory usage at the cost of having to encode from the end
 	private final ArrayList<SoftReference<Encodeable>> queue;
 	private ClientContext context;
+	/** Serial until we have an executor. */
+	private volatile ParallelBlockEncoder encoder = new ParallelBlockEncoder(null, 1);
 	
 	public BackgroundBlockEncoder() {
 		queue = new ArrayList<SoftReference<Encodeable>>();
@@ -27,6 +30,18 @@ public class BackgroundBlockEncoder implements PrioRunnable {
 	
 	public void setContext(ClientContext context) {
 		this.context = context;
+		encoder = new ParallelBlockEncoder(context.mainExecutor, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Encode count blocks in parallel, delivering the results in order on this thread.
+	 * Transient requests only.
+	 * @see ParallelBlockEncoder#run(int, ParallelBlockEncoder.Job, boolean) */
+	void encodeParallel(int count, ParallelBlockEncoder.Job job, boolean blocks) {
+		encoder.run(count, job, blocks);
+	}
+
+	public ParallelBlockEncoder getParallelEncoder() {
+		return encoder;
 	}
 	
 	public void queue(Encodeable sbi, ObjectContainer container, ClientContext context) {
@@ -87,8 +102,10 @@ public class BackgroundBlockEncoder implements PrioRunnable {
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
+		final ArrayList<Encodeable> batch = new ArrayList<Encodeable>();
 		while(true) {
-			Encodeable sbi = null;
+			int max = encoder.getThreads();
+			Encodeable segment = null;
 			synchronized(this) {
 				while(queue.isEmpty()) {
 					try {
@@ -97,14 +114,53 @@ public class BackgroundBlockEncoder implements PrioRunnable {
 						// Ignore
 					}
 				}
-				while(!queue.isEmpty()) {
+				// Take as many single blocks as we have threads. Stop at anything else (a
+				// segment), which encodes its own blocks in parallel.
+				while(!queue.isEmpty() && batch.size() < max) {
 					SoftReference<Encodeable> ref = queue.remove(queue.size()-1);
-					sbi = ref.get();
-					if(sbi != null) break;
+					Encodeable sbi = ref.get();
+					if(sbi == null) continue;
+					if(sbi instanceof SingleBlockInserter) {
+						batch.add(sbi);
+					} else {
+						segment = sbi;
+						break;
+					}
+				}
+			}
+			if(!batch.isEmpty()) {
+				encoder.run(batch.size(), new ParallelBlockEncoder.Job() {
+
+					@Override
+					public Object encode(int i) {
+						Encodeable sbi = batch.get(i);
+						Logger.minor(this, "Encoding "+sbi);
+						sbi.tryEncode(null, context);
+						return null;
+					}
+
+					@Override
+					public void deliver(int i, Object result) {
+						if(result != null)
+							Logger.error(this, "Caught "+result+" encoding "+batch.get(i), (Throwable) result);
+					}
+
+					@Override
+					public String toString() {
+						return "single blocks";
+					}
+
+				}, true);
+				batch.clear();
+			}
+			if(segment != null) {
+				Logger.minor(this, "Encoding "+segment);
+				try {
+					segment.tryEncode(null, context);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" encoding "+segment, t);
 				}
 			}
-			Logger.minor(this, "Encoding "+sbi);
-			sbi.tryEncode(null, context);
 		}
 	}
 
@@ -1194,6 +1194,14 @@ public class ClientRequestScheduler implements RequestScheduler {
 		return persistent ? schedCore.saltKey(key) : schedTransient.saltKey(key);
 	}
 
+	/** A listener no longer wants a key, e.g. because it has been found. */
+	public void removeIndexedKey(boolean persistent, KeyListener listener, byte[] saltedKey) {
+		if(persistent) {
+			if(schedCore != null) schedCore.removeIndexedKey(listener, saltedKey);
+		} else
+			schedTransient.removeIndexedKey(listener, saltedKey);
+	}
+
 	/** Only used in rare special cases e.g. ClientRequestSelector.
 	 * FIXME add some interfaces to get rid of this gross layer violation. */
 	Node getNode() {
@@ -82,6 +82,11 @@ abstract class ClientRequestSchedulerBase {
 	protected transient ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. */
 	protected transient ArrayList<KeyListener> keyListeners;
+	/** The keys wanted by each of keyListeners, if it can list them. Transient. */
+	protected transient KeyListenerIndex keyIndex;
+	/** The keyListeners which can't list their keys, and so are checked for every key.
+	 * Transient. */
+	protected transient ArrayList<KeyListener> unindexedListeners;
 
 	abstract boolean persistent();
 	
@@ -90,6 +95,8 @@ abstract class ClientRequestSchedulerBase {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		keyListeners = new ArrayList<KeyListener>();
+		keyIndex = new KeyListenerIndex();
+		unindexedListeners = new ArrayList<KeyListener>();
 		priorities = null;
 		newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
@@ -248,11 +255,16 @@ abstract class ClientRequestSchedulerBase {
 
 	public void addPendingKeys(KeyListener listener) {
 		if(listener == null) throw new NullPointerException();
+		int[] prefixes = listener.getSaltedKeyPrefixes(sched.clientContext);
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(keyListeners.contains(listener))
 				return;
 			keyListeners.add(listener);
+			if(prefixes != null)
+				keyIndex.add(prefixes, listener);
+			else
+				unindexedListeners.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
@@ -264,6 +276,7 @@ abstract class ClientRequestSchedulerBase {
 			ret = keyListeners.remove(listener);
 			while(logMINOR && keyListeners.remove(listener))
 				Logger.error(this, "Still in pending keys after removal, must be in twice or more: "+listener, new Exception("error"));
+			if(ret) removeFromIndex(listener);
 			listener.onRemove();
 		}
 		if (logMINOR)
@@ -283,6 +296,7 @@ abstract class ClientRequestSchedulerBase {
 			if(listener.getHasKeyListener() == hasListener) {
 				found = true;
 				i.remove();
+				removeFromIndex(listener);
 				listener.onRemove();
 				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
 			}
@@ -290,16 +304,51 @@ abstract class ClientRequestSchedulerBase {
 		return found;
 	}
 	
+	/** Remove a listener's keys from the index. Caller must hold the lock, and must have
+	 * removed it from keyListeners. */
+	private void removeFromIndex(KeyListener listener) {
+		if(unindexedListeners.remove(listener)) return;
+		int[] prefixes = listener.getSaltedKeyPrefixes(sched.clientContext);
+		if(prefixes != null)
+			keyIndex.remove(prefixes, listener);
+	}
+	
+	/** Called by a listener when it no longer wants a key it listed in 
+	 * getSaltedKeyPrefixes(). */
+	void removeIndexedKey(KeyListener listener, byte[] saltedKey) {
+		keyIndex.remove(KeyListenerIndex.prefix(saltedKey), listener);
+	}
+	
+	/**
+	 * Find the listeners which probably want a key: those the index has for the key,
+	 * and those which aren't indexed, which say they want it. The cost depends on the
+	 * number of listeners which can't list their keys, not on the total number of 
+	 * listeners. Caller must hold the lock.
+	 * @return The listeners, or null if there aren't any.
+	 */
+	private ArrayList<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
+		ArrayList<KeyListener> candidates = keyIndex.get(KeyListenerIndex.prefix(saltedKey), null);
+		if(candidates != null) {
+			for(Iterator<KeyListener> i = candidates.iterator();i.hasNext();) {
+				if(!i.next().probablyWantKey(key, saltedKey))
+					i.remove();
+			}
+		}
+		for(KeyListener listener : unindexedListeners) {
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(candidates == null) candidates = new ArrayList<KeyListener>();
+			candidates.add(listener);
+		}
+		if(candidates != null && candidates.isEmpty()) return null;
+		return candidates;
+	}
+	
 	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = probablyWantKey(key, saltedKey);
 		}
 		if(matches == null) return priority;
 		for(KeyListener listener : matches) {
@@ -320,13 +369,9 @@ abstract class ClientRequestSchedulerBase {
 	public boolean anyWantKey(Key key, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = probablyWantKey(key, saltedKey);
 		}
 		if(matches != null) {
 			for(KeyListener listener : matches) {
@@ -340,11 +385,7 @@ abstract class ClientRequestSchedulerBase {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
-			if(listener.probablyWantKey(key, saltedKey))
-				return true;
-		}
-		return false;
+		return probablyWantKey(key, saltedKey) != null;
 	}
 	
 	private long persistentTruePositives;
@@ -358,17 +399,9 @@ abstract class ClientRequestSchedulerBase {
 		}
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				if(matches.contains(listener)) {
-					Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
-					continue;
-				}
-				matches.add(listener);
-			}
+			matches = probablyWantKey(key, saltedKey);
 		}
 		boolean ret = false;
 		if(matches != null) {
@@ -385,7 +418,8 @@ abstract class ClientRequestSchedulerBase {
 				}
 				if(listener.isEmpty()) {
 					synchronized(this) {
-						keyListeners.remove(listener);
+						if(keyListeners.remove(listener))
+							removeFromIndex(listener);
 					}
 					listener.onRemove();
 				}
@@ -453,8 +487,9 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
-			if(!listener.probablyWantKey(key, saltedKey)) continue;
+		ArrayList<KeyListener> matches = probablyWantKey(key, saltedKey);
+		if(matches != null)
+		for(KeyListener listener : matches) {
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
 			if(list == null) list = new ArrayList<SendableGet>();
@@ -467,6 +502,8 @@ abstract class ClientRequestSchedulerBase {
 	
 	public void onStarted(ObjectContainer container, ClientContext context) {
 		keyListeners = new ArrayList<KeyListener>();
+		keyIndex = new KeyListenerIndex();
+		unindexedListeners = new ArrayList<KeyListener>();
 		if(newPriorities == null) {
 			newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 			if(persistent()) container.store(this);
@@ -54,4 +54,10 @@ public interface DBJobRunner {
 	/** Tell the job runner that this transaction needs to be committed soon. */
 	public void setCommitSoon();
 	
+	/** Run the callback, off the database thread, once everything done so far has been 
+	 * committed. Unlike setCommitThisTransaction(), this doesn't force a commit straight 
+	 * away if commits are being grouped, but the commit will happen within the configured
+	 * latency. */
+	public void addCommitBarrier(Runnable callback) throws DatabaseDisabledException;
+	
 }
@@ -65,6 +65,16 @@ public interface KeyListener {
 
 	public long countKeys();
 
+	/**
+	 * The keys we want, for the scheduler's KeyListenerIndex: each is the start of the
+	 * salted key, as returned by KeyListenerIndex.prefix(). Called when the listener is
+	 * registered, and again when it is removed. Listeners which remove keys as they are
+	 * found or their segments finish should remove them from the index as well.
+	 * @return The prefixes, or null if we can't list our keys, in which case
+	 * probablyWantKey() will be called for every key.
+	 */
+	public int[] getSaltedKeyPrefixes(ClientContext context);
+
 	/**
 	 * @return The parent HasKeyListener. This does mean it will be pinned in
 	 * RAM, but it can be deactivated so it's not a big deal.
@@ -0,0 +1,190 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+
+import freenet.support.LinearProbingTable;
+
+/**
+ * Maps salted keys to the KeyListener's which want them, so that when a block arrives the
+ * scheduler only has to ask the listeners which are likely to want it, rather than every
+ * listener on the queue.
+ *
+ * We only keep the first 32 bits of each salted key. The salted keys are SHA-256 hashes,
+ * so different keys only collide by chance, and the caller checks the candidates with
+ * probablyWantKey() anyway. This keeps the index small: one int and one reference per
+ * key, plus the free space in the tables. The same prefix can map to any number of
+ * listeners, and the same listener can be added more than once for the same prefix, e.g.
+ * when a splitfile contains the same block twice; each add() needs its own remove().
+ *
+ * The index is split into shards by the top bits of the prefix, each an open addressing
+ * hash table with its own lock, so resizing only ever rehashes one shard, and lookups on
+ * different shards don't contend.
+ */
+public class KeyListenerIndex {
+
+	static final int SHARD_BITS = 4;
+	static final int SHARDS = 1 << SHARD_BITS;
+	private static final int MIN_CAPACITY = 16;
+
+	private final Shard[] shards;
+
+	public KeyListenerIndex() {
+		shards = new Shard[SHARDS];
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard();
+	}
+
+	/** The part of a salted key which we index. */
+	public static int prefix(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xff) << 24) | ((saltedKey[1] & 0xff) << 16) |
+			((saltedKey[2] & 0xff) << 8) | (saltedKey[3] & 0xff);
+	}
+
+	private Shard shard(int prefix) {
+		return shards[prefix >>> (32 - SHARD_BITS)];
+	}
+
+	public void add(int prefix, KeyListener listener) {
+		if(listener == null) throw new NullPointerException();
+		shard(prefix).add(prefix, listener);
+	}
+
+	public void add(int[] prefixes, KeyListener listener) {
+		if(listener == null) throw new NullPointerException();
+		for(int prefix : prefixes)
+			shard(prefix).add(prefix, listener);
+	}
+
+	/** Remove one entry for the prefix and listener.
+	 * @return False if there wasn't one. */
+	public boolean remove(int prefix, KeyListener listener) {
+		return shard(prefix).remove(prefix, listener);
+	}
+
+	/** Remove one entry for each prefix, for the listener. */
+	public void remove(int[] prefixes, KeyListener listener) {
+		for(int prefix : prefixes)
+			shard(prefix).remove(prefix, listener);
+	}
+
+	/**
+	 * Add the listeners for the prefix to the list, once each.
+	 * @param list The list to add to, or null to create one if we find any.
+	 * @return The list, or null if it was null and we didn't find any listeners.
+	 */
+	public ArrayList<KeyListener> get(int prefix, ArrayList<KeyListener> list) {
+		return shard(prefix).get(prefix, list);
+	}
+
+	/** The total number of entries. */
+	public int size() {
+		int total = 0;
+		for(Shard s : shards)
+			total += s.size();
+		return total;
+	}
+
+	/** Linear probing with backward shift deletion, see LinearProbingTable. An empty slot
+	 * has a null listener. */
+	private static class Shard extends LinearProbingTable {
+
+		private int[] prefixes;
+		private KeyListener[] listeners;
+		private int size;
+
+		Shard() {
+			prefixes = new int[MIN_CAPACITY];
+			listeners = new KeyListener[MIN_CAPACITY];
+			mask = MIN_CAPACITY - 1;
+		}
+
+		private int home(int prefix) {
+			// The top bits choose the shard, so mix before taking the bottom bits.
+			return ((prefix * 0x9E3779B9) >>> 7) & mask;
+		}
+
+		@Override
+		protected boolean isFree(int i) {
+			return listeners[i] == null;
+		}
+
+		@Override
+		protected int homeOf(int i) {
+			return home(prefixes[i]);
+		}
+
+		@Override
+		protected void move(int from, int to) {
+			prefixes[to] = prefixes[from];
+			listeners[to] = listeners[from];
+		}
+
+		@Override
+		protected void clear(int i) {
+			listeners[i] = null;
+		}
+
+		synchronized void add(int prefix, KeyListener listener) {
+			if((size + 1) * 2 > listeners.length)
+				resize(listeners.length * 2);
+			int i = probeFree(home(prefix));
+			prefixes[i] = prefix;
+			listeners[i] = listener;
+			size++;
+		}
+
+		synchronized boolean remove(int prefix, KeyListener listener) {
+			int i = home(prefix);
+			while(true) {
+				KeyListener l = listeners[i];
+				if(l == null) return false;
+				if(l == listener && prefixes[i] == prefix) break;
+				i = next(i);
+			}
+			delete(i);
+			size--;
+			if(listeners.length > MIN_CAPACITY && size * 8 < listeners.length)
+				resize(listeners.length / 2);
+			return true;
+		}
+
+		synchronized ArrayList<KeyListener> get(int prefix, ArrayList<KeyListener> list) {
+			int i = home(prefix);
+			while(true) {
+				KeyListener l = listeners[i];
+				if(l == null) return list;
+				if(prefixes[i] == prefix) {
+					if(list == null)
+						list = new ArrayList<KeyListener>();
+					if(!list.contains(l))
+						list.add(l);
+				}
+				i = next(i);
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		private void resize(int capacity) {
+			int[] oldPrefixes = prefixes;
+			KeyListener[] oldListeners = listeners;
+			prefixes = new int[capacity];
+			listeners = new KeyListener[capacity];
+			mask = capacity - 1;
+			for(int i=0;i<oldListeners.length;i++) {
+				KeyListener l = oldListeners[i];
+				if(l == null) continue;
+				int j = probeFree(home(oldPrefixes[i]));
+				prefixes[j] = oldPrefixes[i];
+				listeners[j] = l;
+			}
+		}
+
+	}
+
+}
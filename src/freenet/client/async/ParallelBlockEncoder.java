@@ -0,0 +1,230 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+
+import freenet.keys.CHKEncodeException;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.HTMLNode;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Encodes a batch of blocks (CHK encryption and hashing, which is what dominates a big insert
+ * before anything is sent) on up to one thread per core, and hands the results back to the
+ * calling thread in order.
+ *
+ * The calling thread encodes too. Between blocks it passes on whichever results are ready in
+ * order, so the caller sees each key as soon as all the earlier ones are done, and then waits
+ * for the rest. Helpers come from the node's Executor. The number of helpers is limited across
+ * all batches, so several segments encoding at once still only use one extra thread per core.
+ * Items are claimed one at a time, so if a helper is slow to start, the calling thread simply
+ * does more of the work.
+ *
+ * The encode side runs on arbitrary threads, so this is only for transient requests: anything
+ * which needs the database must stay on the database thread.
+ */
+public class ParallelBlockEncoder {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, ParallelBlockEncoder.class);
+			}
+		});
+	}
+
+	/** A batch of items to encode. */
+	interface Job {
+		/** Encode item i. Called on any thread, possibly at the same time as other items. */
+		Object encode(int i) throws CHKEncodeException, IOException;
+		/** Called on the thread which called run(), for each item, in order.
+		 * @param result Whatever encode() returned, or the Throwable it threw. */
+		void deliver(int i, Object result);
+	}
+
+	private final Executor executor;
+	/** The maximum number of threads encoding for one batch, including the caller. */
+	private final int threads;
+	/** Helper threads running, for all batches. At most threads - 1. */
+	private int helpers;
+
+	/** Blocks encoded since startup. */
+	private long blocksEncoded;
+	/** Time during which at least one batch was running. */
+	private long busyTime;
+	private long busySince;
+	/** Batches running. */
+	private int running;
+
+	/**
+	 * @param executor Where to get helper threads from. If null, everything is encoded on the
+	 * calling thread.
+	 * @param threads The maximum number of threads encoding one batch, including the caller,
+	 * normally the number of cores.
+	 */
+	ParallelBlockEncoder(Executor executor, int threads) {
+		this.executor = executor;
+		this.threads = executor == null ? 1 : Math.max(1, threads);
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Encode count items, and deliver the results in order, on this thread.
+	 * @param blocks True if each item is one block, for the stats. False if the items
+	 * encode their blocks through another batch, or aren't blocks at all.
+	 */
+	void run(int count, Job job, boolean blocks) {
+		if(count == 0) return;
+		long startTime = System.currentTimeMillis();
+		Batch batch = new Batch(job, count);
+		int started = reserveHelpers(Math.min(threads, count) - 1);
+		synchronized(this) {
+			if(running++ == 0) busySince = System.nanoTime();
+		}
+		try {
+			for(int i=0;i<started;i++)
+				executor.execute(new Helper(batch), "Block encoder helper for "+job);
+			while(batch.encodeNext())
+				batch.deliverReady(false);
+			batch.deliverReady(true);
+		} finally {
+			synchronized(this) {
+				if(blocks) blocksEncoded += count;
+				if(--running == 0) busyTime += System.nanoTime() - busySince;
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Encoded "+count+" items with "+started+" helpers in "+(System.currentTimeMillis() - startTime)+"ms for "+job);
+	}
+
+	private synchronized int reserveHelpers(int wanted) {
+		int n = Math.max(0, Math.min(wanted, threads - 1 - helpers));
+		helpers += n;
+		return n;
+	}
+
+	private synchronized void releaseHelper() {
+		helpers--;
+	}
+
+	public synchronized long getBlocksEncoded() {
+		return blocksEncoded;
+	}
+
+	/** Blocks encoded per second of time spent encoding, including time waiting for helpers. */
+	public synchronized long getBlocksEncodedPerSecond() {
+		long time = busyTime;
+		if(running > 0) time += System.nanoTime() - busySince;
+		if(time == 0) return 0;
+		return (long) (blocksEncoded * 1000000000.0 / time);
+	}
+
+	public void drawStatsBox(HTMLNode box) {
+		HTMLNode list = box.addChild("ul");
+		list.addChild("li", "Threads per segment: "+threads);
+		list.addChild("li", "Blocks encoded: "+getBlocksEncoded());
+		list.addChild("li", "Blocks encoded per second while encoding: "+getBlocksEncodedPerSecond());
+	}
+
+	private static class Batch {
+
+		private final Job job;
+		private final Object[] results;
+		private final boolean[] done;
+		/** The next item to encode. */
+		private int next;
+		/** The next item to deliver. */
+		private int delivered;
+
+		Batch(Job job, int count) {
+			this.job = job;
+			results = new Object[count];
+			done = new boolean[count];
+		}
+
+		private synchronized int claim() {
+			if(next == results.length) return -1;
+			return next++;
+		}
+
+		/** Encode the next item, if there are any left.
+		 * @return False if all the items have been claimed. */
+		boolean encodeNext() {
+			int i = claim();
+			if(i == -1) return false;
+			Object result;
+			try {
+				result = job.encode(i);
+			} catch (Throwable t) {
+				result = t;
+			}
+			synchronized(this) {
+				results[i] = result;
+				done[i] = true;
+				notifyAll();
+			}
+			return true;
+		}
+
+		/** Deliver the results which are ready, in order.
+		 * @param wait If true, wait for all the rest. */
+		void deliverReady(boolean wait) {
+			while(true) {
+				int i;
+				Object result;
+				synchronized(this) {
+					if(delivered == results.length) return;
+					while(!done[delivered]) {
+						if(!wait) return;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					i = delivered++;
+					result = results[i];
+					results[i] = null;
+				}
+				job.deliver(i, result);
+			}
+		}
+
+	}
+
+	private class Helper implements PrioRunnable {
+
+		private final Batch batch;
+
+		Helper(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(batch.encodeNext());
+			} finally {
+				releaseHelper();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+	}
+
+}
@@ -32,6 +32,13 @@ public class SingleKeyListener implements KeyListener {
 		else return 1;
 	}
 
+	@Override
+	public int[] getSaltedKeyPrefixes(ClientContext context) {
+		ClientRequestScheduler sched = key instanceof NodeSSK ? 
+				context.getSskFetchScheduler(realTime) : context.getChkFetchScheduler(realTime);
+		return new int[] { KeyListenerIndex.prefix(sched.saltKey(persistent, key)) };
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container,
 			ClientContext context) {
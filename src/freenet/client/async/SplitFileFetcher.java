@@ -102,6 +102,9 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 	// The above are obsolete. We now store the bloom filter in the database.
 	CountingBloomFilter cachedMainBloomFilter;
 	BinaryBloomFilter[] cachedSegmentBloomFilters;
+	/** The start of each salted key, for the scheduler's KeyListenerIndex, see 
+	 * SplitFileFetcherKeyListener. Null for splitfiles queued before we had this. */
+	int[] cachedSaltedKeyPrefixes;
 	
 	/** Size of the main Bloom filter in bytes. */
 	final int mainBloomFilterSizeBytes;
@@ -352,6 +355,10 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			}
 		}
 
+		cachedSaltedKeyPrefixes = tempListener.getSaltedKeyPrefixes(context);
+		if(persistent)
+			container.store(this);
+
 		try {
 			tempListener.writeFilters(container, "construction");
 		} catch (IOException e) {
@@ -610,6 +617,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 					Logger.minor(this, "Attempting to read Bloom filter for "+this+" main file="+main+" alt file="+alt);
 				tempListener =
 					new SplitFileFetcherKeyListener(this, keyCount, main, alt, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, false, cachedMainBloomFilter, cachedSegmentBloomFilters, container, onStartup, realTimeFlag);
+				tempListener.setSaltedKeyPrefixes(cachedSaltedKeyPrefixes);
 				if(main != null) {
 					try {
 						FileUtil.secureDelete(main, context.fastWeakRandom);
@@ -645,6 +653,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 				try {
 					tempListener =
 						new SplitFileFetcherKeyListener(this, keyCount, mainBloomFile, altBloomFile, mainBloomFilterSizeBytes, mainBloomK, localSalt, segments.length, perSegmentBloomFilterSizeBytes, perSegmentK, persistent, true, cachedMainBloomFilter, cachedSegmentBloomFilters, container, onStartup, realTimeFlag);
+					tempListener.setSaltedKeyPrefixes(cachedSaltedKeyPrefixes);
 				} catch (IOException e1) {
 					throw new KeyListenerConstructionException(new FetchException(FetchException.BUCKET_ERROR, "Unable to reconstruct Bloom filters: "+e1, e1));
 				}
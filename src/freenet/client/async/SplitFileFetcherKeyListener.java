@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.db4o.ObjectContainer;
 
@@ -70,6 +71,11 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	 * filters use the global salt. */
 	private final byte[] localSalt;
 	private boolean killed;
+	/** The keys we want, for the scheduler's KeyListenerIndex. Filled in by addKey() when
+	 * we are created, and stored in the database with the Bloom filters, so we can be
+	 * indexed after a restart. Not updated as keys are found. */
+	private int[] saltedKeyPrefixes;
+	private int prefixCount;
 	/** If true, we were loaded on startup. If false, we were created since then. */
 	final boolean loadedOnStartup;
 	final boolean realTime;
@@ -186,6 +192,13 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	void addKey(Key key, int segNo, ClientContext context) {
 		byte[] saltedKey = context.getChkFetchScheduler(realTime).saltKey(persistent, key);
 		filter.addKey(saltedKey);
+		synchronized(this) {
+			if(saltedKeyPrefixes == null)
+				saltedKeyPrefixes = new int[Math.max(keyCount, 16)];
+			else if(prefixCount == saltedKeyPrefixes.length)
+				saltedKeyPrefixes = Arrays.copyOf(saltedKeyPrefixes, prefixCount * 2);
+			saltedKeyPrefixes[prefixCount++] = KeyListenerIndex.prefix(saltedKey);
+		}
 		byte[] localSalted = localSaltKey(key);
 		segmentFilters[segNo].addKey(localSalted);
 //		if(!segmentFilters[segNo].checkFilter(localSalted))
@@ -201,6 +214,21 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		return ret;
 	}
 
+	/** Set the key prefixes we stored in the database after a restart. */
+	synchronized void setSaltedKeyPrefixes(int[] prefixes) {
+		saltedKeyPrefixes = prefixes;
+		prefixCount = prefixes == null ? 0 : prefixes.length;
+	}
+
+	/** @return The prefixes of all the keys we were created with, or null if we were
+	 * restored from a database which didn't have them. */
+	@Override
+	public synchronized int[] getSaltedKeyPrefixes(ClientContext context) {
+		if(saltedKeyPrefixes != null && prefixCount != saltedKeyPrefixes.length)
+			saltedKeyPrefixes = Arrays.copyOf(saltedKeyPrefixes, prefixCount);
+		return saltedKeyPrefixes;
+	}
+
 	@Override
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
 		if(filter == null) Logger.error(this, "Probably want key: filter = null for "+this+ " fetcher = "+fetcher);
@@ -371,6 +399,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 			byte[] salted = context.getChkFetchScheduler(realTime).saltKey(persistent, removeKeys[i]);
 			if(filter.checkFilter(salted)) {
 				filter.removeKey(salted);
+				context.getChkFetchScheduler(realTime).removeIndexedKey(persistent, this, salted);
 			} else
 				// Huh??
 				Logger.error(this, "Removing key "+removeKeys[i]+" for "+this+" from "+segment+" : NOT IN BLOOM FILTER!", new Exception("debug"));
@@ -387,6 +416,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		byte[] salted = context.getChkFetchScheduler(realTime).saltKey(persistent, key);
 		if(filter.checkFilter(salted)) {
 			filter.removeKey(salted);
+			context.getChkFetchScheduler(realTime).removeIndexedKey(persistent, this, salted);
 			keyCount--;
 		} else
 			// Huh??
@@ -337,6 +337,10 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				container.activate(parent.ctx, 1);
 		}
 		byte cryptoAlgorithm = getCryptoAlgorithm(container);
+		if(!persistent) {
+			tryEncodeParallel(compressorDescriptor, cryptoAlgorithm, context);
+			return;
+		}
 		for(int i=0;i<dataBlocks.length;i++) {
 			if(dataURIs[i] == null && dataBlocks[i] != null) {
 				try {
@@ -381,6 +385,56 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		}
 	}
 
+	/**
+	 * Encode all the blocks which don't have keys yet on several threads, for a transient
+	 * segment. The keys come back in block order on this thread.
+	 */
+	private void tryEncodeParallel(final String compressorDescriptor, final byte cryptoAlgorithm, final ClientContext context) {
+		int total = dataBlocks.length + (encoded ? checkBlocks.length : 0);
+		final int[] blockNums = new int[total];
+		final Bucket[] buckets = new Bucket[total];
+		int count = 0;
+		for(int i=0;i<total;i++) {
+			boolean isData = i < dataBlocks.length;
+			if((isData ? dataURIs[i] : checkURIs[i-dataBlocks.length]) != null) continue;
+			Bucket bucket = isData ? dataBlocks[i] : checkBlocks[i-dataBlocks.length];
+			if(bucket == null) {
+				fail(new InsertException(InsertException.INTERNAL_ERROR, (isData ? "Data" : "Check")+" block "+i+" cannot be encoded: no data", null), null, context);
+				continue;
+			}
+			blockNums[count] = i;
+			buckets[count++] = bucket;
+		}
+		context.backgroundBlockEncoder.encodeParallel(count, new ParallelBlockEncoder.Job() {
+
+			@Override
+			public Object encode(int i) throws CHKEncodeException, IOException {
+				return encodeBucket(buckets[i], compressorDescriptor, cryptoAlgorithm, cryptoKey).getClientKey();
+			}
+
+			@Override
+			public void deliver(int i, Object result) {
+				if(result instanceof ClientCHK) {
+					onEncode(blockNums[i], (ClientCHK) result, null, context);
+				} else if(result instanceof CHKEncodeException) {
+					fail(new InsertException(InsertException.INTERNAL_ERROR, (CHKEncodeException) result, null), null, context);
+				} else if(result instanceof IOException) {
+					fail(new InsertException(InsertException.BUCKET_ERROR, (IOException) result, null), null, context);
+				} else {
+					Throwable t = (Throwable) result;
+					Logger.error(this, "Caught "+t+" encoding block "+blockNums[i]+" of "+SplitFileInserterSegment.this, t);
+					fail(new InsertException(InsertException.INTERNAL_ERROR, t, null), null, context);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "encoding "+SplitFileInserterSegment.this;
+			}
+
+		}, true);
+	}
+
 	private byte getCryptoAlgorithm(ObjectContainer container) {
 		if(cryptoAlgorithm == 0) {
 			cryptoAlgorithm = Key.ALGO_AES_PCFB_256_SHA256;
@@ -1670,6 +1670,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return false;
 	}
 
+	@Override
+	public int[] getSaltedKeyPrefixes(ClientContext context) {
+		// The keys we want change as we find later editions.
+		return null;
+	}
+
 	@Override
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
 		if(!(key instanceof NodeSSK)) return false;
@@ -21,6 +21,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -219,10 +220,38 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				// If detecting charset, and found it, stop afterwards.
 				if(onlyDetectingCharset && detectedCharset != null)
 					return;
+				if(!firstChar && bufPos < bufEnd) {
+					// Fast path: copy runs of ordinary characters straight from the buffer.
+					int start = bufPos;
+					bufPos = scanRun(buf, bufPos, bufEnd, mode);
+					int n = bufPos - start;
+					if(n > 0) {
+						b.append(buf, start, n);
+						if(n == 1) {
+							pprevC = prevC;
+							prevC = c;
+						} else {
+							pprevC = n == 2 ? c : buf[bufPos - 3];
+							prevC = buf[bufPos - 2];
+						}
+						c = buf[bufPos - 1];
+						if(bufPos < bufEnd) continue;
+					}
+				}
 				int x;
 				
 				try {
-					x = r.read();
+					if(bufPos == bufEnd) {
+						int read;
+						do {
+							read = r.read(buf, 0, buf.length);
+						} while(read == 0);
+						if(read > 0) {
+							bufPos = 0;
+							bufEnd = read;
+						}
+					}
+					x = bufPos < bufEnd ? buf[bufPos++] : -1;
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -486,6 +515,44 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			w.flush();
 			return;
 		}
+		/** Characters read but not yet tokenized. Reading a block at a time avoids a
+		 * synchronized call to the Reader for every character. */
+		private final char[] buf = new char[4096];
+		private int bufPos;
+		private int bufEnd;
+		
+		/**
+		 * Find the end of a run of characters which the tokenizer would just append to the
+		 * current token in the given mode, so we can copy them all at once.
+		 * @return The index of the first character which needs to go through the tokenizer.
+		 */
+		private int scanRun(char[] buf, int pos, int end, int mode) {
+			switch(mode) {
+			case INTEXT:
+				while(pos < end) {
+					char ch = buf[pos];
+					if(ch == '<' || ch == 0 || ch == 0xFEFF) break;
+					pos++;
+				}
+				break;
+			case INTAGCOMMENT:
+				while(pos < end) {
+					char ch = buf[pos];
+					if(ch == '-' || ch == 0 || ch == 0xFEFF) break;
+					pos++;
+				}
+				break;
+			case INTAGQUOTES:
+				while(pos < end) {
+					char ch = buf[pos];
+					if(ch == '"' || ch == '<' || ch == '>' || ch == '\u00A0' || ch == 0 || ch == 0xFEFF) break;
+					pos++;
+				}
+				break;
+			}
+			return pos;
+		}
+		
 		int mode;
 		static final int INTEXT = 0;
 		static final int INTAG = 1;
@@ -535,26 +602,40 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
-		
-		for(int i=0;i<s.length();i++) {
+		// Usually there is nothing to change, so don't copy it unless we have to.
+		int len = s.length();
+		int i = 0;
+		for(;i<len;i++) {
 			char c = s.charAt(i);
-			if(c == '<' && !(pc.inStyle || pc.inScript)) {
-				//Scripts and styles parsed elsewhere
-				out.append("&lt;");
-			}
-			else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
-				// Not a real character
-				// STRONGLY suggests somebody is using a bogus charset.
-				// This could be in order to break the filter.
-				if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
-				continue;
-			}
-			else {
-				out.append(c);
+			if(c == '<' && !(pc.inStyle || pc.inScript)) break;
+			if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) break;
+		}
+		String sout;
+		if(i == len) {
+			sout = s.toString();
+		} else {
+			StringBuilder out = new StringBuilder(len+16);
+			out.append(s, 0, i);
+			
+			for(;i<len;i++) {
+				char c = s.charAt(i);
+				if(c == '<' && !(pc.inStyle || pc.inScript)) {
+					//Scripts and styles parsed elsewhere
+					out.append("&lt;");
+				}
+				else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
+					// Not a real character
+					// STRONGLY suggests somebody is using a bogus charset.
+					// This could be in order to break the filter.
+					if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
+					continue;
+				}
+				else {
+					out.append(c);
+				}
 			}
+			sout = out.toString();
 		}
-		String sout = out.toString();
 		
 		if (pc.inStyle || pc.inScript) {
 			pc.currentStyleScriptChunk += sout;
@@ -1460,7 +1541,12 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		}
 
 		ParsedTag sanitize(ParsedTag t, HTMLParseContext pc) throws DataFilterException {
-			Map<String, Object> h = new LinkedHashMap<String, Object>();
+			// sanitizeHash() only reads the attributes, so most tags, which have none, can share a map.
+			Map<String, Object> h;
+			if(t.unparsedAttrs == null || t.unparsedAttrs.length == 0)
+				h = Collections.emptyMap();
+			else
+				h = new LinkedHashMap<String, Object>();
 			boolean equals = false;
 			String prevX = "";
 			if (t.unparsedAttrs != null)
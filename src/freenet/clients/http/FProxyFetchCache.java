@@ -0,0 +1,223 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.client.FetchContext;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.support.ConcurrentLRUCache;
+import freenet.support.HTMLNode;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.SizeUtil;
+import freenet.support.api.Bucket;
+
+/**
+ * Completed, filtered fproxy fetches which nobody is looking at any more. When an
+ * FProxyFetchInProgress with data is removed from the tracker, its data goes here rather
+ * than being freed, so the next request for the same key with the same filter settings
+ * can be served without fetching, decoding and filtering it again. Entries are only
+ * shared between requests with the same refilter policy, and never used for RE_FETCH,
+ * which must not be given data that was filtered earlier.
+ *
+ * The buckets come from the TempBucketFactory, so they are migrated to disk as the RAM
+ * limit for temp buckets is reached. The cache is bounded by the total size of the data,
+ * and entries are evicted (and freed) least recently used first.
+ *
+ * An entry is owned by whoever has it: it is removed when it is used, and comes back when
+ * the new FProxyFetchInProgress is removed from the tracker in turn.
+ */
+class FProxyFetchCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Don't let a single entry take more than this fraction of the cache. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	/** What was fetched, and how it was filtered. */
+	static class Key {
+
+		final FreenetURI uri;
+		final boolean filterData;
+		final String overrideMIME;
+		final String charset;
+		final REFILTER_POLICY refilterPolicy;
+		private final int hashCode;
+
+		Key(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy) {
+			this.uri = uri;
+			this.filterData = fctx.filterData;
+			this.overrideMIME = fctx.overrideMIME;
+			this.charset = fctx.charset;
+			this.refilterPolicy = refilterPolicy;
+			hashCode = uri.hashCode() ^ (filterData ? 1 : 0) ^
+				(overrideMIME == null ? 0 : overrideMIME.hashCode() * 31) ^
+				(charset == null ? 0 : charset.hashCode() * 17) ^
+				(refilterPolicy.ordinal() << 1);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(filterData != k.filterData) return false;
+			if(refilterPolicy != k.refilterPolicy) return false;
+			if(!uri.equals(k.uri)) return false;
+			if(overrideMIME == null ? k.overrideMIME != null : !overrideMIME.equals(k.overrideMIME)) return false;
+			if(charset == null ? k.charset != null : !charset.equals(k.charset)) return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return uri+":"+filterData+":"+overrideMIME+":"+charset+":"+refilterPolicy;
+		}
+
+	}
+
+	static class Entry {
+
+		final Bucket data;
+		final String mimeType;
+		final long size;
+
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+
+	}
+
+	private final ConcurrentLRUCache<Key, Entry> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	FProxyFetchCache(long maxSize) {
+		entries = new ConcurrentLRUCache<Key, Entry>(Integer.MAX_VALUE, maxSize, SIZE, new ConcurrentLRUCache.EvictionListener<Key, Entry>() {
+
+			@Override
+			public void onEvict(Key key, Entry entry) {
+				if(logMINOR) Logger.minor(FProxyFetchCache.this, "Evicting "+key+" ("+entry.size+" bytes)");
+				free(entry.data);
+			}
+
+		});
+	}
+
+	private static final ConcurrentLRUCache.Weigher<Key, Entry> SIZE = new ConcurrentLRUCache.Weigher<Key, Entry>() {
+
+		@Override
+		public long weigh(Key key, Entry entry) {
+			return entry.size;
+		}
+
+	};
+
+	/** Can a fetch with this context be cached at all? Pushed pages depend on the
+	 * request they were filtered for, and RE_FETCH wants freshly fetched data every time. */
+	static boolean cacheable(FetchContext fctx, REFILTER_POLICY refilterPolicy) {
+		return fctx.tagReplacer == null && refilterPolicy != REFILTER_POLICY.RE_FETCH;
+	}
+
+	/**
+	 * Take an entry out of the cache. The caller owns its data.
+	 * @param maxSize The maximum size the request will accept.
+	 * @return The entry, or null if there isn't one or it is too big.
+	 */
+	Entry take(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy, long maxSize) {
+		if(!cacheable(fctx, refilterPolicy)) return null;
+		Key key = new Key(uri, fctx, refilterPolicy);
+		Entry entry = entries.get(key);
+		// Somebody else may take it between the get() and the remove().
+		if(entry == null || entry.size > maxSize || !entries.remove(key, entry)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if(logMINOR) Logger.minor(this, "Using cached "+key+" ("+entry.size+" bytes)");
+		return entry;
+	}
+
+	/**
+	 * Offer the data from a finished fetch to the cache.
+	 * @return True if the cache now owns the data, false if the caller should free it.
+	 */
+	boolean offer(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy, Bucket data, String mimeType) {
+		if(!cacheable(fctx, refilterPolicy)) return false;
+		Entry entry = new Entry(data, mimeType);
+		if(entry.size > entries.getMaxWeight() / MAX_ENTRY_FRACTION) return false;
+		Key key = new Key(uri, fctx, refilterPolicy);
+		Entry old = entries.push(key, entry);
+		if(logMINOR) Logger.minor(this, "Cached "+key+" ("+entry.size+" bytes)");
+		if(old != null && old.data != data)
+			free(old.data);
+		return true;
+	}
+
+	private void free(Bucket b) {
+		try {
+			b.free();
+		} catch (Throwable t) {
+			Logger.error(this, "Failed to free: "+t, t);
+		}
+	}
+
+	void setMaxSize(long maxSize) {
+		entries.setMaxWeight(maxSize);
+	}
+
+	long getMaxSize() {
+		return entries.getMaxWeight();
+	}
+
+	long getTotalSize() {
+		return entries.weight();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	void drawStatsBox(HTMLNode box) {
+		DecimalFormat pct = new DecimalFormat("##0.0%");
+		HTMLNode list = box.addChild("ul");
+		list.addChild("li", "Cached fetches: "+size());
+		list.addChild("li", "Cached data: "+SizeUtil.formatSize(getTotalSize())+" (max "+SizeUtil.formatSize(getMaxSize())+")");
+		long h = getHits();
+		long total = h + getMisses();
+		if(total == 0)
+			list.addChild("li", "Hits: 0");
+		else
+			list.addChild("li", "Hits: "+h+" of "+total+" ("+pct.format((double) h / total)+")");
+	}
+
+}
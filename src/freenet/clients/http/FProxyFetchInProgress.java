@@ -167,6 +167,12 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		return res;
 	}
 
+	/** Start with data from the tracker's cache, which we now own, so we free it, or 
+	 * give it back to the cache, in finishCancel(). The getter is never started. */
+	void startFromCache(Bucket data, String mimeType) {
+		onSuccess(new FetchResult(new ClientMetadata(mimeType), data), null, null);
+	}
+
 	public void start(ClientContext context) throws FetchException {
 		try {
 			if(!checkCache(context))
@@ -190,7 +196,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	 * @return True if it was found and we don't need to start the request. */
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
-		if(bogusUSK(context)) return false;
+		if(bogusUSK(uri, context)) return false;
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -284,7 +290,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	/** If the key is a USK and a) we are requested to do an exhaustive search, or b) 
 	 * there is a later version, then we can't use the download queue as a cache.
 	 * @return True if we can't use the download queue, false if we can. */
-	private boolean bogusUSK(ClientContext context) {
+	static boolean bogusUSK(FreenetURI uri, ClientContext context) {
 		if(!uri.isUSK()) return false;
 		long edition = uri.getSuggestedEdition();
 		if(edition < 0) 
@@ -441,7 +447,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	
 	public void finishCancel() {
 		if(logMINOR) Logger.minor(this, "Finishing cancel for "+this+" : "+uri+" : "+maxSize);
-		if(data != null) {
+		if(data != null && !tracker.offerToCache(uri, fctx, refilterPolicy, data, mimeType)) {
 			try {
 				data.free();
 			} catch (Throwable t) {
@@ -10,10 +10,12 @@ import freenet.client.async.ClientContext;
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
+import freenet.support.HTMLNode;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
 
 public class FProxyFetchTracker implements Runnable {
 
@@ -36,16 +38,27 @@ public class FProxyFetchTracker implements Runnable {
 	private final RequestClient rc;
 	private boolean queuedJob;
 	private boolean requeue;
+	/** Finished fetches which have been removed from fetchers */
+	private final FProxyFetchCache cache;
+
+	/** Default for the total size of the data in the cache */
+	static final long DEFAULT_CACHE_SIZE = 32*1024*1024;
 
 	FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		cache = new FProxyFetchCache(DEFAULT_CACHE_SIZE);
+	}
+	
+	public void setCacheSize(long size) {
+		cache.setMaxSize(size);
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
 		FProxyFetchInProgress progress;
+		FProxyFetchCache.Entry cached = null;
 		/* LOCKING:
 		 * Call getWaiter() inside the fetchers lock, since we will purge old 
 		 * fetchers inside that lock, hence avoid a race condition. FetchInProgress 
@@ -55,9 +68,17 @@ public class FProxyFetchTracker implements Runnable {
 			if(waiter!=null){
 				return waiter;
 			}
-			progress = new FProxyFetchInProgress(this, key, maxSize, fetchIdentifiers++, context, fctx != null ? fctx : this.fctx, rc, refilterPolicy);
+			if(fctx == null) fctx = this.fctx;
+			if(!FProxyFetchInProgress.bogusUSK(key, context))
+				cached = cache.take(key, fctx, refilterPolicy, maxSize);
+			progress = new FProxyFetchInProgress(this, key, maxSize, fetchIdentifiers++, context, fctx, rc, refilterPolicy);
 			fetchers.put(key, progress);
 		}
+		if(cached != null) {
+			progress.startFromCache(cached.data, cached.mimeType);
+			if(logMINOR) Logger.minor(this, "Created new fetcher from cache: "+progress);
+			return progress.getWaiter();
+		}
 		try {
 			progress.start(context);
 		} catch (FetchException e) {
@@ -72,6 +93,16 @@ public class FProxyFetchTracker implements Runnable {
 		// FIXME get rid of fetchers over some age
 	}
 	
+	/** Called when a fetcher with data is removed and cancelled.
+	 * @return True if the cache has taken the data, false if the caller should free it. */
+	boolean offerToCache(FreenetURI key, FetchContext fctx, REFILTER_POLICY refilterPolicy, Bucket data, String mimeType) {
+		return cache.offer(key, fctx, refilterPolicy, data, mimeType);
+	}
+	
+	public void drawCacheStatsBox(HTMLNode box) {
+		cache.drawStatsBox(box);
+	}
+	
 	void removeFetcher(FProxyFetchInProgress progress) {
 		synchronized(fetchers) {
 			fetchers.removeElement(progress.uri, progress);
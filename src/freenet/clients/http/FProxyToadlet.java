@@ -1115,7 +1115,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			}
 
 		});
-
+		fetchTracker.setCacheSize(server.getFetchCacheSize());
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
 		core.setFProxy(fproxy);
@@ -27,6 +27,9 @@ import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
+import freenet.io.NioConnection;
+import freenet.io.NioNetworkInterface;
+import freenet.io.NioSelectorPool;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
@@ -79,6 +82,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 	private String allowedHosts;
 	private NetworkInterface networkInterface;
 	private boolean ssl = false;
+	private boolean nio = false;
+	/** If non-null, connections are driven by a selector rather than a thread each. */
+	private NioSelectorPool selectorPool;
+	/** Selector threads when using NIO. Each can handle any number of connections. */
+	private static final int NIO_THREADS = 2;
 	public static final int DEFAULT_FPROXY_PORT = 8888;
 	
 	// ACL
@@ -113,6 +121,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 	private volatile boolean fProxyWebPushingEnabled;	// ugh?
 	private volatile boolean fproxyHasCompletedWizard;	// hmmm..
 	private volatile boolean disableProgressPage;
+	private volatile long fetchCacheSize;
 	private int maxFproxyConnections;
 	
 	private int fproxyConnections;
@@ -157,6 +166,24 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		}
 	}
 	
+	private class FProxyNIOCallback extends BooleanCallback  {
+		@Override
+		public Boolean get() {
+			return nio;
+		}
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			nio = val;
+			throw new NodeNeedRestartException("Cannot change NIO on the fly, please restart freenet");
+		}
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+	}
+	
 	private static class FProxyPassthruMaxSize extends LongCallback {
 		@Override
 		public Long get() {
@@ -439,6 +466,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		
 		fproxyConfig.register("ssl", false, configItemOrder++, true, true, "SimpleToadletServer.ssl", "SimpleToadletServer.sslLong",
 				new FProxySSLCallback());
+		fproxyConfig.register("nio", false, configItemOrder++, true, false, "SimpleToadletServer.nio", "SimpleToadletServer.nioLong",
+				new FProxyNIOCallback());
 		fproxyConfig.register("port", DEFAULT_FPROXY_PORT, configItemOrder++, true, true, "SimpleToadletServer.port", "SimpleToadletServer.portLong",
 				new FProxyPortCallback(), false);
 		fproxyConfig.register("bindTo", NetworkInterface.DEFAULT_BIND_TO, configItemOrder++, true, true, "SimpleToadletServer.bindTo", "SimpleToadletServer.bindToLong",
@@ -624,6 +653,25 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		fproxyConfig.register("passthroughMaxSize", (2L*1024*1024*11)/10, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSize", "SimpleToadletServer.passthroughMaxSizeLong", new FProxyPassthruMaxSize(), true);
 		FProxyToadlet.MAX_LENGTH = fproxyConfig.getLong("passthroughMaxSize");
 		
+		fproxyConfig.register("fetchCacheSize", FProxyFetchTracker.DEFAULT_CACHE_SIZE, configItemOrder++, true, false, "SimpleToadletServer.fetchCacheSize", "SimpleToadletServer.fetchCacheSizeLong", new LongCallback() {
+
+			@Override
+			public Long get() {
+				return fetchCacheSize;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("fetchCacheSizeNegative"));
+				fetchCacheSize = val;
+				NodeClientCore c = core;
+				FProxyToadlet fproxy = c == null ? null : c.getFProxy();
+				if(fproxy != null) fproxy.fetchTracker.setCacheSize(val);
+			}
+			
+		}, true);
+		fetchCacheSize = fproxyConfig.getLong("fetchCacheSize");
+		
 		fproxyConfig.register("allowedHosts", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedHosts", "SimpleToadletServer.allowedHostsLong",
 				new FProxyAllowedHostsCallback());
 		fproxyConfig.register("allowedHostsFullAccess", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedFullAccess", 
@@ -745,6 +793,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		if(SSL.available()) {
 			ssl = fproxyConfig.getBoolean("ssl");
 		}
+		nio = fproxyConfig.getBoolean("nio");
 		
 		this.allowedHosts=fproxyConfig.getString("allowedHosts");
 
@@ -781,6 +830,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		if (this.networkInterface!=null) return;
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(nio) {
+			// SSL needs a blocking socket, so NIO is only used without it.
+			this.networkInterface = NioNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			selectorPool = new NioSelectorPool("FProxy", NIO_THREADS, executor);
+			selectorPool.start();
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -956,6 +1010,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(finishedStartup && selectorPool != null && conn.getChannel() != null) {
+            	try {
+            		new NioSocketHandler(selectorPool.wrap(conn.getChannel())).start();
+            	} catch (IOException e) {
+            		Logger.normal(this, "Unable to set up connection: "+e, e);
+            		try {
+            			conn.close();
+            		} catch (IOException e1) {
+            			// Ignore
+            		}
+            	}
+            	continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
@@ -1011,6 +1078,52 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 
 	}
 
+	/**
+	 * Handles the requests on a connection driven by a selector. Only runs when there is a
+	 * request to handle, so it only counts towards the connection limit while it is running.
+	 */
+	private class NioSocketHandler implements PrioRunnable {
+
+		final NioConnection conn;
+
+		NioSocketHandler(NioConnection conn) {
+			this.conn = conn;
+		}
+
+		void start() {
+			conn.start(this, "HTTP socket handler@"+hashCode());
+		}
+
+		@Override
+		public void run() {
+		    freenet.support.Logger.OSThread.logPID(this);
+			synchronized(SimpleToadletServer.this) {
+				fproxyConnections++;
+			}
+			boolean idle = false;
+			try {
+				idle = ToadletContextImpl.handle(conn, SimpleToadletServer.this, pageMaker);
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				Logger.error(this, "OOM in NioSocketHandler");
+			} catch (Throwable t) {
+				Logger.error(this, "Caught in SimpleToadletServer: "+t, t);
+			} finally {
+				if(!idle) conn.close();
+				synchronized(SimpleToadletServer.this) {
+					fproxyConnections--;
+					SimpleToadletServer.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
 	@Override
 	public THEME getTheme() {
 		return this.cssTheme;
@@ -1052,6 +1165,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		fProxyJavascriptEnabled = b;
 	}
 	
+	/** The maximum total size of the finished fetches fproxy keeps for re-use. */
+	public long getFetchCacheSize() {
+		return fetchCacheSize;
+	}
+
 	@Override
 	public synchronized boolean isFProxyWebPushingEnabled() {
 		return this.fProxyWebPushingEnabled;
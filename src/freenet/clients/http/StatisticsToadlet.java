@@ -19,6 +19,8 @@ import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.node.FNPPacketMangler;
+import freenet.node.GroupCommitPolicy;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -38,6 +40,7 @@ import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
 
@@ -450,6 +453,17 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode databaseJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawDatabaseJobsBox(databaseJobsInfobox);
 
+			// ULPR stats box
+			drawULPRStatsBox(nextTableCell.addChild("div", "class", "infobox"));
+
+			// fproxy fetch cache stats box
+			FProxyToadlet fproxy = core.getFProxy();
+			if(fproxy != null)
+				drawFProxyCacheStatsBox(nextTableCell.addChild("div", "class", "infobox"), fproxy);
+
+			// insert block encoding stats box
+			drawBlockEncoderStatsBox(nextTableCell.addChild("div", "class", "infobox"));
+
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
 				// opennet stats box
@@ -631,15 +645,40 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
 
+		// The work-stealing executor also tells us how long jobs wait for a thread.
+		WorkStealingExecutor pools = null;
+		if(this.node.executor instanceof WorkStealingExecutor)
+			pools = (WorkStealingExecutor) this.node.executor;
+		int[] queuedJobs = null;
+		double[] waitTimes = null;
+		long[] jobsStarted = null;
+		long[] threadsCreated = null;
+
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(pools != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("avgWaitTime"));
+			row.addChild("th", l10n("jobsStarted"));
+			row.addChild("th", l10n("threadsCreated"));
+			queuedJobs = pools.queuedJobs();
+			waitTimes = pools.averageWaitTimes();
+			jobsStarted = pools.jobsStarted();
+			threadsCreated = pools.threadsCreated();
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(pools != null) {
+				row.addChild("td", String.valueOf(queuedJobs[i]));
+				row.addChild("td", thousandPoint.format(waitTimes[i]));
+				row.addChild("td", thousandPoint.format(jobsStarted[i]));
+				row.addChild("td", thousandPoint.format(threadsCreated[i]));
+			}
 		}
 	}
 
@@ -684,6 +723,38 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("queuedCount"));
 		row.addChild("th", l10n("jobType"));
 		stats.getDatabaseJobQueueStatistics().toTableRows(jobQueueStatistics);
+		
+		// Commits: how many jobs each covered, and how long they took
+		
+		GroupCommitPolicy commits = core.groupCommit;
+		threadsInfoboxContent.addChild("div", l10n("databaseCommits", new String[] { "count", "jobs", "time" },
+				new String[] { Long.toString(commits.getCommits()), fix1p1.format(commits.getAverageJobsPerCommit()), fix1p1.format(commits.getAverageCommitTime()) }));
+		long[] jobsPerCommit = commits.getJobsPerCommitHistogram();
+		long[] commitTimes = commits.getCommitTimeHistogram();
+		HTMLNode commitsTable = threadsInfoboxContent.addChild("table", "border", "0");
+		row = commitsTable.addChild("tr");
+		row.addChild("th", l10n("jobsPerCommit"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("commitTime"));
+		row.addChild("th", l10n("count"));
+		for(int i=0; i<Math.max(jobsPerCommit.length, commitTimes.length); i++) {
+			row = commitsTable.addChild("tr");
+			if(i < jobsPerCommit.length) {
+				row.addChild("td", histogramBucket(i, jobsPerCommit.length));
+				row.addChild("td", Long.toString(jobsPerCommit[i]));
+			} else {
+				row.addChild("td");
+				row.addChild("td");
+			}
+			row.addChild("td", histogramBucket(i, commitTimes.length));
+			row.addChild("td", Long.toString(commitTimes[i]));
+		}
+	}
+	
+	/** Label for bucket i of a histogram whose buckets are powers of two. */
+	private static String histogramBucket(int i, int buckets) {
+		if(i == buckets - 1) return "> "+(1L << (i - 1));
+		return "<= "+(1L << i);
 	}
 
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
@@ -692,6 +763,24 @@ public class StatisticsToadlet extends Toadlet {
 		om.drawOpennetStatsBox(opennetStatsContent);
 	}
 	
+	private void drawULPRStatsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("ulprStats"));
+		HTMLNode ulprStatsContent = box.addChild("div", "class", "infobox-content");
+		node.getFailureTable().drawULPRStatsBox(ulprStatsContent);
+	}
+	
+	private void drawFProxyCacheStatsBox(HTMLNode box, FProxyToadlet fproxy) {
+		box.addChild("div", "class", "infobox-header", l10n("fproxyCacheStats"));
+		HTMLNode fproxyCacheStatsContent = box.addChild("div", "class", "infobox-content");
+		fproxy.fetchTracker.drawCacheStatsBox(fproxyCacheStatsContent);
+	}
+	
+	private void drawBlockEncoderStatsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("blockEncoderStats"));
+		HTMLNode blockEncoderStatsContent = box.addChild("div", "class", "infobox-content");
+		core.backgroundBlockEncoder.getParallelEncoder().drawStatsBox(blockEncoderStatsContent);
+	}
+	
 	private void drawSeedStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("seedStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -1317,6 +1406,8 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		long[] unknownSource = FNPPacketMangler.getUnknownSourceDecodes();
+		overviewList.addChild("li", "packetsDecodedUnknownSource:\u00a0"+unknownSource[0]+"\u00a0fast,\u00a0"+unknownSource[1]+"\u00a0slow");
 		
 	}
 
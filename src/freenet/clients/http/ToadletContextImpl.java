@@ -23,6 +23,7 @@ import java.util.TimeZone;
 
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.annotation.AllowData;
+import freenet.io.NioConnection;
 import freenet.l10n.NodeL10n;
 import freenet.support.HTMLEncoder;
 import freenet.support.HTMLNode;
@@ -92,13 +93,17 @@ public class ToadletContextImpl implements ToadletContext {
 	private boolean shouldDisconnect;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container,URI uri) throws IOException {
+		this(sock.getInetAddress(), sock.getOutputStream(), headers, bf, pageMaker, container, uri);
+	}
+
+	public ToadletContextImpl(InetAddress remoteAddr, OutputStream sockOutputStream, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container,URI uri) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -372,12 +377,40 @@ public class ToadletContextImpl implements ToadletContext {
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
+			handle(lis, sock.getOutputStream(), sock.getInetAddress(), sock, null, container, pageMaker);
+		} catch (IOException e) {
+			// ignore and return
+		}
+	}
+	
+	/**
+	 * Handle the requests which have arrived so far on a connection driven by a selector.
+	 * Blocks only while reading the rest of a request, or writing the reply.
+	 * @return True if there is nothing more to read, in which case this should be called
+	 * again when there is. False if the connection should be closed.
+	 */
+	public static boolean handle(NioConnection conn, ToadletContainer container, PageMaker pageMaker) {
+		// Doesn't buffer anything, so a new one each time is fine.
+		LineReadingInputStream lis = new LineReadingInputStream(conn.getInputStream());
+		return handle(lis, conn.getOutputStream(), conn.getInetAddress(), null, conn, container, pageMaker);
+	}
+	
+	/**
+	 * @param sock The socket, to close when we are finished with it, or null if the caller closes it.
+	 * @param conn If non-null, return when there are no more requests waiting.
+	 * @return True if we returned because there are no more requests waiting.
+	 */
+	private static boolean handle(LineReadingInputStream lis, OutputStream os, InetAddress remoteAddr, Socket sock, NioConnection conn, ToadletContainer container, PageMaker pageMaker) {
+		try {
 			while(true) {
 				
+				if(conn != null && !conn.moreInput())
+					return true;
+				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
-					sock.close();
-					return;
+					closeSocket(sock);
+					return false;
 				} else if (firstLine.equals("")) {
 					continue;
 				}
@@ -398,8 +431,8 @@ public class ToadletContextImpl implements ToadletContext {
 					uri = URIPreEncoder.encodeURI(split[1]).normalize();
 					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
 				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+					sendURIParseError(os, true, e);
+					return false;
 				}
 				String method = split[0];
 				
@@ -408,8 +441,8 @@ public class ToadletContextImpl implements ToadletContext {
 				while(true) {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
-						sock.close();
-						return;
+						closeSocket(sock);
+						return false;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
@@ -428,7 +461,7 @@ public class ToadletContextImpl implements ToadletContext {
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container,uri);
+				ToadletContextImpl ctx = new ToadletContextImpl(remoteAddr, os, headers, bf, pageMaker, container,uri);
 				ctx.shouldDisconnect = disconnect;
 				
 				/*
@@ -448,7 +481,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen == null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
 					// <method> can not have data
@@ -456,7 +489,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen != null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				}
 
@@ -468,20 +501,20 @@ public class ToadletContextImpl implements ToadletContext {
 					} catch (NumberFormatException e) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
 						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+						BucketTools.copyFrom(data, lis, len);
 					} else {
-						FileUtil.skipFully(is, len);
+						FileUtil.skipFully(lis, len);
 						if (method.equals("POST")) {
 							ctx.sendMethodNotAllowed("POST", true);
 						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
+							sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 						}
 						ctx.close();
-						return;
+						return false;
 					}
 				} else {
 					// we're not doing to use it, but we have to keep
@@ -491,8 +524,8 @@ public class ToadletContextImpl implements ToadletContext {
 
 				if (!container.enableExtendedMethodHandling()) {
 					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
+						sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+						return false;
 					}
 				}
 
@@ -533,15 +566,15 @@ public class ToadletContextImpl implements ToadletContext {
 									AllowData anno = m.getAnnotation(AllowData.class);
 									if (anno == null) {
 										if (data != null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+											sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 											ctx.close();
-											return;
+											return false;
 										}
 									} else if (anno.value()) {
 										if (data == null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+											sendError(os, 400, "Bad Request", "Missing Content", true, null);
 											ctx.close();
-											return;
+											return false;
 										}
 									}
 								}
@@ -559,8 +592,8 @@ public class ToadletContextImpl implements ToadletContext {
 						}
 					}
 					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+						closeSocket(sock);
+						return false;
 					}
 				} finally {
 					if(data != null) data.free();
@@ -569,13 +602,13 @@ public class ToadletContextImpl implements ToadletContext {
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -594,12 +627,17 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw.toString() + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
+	}
+	
+	private static void closeSocket(Socket sock) throws IOException {
+		if(sock != null) sock.close();
 	}
 	
 	private void setActiveToadlet(Toadlet t) {
@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.Logger;
+
+/**
+ * AES-256 (Rijndael with a 256 bit key and a 128 bit block) in counter mode, used for
+ * {@link freenet.keys.Key#ALGO_AES_CTR_256_SHA256} blocks. The counter starts at the 16 byte
+ * IV and is incremented as a 128 bit big-endian number for each block, which is what the JCE's
+ * AES/CTR/NoPadding does.
+ *
+ * If the JCE supports 256 bit AES keys we use it, so that the JVM's AES intrinsics apply.
+ * Some JVMs only allow 128 bit keys without the unlimited strength policy files, so otherwise
+ * we fall back to our own Rijndael, which gives exactly the same output, just more slowly.
+ *
+ * Encryption and decryption are the same operation. The data is processed in place, and
+ * successive calls to process() continue the same keystream. Not thread-safe.
+ *
+ * CRYPTO WARNING: As with any counter mode, the key:IV pair must never be used for two
+ * different plaintexts.
+ */
+public abstract class AESCTRCipher {
+
+	public static final int KEY_LENGTH = 32;
+	public static final int IV_LENGTH = 16;
+
+	private static final String JCE_ALGORITHM = "AES/CTR/NoPadding";
+	private static final boolean HAS_JCE = checkJCE();
+
+	private static boolean checkJCE() {
+		try {
+			Cipher cipher = Cipher.getInstance(JCE_ALGORITHM);
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[KEY_LENGTH], "AES"), new IvParameterSpec(new byte[IV_LENGTH]));
+			return true;
+		} catch (GeneralSecurityException e) {
+			Logger.normal(AESCTRCipher.class, "Not using the JCE for AES-256 in counter mode, will be slower: "+e, e);
+			return false;
+		} catch (Throwable t) {
+			Logger.error(AESCTRCipher.class, "Not using the JCE for AES-256 in counter mode, will be slower: "+t, t);
+			return false;
+		}
+	}
+
+	/** Is AES-256 in counter mode done by the JCE? */
+	public static boolean usingJCE() {
+		return HAS_JCE;
+	}
+
+	/**
+	 * @param key The 32 byte key.
+	 * @param iv The IV. Only the first 16 bytes are used, so a hash can be passed in.
+	 */
+	public static AESCTRCipher create(byte[] key, byte[] iv) {
+		if(HAS_JCE)
+			return new JCE(key, iv);
+		else
+			return new Java(key, iv);
+	}
+
+	/** Our own implementation, regardless of whether the JCE works. For tests. */
+	static AESCTRCipher createJava(byte[] key, byte[] iv) {
+		return new Java(key, iv);
+	}
+
+	private static void checkLengths(byte[] key, byte[] iv) {
+		if(key.length != KEY_LENGTH)
+			throw new IllegalArgumentException("Key must be "+KEY_LENGTH+" bytes, not "+key.length);
+		if(iv.length < IV_LENGTH)
+			throw new IllegalArgumentException("IV must be at least "+IV_LENGTH+" bytes, not "+iv.length);
+	}
+
+	/** Encrypt or decrypt buf[offset...offset+length) in place. */
+	public abstract void process(byte[] buf, int offset, int length);
+
+	private static final class JCE extends AESCTRCipher {
+
+		private final Cipher cipher;
+
+		JCE(byte[] key, byte[] iv) {
+			checkLengths(key, iv);
+			try {
+				cipher = Cipher.getInstance(JCE_ALGORITHM);
+				cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv, 0, IV_LENGTH));
+			} catch (GeneralSecurityException e) {
+				// Impossible, checked in checkJCE().
+				throw new Error(e);
+			}
+		}
+
+		@Override
+		public void process(byte[] buf, int offset, int length) {
+			try {
+				int done = cipher.update(buf, offset, length, buf, offset);
+				if(done != length)
+					throw new IllegalStateException("Processed "+done+" bytes of "+length);
+			} catch (ShortBufferException e) {
+				// Impossible, in place.
+				throw new Error(e);
+			}
+		}
+
+	}
+
+	private static final class Java extends AESCTRCipher {
+
+		private final Rijndael aes;
+		private final byte[] counter = new byte[IV_LENGTH];
+		private final byte[] keystream = new byte[IV_LENGTH];
+		/** The number of bytes of keystream used, IV_LENGTH if none are left. */
+		private int used = IV_LENGTH;
+		private final int[] a;
+		private final int[] t;
+
+		Java(byte[] key, byte[] iv) {
+			checkLengths(key, iv);
+			try {
+				aes = new Rijndael(256, 128);
+			} catch (UnsupportedCipherException e) {
+				throw new Error(e);
+			}
+			aes.initializeCached(key);
+			System.arraycopy(iv, 0, counter, 0, IV_LENGTH);
+			a = new int[aes.getTempArraySize()];
+			t = new int[aes.getTempArraySize()];
+		}
+
+		@Override
+		public void process(byte[] buf, int offset, int length) {
+			int end = offset + length;
+			while(offset < end) {
+				if(used == IV_LENGTH) {
+					aes.encipher(counter, keystream, a, t);
+					for(int i = IV_LENGTH - 1; i >= 0; i--)
+						if(++counter[i] != 0) break;
+					used = 0;
+				}
+				int chunk = Math.min(end - offset, IV_LENGTH - used);
+				for(int i = 0; i < chunk; i++)
+					buf[offset++] ^= keystream[used++];
+			}
+		}
+
+	}
+
+}
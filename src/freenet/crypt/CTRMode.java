@@ -0,0 +1,131 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Counter mode. The keystream for block n is the IV, with n XORed into its last 8 bytes
+ * (big-endian), enciphered. Encryption and decryption are the same operation: XOR with the
+ * keystream. Unlike PCFBMode, the keystream at any position can be computed directly, so we
+ * can seek, which makes random access to encrypted data possible.
+ *
+ * Data is processed a block of keystream at a time rather than a byte at a time, and the
+ * keystream block for the current position is kept, so small sequential operations only
+ * encipher each block once.
+ *
+ * CRYPTO WARNING: The same key and IV must never be used to encrypt two different plaintexts
+ * at the same position, or the XOR of the plaintexts will be revealed. So the key:IV pair
+ * must be unique, and rewriting data in place reveals the XOR of the old and the new data to
+ * anyone who saw both. This is acceptable for ephemeral temp files, which is what it is for.
+ *
+ * Not thread-safe.
+ */
+public final class CTRMode {
+
+	private final BlockCipher cipher;
+	private final Rijndael rijndael;
+	private final int blockSize;
+	private final byte[] iv;
+	/** The counter block for the current keystream block, and then its encryption. */
+	private final byte[] counter;
+	private final byte[] keystream;
+	/** The index of the block in keystream, or -1. */
+	private long keystreamBlock;
+	private long position;
+	/** Temporary arrays for Rijndael, to avoid allocating for every block. */
+	private final int[] a;
+	private final int[] t;
+
+	/**
+	 * @param cipher The block cipher, already initialized with the key.
+	 * @param iv The IV. Must be the cipher's block size.
+	 */
+	public CTRMode(BlockCipher cipher, byte[] iv) {
+		this(cipher, iv, 0);
+	}
+
+	public CTRMode(BlockCipher cipher, byte[] iv, int offset) {
+		this.cipher = cipher;
+		blockSize = cipher.getBlockSize() >> 3;
+		if(blockSize < 8) throw new IllegalArgumentException("Block size too small for the counter");
+		this.iv = new byte[blockSize];
+		System.arraycopy(iv, offset, this.iv, 0, blockSize);
+		counter = new byte[blockSize];
+		keystream = new byte[blockSize];
+		keystreamBlock = -1;
+		if(cipher instanceof Rijndael) {
+			rijndael = (Rijndael) cipher;
+			a = new int[rijndael.getTempArraySize()];
+			t = new int[rijndael.getTempArraySize()];
+		} else {
+			rijndael = null;
+			a = null;
+			t = null;
+		}
+	}
+
+	/** Move to a byte position in the stream. */
+	public void seek(long position) {
+		if(position < 0) throw new IllegalArgumentException();
+		this.position = position;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Encrypt or decrypt in place, starting at the current position, and advance the position.
+	 */
+	public void process(byte[] buf, int offset, int length) {
+		if(offset < 0 || length < 0 || offset + length > buf.length)
+			throw new ArrayIndexOutOfBoundsException();
+		while(length > 0) {
+			long block = position / blockSize;
+			int inBlock = (int) (position - block * blockSize);
+			if(block != keystreamBlock)
+				generate(block);
+			int n = Math.min(length, blockSize - inBlock);
+			byte[] ks = keystream;
+			for(int i=0;i<n;i++)
+				buf[offset+i] ^= ks[inBlock+i];
+			offset += n;
+			length -= n;
+			position += n;
+		}
+	}
+
+	/** Encrypt or decrypt in place, at the given position. Leaves the position after the data. */
+	public void process(long position, byte[] buf, int offset, int length) {
+		seek(position);
+		process(buf, offset, length);
+	}
+
+	/** Encrypt or decrypt a single byte at the current position, and advance the position. */
+	public int process(int b) {
+		long block = position / blockSize;
+		if(block != keystreamBlock)
+			generate(block);
+		int inBlock = (int) (position - block * blockSize);
+		position++;
+		return (b ^ keystream[inBlock]) & 0xFF;
+	}
+
+	private void generate(long block) {
+		System.arraycopy(iv, 0, counter, 0, blockSize);
+		for(int i=0;i<8;i++)
+			counter[blockSize - 1 - i] ^= (byte) (block >>> (i * 8));
+		if(rijndael != null)
+			rijndael.encipher(counter, keystream, a, t);
+		else
+			cipher.encipher(counter, keystream);
+		keystreamBlock = block;
+	}
+
+}
@@ -4,6 +4,7 @@
 package freenet.crypt;
 
 import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -37,7 +38,21 @@ public class HMAC {
 		return Arrays.equals(mac, mac2);
 	}
 
+	/** Verify a MAC over part of a buffer, against a MAC stored in part of another (or the
+	 * same) buffer, without copying either. */
+	public boolean verify(byte[] K, byte[] text, int offset, int length, byte[] mac, int macOffset, int macLength) {
+		byte[] mac2 = mac(K, text, offset, length, macLength);
+		int diff = 0;
+		for(int i = 0; i < macLength; i++)
+			diff |= mac2[i] ^ mac[macOffset + i];
+		return diff == 0;
+	}
+
 	public byte[] mac(byte[] K, byte[] text, int macbytes) {
+		return mac(K, text, 0, text.length, macbytes);
+	}
+
+	public byte[] mac(byte[] K, byte[] text, int offset, int length, int macbytes) {
 		byte[] K0 = null;
 
 		if(K.length == B) // Step 1
@@ -58,7 +73,7 @@ public class HMAC {
 
 		// Step 5/6
 		d.update(IS1);
-		d.update(text);
+		d.update(text, offset, length);
 		IS1 = d.digest();
 
 		// Step 7
@@ -127,6 +142,69 @@ public class HMAC {
 
 	}
 
+	/**
+	 * HMAC with SHA-256 for code which computes a lot of MACs, e.g. one per packet. Keeps its
+	 * own digest and the padded key, and writes the MAC into the caller's buffer, so computing
+	 * a MAC allocates nothing. Not thread-safe: each thread (or each lock) needs its own.
+	 */
+	public static final class Keyed {
+
+		private final MessageDigest d;
+		private final byte[] ipadKey = new byte[B];
+		private final byte[] opadKey = new byte[B];
+		private final byte[] inner;
+		private final byte[] outer;
+		private byte[] key;
+
+		public Keyed() {
+			d = SHA256.getMessageDigest();
+			inner = new byte[d.getDigestLength()];
+			outer = new byte[d.getDigestLength()];
+		}
+
+		/** Change the key. Cheap if it is the same array as last time. The caller must not
+		 * change the contents of the array afterwards. */
+		public void setKey(byte[] K) {
+			if(K == key) return;
+			byte[] K0 = K;
+			if(K0.length > B)
+				K0 = Util.hashBytes(d, K0);
+			for(int i = 0; i < B; i++) {
+				byte b = i < K0.length ? K0[i] : 0;
+				ipadKey[i] = (byte) (b ^ ipad[i]);
+				opadKey[i] = (byte) (b ^ opad[i]);
+			}
+			key = K;
+		}
+
+		/** Write the first macbytes bytes of the MAC of text[offset...offset+length) to
+		 * out[outOffset...]. */
+		public void mac(byte[] text, int offset, int length, byte[] out, int outOffset, int macbytes) {
+			try {
+				d.update(ipadKey);
+				d.update(text, offset, length);
+				d.digest(inner, 0, inner.length);
+				d.update(opadKey);
+				d.update(inner);
+				d.digest(outer, 0, outer.length);
+			} catch (DigestException e) {
+				throw new Error(e); // Impossible, the buffers are the right size.
+			}
+			System.arraycopy(outer, 0, out, outOffset, Math.min(macbytes, outer.length));
+		}
+
+		/** Verify a MAC over part of a buffer against a MAC stored in part of another (or the
+		 * same) buffer. */
+		public boolean verify(byte[] text, int offset, int length, byte[] mac, int macOffset, int macLength) {
+			mac(text, offset, length, outer, 0, 0);
+			int diff = 0;
+			for(int i = 0; i < macLength; i++)
+				diff |= outer[i] ^ mac[macOffset + i];
+			return diff == 0;
+		}
+
+	}
+
 	public static byte[] macWithSHA256(byte[] K, byte[] text, int macbytes) {
 		MessageDigest sha256 = null;
 		try {
@@ -150,4 +228,16 @@ public class HMAC {
 				SHA256.returnMessageDigest(sha256);
 		}
 	}
+
+	public static boolean verifyWithSHA256(byte[] K, byte[] text, int offset, int length, byte[] mac, int macOffset, int macLength) {
+		MessageDigest sha256 = null;
+		try {
+			sha256 = SHA256.getMessageDigest();
+			HMAC hash = new HMAC(sha256);
+			return hash.verify(K, text, offset, length, mac, macOffset, macLength);
+		} finally {
+			if(sha256 != null)
+				SHA256.returnMessageDigest(sha256);
+		}
+	}
 }	
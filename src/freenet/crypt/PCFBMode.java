@@ -6,6 +6,7 @@ package freenet.crypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import freenet.crypt.ciphers.Rijndael;
 
@@ -196,6 +197,47 @@ public class PCFBMode {
         }
         return buf;
     }
+
+    /**
+     * Encipher the remaining bytes of the buffer in place, leaving its position at its limit.
+     */
+    public void blockEncipher(ByteBuffer buf) {
+        process(buf, true);
+    }
+
+    /**
+     * Decipher the remaining bytes of the buffer in place, leaving its position at its limit.
+     */
+    public void blockDecipher(ByteBuffer buf) {
+        process(buf, false);
+    }
+
+    private static final int BYTE_BUFFER_CHUNK = 4096;
+
+    private void process(ByteBuffer buf, boolean encipher) {
+        if(buf.hasArray()) {
+            int off = buf.arrayOffset() + buf.position();
+            if(encipher)
+                blockEncipher(buf.array(), off, buf.remaining());
+            else
+                blockDecipher(buf.array(), off, buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        // Direct or read-only: copy through a heap buffer.
+        byte[] chunk = new byte[Math.min(buf.remaining(), BYTE_BUFFER_CHUNK)];
+        while(buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), chunk.length);
+            int pos = buf.position();
+            buf.get(chunk, 0, n);
+            if(encipher)
+                blockEncipher(chunk, 0, n);
+            else
+                blockDecipher(chunk, 0, n);
+            buf.position(pos);
+            buf.put(chunk, 0, n);
+        }
+    }
         
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
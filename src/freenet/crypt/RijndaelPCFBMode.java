@@ -4,7 +4,8 @@ import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Optimised PCFBMode for Rijndael.
- * All this actually does is avoid two new int[4]'s per cycle.
+ * Avoids two new int[4]'s per cycle, and enciphers and deciphers whole blocks of an array
+ * at a time, working on ints, rather than going through the register a byte at a time.
  */
 public final class RijndaelPCFBMode extends PCFBMode {
 
@@ -21,6 +22,44 @@ public final class RijndaelPCFBMode extends PCFBMode {
 
         registerPointer=0;
     }
+
+    @Override
+    public byte[] blockEncipher(byte[] buf, int off, int len) {
+        int left = skipToBlock(buf, off, len, true);
+        int blocks = left - left % feedback_register.length;
+        // The register pointer is at the end of the register, which is where pcfbEncipher()
+        // starts, and where it leaves it.
+        if(blocks > 0)
+            ((Rijndael)c).pcfbEncipher(feedback_register, buf, off + len - left, blocks);
+        if(left > blocks)
+            super.blockEncipher(buf, off + len - left + blocks, left - blocks);
+        return buf;
+    }
+
+    @Override
+    public byte[] blockDecipher(byte[] buf, int off, int len) {
+        int left = skipToBlock(buf, off, len, false);
+        int blocks = left - left % feedback_register.length;
+        // The register pointer is at the end of the register, which is where pcfbDecipher()
+        // starts, and where it leaves it.
+        if(blocks > 0)
+            ((Rijndael)c).pcfbDecipher(feedback_register, buf, off + len - left, blocks);
+        if(left > blocks)
+            super.blockDecipher(buf, off + len - left + blocks, left - blocks);
+        return buf;
+    }
+
+    /** Use up what is left of the current register a byte at a time.
+     * @return The number of bytes left after that, which start on a block boundary. */
+    private int skipToBlock(byte[] buf, int off, int len, boolean encipher) {
+        if(registerPointer == feedback_register.length) return len;
+        int n = Math.min(len, feedback_register.length - registerPointer);
+        if(encipher)
+            super.blockEncipher(buf, off, n);
+        else
+            super.blockDecipher(buf, off, n);
+        return len - n;
+    }
 	
     public RijndaelPCFBMode(Rijndael c) {
     	super(c);
@@ -1,9 +1,12 @@
 package freenet.crypt.ciphers;
 
 import java.security.InvalidKeyException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.UnsupportedCipherException;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 
 /*
@@ -19,6 +22,34 @@ import freenet.support.Logger;
 public class Rijndael implements BlockCipher {
 	private Object sessionKey;
 	private final int keysize, blocksize;
+	/** Temporary arrays for the block methods, which are synchronized. */
+	private final int[] a, t;
+
+	private static final int KEY_CACHE_STRIPES = 16;
+	private static final int KEY_CACHE_STRIPE_SIZE = 16;
+	/** Recently used expanded keys for initializeCached(), by the key followed by the block
+	 * size in bytes, split into stripes by the hash of the key so that callers don't all
+	 * wait for the same lock. The expanded keys are never modified, so they can be shared.
+	 * Access order, so the least recently used key in a stripe is dropped. */
+	private static final KeyCacheStripe[] keyCache = new KeyCacheStripe[KEY_CACHE_STRIPES];
+
+	static {
+		for(int i=0;i<keyCache.length;i++)
+			keyCache[i] = new KeyCacheStripe();
+	}
+
+	private static class KeyCacheStripe extends LinkedHashMap<ByteArrayWrapper, Object> {
+		private static final long serialVersionUID = 1L;
+
+		KeyCacheStripe() {
+			super(KEY_CACHE_STRIPE_SIZE * 2, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Object> eldest) {
+			return size() > KEY_CACHE_STRIPE_SIZE;
+		}
+	}
 
 	/**
 	 * Create a Rijndael instance.
@@ -37,12 +68,16 @@ public class Rijndael implements BlockCipher {
 			throw new UnsupportedCipherException("Invalid blocksize");
 		this.keysize=keysize;
 		this.blocksize=blocksize;
+		a = new int[blocksize/32];
+		t = new int[blocksize/32];
 	}
 
 	// for Util.getCipherByName..  and yes, screw you too, java
 	public Rijndael() {
 		this.keysize   = 128;
 		this.blocksize = 128;
+		a = new int[4];
+		t = new int[4];
 	}
 
 	@Override
@@ -67,23 +102,61 @@ public class Rijndael implements BlockCipher {
 		}
 	}
 
+	/**
+	 * Like initialize(), but get the expanded key from a small global cache of recently used
+	 * keys. Only for keys which are used over and over by new instances, such as a
+	 * splitfile's crypto key, which is used for every block. Don't use it for session or
+	 * ephemeral keys: the cache keeps them until they are pushed out by other keys.
+	 */
+	public final void initializeCached(byte[] key) {
+		byte[] nkey=new byte[keysize>>3];
+		System.arraycopy(key, 0, nkey, 0, nkey.length);
+		try {
+			sessionKey=getSessionKey(nkey, blocksize/8);
+		} catch (InvalidKeyException e) {
+			Logger.error(this, "Invalid key", e);
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/** Get the expanded key from the cache, or expand it. */
+	private static Object getSessionKey(byte[] key, int blockSize) throws InvalidKeyException {
+		byte[] cacheKey = new byte[key.length + 1];
+		System.arraycopy(key, 0, cacheKey, 0, key.length);
+		cacheKey[key.length] = (byte) blockSize;
+		ByteArrayWrapper wrapper = new ByteArrayWrapper(cacheKey);
+		KeyCacheStripe stripe = keyCache[(wrapper.hashCode() & Integer.MAX_VALUE) % KEY_CACHE_STRIPES];
+		Object sessionKey;
+		synchronized(stripe) {
+			sessionKey = stripe.get(wrapper);
+		}
+		if(sessionKey != null) return sessionKey;
+		// Don't hold the lock while expanding. Two threads may both expand the same key, which
+		// is harmless.
+		sessionKey = Rijndael_Algorithm.makeKey(key, blockSize);
+		synchronized(stripe) {
+			stripe.put(wrapper, sessionKey);
+		}
+		return sessionKey;
+	}
+
 	@Override
 	public synchronized final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
 	}
 
 	/**
 	 * @return Size of temporary int[] a, t. If these are passed in, this can speed
 	 * things up by avoiding unnecessary allocations between rounds.
 	 */
-	// only consumer is RijndaelPCFBMode
+	// used by RijndaelPCFBMode, CTRMode and AESCTRCipher
 	public synchronized final int getTempArraySize() {
 		return blocksize/(8*4);
 	}
 
-	// only consumer is RijndaelPCFBMode
+	// used by RijndaelPCFBMode, CTRMode and AESCTRCipher
 	public synchronized final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
@@ -96,6 +169,41 @@ public class Rijndael implements BlockCipher {
 	public synchronized final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8, a, t);
+	}
+
+	/**
+	 * Encipher whole blocks in place in PCFB mode, starting by enciphering the register.
+	 * Much faster than going through encipher() a block at a time.
+	 * @param register The feedback register, one block long. On return it holds the last
+	 * block of ciphertext.
+	 * @param len The number of bytes, a multiple of the block size.
+	 */
+	// only consumer is RijndaelPCFBMode
+	public synchronized final void pcfbEncipher(byte[] register, byte[] buf, int off, int len) {
+		checkPCFB(register, buf, off, len);
+		int BC = blocksize/32;
+		Rijndael_Algorithm.bytesToInts(register, 0, t, BC);
+		Rijndael_Algorithm.pcfbEncrypt(sessionKey, BC, t, a, buf, off, len);
+		Rijndael_Algorithm.intsToBytes(t, register, 0, BC);
+	}
+
+	/**
+	 * Decipher whole blocks in place in PCFB mode. See pcfbEncipher().
+	 */
+	// only consumer is RijndaelPCFBMode
+	public synchronized final void pcfbDecipher(byte[] register, byte[] buf, int off, int len) {
+		checkPCFB(register, buf, off, len);
+		int BC = blocksize/32;
+		Rijndael_Algorithm.bytesToInts(register, 0, t, BC);
+		Rijndael_Algorithm.pcfbDecrypt(sessionKey, BC, t, a, buf, off, len);
+		Rijndael_Algorithm.intsToBytes(t, register, 0, BC);
+	}
+
+	private void checkPCFB(byte[] register, byte[] buf, int off, int len) {
+		if(register.length != blocksize/8)
+			throw new IllegalArgumentException();
+		if(len % (blocksize/8) != 0 || off < 0 || len < 0 || off + len > buf.length)
+			throw new IllegalArgumentException();
 	}
 }
@@ -77,6 +77,25 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		{ {0, 0}, {1, 7}, {3, 5}, {4, 4} }
 	};
 
+	/**
+	 * (i + shifts[SC][s][dir]) % BC for each column i, at [SC][dir][(s - 1) * BC + i], so the
+	 * round loops for 192 bit blocks don't need a division per lookup.
+	 */
+	private static final int[][][] shiftIndex = new int[3][2][];
+
+	static {
+		for (int SC = 0; SC < 3; SC++) {
+			int BC = 4 + 2 * SC;
+			for (int dir = 0; dir < 2; dir++) {
+				int[] idx = new int[3 * BC];
+				for (int s = 1; s < 4; s++)
+					for (int i = 0; i < BC; i++)
+						idx[(s - 1) * BC + i] = (i + shifts[SC][s][dir]) % BC;
+				shiftIndex[SC][dir] = idx;
+			}
+		}
+	}
+
 	private static final char[] HEX_DIGITS = {
 		'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
 	};
@@ -293,184 +312,6 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 //	Basic API methods
 //	...........................................................................
 
-	/**
-	 * Convenience method to encrypt exactly one block of plaintext, assuming
-	 * Rijndael's default block size (128-bit).
-	 *
-	 * @param  in         The plaintext.
-	 * @param  result     The buffer into which to write the resulting ciphertext.
-	 * @param  inOffset   Index of in from which to start considering data.
-	 * @param  sessionKey The session key to use for encryption.
-	 */
-	private static final void
-	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey) {
-		if (RDEBUG) trace(IN, "blockEncrypt("+in+", "+inOffset+", "+sessionKey+ ')');
-		int[][] Ke = (int[][]) ((Object[]) sessionKey)[0]; // extract encryption round keys
-		int ROUNDS = Ke.length - 1;
-		int[] Ker = Ke[0];
-
-		// plaintext to ints + key
-		int t0   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Ker[0];
-		int t1   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Ker[1];
-		int t2   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Ker[2];
-		int t3   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Ker[3];
-
-		int a0, a1, a2, a3;
-		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
-			Ker = Ke[r];
-		a0   = (T1[(t0 >>> 24) & 0xFF] ^
-				T2[(t1 >>> 16) & 0xFF] ^
-				T3[(t2 >>>  8) & 0xFF] ^
-				T4[ t3         & 0xFF]  ) ^ Ker[0];
-		a1   = (T1[(t1 >>> 24) & 0xFF] ^
-				T2[(t2 >>> 16) & 0xFF] ^
-				T3[(t3 >>>  8) & 0xFF] ^
-				T4[ t0         & 0xFF]  ) ^ Ker[1];
-		a2   = (T1[(t2 >>> 24) & 0xFF] ^
-				T2[(t3 >>> 16) & 0xFF] ^
-				T3[(t0 >>>  8) & 0xFF] ^
-				T4[ t1         & 0xFF]  ) ^ Ker[2];
-		a3   = (T1[(t3 >>> 24) & 0xFF] ^
-				T2[(t0 >>> 16) & 0xFF] ^
-				T3[(t1 >>>  8) & 0xFF] ^
-				T4[ t2         & 0xFF]  ) ^ Ker[3];
-		t0 = a0;
-		t1 = a1;
-		t2 = a2;
-		t3 = a3;
-		if (RDEBUG && (debuglevel > 6)) System.out.println("CT"+r+ '=' +intToString(t0)+intToString(t1)+intToString(t2)+intToString(t3));
-		}
-
-		// last round is special
-		Ker = Ke[ROUNDS];
-		int tt = Ker[0];
-		result[ 0] = (byte)(S[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 1] = (byte)(S[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 2] = (byte)(S[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 3] = (byte)(S[ t3         & 0xFF] ^  tt        );
-		tt = Ker[1];
-		result[ 4] = (byte)(S[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 5] = (byte)(S[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 6] = (byte)(S[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 7] = (byte)(S[ t0         & 0xFF] ^  tt        );
-		tt = Ker[2];
-		result[ 8] = (byte)(S[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 9] = (byte)(S[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[10] = (byte)(S[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[11] = (byte)(S[ t1         & 0xFF] ^  tt        );
-		tt = Ker[3];
-		result[12] = (byte)(S[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[13] = (byte)(S[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[14] = (byte)(S[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[15] = (byte)(S[ t2         & 0xFF] ^  tt        );
-		if (RDEBUG && (debuglevel > 6)) {
-			System.out.println("CT="+toString(result));
-			System.out.println();
-		}
-		if (RDEBUG) trace(OUT, "blockEncrypt()");
-	}
-
-	/**
-	 * Convenience method to decrypt exactly one block of plaintext, assuming
-	 * Rijndael's default block size (128-bit).
-	 *
-	 * @param  in         The ciphertext.
-	 * @param  result the resulting ciphertext
-	 * @param  inOffset   Index of in from which to start considering data.
-	 * @param  sessionKey The session key to use for decryption.
-	 */
-	private static final void
-	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey) {
-		if (RDEBUG) trace(IN, "blockDecrypt("+in+", "+inOffset+", "+sessionKey+ ')');
-		int[][] Kd = (int[][]) ((Object[]) sessionKey)[1]; // extract decryption round keys
-		int ROUNDS = Kd.length - 1;
-		int[] Kdr = Kd[0];
-
-		// ciphertext to ints + key
-		int t0   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Kdr[0];
-		int t1   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Kdr[1];
-		int t2   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Kdr[2];
-		int t3   = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Kdr[3];
-
-		int a0, a1, a2, a3;
-		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
-			Kdr = Kd[r];
-		a0   = (T5[(t0 >>> 24) & 0xFF] ^
-				T6[(t3 >>> 16) & 0xFF] ^
-				T7[(t2 >>>  8) & 0xFF] ^
-				T8[ t1         & 0xFF]  ) ^ Kdr[0];
-		a1   = (T5[(t1 >>> 24) & 0xFF] ^
-				T6[(t0 >>> 16) & 0xFF] ^
-				T7[(t3 >>>  8) & 0xFF] ^
-				T8[ t2         & 0xFF]  ) ^ Kdr[1];
-		a2   = (T5[(t2 >>> 24) & 0xFF] ^
-				T6[(t1 >>> 16) & 0xFF] ^
-				T7[(t0 >>>  8) & 0xFF] ^
-				T8[ t3         & 0xFF]  ) ^ Kdr[2];
-		a3   = (T5[(t3 >>> 24) & 0xFF] ^
-				T6[(t2 >>> 16) & 0xFF] ^
-				T7[(t1 >>>  8) & 0xFF] ^
-				T8[ t0         & 0xFF]  ) ^ Kdr[3];
-		t0 = a0;
-		t1 = a1;
-		t2 = a2;
-		t3 = a3;
-		if (RDEBUG && (debuglevel > 6)) System.out.println("PT"+r+ '=' +intToString(t0)+intToString(t1)+intToString(t2)+intToString(t3));
-		}
-
-		// last round is special
-		Kdr = Kd[ROUNDS];
-		int tt = Kdr[0];
-		result[ 0] = (byte)(Si[(t0 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 1] = (byte)(Si[(t3 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 2] = (byte)(Si[(t2 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 3] = (byte)(Si[ t1         & 0xFF] ^  tt        );
-		tt = Kdr[1];
-		result[ 4] = (byte)(Si[(t1 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 5] = (byte)(Si[(t0 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[ 6] = (byte)(Si[(t3 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[ 7] = (byte)(Si[ t2         & 0xFF] ^  tt        );
-		tt = Kdr[2];
-		result[ 8] = (byte)(Si[(t2 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[ 9] = (byte)(Si[(t1 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[10] = (byte)(Si[(t0 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[11] = (byte)(Si[ t3         & 0xFF] ^  tt        );
-		tt = Kdr[3];
-		result[12] = (byte)(Si[(t3 >>> 24) & 0xFF] ^ (tt >>> 24));
-		result[13] = (byte)(Si[(t2 >>> 16) & 0xFF] ^ (tt >>> 16));
-		result[14] = (byte)(Si[(t1 >>>  8) & 0xFF] ^ (tt >>>  8));
-		result[15] = (byte)(Si[ t0         & 0xFF] ^  tt        );
-		if (RDEBUG && (debuglevel > 6)) {
-			System.out.println("PT="+toString(result));
-			System.out.println();
-		}
-		if (RDEBUG) trace(OUT, "blockDecrypt()");
-	}
-
 	/** A basic symmetric encryption/decryption test. */
 	static boolean self_test() {
 		return self_test(BLOCK_SIZE);
@@ -486,23 +327,18 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	}
 
 	/**
-	 * Expand a user-supplied key material into a session key.
+	 * Expand a user-supplied key material into a session key. The session key is an int[][]
+	 * holding the encryption and the decryption round keys, each flattened into one int[],
+	 * with the keys for round r at [r*BC, (r+1)*BC). It is never modified once created, so
+	 * it can be shared between threads and between cipher instances.
+	 *
+	 * Not synchronized: it only reads the static tables.
 	 *
 	 * @param k        The 128/192/256-bit user-key to use.
 	 * @param blockSize  The block size in bytes of this Rijndael.
 	 * @exception  InvalidKeyException  If the key is invalid.
 	 */
-	//TODO: This method doesn't really need synchronization. The only reason
-	//I can see for it to be synchronized is that it will consume 100% CPU (due to
-	//heavy calculations) when called. Probably should be unsynchronized if we
-	//want better support for dual+ CPU machines. /Iakin 2003-10-12
-	//Concur:  the class has no fields which are not final, and does
-	//not reference fields of any other classes.  Control over how
-	//many simultaneous makeKey invocations should be allowed is
-	//a problem the callers should resolve among themselves.
-	//It is a fact that allowing no more than one makeKey on any given
-	//CPU will result in fewer cache misses.  -- ejhuff 2003-10-12
-	final static synchronized Object makeKey(byte[] k, int blockSize)
+	final static Object makeKey(byte[] k, int blockSize)
 	throws InvalidKeyException {
 		if (RDEBUG) trace(IN, "makeKey("+k+", "+blockSize+ ')');
 		if (k == null)
@@ -511,9 +347,9 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 			throw new InvalidKeyException("Incorrect key length");
 		int ROUNDS = getRounds(k.length, blockSize);
 		int BC = blockSize / 4;
-		int[][] Ke = new int[ROUNDS + 1][BC]; // encryption round keys
-		int[][] Kd = new int[ROUNDS + 1][BC]; // decryption round keys
 		int ROUND_KEY_COUNT = (ROUNDS + 1) * BC;
+		int[] Ke = new int[ROUND_KEY_COUNT]; // encryption round keys
+		int[] Kd = new int[ROUND_KEY_COUNT]; // decryption round keys
 		int KC = k.length / 4;
 		int[] tk = new int[KC];
 		int i, j;
@@ -527,8 +363,8 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		// copy values into round key arrays
 		int t = 0;
 		for (j = 0; (j < KC) && (t < ROUND_KEY_COUNT); j++, t++) {
-			Ke[t / BC][t % BC] = tk[j];
-			Kd[ROUNDS - (t / BC)][t % BC] = tk[j];
+			Ke[t] = tk[j];
+			Kd[(ROUNDS - (t / BC)) * BC + t % BC] = tk[j];
 		}
 		int tt, rconpointer = 0;
 		while (t < ROUND_KEY_COUNT) {
@@ -570,21 +406,20 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 			}
 			// copy values into round key arrays
 			for (j = 0; (j < KC) && (t < ROUND_KEY_COUNT); j++, t++) {
-				Ke[t / BC][t % BC] = tk[j];
-				Kd[ROUNDS - (t / BC)][t % BC] = tk[j];
+				Ke[t] = tk[j];
+				Kd[(ROUNDS - (t / BC)) * BC + t % BC] = tk[j];
 			}
 		}
-		for (int r = 1; r < ROUNDS; r++)    // inverse MixColumn where needed
-			for (j = 0; j < BC; j++) {
-				tt = Kd[r][j];
-				Kd[r][j] = U1[(tt >>> 24) & 0xFF] ^
-				U2[(tt >>> 16) & 0xFF] ^
-				U3[(tt >>>  8) & 0xFF] ^
-				U4[ tt         & 0xFF];
-			}
+		for (int r = BC; r < ROUNDS * BC; r++) { // inverse MixColumn where needed
+			tt = Kd[r];
+			Kd[r] = U1[(tt >>> 24) & 0xFF] ^
+			U2[(tt >>> 16) & 0xFF] ^
+			U3[(tt >>>  8) & 0xFF] ^
+			U4[ tt         & 0xFF];
+		}
 		// assemble the encryption (Ke) and decryption (Kd) round keys into
 		// one sessionKey object
-		Object[] sessionKey = new Object[] {Ke, Kd};
+		int[][] sessionKey = new int[][] {Ke, Kd};
 		if (RDEBUG) trace(OUT, "makeKey()");
 		return sessionKey;
 	}
@@ -600,68 +435,27 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 */
 	static final void
 	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize) {
-		if (blockSize == BLOCK_SIZE) {
-			blockEncrypt(in, result, inOffset, sessionKey);
-			return;
-		}
-
 		int BC = blockSize / 4;
-
-		int[] a = new int[BC];
-		int[] t = new int[BC]; // temporary work array
-
-		blockEncrypt(in, result, inOffset, sessionKey, blockSize, a, t);
+		blockEncrypt(in, result, inOffset, sessionKey, blockSize, new int[BC], new int[BC]);
 	}
 
 	/**
-	 * Encrypt exactly one block of plaintext.
+	 * Encrypt exactly one block of plaintext, without allocating.
 	 *
 	 * @param  in         The plaintext.
 	 * @param  result     The buffer into which to write the resulting ciphertext.
 	 * @param  inOffset   Index of in from which to start considering data.
 	 * @param  sessionKey The session key to use for encryption.
 	 * @param  blockSize  The block size in bytes of this Rijndael.
+	 * @param  a, t       Temporary arrays of blockSize / 4 ints.
 	 */
 	static final void
 	blockEncrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize, int[] a, int[] t) {
-		if (blockSize == BLOCK_SIZE) {
-			blockEncrypt(in, result, inOffset, sessionKey);
-			return;
-		}
 		if (RDEBUG) trace(IN, "blockEncrypt("+in+", "+inOffset+", "+sessionKey+", "+blockSize+ ')');
-		Object[] sKey = (Object[]) sessionKey; // extract encryption round keys
-		int[][] Ke = (int[][]) sKey[0];
-
 		int BC = blockSize / 4;
-		int ROUNDS = Ke.length - 1;
-		int SC = BC == 4 ? 0 : (BC == 6 ? 1 : 2);
-		int s1 = shifts[SC][1][0];
-		int s2 = shifts[SC][2][0];
-		int s3 = shifts[SC][3][0];
-		int i;
-		int j = 0, tt;
-
-		for (i = 0; i < BC; i++)                   // plaintext to ints + key
-		t[i] = ((in[inOffset++] & 0xFF) << 24 |
-				(in[inOffset++] & 0xFF) << 16 |
-				(in[inOffset++] & 0xFF) <<  8 |
-				(in[inOffset++] & 0xFF)        ) ^ Ke[0][i];
-		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
-			for (i = 0; i < BC; i++)
-				a[i] = (T1[(t[ i           ] >>> 24) & 0xFF] ^
-						T2[(t[(i + s1) % BC] >>> 16) & 0xFF] ^
-						T3[(t[(i + s2) % BC] >>>  8) & 0xFF] ^
-						T4[ t[(i + s3) % BC]         & 0xFF]  ) ^ Ke[r][i];
-			System.arraycopy(a, 0, t, 0, BC);
-			if (RDEBUG && (debuglevel > 6)) System.out.println("CT"+r+ '=' +toString(t));
-		}
-		for (i = 0; i < BC; i++) {                   // last round is special
-			tt = Ke[ROUNDS][i];
-			result[j++] = (byte)(S[(t[ i           ] >>> 24) & 0xFF] ^ (tt >>> 24));
-			result[j++] = (byte)(S[(t[(i + s1) % BC] >>> 16) & 0xFF] ^ (tt >>> 16));
-			result[j++] = (byte)(S[(t[(i + s2) % BC] >>>  8) & 0xFF] ^ (tt >>>  8));
-			result[j++] = (byte)(S[ t[(i + s3) % BC]         & 0xFF] ^ tt);
-		}
+		bytesToInts(in, inOffset, t, BC);
+		encrypt(((int[][]) sessionKey)[0], BC, t, a);
+		intsToBytes(t, result, 0, BC);
 		if (RDEBUG && (debuglevel > 6)) {
 			System.out.println("CT="+toString(result));
 			System.out.println();
@@ -680,52 +474,290 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 */
 	static final void
 	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize) {
-		if (blockSize == BLOCK_SIZE) {
-			blockDecrypt(in, result, inOffset, sessionKey);
-			return;
-		}
+		int BC = blockSize / 4;
+		blockDecrypt(in, result, inOffset, sessionKey, blockSize, new int[BC], new int[BC]);
+	}
 
+	/**
+	 * Decrypt exactly one block of ciphertext, without allocating.
+	 *
+	 * @param  in         The ciphertext.
+	 * @param  result     The resulting ciphertext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  sessionKey The session key to use for decryption.
+	 * @param  blockSize  The block size in bytes of this Rijndael.
+	 * @param  a, t       Temporary arrays of blockSize / 4 ints.
+	 */
+	static final void
+	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize, int[] a, int[] t) {
 		if (RDEBUG) trace(IN, "blockDecrypt("+in+", "+inOffset+", "+sessionKey+", "+blockSize+ ')');
-		Object[] sKey = (Object[]) sessionKey; // extract decryption round keys
-		int[][] Kd = (int[][]) sKey[1];
-
 		int BC = blockSize / 4;
-		int ROUNDS = Kd.length - 1;
-		int SC = BC == 4 ? 0 : (BC == 6 ? 1 : 2);
-		int s1 = shifts[SC][1][1];
-		int s2 = shifts[SC][2][1];
-		int s3 = shifts[SC][3][1];
-		int[] a = new int[BC];
-		int[] t = new int[BC]; // temporary work array
+		bytesToInts(in, inOffset, t, BC);
+		decrypt(((int[][]) sessionKey)[1], BC, t, a);
+		intsToBytes(t, result, 0, BC);
+		if (RDEBUG && (debuglevel > 6)) {
+			System.out.println("PT="+toString(result));
+			System.out.println();
+		}
+		if (RDEBUG) trace(OUT, "blockDecrypt()");
+	}
+
+	/**
+	 * Encipher whole blocks in place in PCFB mode, with the feedback register the same size
+	 * as the block: encrypt the register, XOR it into the data, and the ciphertext becomes the
+	 * new register. Gives exactly the same result as freenet.crypt.PCFBMode, but works on ints
+	 * and doesn't go through the byte[] block methods for every block.
+	 *
+	 * @param  sessionKey The session key to use.
+	 * @param  BC         The block size in ints.
+	 * @param  reg        The feedback register as BC big-endian ints. Updated.
+	 * @param  a          A temporary array of BC ints.
+	 * @param  len        The number of bytes, a multiple of the block size.
+	 */
+	static final void
+	pcfbEncrypt (Object sessionKey, int BC, int[] reg, int[] a, byte[] buf, int off, int len) {
+		int[] Ke = ((int[][]) sessionKey)[0];
+		int end = off + len;
+		while (off < end) {
+			encrypt(Ke, BC, reg, a);
+			for (int i = 0; i < BC; i++, off += 4) {
+				int c = readInt(buf, off) ^ reg[i];
+				writeInt(c, buf, off);
+				reg[i] = c;
+			}
+		}
+	}
+
+	/**
+	 * Decipher whole blocks in place in PCFB mode. See pcfbEncrypt().
+	 */
+	static final void
+	pcfbDecrypt (Object sessionKey, int BC, int[] reg, int[] a, byte[] buf, int off, int len) {
+		int[] Ke = ((int[][]) sessionKey)[0];
+		int end = off + len;
+		while (off < end) {
+			encrypt(Ke, BC, reg, a);
+			for (int i = 0; i < BC; i++, off += 4) {
+				int c = readInt(buf, off);
+				writeInt(c ^ reg[i], buf, off);
+				reg[i] = c;
+			}
+		}
+	}
+
+	static final void bytesToInts(byte[] in, int inOffset, int[] out, int count) {
+		for (int i = 0; i < count; i++, inOffset += 4)
+			out[i] = readInt(in, inOffset);
+	}
+
+	static final void intsToBytes(int[] in, byte[] out, int outOffset, int count) {
+		for (int i = 0; i < count; i++, outOffset += 4)
+			writeInt(in[i], out, outOffset);
+	}
+
+	private static final int readInt(byte[] buf, int off) {
+		return (buf[off] & 0xFF) << 24 |
+		(buf[off + 1] & 0xFF) << 16 |
+		(buf[off + 2] & 0xFF) <<  8 |
+		(buf[off + 3] & 0xFF);
+	}
+
+	private static final void writeInt(int x, byte[] buf, int off) {
+		buf[off]     = (byte)(x >>> 24);
+		buf[off + 1] = (byte)(x >>> 16);
+		buf[off + 2] = (byte)(x >>>  8);
+		buf[off + 3] = (byte) x;
+	}
+
+	/**
+	 * Encrypt a block held as BC big-endian ints, in place. 128 and 256 bit blocks, which
+	 * are all we actually use, have unrolled versions that keep the state in locals.
+	 *
+	 * @param  Ke  The encryption round keys.
+	 * @param  t   The block.
+	 * @param  a   A temporary array of BC ints, only used for 192 bit blocks.
+	 */
+	private static final void encrypt(int[] Ke, int BC, int[] t, int[] a) {
+		if (BC == 8)
+			encrypt256(Ke, t);
+		else if (BC == 4)
+			encrypt128(Ke, t);
+		else
+			encryptGeneric(Ke, BC, t, a);
+	}
+
+	/** Decrypt a block held as BC big-endian ints, in place. See encrypt(). */
+	private static final void decrypt(int[] Kd, int BC, int[] t, int[] a) {
+		if (BC == 8)
+			decrypt256(Kd, t);
+		else if (BC == 4)
+			decrypt128(Kd, t);
+		else
+			decryptGeneric(Kd, BC, t, a);
+	}
+
+	private static final void encryptGeneric(int[] Ke, int BC, int[] t, int[] a) {
+		int ROUNDS = Ke.length / BC - 1;
+		int[] idx = shiftIndex[BC == 4 ? 0 : (BC == 6 ? 1 : 2)][0];
 		int i;
-		int j = 0, tt;
-
-		for (i = 0; i < BC; i++)                   // ciphertext to ints + key
-			t[i] = ((in[inOffset++] & 0xFF) << 24 |
-					(in[inOffset++] & 0xFF) << 16 |
-					(in[inOffset++] & 0xFF) <<  8 |
-					(in[inOffset++] & 0xFF)        ) ^ Kd[0][i];
-		for (int r = 1; r < ROUNDS; r++) {          // apply round transforms
+		for (i = 0; i < BC; i++)
+			t[i] ^= Ke[i];
+		int k = BC;
+		for (int r = 1; r < ROUNDS; r++, k += BC) {          // apply round transforms
 			for (i = 0; i < BC; i++)
-				a[i] = (T5[(t[ i           ] >>> 24) & 0xFF] ^
-						T6[(t[(i + s1) % BC] >>> 16) & 0xFF] ^
-						T7[(t[(i + s2) % BC] >>>  8) & 0xFF] ^
-						T8[ t[(i + s3) % BC]         & 0xFF]  ) ^ Kd[r][i];
+				a[i] = (T1[ t[i]                   >>> 24        ] ^
+						T2[(t[idx[i]]          >>> 16) & 0xFF] ^
+						T3[(t[idx[BC + i]]     >>>  8) & 0xFF] ^
+						T4[ t[idx[2 * BC + i]]         & 0xFF]  ) ^ Ke[k + i];
+			System.arraycopy(a, 0, t, 0, BC);
+			if (RDEBUG && (debuglevel > 6)) System.out.println("CT"+r+ '=' +toString(t));
+		}
+		for (i = 0; i < BC; i++)                   // last round is special
+			a[i] = ((S[ t[i]                   >>> 24        ] & 0xFF) << 24 |
+					(S[(t[idx[i]]          >>> 16) & 0xFF] & 0xFF) << 16 |
+					(S[(t[idx[BC + i]]     >>>  8) & 0xFF] & 0xFF) <<  8 |
+					(S[ t[idx[2 * BC + i]]         & 0xFF] & 0xFF)) ^ Ke[k + i];
+		System.arraycopy(a, 0, t, 0, BC);
+	}
+
+	private static final void decryptGeneric(int[] Kd, int BC, int[] t, int[] a) {
+		int ROUNDS = Kd.length / BC - 1;
+		int[] idx = shiftIndex[BC == 4 ? 0 : (BC == 6 ? 1 : 2)][1];
+		int i;
+		for (i = 0; i < BC; i++)
+			t[i] ^= Kd[i];
+		int k = BC;
+		for (int r = 1; r < ROUNDS; r++, k += BC) {          // apply round transforms
+			for (i = 0; i < BC; i++)
+				a[i] = (T5[ t[i]                   >>> 24        ] ^
+						T6[(t[idx[i]]          >>> 16) & 0xFF] ^
+						T7[(t[idx[BC + i]]     >>>  8) & 0xFF] ^
+						T8[ t[idx[2 * BC + i]]         & 0xFF]  ) ^ Kd[k + i];
 			System.arraycopy(a, 0, t, 0, BC);
 			if (RDEBUG && (debuglevel > 6)) System.out.println("PT"+r+ '=' +toString(t));
 		}
-		for (i = 0; i < BC; i++) {                   // last round is special
-			tt = Kd[ROUNDS][i];
-			result[j++] = (byte)(Si[(t[ i           ] >>> 24) & 0xFF] ^ (tt >>> 24));
-			result[j++] = (byte)(Si[(t[(i + s1) % BC] >>> 16) & 0xFF] ^ (tt >>> 16));
-			result[j++] = (byte)(Si[(t[(i + s2) % BC] >>>  8) & 0xFF] ^ (tt >>>  8));
-			result[j++] = (byte)(Si[ t[(i + s3) % BC]         & 0xFF] ^ tt);
+		for (i = 0; i < BC; i++)                   // last round is special
+			a[i] = ((Si[ t[i]                   >>> 24        ] & 0xFF) << 24 |
+					(Si[(t[idx[i]]          >>> 16) & 0xFF] & 0xFF) << 16 |
+					(Si[(t[idx[BC + i]]     >>>  8) & 0xFF] & 0xFF) <<  8 |
+					(Si[ t[idx[2 * BC + i]]         & 0xFF] & 0xFF)) ^ Kd[k + i];
+		System.arraycopy(a, 0, t, 0, BC);
+	}
+
+	/** Encrypt a 128 bit block held as 4 ints, in place. */
+	private static final void encrypt128(int[] Ke, int[] t) {
+		int ROUNDS = Ke.length / 4 - 1;
+		int t0 = t[0] ^ Ke[0];
+		int t1 = t[1] ^ Ke[1];
+		int t2 = t[2] ^ Ke[2];
+		int t3 = t[3] ^ Ke[3];
+		int a0, a1, a2, a3;
+		int k = 4;
+		for (int r = 1; r < ROUNDS; r++, k += 4) {
+			a0 = T1[t0 >>> 24] ^ T2[(t1 >>> 16) & 0xFF] ^ T3[(t2 >>> 8) & 0xFF] ^ T4[t3 & 0xFF] ^ Ke[k];
+			a1 = T1[t1 >>> 24] ^ T2[(t2 >>> 16) & 0xFF] ^ T3[(t3 >>> 8) & 0xFF] ^ T4[t0 & 0xFF] ^ Ke[k + 1];
+			a2 = T1[t2 >>> 24] ^ T2[(t3 >>> 16) & 0xFF] ^ T3[(t0 >>> 8) & 0xFF] ^ T4[t1 & 0xFF] ^ Ke[k + 2];
+			a3 = T1[t3 >>> 24] ^ T2[(t0 >>> 16) & 0xFF] ^ T3[(t1 >>> 8) & 0xFF] ^ T4[t2 & 0xFF] ^ Ke[k + 3];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3;
+		}
+		// last round is special
+		t[0] = ((S[t0 >>> 24] & 0xFF) << 24 | (S[(t1 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t2 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t3 & 0xFF] & 0xFF)) ^ Ke[k];
+		t[1] = ((S[t1 >>> 24] & 0xFF) << 24 | (S[(t2 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t3 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t0 & 0xFF] & 0xFF)) ^ Ke[k + 1];
+		t[2] = ((S[t2 >>> 24] & 0xFF) << 24 | (S[(t3 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t0 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t1 & 0xFF] & 0xFF)) ^ Ke[k + 2];
+		t[3] = ((S[t3 >>> 24] & 0xFF) << 24 | (S[(t0 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t1 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t2 & 0xFF] & 0xFF)) ^ Ke[k + 3];
+	}
+
+	/** Encrypt a 256 bit block held as 8 ints, in place. */
+	private static final void encrypt256(int[] Ke, int[] t) {
+		int ROUNDS = Ke.length / 8 - 1;
+		int t0 = t[0] ^ Ke[0];
+		int t1 = t[1] ^ Ke[1];
+		int t2 = t[2] ^ Ke[2];
+		int t3 = t[3] ^ Ke[3];
+		int t4 = t[4] ^ Ke[4];
+		int t5 = t[5] ^ Ke[5];
+		int t6 = t[6] ^ Ke[6];
+		int t7 = t[7] ^ Ke[7];
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		int k = 8;
+		for (int r = 1; r < ROUNDS; r++, k += 8) {
+			a0 = T1[t0 >>> 24] ^ T2[(t1 >>> 16) & 0xFF] ^ T3[(t3 >>> 8) & 0xFF] ^ T4[t4 & 0xFF] ^ Ke[k];
+			a1 = T1[t1 >>> 24] ^ T2[(t2 >>> 16) & 0xFF] ^ T3[(t4 >>> 8) & 0xFF] ^ T4[t5 & 0xFF] ^ Ke[k + 1];
+			a2 = T1[t2 >>> 24] ^ T2[(t3 >>> 16) & 0xFF] ^ T3[(t5 >>> 8) & 0xFF] ^ T4[t6 & 0xFF] ^ Ke[k + 2];
+			a3 = T1[t3 >>> 24] ^ T2[(t4 >>> 16) & 0xFF] ^ T3[(t6 >>> 8) & 0xFF] ^ T4[t7 & 0xFF] ^ Ke[k + 3];
+			a4 = T1[t4 >>> 24] ^ T2[(t5 >>> 16) & 0xFF] ^ T3[(t7 >>> 8) & 0xFF] ^ T4[t0 & 0xFF] ^ Ke[k + 4];
+			a5 = T1[t5 >>> 24] ^ T2[(t6 >>> 16) & 0xFF] ^ T3[(t0 >>> 8) & 0xFF] ^ T4[t1 & 0xFF] ^ Ke[k + 5];
+			a6 = T1[t6 >>> 24] ^ T2[(t7 >>> 16) & 0xFF] ^ T3[(t1 >>> 8) & 0xFF] ^ T4[t2 & 0xFF] ^ Ke[k + 6];
+			a7 = T1[t7 >>> 24] ^ T2[(t0 >>> 16) & 0xFF] ^ T3[(t2 >>> 8) & 0xFF] ^ T4[t3 & 0xFF] ^ Ke[k + 7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3; t4 = a4; t5 = a5; t6 = a6; t7 = a7;
 		}
-		if (RDEBUG && (debuglevel > 6)) {
-			System.out.println("PT="+toString(result));
-			System.out.println();
+		// last round is special
+		t[0] = ((S[t0 >>> 24] & 0xFF) << 24 | (S[(t1 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t3 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t4 & 0xFF] & 0xFF)) ^ Ke[k];
+		t[1] = ((S[t1 >>> 24] & 0xFF) << 24 | (S[(t2 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t4 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t5 & 0xFF] & 0xFF)) ^ Ke[k + 1];
+		t[2] = ((S[t2 >>> 24] & 0xFF) << 24 | (S[(t3 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t5 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t6 & 0xFF] & 0xFF)) ^ Ke[k + 2];
+		t[3] = ((S[t3 >>> 24] & 0xFF) << 24 | (S[(t4 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t6 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t7 & 0xFF] & 0xFF)) ^ Ke[k + 3];
+		t[4] = ((S[t4 >>> 24] & 0xFF) << 24 | (S[(t5 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t7 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t0 & 0xFF] & 0xFF)) ^ Ke[k + 4];
+		t[5] = ((S[t5 >>> 24] & 0xFF) << 24 | (S[(t6 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t0 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t1 & 0xFF] & 0xFF)) ^ Ke[k + 5];
+		t[6] = ((S[t6 >>> 24] & 0xFF) << 24 | (S[(t7 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t1 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t2 & 0xFF] & 0xFF)) ^ Ke[k + 6];
+		t[7] = ((S[t7 >>> 24] & 0xFF) << 24 | (S[(t0 >>> 16) & 0xFF] & 0xFF) << 16 | (S[(t2 >>> 8) & 0xFF] & 0xFF) << 8 | (S[t3 & 0xFF] & 0xFF)) ^ Ke[k + 7];
+	}
+
+	/** Decrypt a 128 bit block held as 4 ints, in place. */
+	private static final void decrypt128(int[] Kd, int[] t) {
+		int ROUNDS = Kd.length / 4 - 1;
+		int t0 = t[0] ^ Kd[0];
+		int t1 = t[1] ^ Kd[1];
+		int t2 = t[2] ^ Kd[2];
+		int t3 = t[3] ^ Kd[3];
+		int a0, a1, a2, a3;
+		int k = 4;
+		for (int r = 1; r < ROUNDS; r++, k += 4) {
+			a0 = T5[t0 >>> 24] ^ T6[(t3 >>> 16) & 0xFF] ^ T7[(t2 >>> 8) & 0xFF] ^ T8[t1 & 0xFF] ^ Kd[k];
+			a1 = T5[t1 >>> 24] ^ T6[(t0 >>> 16) & 0xFF] ^ T7[(t3 >>> 8) & 0xFF] ^ T8[t2 & 0xFF] ^ Kd[k + 1];
+			a2 = T5[t2 >>> 24] ^ T6[(t1 >>> 16) & 0xFF] ^ T7[(t0 >>> 8) & 0xFF] ^ T8[t3 & 0xFF] ^ Kd[k + 2];
+			a3 = T5[t3 >>> 24] ^ T6[(t2 >>> 16) & 0xFF] ^ T7[(t1 >>> 8) & 0xFF] ^ T8[t0 & 0xFF] ^ Kd[k + 3];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3;
 		}
-		if (RDEBUG) trace(OUT, "blockDecrypt()");
+		// last round is special
+		t[0] = ((Si[t0 >>> 24] & 0xFF) << 24 | (Si[(t3 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t2 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t1 & 0xFF] & 0xFF)) ^ Kd[k];
+		t[1] = ((Si[t1 >>> 24] & 0xFF) << 24 | (Si[(t0 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t3 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t2 & 0xFF] & 0xFF)) ^ Kd[k + 1];
+		t[2] = ((Si[t2 >>> 24] & 0xFF) << 24 | (Si[(t1 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t0 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t3 & 0xFF] & 0xFF)) ^ Kd[k + 2];
+		t[3] = ((Si[t3 >>> 24] & 0xFF) << 24 | (Si[(t2 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t1 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t0 & 0xFF] & 0xFF)) ^ Kd[k + 3];
+	}
+
+	/** Decrypt a 256 bit block held as 8 ints, in place. */
+	private static final void decrypt256(int[] Kd, int[] t) {
+		int ROUNDS = Kd.length / 8 - 1;
+		int t0 = t[0] ^ Kd[0];
+		int t1 = t[1] ^ Kd[1];
+		int t2 = t[2] ^ Kd[2];
+		int t3 = t[3] ^ Kd[3];
+		int t4 = t[4] ^ Kd[4];
+		int t5 = t[5] ^ Kd[5];
+		int t6 = t[6] ^ Kd[6];
+		int t7 = t[7] ^ Kd[7];
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		int k = 8;
+		for (int r = 1; r < ROUNDS; r++, k += 8) {
+			a0 = T5[t0 >>> 24] ^ T6[(t7 >>> 16) & 0xFF] ^ T7[(t5 >>> 8) & 0xFF] ^ T8[t4 & 0xFF] ^ Kd[k];
+			a1 = T5[t1 >>> 24] ^ T6[(t0 >>> 16) & 0xFF] ^ T7[(t6 >>> 8) & 0xFF] ^ T8[t5 & 0xFF] ^ Kd[k + 1];
+			a2 = T5[t2 >>> 24] ^ T6[(t1 >>> 16) & 0xFF] ^ T7[(t7 >>> 8) & 0xFF] ^ T8[t6 & 0xFF] ^ Kd[k + 2];
+			a3 = T5[t3 >>> 24] ^ T6[(t2 >>> 16) & 0xFF] ^ T7[(t0 >>> 8) & 0xFF] ^ T8[t7 & 0xFF] ^ Kd[k + 3];
+			a4 = T5[t4 >>> 24] ^ T6[(t3 >>> 16) & 0xFF] ^ T7[(t1 >>> 8) & 0xFF] ^ T8[t0 & 0xFF] ^ Kd[k + 4];
+			a5 = T5[t5 >>> 24] ^ T6[(t4 >>> 16) & 0xFF] ^ T7[(t2 >>> 8) & 0xFF] ^ T8[t1 & 0xFF] ^ Kd[k + 5];
+			a6 = T5[t6 >>> 24] ^ T6[(t5 >>> 16) & 0xFF] ^ T7[(t3 >>> 8) & 0xFF] ^ T8[t2 & 0xFF] ^ Kd[k + 6];
+			a7 = T5[t7 >>> 24] ^ T6[(t6 >>> 16) & 0xFF] ^ T7[(t4 >>> 8) & 0xFF] ^ T8[t3 & 0xFF] ^ Kd[k + 7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3; t4 = a4; t5 = a5; t6 = a6; t7 = a7;
+		}
+		// last round is special
+		t[0] = ((Si[t0 >>> 24] & 0xFF) << 24 | (Si[(t7 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t5 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t4 & 0xFF] & 0xFF)) ^ Kd[k];
+		t[1] = ((Si[t1 >>> 24] & 0xFF) << 24 | (Si[(t0 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t6 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t5 & 0xFF] & 0xFF)) ^ Kd[k + 1];
+		t[2] = ((Si[t2 >>> 24] & 0xFF) << 24 | (Si[(t1 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t7 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t6 & 0xFF] & 0xFF)) ^ Kd[k + 2];
+		t[3] = ((Si[t3 >>> 24] & 0xFF) << 24 | (Si[(t2 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t0 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t7 & 0xFF] & 0xFF)) ^ Kd[k + 3];
+		t[4] = ((Si[t4 >>> 24] & 0xFF) << 24 | (Si[(t3 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t1 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t0 & 0xFF] & 0xFF)) ^ Kd[k + 4];
+		t[5] = ((Si[t5 >>> 24] & 0xFF) << 24 | (Si[(t4 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t2 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t1 & 0xFF] & 0xFF)) ^ Kd[k + 5];
+		t[6] = ((Si[t6 >>> 24] & 0xFF) << 24 | (Si[(t5 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t3 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t2 & 0xFF] & 0xFF)) ^ Kd[k + 6];
+		t[7] = ((Si[t7 >>> 24] & 0xFF) << 24 | (Si[(t6 >>> 16) & 0xFF] & 0xFF) << 16 | (Si[(t4 >>> 8) & 0xFF] & 0xFF) << 8 | (Si[t3 & 0xFF] & 0xFF)) ^ Kd[k + 7];
 	}
 
 	/** A basic symmetric encryption/decryption test for a given key size. */
@@ -0,0 +1,426 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/**
+ * A non-blocking socket, driven by one of the I/O threads of a {@link NioSelectorPool}. The
+ * I/O thread reads into a buffer and writes out of a queue, and blocking streams are provided
+ * on top of them, so the existing protocol code can be used unchanged.
+ *
+ * The difference from a Socket is that nothing needs to block on the socket while the
+ * connection is idle. The handler is run on the executor when there is something to read, and
+ * it should handle everything that is buffered, checking {@link #moreInput()} between
+ * messages. When that returns false, the handler returns, and will be run again when more
+ * data arrives. Within a message, reading blocks as usual until the rest of it arrives.
+ */
+public final class NioConnection implements Closeable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Stop reading from the socket when this much has been read but not consumed. */
+	static final int MAX_BUFFERED_INPUT = 64 * 1024;
+	/** Writers block when this much is waiting to be sent. */
+	static final int MAX_BUFFERED_OUTPUT = 256 * 1024;
+	/** How long close() waits for queued output to be sent. */
+	static final int CLOSE_TIMEOUT = 30 * 1000;
+
+	private final SocketChannel channel;
+	private final NioSelectorPool.IOThread thread;
+	/** Only used on the I/O thread. */
+	SelectionKey key;
+
+	// Everything below is protected by synchronized(this).
+
+	private Runnable handler;
+	private String handlerName;
+	/** True if the handler is not running, so it must be started when data arrives. */
+	private boolean idle = true;
+
+	private byte[] inBuf = new byte[4096];
+	private int inStart;
+	private int inEnd;
+	private int markPos = -1;
+	private int markLimit;
+	private boolean eof;
+	/** False if we have stopped reading because too much is buffered. */
+	private boolean reading = true;
+
+	private final LinkedList<ByteBuffer> outQueue = new LinkedList<ByteBuffer>();
+	private int outPending;
+	private boolean outputClosed;
+	private IOException failure;
+	private boolean closed;
+
+	private final InputStream inputStream = new In();
+	private final OutputStream outputStream = new Out();
+
+	NioConnection(SocketChannel channel, NioSelectorPool.IOThread thread) {
+		this.channel = channel;
+		this.thread = thread;
+	}
+
+	/**
+	 * Start reading. The handler will be run on the executor whenever data arrives while it
+	 * isn't running.
+	 */
+	public void start(Runnable handler, String name) {
+		synchronized(this) {
+			if(this.handler != null) throw new IllegalStateException("Already started");
+			this.handler = handler;
+			this.handlerName = name;
+		}
+		thread.register(this);
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	/** Blocking stream of what we have read. Supports mark() and reset(). */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Blocking stream to write to the socket. Data is sent as soon as it is written, so
+	 * there is no need to flush, but flush() waits until it has all been sent.
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Called by the handler between messages.
+	 * @return True if there is more to read, or the connection has been closed, so the handler
+	 * should carry on. False if there is nothing to read, in which case the handler must return,
+	 * and will be run again when there is.
+	 */
+	public synchronized boolean moreInput() {
+		if(inEnd > inStart || eof || closed) return true;
+		idle = true;
+		return false;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/** Wait for queued output to be sent, then close the socket. */
+	@Override
+	public void close() {
+		try {
+			flushOutput(CLOSE_TIMEOUT);
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+		abort(null);
+	}
+
+	/** Close immediately, dropping anything which hasn't been sent. */
+	void abort(IOException e) {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			if(failure == null) failure = e;
+			outQueue.clear();
+			outPending = 0;
+			notifyAll();
+		}
+		if(logMINOR) Logger.minor(this, "Closing "+this+(e == null ? "" : " because of "+e));
+		Closer.close(channel);
+		thread.closed(this);
+	}
+
+	/** The operations the I/O thread should wait for. */
+	synchronized int interestOps() {
+		if(closed) return 0;
+		int ops = 0;
+		if(reading && !eof) ops |= SelectionKey.OP_READ;
+		if(!outQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	/** Called on the I/O thread when the socket is readable. */
+	void onReadable(ByteBuffer buf) {
+		int read;
+		try {
+			buf.clear();
+			read = channel.read(buf);
+		} catch (IOException e) {
+			abort(e);
+			return;
+		}
+		buf.flip();
+		boolean dispatch = false;
+		synchronized(this) {
+			if(read < 0) {
+				eof = true;
+			} else if(read > 0) {
+				makeRoom(read);
+				buf.get(inBuf, inEnd, read);
+				inEnd += read;
+				if(inEnd - retainedStart() >= MAX_BUFFERED_INPUT)
+					reading = false;
+			}
+			if(read != 0) {
+				notifyAll();
+				if(idle && handler != null) {
+					idle = false;
+					dispatch = true;
+				}
+			}
+		}
+		if(dispatch)
+			thread.dispatch(handler, handlerName);
+	}
+
+	/** Called on the I/O thread when the socket is writable. */
+	void onWritable() {
+		synchronized(this) {
+			try {
+				while(!outQueue.isEmpty()) {
+					ByteBuffer buf = outQueue.getFirst();
+					int written = channel.write(buf);
+					outPending -= written;
+					if(buf.hasRemaining()) break;
+					outQueue.removeFirst();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			notifyAll();
+			if(failure == null) return;
+		}
+		abort(failure);
+	}
+
+	private int retainedStart() {
+		return markPos >= 0 ? Math.min(markPos, inStart) : inStart;
+	}
+
+	private void makeRoom(int bytes) {
+		if(markPos >= 0 && inStart - markPos > markLimit)
+			markPos = -1;
+		int start = retainedStart();
+		int used = inEnd - start;
+		if(inEnd + bytes <= inBuf.length) return;
+		byte[] newBuf = inBuf;
+		if(used + bytes > inBuf.length)
+			newBuf = new byte[Math.max(inBuf.length * 2, used + bytes)];
+		System.arraycopy(inBuf, start, newBuf, 0, used);
+		inBuf = newBuf;
+		inStart -= start;
+		inEnd -= start;
+		if(markPos >= 0) markPos -= start;
+	}
+
+	/** Caller must hold the lock. Ask the I/O thread to start reading again if we stopped. */
+	private void maybeResumeReading(boolean force) {
+		if(reading) return;
+		if(force || inEnd - retainedStart() < MAX_BUFFERED_INPUT / 2) {
+			reading = true;
+			thread.update(this);
+		}
+	}
+
+	private void flushOutput(long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(this) {
+			while(!outQueue.isEmpty() && !closed) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) throw new IOException("Timed out sending data");
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(failure != null) throw failure;
+		}
+	}
+
+	private class In extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			synchronized(NioConnection.this) {
+				if(!waitForInput()) return -1;
+				return inBuf[inStart++] & 0xFF;
+			}
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			synchronized(NioConnection.this) {
+				if(!waitForInput()) return -1;
+				int count = Math.min(length, inEnd - inStart);
+				System.arraycopy(inBuf, inStart, buf, offset, count);
+				inStart += count;
+				maybeResumeReading(false);
+				return count;
+			}
+		}
+
+		/** Caller must hold the lock. @return False on EOF. */
+		private boolean waitForInput() throws IOException {
+			while(inEnd == inStart) {
+				if(failure != null) throw failure;
+				if(eof) return false;
+				if(closed) throw new IOException("Connection closed");
+				maybeResumeReading(true);
+				try {
+					NioConnection.this.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			synchronized(NioConnection.this) {
+				if(n <= 0 || !waitForInput()) return 0;
+				int count = (int) Math.min(n, inEnd - inStart);
+				inStart += count;
+				maybeResumeReading(false);
+				return count;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized(NioConnection.this) {
+				return inEnd - inStart;
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readLimit) {
+			synchronized(NioConnection.this) {
+				markPos = inStart;
+				markLimit = readLimit;
+			}
+		}
+
+		@Override
+		public void reset() throws IOException {
+			synchronized(NioConnection.this) {
+				if(markPos < 0) throw new IOException("Mark invalid");
+				inStart = markPos;
+			}
+		}
+
+		@Override
+		public void close() {
+			// The connection is closed separately.
+		}
+
+	}
+
+	private class Out extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return;
+			synchronized(NioConnection.this) {
+				if(failure != null) throw failure;
+				if(closed || outputClosed) throw new IOException("Connection closed");
+				ByteBuffer b = ByteBuffer.wrap(buf, offset, length);
+				if(outQueue.isEmpty()) {
+					// Try to send it straight away, saving the trip through the I/O thread.
+					try {
+						channel.write(b);
+					} catch (IOException e) {
+						failure = e;
+						throw e;
+					}
+					if(!b.hasRemaining()) return;
+				}
+				ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+				copy.put(b);
+				copy.flip();
+				boolean wasEmpty = outQueue.isEmpty();
+				outQueue.add(copy);
+				outPending += copy.remaining();
+				if(wasEmpty) thread.update(NioConnection.this);
+				while(outPending > MAX_BUFFERED_OUTPUT && !closed && failure == null) {
+					try {
+						NioConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+				if(failure != null) throw failure;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushOutput(Long.MAX_VALUE / 2);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flushOutput(CLOSE_TIMEOUT);
+			} finally {
+				synchronized(NioConnection.this) {
+					outputClosed = true;
+				}
+			}
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+channel.socket().getRemoteSocketAddress();
+	}
+
+}
@@ -0,0 +1,49 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * A {@link NetworkInterface} whose sockets have channels, so they can be handed to a
+ * {@link NioSelectorPool}. Accepting is still done by the usual acceptor threads.
+ */
+public class NioNetworkInterface extends NetworkInterface {
+
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		NetworkInterface iface = new NioNetworkInterface(port, allowedHosts, executor);
+		try {
+			iface.setBindTo(bindTo, ignoreUnbindableIP6);
+		} catch (IOException e) {
+			try {
+				iface.close();
+			} catch (IOException e1) {
+				Logger.error(NetworkInterface.class, "Caught "+e1+" closing after catching "+e+" binding while constructing", e1);
+				// Ignore
+			}
+			throw e;
+		}
+		return iface;
+	}
+
+	/**
+	 * See {@link NetworkInterface}
+	 */
+	protected NioNetworkInterface(int port, String allowedHosts, Executor executor) throws IOException {
+		super(port, allowedHosts, executor);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ServerSocket createServerSocket() throws IOException {
+		return ServerSocketChannel.open().socket();
+	}
+}
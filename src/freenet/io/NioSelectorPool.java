@@ -0,0 +1,197 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * A small, fixed number of threads which do all the reading and writing for a set of
+ * {@link NioConnection}s, each with its own Selector. Whatever handles the connections runs
+ * on the executor, and only while there is something to do, so an idle connection costs a
+ * buffer rather than a thread.
+ */
+public class NioSelectorPool {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private final String name;
+	private final IOThread[] threads;
+	private final Executor executor;
+	private final AtomicInteger nextThread = new AtomicInteger();
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	public NioSelectorPool(String name, int threadCount, Executor executor) throws IOException {
+		if(threadCount < 1) throw new IllegalArgumentException();
+		this.name = name;
+		this.executor = executor;
+		threads = new IOThread[threadCount];
+		for(int i = 0; i < threads.length; i++)
+			threads[i] = new IOThread(i);
+	}
+
+	public void start() {
+		for(IOThread t : threads) {
+			NativeThread thread = new NativeThread(t, name+" I/O thread "+t.index, NativeThread.HIGH_PRIORITY, true);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Make a connection for a socket. It won't do anything until
+	 * {@link NioConnection#start(Runnable, String)} is called.
+	 */
+	public NioConnection wrap(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		IOThread thread = threads[(nextThread.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+		connections.incrementAndGet();
+		return new NioConnection(channel, thread);
+	}
+
+	/** The number of open connections. */
+	public int connections() {
+		return connections.get();
+	}
+
+	public void close() {
+		shutdown = true;
+		for(IOThread t : threads)
+			t.selector.wakeup();
+	}
+
+	/** One thread and its selector. */
+	class IOThread implements Runnable {
+
+		final int index;
+		final Selector selector;
+		private final ConcurrentLinkedQueue<NioConnection> toRegister = new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection> toUpdate = new ConcurrentLinkedQueue<NioConnection>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(NioConnection.MAX_BUFFERED_INPUT);
+		private volatile Thread thread;
+
+		IOThread(int index) throws IOException {
+			this.index = index;
+			selector = Selector.open();
+		}
+
+		void register(NioConnection conn) {
+			toRegister.add(conn);
+			selector.wakeup();
+		}
+
+		/** The connection's interest ops have changed. */
+		void update(NioConnection conn) {
+			if(Thread.currentThread() == thread) {
+				setInterest(conn);
+				return;
+			}
+			toUpdate.add(conn);
+			selector.wakeup();
+		}
+
+		void closed(NioConnection conn) {
+			connections.decrementAndGet();
+			// The key is cancelled when the channel is closed, but the socket isn't actually
+			// closed until the next select().
+			selector.wakeup();
+		}
+
+		void dispatch(Runnable handler, String handlerName) {
+			executor.execute(handler, handlerName);
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			thread = Thread.currentThread();
+			try {
+				while(!shutdown) {
+					NioConnection conn;
+					while((conn = toRegister.poll()) != null) {
+						try {
+							conn.key = conn.getChannel().register(selector, conn.interestOps(), conn);
+						} catch (ClosedChannelException e) {
+							conn.abort(e);
+						}
+					}
+					while((conn = toUpdate.poll()) != null)
+						setInterest(conn);
+					try {
+						selector.select();
+					} catch (IOException e) {
+						Logger.error(this, "Caught "+e+" in select", e);
+						continue;
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						conn = (NioConnection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable())
+								conn.onReadable(readBuffer);
+							if(key.isValid() && key.isWritable())
+								conn.onWritable();
+						} catch (CancelledKeyException e) {
+							// Closed.
+							continue;
+						}
+						setInterest(conn);
+					}
+				}
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in "+name+" I/O thread", t);
+			} finally {
+				for(SelectionKey key : selector.keys().toArray(new SelectionKey[0]))
+					((NioConnection) key.attachment()).abort(null);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+
+		private void setInterest(NioConnection conn) {
+			SelectionKey key = conn.key;
+			// Not registered yet, will be set on registration.
+			if(key == null || !key.isValid()) return;
+			try {
+				int ops = conn.interestOps();
+				key.interestOps(ops);
+				if(logMINOR) Logger.minor(this, "Interest for "+conn+" now "+ops);
+			} catch (CancelledKeyException e) {
+				// Closed.
+			}
+		}
+
+	}
+
+}
@@ -54,6 +54,13 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return new long[] { decoded, decoded+failed };
 	}
 
+	/**
+	 * May be called on several threads at once. Packets for peers using the new packet format
+	 * are decrypted without any locking here, NewPacketFormat serialises them per peer. Old
+	 * format peers, the handshake code in the mangler and trying every peer for a packet from
+	 * an unknown address are all handled one packet at a time, although the mangler may use
+	 * helper threads to check the peers' keys.
+	 */
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
@@ -61,27 +68,30 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
 
 		if(opn != null) {
-			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
+			if(!opn.isOldFNP() && opn.handleReceivedPacket(buf, offset, length, now, peer)) {
 				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 				return DECODED.DECODED;
 			}
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		synchronized(this) {
+			return processSlow(buf, offset, length, peer, opn, now);
+		}
+	}
+
+	private DECODED processSlow(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		if(opn != null && opn.isOldFNP()) {
+			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
+			}
+		}
+		// The mangler tries both packet formats for every peer.
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
-			
-			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
-				if(pn.isOldFNP()) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
-				}
-			}
-			
 			if(logMINOR) failedDecodePackets.incrementAndGet();
 		}
 		return decoded;
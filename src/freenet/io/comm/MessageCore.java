@@ -21,6 +21,7 @@ package freenet.io.comm;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Vector;
@@ -53,14 +54,15 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex(System.currentTimeMillis());
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
 	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
 	private static final int MAX_FILTER_REMOVE_TIME = 1000;
-	private static final int MIN_FILTER_REMOVE_TIME = 100;
+	/** One tick of the filter index's timer wheel. */
+	private static final int MIN_FILTER_REMOVE_TIME = MessageFilterIndex.TICK_LENGTH;
 	private long startedTime;
 	
 	public synchronized long getStartedTime() {
@@ -125,37 +127,24 @@ public class MessageCore {
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(!_timedOutFilters.contains(f))
-						_timedOutFilters.add(f);
-					else
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			_filters.removeTimedOut(tStart, _timedOutFilters);
+			for(MessageFilter f : _timedOutFilters) {
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+f);
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
+			// Some filters may be timed out because their client callbacks say they should be,
+			// so the index polls those on every call. See also the end of waitFor() for another
+			// weird case.
 		}
 		
 		for(MessageFilter f : _timedOutFilters) {
@@ -192,34 +181,17 @@ public class MessageCore {
 					+ m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			} else if(logDEBUG) Logger.minor(this, "Did not match any filter: "+m);
 		}
-		if(timedOut != null) {
+		if(!timedOut.isEmpty()) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
 				f.setMessage(null);
@@ -238,7 +210,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -265,23 +237,11 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
@@ -300,7 +260,7 @@ public class MessageCore {
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
+			if(!timedOut.isEmpty()) {
 				for(MessageFilter f : timedOut) {
 					f.setMessage(null);
 					f.onTimedOut(_executor);
@@ -319,18 +279,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeMatchingConnection(ctx, false);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -341,18 +292,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeMatchingConnection(ctx, true);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -410,22 +352,11 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// The index orders filters by timeout
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout());
+				return;
 			}
 		}
 		if(ret != null) {
@@ -493,22 +424,10 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// The index orders filters by timeout
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -561,9 +480,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
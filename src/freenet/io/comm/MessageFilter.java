@@ -139,6 +139,23 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/** The message type this filter (not including the chain) matches, or null if any. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The value this filter (not including the chain) requires for the given field, or null. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			return _fields.get(fieldName);
+		}
+	}
+
+	/** The next filter in the or() chain, or null. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
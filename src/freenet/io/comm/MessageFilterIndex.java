@@ -0,0 +1,338 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The set of outstanding {@link MessageFilter}s in {@link MessageCore}.
+ *
+ * Filters are bucketed by (message type, source, uid field), once for each filter in their
+ * or() chain, so matching an incoming message only looks at the filters which could possibly
+ * match it rather than at every filter on the node. Filters which don't specify a type can
+ * match anything and are kept on a separate list which is always checked.
+ *
+ * Deadlines are tracked on a hashed timer wheel, so expiring filters only visits the slots
+ * which have elapsed since the last sweep. Filters with a callback can be timed out early by
+ * {@link AsyncMessageFilterCallback#shouldTimeout()}, so they are also polled on every sweep.
+ *
+ * Where more than one filter matches a message, the one which had the earliest timeout when
+ * it was added wins, and ties go to the one which was added first. This is the same order as
+ * the old sorted list.
+ *
+ * Not thread-safe: MessageCore synchronizes on the index.
+ */
+final class MessageFilterIndex {
+
+	/** Length of a timer wheel tick in milliseconds. */
+	static final int TICK_LENGTH = 100;
+	/** Number of slots on the timer wheel. Must be a power of 2. */
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private static final class Key {
+		MessageType type;
+		PeerContext source;
+		Object uid;
+		int hash;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			set(type, source, uid);
+		}
+
+		void set(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type == null ? 0 : type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			hash = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(k.hash != hash) return false;
+			if(!type.equals(k.type)) return false;
+			if(source == null) {
+				if(k.source != null) return false;
+			} else if(!source.equals(k.source)) return false;
+			if(uid == null) return k.uid == null;
+			return uid.equals(k.uid);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Entry {
+		final MessageFilter filter;
+		/** The filter's timeout when it was added. Used for ordering, see the class comment. */
+		final long timeout;
+		final long seq;
+		/** Buckets this filter is in, or null if it is on the unindexed list. */
+		final Key[] keys;
+		/** Timer wheel slot, or -1 if the filter never times out by itself. */
+		int slot = -1;
+		final boolean hasCallback;
+
+		Entry(MessageFilter filter, long seq, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+			this.hasCallback = filter.hasCallback();
+		}
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.timeout < e2.timeout) return -1;
+			if(e1.timeout > e2.timeout) return 1;
+			if(e1.seq < e2.seq) return -1;
+			if(e1.seq > e2.seq) return 1;
+			return 0;
+		}
+
+	};
+
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	/** Each bucket is kept in ENTRY_ORDER. */
+	private final Map<Key, ArrayList<Entry>> buckets = new HashMap<Key, ArrayList<Entry>>();
+	/** Filters with no type somewhere in their chain. Kept in ENTRY_ORDER. */
+	private final ArrayList<Entry> unindexed = new ArrayList<Entry>();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final LinkedHashSet<Entry>[] wheel = new LinkedHashSet[WHEEL_SIZE];
+	private final LinkedHashSet<Entry> withCallbacks = new LinkedHashSet<Entry>();
+	/** The last tick whose wheel slot has been swept. */
+	private long lastTick;
+	private long nextSeq;
+
+	/** Reused by match(), we are always called with the lock held. */
+	private final Key probe = new Key(null, null, null);
+	private final ArrayList<Entry> candidates = new ArrayList<Entry>();
+
+	MessageFilterIndex(long now) {
+		for(int i=0;i<WHEEL_SIZE;i++)
+			wheel[i] = new LinkedHashSet<Entry>();
+		lastTick = now / TICK_LENGTH - 1;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	boolean contains(MessageFilter filter) {
+		return entries.containsKey(filter);
+	}
+
+	/**
+	 * Add a filter.
+	 * @return False if the filter was already in the index.
+	 */
+	boolean add(MessageFilter filter) {
+		if(entries.containsKey(filter)) return false;
+		Entry e = new Entry(filter, nextSeq++, keysFor(filter));
+		entries.put(filter, e);
+		if(e.keys == null) {
+			insertOrdered(unindexed, e);
+		} else {
+			for(Key k : e.keys) {
+				ArrayList<Entry> bucket = buckets.get(k);
+				if(bucket == null) {
+					bucket = new ArrayList<Entry>(2);
+					buckets.put(k, bucket);
+				}
+				insertOrdered(bucket, e);
+			}
+		}
+		if(e.timeout != Long.MAX_VALUE) {
+			long tick = Math.max(e.timeout / TICK_LENGTH, lastTick + 1);
+			e.slot = (int) (tick & WHEEL_MASK);
+			wheel[e.slot].add(e);
+		}
+		if(e.hasCallback)
+			withCallbacks.add(e);
+		return true;
+	}
+
+	/**
+	 * Remove a filter.
+	 * @return False if the filter was not in the index.
+	 */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		if(e.keys == null) {
+			unindexed.remove(e);
+		} else {
+			for(Key k : e.keys) {
+				ArrayList<Entry> bucket = buckets.get(k);
+				if(bucket == null) continue;
+				bucket.remove(e);
+				if(bucket.isEmpty())
+					buckets.remove(k);
+			}
+		}
+		if(e.slot != -1)
+			wheel[e.slot].remove(e);
+		if(e.hasCallback)
+			withCallbacks.remove(e);
+		return true;
+	}
+
+	/**
+	 * Find the filter which should get a message, and remove it. Candidates which have timed
+	 * out are removed and added to timedOut. Only one filter can match a message.
+	 * @return The matched filter, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		candidates.clear();
+		if(!unindexed.isEmpty())
+			candidates.addAll(unindexed);
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.getObject(DMT.UID);
+		int sources = candidates.isEmpty() ? 0 : 1;
+		sources += addCandidates(type, source, uid);
+		if(uid != null)
+			sources += addCandidates(type, source, null);
+		if(source != null) {
+			sources += addCandidates(type, null, uid);
+			if(uid != null)
+				sources += addCandidates(type, null, null);
+		}
+		if(sources > 1)
+			Collections.sort(candidates, ENTRY_ORDER);
+		MessageFilter match = null;
+		Entry prev = null;
+		for(int i=0;i<candidates.size();i++) {
+			Entry e = candidates.get(i);
+			if(e == prev) continue; // In more than one bucket through its or() chain.
+			prev = e;
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				remove(f);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				timedOut.add(f);
+				remove(f);
+			} else if(status == MATCHED.MATCHED) {
+				remove(f);
+				match = f;
+				break;
+			}
+		}
+		candidates.clear();
+		return match;
+	}
+
+	private int addCandidates(MessageType type, PeerContext source, Object uid) {
+		probe.set(type, source, uid);
+		ArrayList<Entry> bucket = buckets.get(probe);
+		if(bucket == null) return 0;
+		candidates.addAll(bucket);
+		return 1;
+	}
+
+	/**
+	 * Remove all filters which have timed out by the given time, and add them to timedOut.
+	 * Only visits the wheel slots which have elapsed since the last call, plus the filters
+	 * whose callbacks may tell them to time out early.
+	 */
+	void removeTimedOut(long now, List<MessageFilter> timedOut) {
+		// Only sweep ticks which have completely elapsed, otherwise a filter due later in
+		// the current tick would have to wait for the wheel to come round again.
+		long lastComplete = now / TICK_LENGTH - 1;
+		if(lastComplete - lastTick > WHEEL_SIZE)
+			lastTick = lastComplete - WHEEL_SIZE;
+		for(long tick = lastTick + 1; tick <= lastComplete; tick++) {
+			LinkedHashSet<Entry> slot = wheel[(int) (tick & WHEEL_MASK)];
+			if(slot.isEmpty()) continue;
+			// Filters due on a later turn of the wheel stay where they are.
+			for(Entry e : slot.toArray(new Entry[slot.size()])) {
+				if(e.filter.timedOut(now))
+					expire(e, timedOut);
+			}
+		}
+		if(lastComplete > lastTick)
+			lastTick = lastComplete;
+		if(!withCallbacks.isEmpty()) {
+			for(Entry e : withCallbacks.toArray(new Entry[withCallbacks.size()])) {
+				if(e.filter.timedOut(now))
+					expire(e, timedOut);
+			}
+		}
+	}
+
+	private void expire(Entry e, List<MessageFilter> timedOut) {
+		remove(e.filter);
+		if(!timedOut.contains(e.filter))
+			timedOut.add(e.filter);
+		else
+			Logger.error(this, "Filter "+e.filter+" is in filter list twice!");
+	}
+
+	/**
+	 * Remove and return all filters waiting on a connection which has been dropped or
+	 * restarted, or null if there are none. Walks every filter, so only for rare events.
+	 */
+	List<MessageFilter> removeMatchingConnection(PeerContext ctx, boolean restarted) {
+		ArrayList<MessageFilter> removed = null;
+		for(MessageFilter f : entries.keySet().toArray(new MessageFilter[entries.size()])) {
+			boolean drop = restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx);
+			if(drop) {
+				if(removed == null)
+					removed = new ArrayList<MessageFilter>();
+				removed.add(f);
+				remove(f);
+			}
+		}
+		return removed;
+	}
+
+	/** Insert into a list which is kept in ENTRY_ORDER. New entries usually go at the end. */
+	private static void insertOrdered(ArrayList<Entry> list, Entry e) {
+		int i = list.size();
+		while(i > 0 && ENTRY_ORDER.compare(list.get(i-1), e) > 0)
+			i--;
+		list.add(i, e);
+	}
+
+	/**
+	 * The buckets a filter should be in, one for each filter in its chain, or null if any
+	 * filter in the chain doesn't specify a type and so could match any message.
+	 */
+	private static Key[] keysFor(MessageFilter filter) {
+		ArrayList<Key> keys = new ArrayList<Key>(1);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			if(type == null) return null;
+			Key k = new Key(type, f.getSource(), f.getField(DMT.UID));
+			if(!keys.contains(k))
+				keys.add(k);
+		}
+		return keys.toArray(new Key[keys.size()]);
+	}
+
+}
@@ -1,13 +1,17 @@
 package freenet.io.comm;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -18,8 +22,23 @@ import freenet.support.OOMHandler;
 import freenet.support.io.NativeThread;
 import freenet.support.transport.ip.IPUtil;
 
-public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
-
+/**
+ * Sends and receives UDP packets through a DatagramChannel.
+ *
+ * One thread receives packets into a direct buffer and copies each one into a pooled array.
+ * The packets are then handed to a few worker threads to be decrypted and processed; all the
+ * packets from one address go to the same worker, so they are processed in order. Packets to
+ * send are queued and written by a single sending thread, which sends everything queued
+ * since it last woke up at once, typically a whole PacketSender cycle's worth.
+ *
+ * The receive and send threads are our own rather than from the executor: a channel is closed
+ * if a thread using it is interrupted, so only threads which nothing else knows about may
+ * touch it.
+ */
+public class UdpSocketHandler implements Runnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
+
+	private final DatagramChannel channel;
+	/** The channel's socket, for options and addresses. */
 	private final DatagramSocket _sock;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
@@ -57,18 +76,36 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
+		try {
+			channel = DatagramChannel.open();
+		} catch (IOException e) {
+			SocketException se = new SocketException("Unable to open channel: "+e);
+			se.initCause(e);
+			throw se;
 		}
+		_sock = channel.socket();
 		try {
 			// Exit reasonably quickly
 			_sock.setReuseAddress(true);
+			int sz = _sock.getReceiveBufferSize();
+			if(sz < 65536) {
+				_sock.setReceiveBufferSize(65536);
+			}
+			_sock.bind(new InetSocketAddress(bindto, listenPort));
 		} catch (SocketException e) {
-			throw new RuntimeException(e);
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				// Ignore
+			}
+			throw e;
 		}
 //		}
+		int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+		workers = new Worker[workerCount];
+		for(int i=0;i<workerCount;i++)
+			workers[i] = new Worker();
+		freePackets = new ArrayBlockingQueue<ReceivedPacket>(workerCount * WORKER_QUEUE_SIZE);
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
@@ -132,11 +169,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
 		while (_active) {
 			try {
-				realRun(packet);
+				realRun(buf);
 			} catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -148,42 +184,18 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
+	private void realRun(ByteBuffer buf) {
 		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
-		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
-				}
-			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+		ReceivedPacket packet = getPacket(buf);
+		if (packet != null) {
+			tracker.receivedPacketFrom(packet.peer);
+			// Keep each address's packets in order.
+			int hash = packet.peer.getAddress(false).hashCode() & Integer.MAX_VALUE;
+			Worker worker = workers[hash % workers.length];
+			if(!worker.queue.offer(packet)) {
+				// Like a full socket buffer.
+				if(logMINOR) Logger.minor(this, "Dropping packet from "+packet.peer+": worker is too far behind");
+				freePackets.offer(packet);
 			}
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
@@ -191,25 +203,105 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
+	/** We don't need more decryption threads than this to keep up with any sane bandwidth
+	 * limit; more would just compete with everything else. */
+	private static final int MAX_WORKERS = 4;
+	/** Packets queued for each worker before we start dropping them. */
+	private static final int WORKER_QUEUE_SIZE = 256;
+
+	/** A received packet. Recycled through freePackets once it has been processed. */
+	private static class ReceivedPacket {
+		final byte[] data = new byte[MAX_RECEIVE_SIZE];
+		int length;
+		Peer peer;
+		long now;
+	}
 
-	private boolean getPacket(DatagramPacket packet) {
+	/** Packets which have been processed, ready for reuse. Any more than this are garbage
+	 * collected. */
+	private final ArrayBlockingQueue<ReceivedPacket> freePackets;
+	private final Worker[] workers;
+
+	/** @return The packet, copied out of the direct buffer, or null if we didn't get one. */
+	private ReceivedPacket getPacket(ByteBuffer buf) {
+		InetSocketAddress from;
+		buf.clear();
 		try {
-			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address + ":" + packet.getPort(),
-					packet.getLength(), 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
-		} catch (SocketTimeoutException e1) {
-			return false;
+			from = (InetSocketAddress) channel.receive(buf);
 		} catch (IOException e2) {
 			if (!_active) { // closed, just return silently
-				return false;
+				return null;
 			} else {
 				throw new RuntimeException(e2);
 			}
 		}
+		if(from == null) return null;
+		buf.flip();
+		int length = buf.remaining();
+		InetAddress address = from.getAddress();
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address + ":" + from.getPort(),
+				length, 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
+		ReceivedPacket packet = freePackets.poll();
+		if(packet == null) packet = new ReceivedPacket();
+		buf.get(packet.data, 0, length);
+		packet.length = length;
+		packet.peer = new Peer(address, from.getPort());
+		packet.now = System.currentTimeMillis();
 		if(logMINOR) Logger.minor(this, "Received packet");
-		return true;
+		return packet;
+	}
+
+	/** Decrypts and processes packets handed to it by the receive thread. */
+	private class Worker implements PrioRunnable {
+
+		final ArrayBlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(WORKER_QUEUE_SIZE);
+
+		@Override
+		public void run() {
+			while(_active) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == null) continue;
+				try {
+					process(packet);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " from "
+							+ lowLevelFilter, t);
+				}
+				packet.peer = null;
+				freePackets.offer(packet);
+			}
+		}
+
+		private void process(ReceivedPacket packet) {
+			int length = packet.length;
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+packet.peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(packet.data, 0, length, packet.peer, packet.now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
 	}
 
 	/**
@@ -243,24 +335,88 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
-		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
+		if(!sendQueue.offer(new OutgoingPacket(blockToSend, destination, address))) {
+			// Like a full socket buffer.
+			if(logMINOR) Logger.minor(this, "Dropping packet to "+destination+": send queue full");
+		}
+	}
 
-		try {
-			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address + ":" + port, 0, blockToSend.length + UDP_HEADERS_LENGTH, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
-		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+	/** Packets queued to be sent. */
+	private final ArrayBlockingQueue<OutgoingPacket> sendQueue = new ArrayBlockingQueue<OutgoingPacket>(SEND_QUEUE_SIZE);
+	private static final int SEND_QUEUE_SIZE = 1024;
+
+	private static class OutgoingPacket {
+		final byte[] data;
+		final Peer destination;
+		final InetAddress address;
+
+		OutgoingPacket(byte[] data, Peer destination, InetAddress address) {
+			this.data = data;
+			this.destination = destination;
+			this.address = address;
+		}
+	}
+
+	/** The sending thread. Sends everything queued each time it wakes up. */
+	private class Sender implements Runnable {
+
+		@Override
+		public void run() {
+			ArrayList<OutgoingPacket> batch = new ArrayList<OutgoingPacket>(SEND_QUEUE_SIZE);
+			ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+			while(_active) {
+				try {
+					OutgoingPacket packet = sendQueue.poll(1, TimeUnit.SECONDS);
+					if(packet == null) continue;
+					batch.add(packet);
+					sendQueue.drainTo(batch);
+					for(OutgoingPacket p : batch) {
+						// It is essential that for recording accurate AddressTracker data that we don't send any more
+						// packets after shutdown.
+						if(!_active) break;
+						send(p, buf);
+					}
+				} catch (InterruptedException e) {
+					// Ignore
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+
+		private void send(OutgoingPacket packet, ByteBuffer buf) {
+			byte[] blockToSend = packet.data;
+			InetAddress address = packet.address;
+			int port = packet.destination.getPort();
+			ByteBuffer data;
+			if(blockToSend.length <= buf.capacity()) {
+				buf.clear();
+				buf.put(blockToSend);
+				buf.flip();
+				data = buf;
 			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+				data = ByteBuffer.wrap(blockToSend);
+			}
+			try {
+				channel.send(data, new InetSocketAddress(address, port));
+				tracker.sentPacketTo(packet.destination);
+				boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+				collector.addInfo(address + ":" + port, 0, blockToSend.length + UDP_HEADERS_LENGTH, isLocal);
+				if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			} catch (IOException e) {
+				if(!_active) return;
+				if(address instanceof Inet6Address) {
+					Logger.normal(this, "Error while sending packet to IPv6 address: "+packet.destination+": "+e);
+				} else {
+					Logger.error(this, "Error while sending packet to " + packet.destination+": "+e, e);
+				}
 			}
 		}
+
 	}
 
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
@@ -323,14 +479,21 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
-		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
+		for(int i=0;i<workers.length;i++)
+			node.executor.execute(workers[i], "UdpSocketHandler worker "+i+" for port "+listenPort);
+		new NativeThread(new Sender(), "UdpSocketHandler sender for port "+listenPort, NativeThread.MAX_PRIORITY, false).start();
+		new NativeThread(this, "UdpSocketHandler for port "+listenPort, NativeThread.MAX_PRIORITY, false).start();
 	}
 
 	public void close() {
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
-			_sock.close();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Logger.error(this, "Caught "+e+" closing channel", e);
+			}
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -380,11 +543,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return tracker.getPortForwardStatus();
 	}
 
-	@Override
-	public int getPriority() {
-		return NativeThread.MAX_PRIORITY;
-	}
-
 	public long getStartTime() {
 		return startTime;
 	}
@@ -53,6 +53,14 @@ public class CHKBlock implements KeyBlock {
     	return new CHKBlock(data, header, null, true, Key.ALGO_AES_PCFB_256_SHA256);
      }
     
+    /** Construct a block when we know the crypto algorithm, e.g. from the full key. The 
+     * routing key doesn't depend on it, but the NodeCHK does. */
+    public static CHKBlock construct(byte[] data, byte[] header, byte cryptoAlgorithm) throws CHKVerifyException {
+    	if(!Key.isSupportedCryptoAlgorithm(cryptoAlgorithm))
+    		throw new CHKVerifyException("Invalid crypto algorithm "+cryptoAlgorithm);
+    	return new CHKBlock(data, header, null, true, cryptoAlgorithm);
+    }
+    
     public CHKBlock(byte[] data2, byte[] header2, NodeCHK key) throws CHKVerifyException {
     	this(data2, header2, key, key.cryptoAlgorithm);
     }
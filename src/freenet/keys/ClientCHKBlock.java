@@ -11,7 +11,8 @@ import freenet.support.math.MersenneTwister;
 
 import com.db4o.ObjectContainer;
 
-import freenet.crypt.BlockCipher;
+import freenet.crypt.AESCTRCipher;
+import freenet.crypt.HMAC;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
@@ -95,9 +96,11 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
     @Override
     public Bucket decode(BucketFactory bf, int maxLength, boolean dontCompress) throws CHKDecodeException, IOException {
         // Overall hash already verified, so first job is to decrypt.
+		if(key.cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256)
+			return decodeCTR(bf, maxLength, dontCompress);
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
+        Rijndael cipher;
         try {
             cipher = new Rijndael(256, 256);
         } catch (UnsupportedCipherException e) {
@@ -107,7 +110,7 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
+        cipher.initializeCached(key.cryptoKey);
         PCFBMode pcfb = PCFBMode.create(cipher);
 	byte[] hbuf = new byte[headers.length-2];
 	System.arraycopy(headers, 2, hbuf, 0, headers.length-2);
@@ -141,6 +144,36 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         		Math.min(maxLength, MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
     }
 
+    /**
+     * Decode a {@link Key#ALGO_AES_CTR_256_SHA256} block. The header is the hash ID, then the
+     * HMAC of the plaintext data and length, in the clear, then the encrypted length. The data
+     * and the length are encrypted together with AES-256 in counter mode, with the start of the
+     * HMAC as the IV.
+     */
+    private Bucket decodeCTR(BucketFactory bf, int maxLength, boolean dontCompress) throws CHKDecodeException, IOException {
+        byte[] cryptoKey = key.cryptoKey;
+        if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
+            throw new CHKDecodeException("Crypto key too short");
+        byte[] dbuf = new byte[data.length + 2];
+        System.arraycopy(data, 0, dbuf, 0, data.length);
+        System.arraycopy(headers, CTR_LENGTH_OFFSET, dbuf, data.length, 2);
+        byte[] iv = Arrays.copyOfRange(headers, CTR_MAC_OFFSET, CTR_MAC_OFFSET + AESCTRCipher.IV_LENGTH);
+        AESCTRCipher.create(cryptoKey, iv).process(dbuf, 0, dbuf.length);
+        if(!HMAC.verifyWithSHA256(cryptoKey, dbuf, 0, dbuf.length, headers, CTR_MAC_OFFSET, CTR_MAC_LENGTH))
+            throw new CHKDecodeException("HMAC is incorrect");
+        int size = ((dbuf[data.length] & 0xff) << 8) + (dbuf[data.length + 1] & 0xff);
+        if(size > CHKBlock.DATA_LENGTH)
+            throw new CHKDecodeException("Invalid size: "+size);
+        return Key.decompress(dontCompress ? false : key.isCompressed(), dbuf, size, bf, 
+        		Math.min(maxLength, MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
+    }
+
+    /** For CTR blocks, the offset of the HMAC in the header, its length, and the offset of the
+     * encrypted length. */
+    static final int CTR_MAC_OFFSET = 2;
+    static final int CTR_MAC_LENGTH = 32;
+    static final int CTR_LENGTH_OFFSET = CTR_MAC_OFFSET + CTR_MAC_LENGTH;
+
     /**
      * Encode a splitfile block.
      * @param data The data to encode. Must be exactly DATA_LENGTH bytes.
@@ -217,6 +250,8 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
     
     public static ClientCHKBlock innerEncode(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm) {
     	if(cryptoAlgorithm == 0) cryptoAlgorithm = Key.ALGO_AES_PCFB_256_SHA256;
+    	if(cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256)
+    		return innerEncodeCTR(data, dataLength, md256, encKey, asMetadata, compressionAlgorithm);
     	if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
         byte[] header;
@@ -233,14 +268,14 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // despite exposing asymmetric and hashes!
         
         // Now encrypt the header, then the data, using the same PCFB instance
-        BlockCipher cipher;
+        Rijndael cipher;
         try {
             cipher = new Rijndael(256, 256);
         } catch (UnsupportedCipherException e) {
         	Logger.error(ClientCHKBlock.class, "Impossible: "+e, e);
             throw new Error(e);
         }
-        cipher.initialize(encKey);
+        cipher.initializeCached(encKey);
         
         // FIXME CRYPTO plainIV, the hash of the crypto key, is encrypted with a null IV.
         // In other words, it is XORed with E(0).
@@ -271,6 +306,39 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
             throw new Error(e3);
         }
     }
+
+    /**
+     * Encode a {@link Key#ALGO_AES_CTR_256_SHA256} block. See {@link #decodeCTR}. Because the
+     * IV is derived from the HMAC of the plaintext, blocks with the same key (e.g. splitfile
+     * blocks with a single random key) don't reuse the keystream unless the data is the same,
+     * and the encoding is still convergent. Unlike the PCFB encoding, doesn't modify data.
+     */
+    private static ClientCHKBlock innerEncodeCTR(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm) {
+        // The data, then the length, authenticated and encrypted together.
+        byte[] buf = new byte[data.length + 2];
+        System.arraycopy(data, 0, buf, 0, data.length);
+        buf[data.length] = (byte)(dataLength >> 8);
+        buf[data.length + 1] = (byte)(dataLength & 0xff);
+        byte[] mac = HMAC.macWithSHA256(encKey, buf, CTR_MAC_LENGTH);
+        AESCTRCipher.create(encKey, mac).process(buf, 0, buf.length);
+        byte[] header = new byte[CTR_LENGTH_OFFSET + 2];
+        header[0] = (byte)(KeyBlock.HASH_SHA256 >> 8);
+        header[1] = (byte)(KeyBlock.HASH_SHA256 & 0xff);
+        System.arraycopy(mac, 0, header, CTR_MAC_OFFSET, CTR_MAC_LENGTH);
+        System.arraycopy(buf, data.length, header, CTR_LENGTH_OFFSET, 2);
+        byte[] encrypted = Arrays.copyOf(buf, data.length);
+        
+        md256.update(header);
+        byte[] finalHash = md256.digest(encrypted);
+        SHA256.returnMessageDigest(md256);
+        
+        ClientCHK key = new ClientCHK(finalHash, encKey, asMetadata, Key.ALGO_AES_CTR_256_SHA256, compressionAlgorithm);
+        try {
+            return new ClientCHKBlock(encrypted, header, key, false);
+        } catch (CHKVerifyException e) {
+            throw new Error(e);
+        }
+    }
     
     /**
      * Encode a block of data to a CHKBlock.
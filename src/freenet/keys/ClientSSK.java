@@ -69,7 +69,7 @@ public class ClientSSK extends ClientKey {
 		if(extras.length < 5)
 			throw new MalformedURLException("Extra bytes too short: "+extras.length+" bytes");
 		this.cryptoAlgorithm = extras[2];
-		if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
+		if(!Key.isSupportedCryptoAlgorithm(cryptoAlgorithm))
 			throw new MalformedURLException("Unknown encryption algorithm "+cryptoAlgorithm);
 		if(!Arrays.equals(extras, getExtraBytes()))
 			throw new MalformedURLException("Wrong extra bytes");
@@ -147,9 +147,11 @@ public class ClientSSK extends ClientKey {
 	}
 	
 	static final byte[] STANDARD_EXTRA = getExtraBytes(Key.ALGO_AES_PCFB_256_SHA256);
+	static final byte[] STANDARD_EXTRA_CTR = getExtraBytes(Key.ALGO_AES_CTR_256_SHA256);
 	
 	public static byte[] internExtra(byte[] buf) {
 		if(Arrays.equals(buf, STANDARD_EXTRA)) return STANDARD_EXTRA;
+		if(Arrays.equals(buf, STANDARD_EXTRA_CTR)) return STANDARD_EXTRA_CTR;
 		return buf;
 	}
 
@@ -5,6 +5,7 @@ package freenet.keys;
 
 import java.io.IOException;
 
+import freenet.crypt.AESCTRCipher;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
@@ -53,26 +54,33 @@ public class ClientSSKBlock extends SSKBlock implements ClientKeyBlock {
 		/* We also know e(h(docname)) is valid */
 		byte[] decryptedHeaders = new byte[ENCRYPTED_HEADERS_LENGTH];
 		System.arraycopy(headers, headersOffset, decryptedHeaders, 0, ENCRYPTED_HEADERS_LENGTH);
-		Rijndael aes;
-		try {
-			Logger.minor(this, "cryptoAlgorithm="+key.cryptoAlgorithm+" for "+getClientKey().getURI());
-			aes = new Rijndael(256,256);
-		} catch (UnsupportedCipherException e) {
-			throw new Error(e);
-		}
-		aes.initialize(key.cryptoKey);
-		// ECB-encrypted E(H(docname)) serves as IV.
-		PCFBMode pcfb = PCFBMode.create(aes, key.ehDocname);
-		pcfb.blockDecipher(decryptedHeaders, 0, decryptedHeaders.length);
-		// First 32 bytes are the key
+		Logger.minor(this, "cryptoAlgorithm="+key.cryptoAlgorithm+" for "+getClientKey().getURI());
 		byte[] dataDecryptKey = new byte[DATA_DECRYPT_KEY_LENGTH];
-		System.arraycopy(decryptedHeaders, 0, dataDecryptKey, 0, DATA_DECRYPT_KEY_LENGTH);
-		aes.initialize(dataDecryptKey);
 		byte[] dataOutput = new byte[data.length];
 		System.arraycopy(data, 0, dataOutput, 0, data.length);
-		// Data decrypt key should be unique, so use it as IV
-		pcfb.reset(dataDecryptKey);
-		pcfb.blockDecipher(dataOutput, 0, dataOutput.length);
+		if(key.cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256) {
+			// Same structure as below, but in counter mode.
+			AESCTRCipher.create(key.cryptoKey, key.ehDocname).process(decryptedHeaders, 0, decryptedHeaders.length);
+			System.arraycopy(decryptedHeaders, 0, dataDecryptKey, 0, DATA_DECRYPT_KEY_LENGTH);
+			AESCTRCipher.create(dataDecryptKey, dataDecryptKey).process(dataOutput, 0, dataOutput.length);
+		} else {
+			Rijndael aes;
+			try {
+				aes = new Rijndael(256,256);
+			} catch (UnsupportedCipherException e) {
+				throw new Error(e);
+			}
+			aes.initialize(key.cryptoKey);
+			// ECB-encrypted E(H(docname)) serves as IV.
+			PCFBMode pcfb = PCFBMode.create(aes, key.ehDocname);
+			pcfb.blockDecipher(decryptedHeaders, 0, decryptedHeaders.length);
+			// First 32 bytes are the key
+			System.arraycopy(decryptedHeaders, 0, dataDecryptKey, 0, DATA_DECRYPT_KEY_LENGTH);
+			aes.initialize(dataDecryptKey);
+			// Data decrypt key should be unique, so use it as IV
+			pcfb.reset(dataDecryptKey);
+			pcfb.blockDecipher(dataOutput, 0, dataOutput.length);
+		}
 		// 2 bytes - data length
 		int dataLength = ((decryptedHeaders[DATA_DECRYPT_KEY_LENGTH] & 0xff) << 8) +
 			(decryptedHeaders[DATA_DECRYPT_KEY_LENGTH+1] & 0xff);
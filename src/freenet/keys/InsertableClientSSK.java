@@ -13,6 +13,7 @@ import freenet.support.math.MersenneTwister;
 
 import com.db4o.ObjectContainer;
 
+import freenet.crypt.AESCTRCipher;
 import freenet.crypt.DSA;
 import freenet.crypt.DSAGroup;
 import freenet.crypt.DSAPrivateKey;
@@ -61,7 +62,7 @@ public class InsertableClientSSK extends ClientSSK {
 				throw new MalformedURLException("SSK not a private key");
 			}
 			keyType = extra[2];
-			if(keyType != Key.ALGO_AES_PCFB_256_SHA256)
+			if(!Key.isSupportedCryptoAlgorithm(keyType))
 				throw new MalformedURLException("Unrecognized crypto type in SSK private key");
 		}
 		else {
@@ -115,19 +116,25 @@ public class InsertableClientSSK extends ClientSSK {
 			// Implicit hash of data
 			byte[] origDataHash = md256.digest(data);
 
-			Rijndael aes;
-			try {
-				aes = new Rijndael(256, 256);
-			} catch (UnsupportedCipherException e) {
-				throw new Error("256/256 Rijndael not supported!");
-			}
+			Rijndael aes = null;
+			PCFBMode pcfb = null;
+			if(cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256) {
+				// Encrypt data. Data encryption key = H(plaintext data), and it is unique, so use it as IV.
+				AESCTRCipher.create(origDataHash, origDataHash).process(data, 0, data.length);
+			} else {
+				try {
+					aes = new Rijndael(256, 256);
+				} catch (UnsupportedCipherException e) {
+					throw new Error("256/256 Rijndael not supported!");
+				}
 
-			// Encrypt data. Data encryption key = H(plaintext data).
+				// Encrypt data. Data encryption key = H(plaintext data).
 
-			aes.initialize(origDataHash);
-			PCFBMode pcfb = PCFBMode.create(aes, origDataHash);
+				aes.initialize(origDataHash);
+				pcfb = PCFBMode.create(aes, origDataHash);
 
-			pcfb.blockEncipher(data, 0, data.length);
+				pcfb.blockEncipher(data, 0, data.length);
+			}
 
 			byte[] encryptedDataHash = md256.digest(data);
 
@@ -139,8 +146,8 @@ public class InsertableClientSSK extends ClientSSK {
 			headers[x++] = (byte) (KeyBlock.HASH_SHA256 >> 8);
 			headers[x++] = (byte) (KeyBlock.HASH_SHA256);
 			// Then crypto ID
-			headers[x++] = (byte) (Key.ALGO_AES_PCFB_256_SHA256 >> 8);
-			headers[x++] = Key.ALGO_AES_PCFB_256_SHA256;
+			headers[x++] = (byte) (cryptoAlgorithm >> 8);
+			headers[x++] = cryptoAlgorithm;
 			// Then E(H(docname))
 			// Copy to headers
 			System.arraycopy(ehDocname, 0, headers, x, ehDocname.length);
@@ -158,9 +165,14 @@ public class InsertableClientSSK extends ClientSSK {
 			encryptedHeaders[y++] = (byte) compressionAlgo;
 			if (encryptedHeaders.length != y)
 				throw new IllegalStateException("Have more bytes to generate encoding SSK");
-			aes.initialize(cryptoKey);
-			pcfb.reset(ehDocname);
-			pcfb.blockEncipher(encryptedHeaders, 0, encryptedHeaders.length);
+			if(cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256) {
+				// E(H(docname)) is unique for a given cryptoKey, so use it as IV.
+				AESCTRCipher.create(cryptoKey, ehDocname).process(encryptedHeaders, 0, encryptedHeaders.length);
+			} else {
+				aes.initialize(cryptoKey);
+				pcfb.reset(ehDocname);
+				pcfb.blockEncipher(encryptedHeaders, 0, encryptedHeaders.length);
+			}
 			System.arraycopy(encryptedHeaders, 0, headers, x, encryptedHeaders.length);
 			x += encryptedHeaders.length;
 			// Generate implicit overall hash.
@@ -209,6 +221,12 @@ public class InsertableClientSSK extends ClientSSK {
 	}
 
 	public static InsertableClientSSK createRandom(RandomSource r, String docName) {
+		return createRandom(r, docName, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	/** Create a random key, which will use the given crypto algorithm. Older nodes can only
+	 * fetch keys using {@link Key#ALGO_AES_PCFB_256_SHA256}. */
+	public static InsertableClientSSK createRandom(RandomSource r, String docName, byte cryptoAlgorithm) {
 		byte[] ckey = new byte[CRYPTO_KEY_LENGTH];
 		r.nextBytes(ckey);
 		DSAGroup g = Global.DSAgroupBigA;
@@ -216,8 +234,7 @@ public class InsertableClientSSK extends ClientSSK {
 		DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
 		try {
 			byte[] pkHash = SHA256.digest(pubKey.asBytes());
-			return new InsertableClientSSK(docName, pkHash, pubKey, privKey, ckey, 
-					Key.ALGO_AES_PCFB_256_SHA256);
+			return new InsertableClientSSK(docName, pkHash, pubKey, privKey, ckey, cryptoAlgorithm);
 		} catch (MalformedURLException e) {
 			throw new Error(e);
 		}
@@ -46,6 +46,8 @@ public abstract class Key implements WritableToDataOutputStream, Comparable<Key>
 
     /** Code for 256-bit AES with PCFB and SHA-256 */
     public static final byte ALGO_AES_PCFB_256_SHA256 = 2;
+    /** Code for 256-bit AES with CTR (through the JCE where possible) and SHA-256 */
+    public static final byte ALGO_AES_CTR_256_SHA256 = 3;
 
     private static volatile boolean logMINOR;
     static {
@@ -100,7 +102,7 @@ public abstract class Key implements WritableToDataOutputStream, Comparable<Key>
 		byte type = (byte)(keyType >> 8);
 		byte subtype = (byte)(keyType & 0xFF);
 		if(type == NodeCHK.BASE_TYPE) {
-			return CHKBlock.construct(dataBytes, headersBytes);
+			return CHKBlock.construct(dataBytes, headersBytes, subtype);
 		} else if(type == NodeSSK.BASE_TYPE) {
 			DSAPublicKey pubKey;
 			try {
@@ -146,12 +148,17 @@ public abstract class Key implements WritableToDataOutputStream, Comparable<Key>
 	 * <li>
 	 * High 8 bit (<tt>(type >> 8) & 0xFF</tt>) is the base type ({@link NodeCHK#BASE_TYPE} or
 	 * {@link NodeSSK#BASE_TYPE}).
-	 * <li>Low 8 bit (<tt>type & 0xFF</tt>) is the crypto algorithm. (Currently only
-	 * {@link #ALGO_AES_PCFB_256_SHA256} is supported).
+	 * <li>Low 8 bit (<tt>type & 0xFF</tt>) is the crypto algorithm. (Currently
+	 * {@link #ALGO_AES_PCFB_256_SHA256} and {@link #ALGO_AES_CTR_256_SHA256} are supported).
 	 * </ul>
 	 */
 	public abstract short getType();
 
+	/** Is this one of the crypto algorithms we support for both CHKs and SSKs? */
+	public static boolean isSupportedCryptoAlgorithm(byte cryptoAlgorithm) {
+		return cryptoAlgorithm == ALGO_AES_PCFB_256_SHA256 || cryptoAlgorithm == ALGO_AES_CTR_256_SHA256;
+	}
+
 	@Override
     public int hashCode() {
         return hash;
@@ -222,7 +222,7 @@ public class NodeSSK extends Key {
 		if(buf[0] != 2)
 			throw new SSKVerifyException("Unknown type byte "+buf[0]);
 		byte cryptoAlgorithm = buf[1];
-		if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
+		if(!Key.isSupportedCryptoAlgorithm(cryptoAlgorithm))
 			throw new SSKVerifyException("Unknown crypto algorithm "+buf[1]);
 		byte[] encryptedHashedDocname = new byte[E_H_DOCNAME_SIZE];
 		System.arraycopy(buf, 2, encryptedHashedDocname, 0, E_H_DOCNAME_SIZE);
@@ -38,6 +38,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Make sure the PacketSender looks at this peer no later than the given time. */
+	void wakeUpSenderAt(long time);
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
@@ -7,10 +7,17 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.clients.http.ExternalLinkToadlet;
 import net.i2p.util.NativeBigInteger;
@@ -50,7 +57,7 @@ import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
-import freenet.support.LRUHashtable;
+import freenet.support.ConcurrentLRUCache;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
@@ -266,46 +273,55 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			}
 		}
 		PeerNode[] peers = crypto.getPeerNodes();
-		// Existing connection, changed IP address?
-		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
-			for(int i=0;i<peers.length;i++) {
-				pn = peers[i];
-				if(pn == opn) continue;
-				if(logDEBUG) Logger.debug(this, "Trying current key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return DECODED.DECODED;
-				}
-				if(logDEBUG) Logger.debug(this, "Trying previous key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return DECODED.DECODED;
-				}
-				if(logDEBUG) Logger.debug(this, "Trying unverified key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
+		// Try the peers we have recently seen on this address, or on this IP, first.
+		PeerNode[] candidates = getCandidates(peers, peer, opn);
+		if(candidates != null) {
+			for(PeerNode candidate : candidates) {
+				if(tryCandidate(buf, offset, length, candidate, peer, now)) {
+					rememberSource(peer, candidate);
+					fastPathDecodes.incrementAndGet();
 					return DECODED.DECODED;
 				}
 			}
 		}
+		// Existing connection, changed IP address? Check the other peers' keys, in
+		// parallel if there are a lot of them, then handle it here for the one which matches.
+		SenderMatch match = findSender(buf, offset, length, otherPeers(peers, opn, candidates));
+		if(match != null) {
+			pn = match.pn;
+			if(match.decrypted != null) {
+				processDecrypted(buf, offset, length, match.decrypted, now);
+				// IP address change
+				pn.changedIP(peer);
+				decodedFromUnknownSource(peer, pn);
+				return DECODED.DECODED;
+			}
+			// New packet format peers don't change their address until they reconnect.
+			if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
+				decodedFromUnknownSource(peer, pn);
+				return DECODED.DECODED;
+			}
+			// Its keys changed after we checked them. It hasn't touched the buffer.
+			if(logMINOR) Logger.minor(this, "Packet from "+peer+" matched "+pn+" but then failed to decode");
+		}
 		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
 		// Disconnected node connecting on a new IP address?
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2) {
 			for(int i=0;i<peers.length;i++) {
 				pn = peers[i];
 				if(pn == opn) continue;
+				if(contains(candidates, pn)) continue;
 				if(logDEBUG)
 					Logger.debug(this, "Trying auth with "+pn);
 				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) {
+					decodedFromUnknownSource(peer, pn);
 					return DECODED.DECODED;
 				}
 				if(pn.handshakeUnknownInitiator()) {
 					// Might be a reply to us sending an anon auth packet.
 					// I.e. we are not the seednode, they are.
 					if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) {
+						decodedFromUnknownSource(peer, pn);
 						return DECODED.DECODED;
 					}
 				}
@@ -360,6 +376,296 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
                 	return DECODED.DIDNT_WANT_OPENNET;
 	}
 	
+	static final int MAX_RECENT_SOURCES = 256;
+	static final int MAX_ADDRESS_HINTS = 256;
+	/** Peers which packets from an address were recently decoded for. */
+	private final ConcurrentLRUCache<Peer, PeerNode> recentSources = new ConcurrentLRUCache<Peer, PeerNode>(MAX_RECENT_SOURCES);
+	/** Peers which packets from an IP address were recently decoded for, most recent
+	 * first. Usually one, but there may be several peers behind the same NAT. The arrays
+	 * are never changed once they are in the cache. Lock on addressHints to change them. */
+	private final ConcurrentLRUCache<InetAddress, PeerNode[]> addressHints = new ConcurrentLRUCache<InetAddress, PeerNode[]>(MAX_ADDRESS_HINTS);
+	static final int MAX_PEERS_PER_ADDRESS = 4;
+	/** Don't try more than this many candidates before falling back to trying everyone. */
+	static final int MAX_CANDIDATES = 8;
+
+	private static final AtomicLong fastPathDecodes = new AtomicLong();
+	private static final AtomicLong slowPathDecodes = new AtomicLong();
+
+	/** @return The number of packets from unknown addresses which were decoded by trying
+	 * the likely peers first, and the number which needed trying every peer. */
+	public static long[] getUnknownSourceDecodes() {
+		return new long[] { fastPathDecodes.get(), slowPathDecodes.get() };
+	}
+
+	/**
+	 * Called when a packet from an address which didn't match any peer has been decoded
+	 * the slow way, by trying every peer. Remember which peer it was, so the next packet
+	 * from the same address, or from the same IP on a different port, is tried against
+	 * that peer first. NATs often change the port, and a peer using the new packet format
+	 * doesn't change its address until it has reconnected, so this can happen a lot.
+	 */
+	public void decodedFromUnknownSource(Peer peer, PeerNode pn) {
+		rememberSource(peer, pn);
+		slowPathDecodes.incrementAndGet();
+	}
+
+	private void rememberSource(Peer peer, PeerNode pn) {
+		InetAddress addr = peer.getAddress(false);
+		recentSources.push(peer, pn);
+		if(addr == null) return;
+		synchronized(addressHints) {
+			PeerNode[] hints = addressHints.get(addr);
+			if(hints == null) {
+				hints = new PeerNode[] { pn };
+			} else if(hints[0] != pn) {
+				// Move it to the front.
+				int i;
+				for(i=1;i<hints.length;i++)
+					if(hints[i] == pn) break;
+				PeerNode[] newHints = new PeerNode[i < hints.length ? hints.length : Math.min(hints.length + 1, MAX_PEERS_PER_ADDRESS)];
+				newHints[0] = pn;
+				int x = 1;
+				for(int j=0;j<hints.length && x < newHints.length;j++)
+					if(hints[j] != pn) newHints[x++] = hints[j];
+				hints = newHints;
+			}
+			addressHints.push(addr, hints);
+		}
+	}
+
+	/**
+	 * Which peers are most likely to have sent a packet from an address we don't recognise?
+	 * The one we last decoded a packet from this address for, then the ones we recently
+	 * decoded a packet from this IP for, then any others whose current address has the
+	 * same IP.
+	 * @return The candidates in order, or null if there aren't any.
+	 */
+	private PeerNode[] getCandidates(PeerNode[] peers, Peer peer, PeerNode opn) {
+		InetAddress addr = peer.getAddress(false);
+		PeerNode recent = recentSources.get(peer);
+		PeerNode[] hints = addr == null ? null : addressHints.get(addr);
+		PeerNode first = null;
+		PeerNode[] hinted = null;
+		ArrayList<PeerNode> sameIP = null;
+		for(PeerNode pn : peers) {
+			if(pn == opn) continue;
+			if(pn == recent) {
+				first = pn;
+				continue;
+			}
+			int idx = indexOf(hints, pn);
+			if(idx >= 0) {
+				// Keep the order of the hints.
+				if(hinted == null) hinted = new PeerNode[hints.length];
+				hinted[idx] = pn;
+			} else if(addr != null && sameAddress(pn.getPeer(), addr)) {
+				if(sameIP == null) sameIP = new ArrayList<PeerNode>();
+				sameIP.add(pn);
+			}
+		}
+		if(first == null && hinted == null && sameIP == null) return null;
+		ArrayList<PeerNode> candidates = new ArrayList<PeerNode>();
+		if(first != null) candidates.add(first);
+		if(hinted != null) {
+			for(PeerNode pn : hinted)
+				if(pn != null) candidates.add(pn);
+		}
+		if(sameIP != null) {
+			for(PeerNode pn : sameIP) {
+				if(candidates.size() >= MAX_CANDIDATES) break;
+				candidates.add(pn);
+			}
+		}
+		return candidates.toArray(new PeerNode[candidates.size()]);
+	}
+
+	private static boolean sameAddress(Peer p, InetAddress addr) {
+		if(p == null) return false;
+		return addr.equals(p.getAddress(false));
+	}
+
+	private static int indexOf(PeerNode[] peers, PeerNode pn) {
+		if(peers == null) return -1;
+		for(int i=0;i<peers.length;i++)
+			if(peers[i] == pn) return i;
+		return -1;
+	}
+
+	private static boolean contains(PeerNode[] peers, PeerNode pn) {
+		return indexOf(peers, pn) >= 0;
+	}
+
+	/** @return The peers apart from opn and the candidates, which have already been tried. */
+	private static PeerNode[] otherPeers(PeerNode[] peers, PeerNode opn, PeerNode[] candidates) {
+		ArrayList<PeerNode> others = new ArrayList<PeerNode>(peers.length);
+		for(PeerNode pn : peers) {
+			if(pn == opn) continue;
+			if(contains(candidates, pn)) continue;
+			others.add(pn);
+		}
+		return others.toArray(new PeerNode[others.size()]);
+	}
+
+	/** Don't use helper threads to find the sender of a packet unless each thread would
+	 * have at least this many peers to check. */
+	static final int MIN_PEERS_PER_THREAD = 16;
+	/** Few, because they only check keys, and the receive thread waits for them. */
+	static final int MAX_SENDER_HELPERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+	private static ThreadPoolExecutor senderHelpers;
+
+	private static synchronized ThreadPoolExecutor getSenderHelpers() {
+		if(senderHelpers == null) {
+			// If the helpers are all busy, the receive thread checks the peers itself.
+			senderHelpers = new ThreadPoolExecutor(MAX_SENDER_HELPERS, MAX_SENDER_HELPERS, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(MAX_SENDER_HELPERS), new ThreadFactory() {
+
+				private int counter;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					NativeThread t = new NativeThread(r, "Packet sender search helper "+(counter++), NativeThread.HIGH_PRIORITY, true);
+					t.setDaemon(true);
+					return t;
+				}
+
+			}, new ThreadPoolExecutor.DiscardPolicy());
+			senderHelpers.allowCoreThreadTimeOut(true);
+		}
+		return senderHelpers;
+	}
+
+	/** A peer whose keys match a packet. */
+	private static class SenderMatch {
+		final PeerNode pn;
+		/** The packet decrypted with one of the peer's keys, if it is an old format packet. */
+		final DecryptedPacket decrypted;
+
+		SenderMatch(PeerNode pn, DecryptedPacket decrypted) {
+			this.pn = pn;
+			this.decrypted = decrypted;
+		}
+	}
+
+	/**
+	 * Which of the peers sent a data packet? Checks their session keys against the packet
+	 * on this thread and on up to MAX_SENDER_HELPERS helper threads. The checks don't change
+	 * anything, so the caller must handle the packet for the peer we return.
+	 * @return Any peer whose keys match, or null.
+	 */
+	private SenderMatch findSender(byte[] buf, int offset, int length, PeerNode[] peers) {
+		if(peers.length == 0) return null;
+		int helperCount = Math.min(MAX_SENDER_HELPERS, peers.length / MIN_PEERS_PER_THREAD - 1);
+		SenderSearch search;
+		if(helperCount > 0) {
+			// The helpers may still be looking at it after we return, and the caller will
+			// decrypt the buffer in place and then reuse it.
+			byte[] copy = new byte[length];
+			System.arraycopy(buf, offset, copy, 0, length);
+			search = new SenderSearch(copy, 0, length, peers);
+			ThreadPoolExecutor exec = getSenderHelpers();
+			for(int i = 0; i < helperCount; i++)
+				exec.execute(search);
+		} else
+			search = new SenderSearch(buf, offset, length, peers);
+		search.run();
+		return search.waitForResult();
+	}
+
+	/** Checks one peer's session keys against a packet. Doesn't change anything.
+	 * @return The match, or null if the packet isn't from the peer. */
+	private SenderMatch checkSender(byte[] buf, int offset, int length, PeerNode pn) {
+		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
+			DecryptedPacket decrypted = tryDecrypt(buf, offset, length, pn.getCurrentKeyTracker());
+			if(decrypted == null)
+				decrypted = tryDecrypt(buf, offset, length, pn.getPreviousKeyTracker());
+			if(decrypted == null)
+				decrypted = tryDecrypt(buf, offset, length, pn.getUnverifiedKeyTracker());
+			if(decrypted != null) return new SenderMatch(pn, decrypted);
+		}
+		if(!pn.isOldFNP() && pn.checkReceivedPacket(buf, offset, length))
+			return new SenderMatch(pn, null);
+		return null;
+	}
+
+	/** Hands the peers out to whichever thread gets there first, until one matches. */
+	private class SenderSearch implements Runnable {
+
+		private final byte[] buf;
+		private final int offset;
+		private final int length;
+		private final PeerNode[] peers;
+		private final AtomicInteger nextPeer = new AtomicInteger();
+		private int checked;
+		private SenderMatch found;
+
+		SenderSearch(byte[] buf, int offset, int length, PeerNode[] peers) {
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+			this.peers = peers;
+		}
+
+		@Override
+		public void run() {
+			int i;
+			while((i = nextPeer.getAndIncrement()) < peers.length) {
+				synchronized(this) {
+					if(found != null) return;
+				}
+				SenderMatch match = null;
+				try {
+					match = checkSender(buf, offset, length, peers[i]);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" checking "+peers[i], t);
+				}
+				synchronized(this) {
+					checked++;
+					if(match != null && found == null)
+						found = match;
+					if(found != null || checked == peers.length)
+						notifyAll();
+				}
+			}
+		}
+
+		synchronized SenderMatch waitForResult() {
+			while(found == null && checked < peers.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return found;
+		}
+
+	}
+
+	/**
+	 * Try everything that could have come from a specific peer with an address we don't
+	 * recognise: a data packet in either packet format, or a negotiation packet.
+	 */
+	private boolean tryCandidate(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
+		if(logMINOR) Logger.minor(this, "Trying likely peer "+pn+" for "+peer);
+		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
+			if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now) ||
+					tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now) ||
+					tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
+				pn.changedIP(peer);
+				return true;
+			}
+		}
+		if(!pn.isOldFNP() && pn.handleReceivedPacket(buf, offset, length, now, peer))
+			return true;
+		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2 && !node.isStopping()) {
+			if(tryProcessAuth(buf, offset, length, pn, peer, false, now))
+				return true;
+			if(pn.handshakeUnknownInitiator() && tryProcessAuthAnonReply(buf, offset, length, pn, peer, now))
+				return true;
+		}
+		return false;
+	}
+
 	private boolean checkAnonAuthChangeIP(PeerNode opn, byte[] buf, int offset, int length, Peer peer, long now) {
 		PeerNode[] anonPeers = crypto.getAnonSetupPeerNodes();
 		PeerNode pn;
@@ -864,9 +1170,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		}
 	}
 	
-	private final LRUHashtable<InetAddress, Long> throttleRekeysByIP = new LRUHashtable<InetAddress, Long>();
+	private static final int REKEY_BY_IP_TABLE_SIZE = 1024;
 	
-	private final int REKEY_BY_IP_TABLE_SIZE = 1024;
+	private final ConcurrentLRUCache<InetAddress, Long> throttleRekeysByIP = new ConcurrentLRUCache<InetAddress, Long>(REKEY_BY_IP_TABLE_SIZE);
 
 	private boolean throttleRekey(PeerNode pn, Peer replyTo) {
 		if(pn != null) {
@@ -878,8 +1184,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			Long l = throttleRekeysByIP.get(addr);
 			if(l == null || l != null && now > l)
 				throttleRekeysByIP.push(addr, now);
-			while(throttleRekeysByIP.size() > REKEY_BY_IP_TABLE_SIZE || 
-					((!throttleRekeysByIP.isEmpty()) && throttleRekeysByIP.peekValue() < now - PeerNode.THROTTLE_REKEY))
+			Long oldest;
+			while((oldest = throttleRekeysByIP.peekValue()) != null && oldest < now - PeerNode.THROTTLE_REKEY)
 				throttleRekeysByIP.popKey();
 			if(l != null && now - l < PeerNode.THROTTLE_REKEY) {
 				Logger.error(this, "Two JFK(1)'s initiated by same IP within "+PeerNode.THROTTLE_REKEY+"ms");
@@ -2099,12 +2405,41 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * decrypt and authenticate it.
 	 */
 	private boolean tryProcess(byte[] buf, int offset, int length, SessionKey tracker, long now) {
+		DecryptedPacket packet = tryDecrypt(buf, offset, length, tracker);
+		if(packet == null) return false;
+		processDecrypted(buf, offset, length, packet, now);
+		return true;
+	}
+
+	/** An old format data packet which has been decrypted and authenticated, but not
+	 * handled yet. */
+	private static class DecryptedPacket {
+		final SessionKey tracker;
+		final int seqNumber;
+		final byte[] plaintext;
+		/** The decrypted hash from the start of the packet. */
+		final byte[] packetHash;
+
+		DecryptedPacket(SessionKey tracker, int seqNumber, byte[] plaintext, byte[] packetHash) {
+			this.tracker = tracker;
+			this.seqNumber = seqNumber;
+			this.plaintext = plaintext;
+			this.packetHash = packetHash;
+		}
+	}
+
+	/**
+	 * Decrypt and authenticate an old format data packet with the key. Doesn't change
+	 * the buffer or anything else, so it can be called on any thread.
+	 * @return The decrypted packet, or null if it isn't for this key.
+	 */
+	private DecryptedPacket tryDecrypt(byte[] buf, int offset, int length, SessionKey tracker) {
 		// Need to be able to call with tracker == null to simplify code above
 		if(tracker == null) {
 			if(logDEBUG) Logger.debug(this, "Tracker == null");
-			return false;
+			return null;
 		}
-		if(logDEBUG) Logger.debug(this,"Entering tryProcess: "+Fields.hashCode(buf)+ ',' +offset+ ',' +length+ ',' +tracker);
+		if(logDEBUG) Logger.debug(this,"Entering tryDecrypt: "+Fields.hashCode(buf)+ ',' +offset+ ',' +length+ ',' +tracker);
 		/**
 		 * E_pcbc_session(H(seq+random+data)) E_pcfb_session(seq+random+data)
 		 *
@@ -2115,7 +2450,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		BlockCipher sessionCipher = tracker.incommingCipher;
 		if(sessionCipher == null) {
 			if(logMINOR) Logger.minor(this, "No cipher");
-			return false;
+			return null;
 		}
 		if(logDEBUG) Logger.debug(this, "Decrypting with "+HexUtil.bytesToHex(tracker.incommingKey));
 		int blockSize = sessionCipher.getBlockSize() >> 3;
@@ -2158,7 +2493,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			// Now is it credible?
 			// As long as it's within +/- 256, this is valid.
 			if((targetSeqNumber != -1) && (Math.abs(targetSeqNumber - seqNumber) > MAX_PACKETS_IN_FLIGHT)) {
-				return false;
+				return null;
 			}
 		}
 		if(logDEBUG) Logger.debug(this, "Sequence number received: "+seqNumber);
@@ -2189,8 +2524,15 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(!Arrays.equals(packetHash, realHash)) {
 			if(logDEBUG) Logger.debug(this, "Packet possibly from "+tracker+" hash does not match:\npacketHash="+
 					HexUtil.bytesToHex(packetHash)+"\n  realHash="+HexUtil.bytesToHex(realHash)+" ("+(length-HASH_LENGTH)+" bytes payload)");
-			return false;
+			return null;
 		}
+		return new DecryptedPacket(tracker, seqNumber, plaintext, packetHash);
+	}
+
+	/** Handle a packet which tryDecrypt() has decrypted. */
+	private void processDecrypted(byte[] buf, int offset, int length, DecryptedPacket packet, long now) {
+		SessionKey tracker = packet.tracker;
+		byte[] packetHash = packet.packetHash;
 
 		// Verify
 		tracker.pn.verified(tracker);
@@ -2203,9 +2545,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(logDEBUG) Logger.minor(this, "Contributed entropy");
 
 		// Lots more to do yet!
-		processDecryptedData(plaintext, seqNumber, tracker, length - plaintext.length);
+		processDecryptedData(packet.plaintext, packet.seqNumber, tracker, length - packet.plaintext.length);
 		tracker.pn.reportIncomingPacket(buf, offset, length, now);
-		return true;
 	}
 
 	/**
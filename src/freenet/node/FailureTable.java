@@ -4,7 +4,9 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.text.DecimalFormat;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -21,6 +23,7 @@ import freenet.keys.KeyBlock;
 import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
+import freenet.support.HTMLNode;
 import freenet.support.LRUHashtable;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -34,7 +37,7 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
+// LOCKING: Always take the shard lock first if you need both. Take the FailureTableEntry 
 // lock only on cheap internal operations.
 
 /**
@@ -42,6 +45,10 @@ import freenet.support.io.NativeThread;
  * Implements Ultra-Lightweight Persistent Requests: Refuse requests for a key for 10 minutes after it's DNFed 
  * (UNLESS we find a better route for the request), and when it is found, offer it to those who've asked for it
  * in the last hour.
+ * 
+ * Every request which fails or completes, and every offer, goes through here, so the tables are
+ * split into shards by the key's hash, each with its own lock and its own LRU. The size limits are
+ * kept per shard, and expired entries and offers are removed by the FailureTableCleaner.
  * LOCKING: Do not lock PeerNode before FailureTable/FailureTableEntry.
  * @author toad
  */
@@ -60,16 +67,17 @@ public class FailureTable implements OOMHook {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUHashtable<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key */
-	private final LRUHashtable<Key,BlockOfferList> blockOfferListByKey;
+	static final int SHARD_BITS = 4;
+	static final int SHARDS = 1 << SHARD_BITS;
+	private final Shard[] shards;
 	private final Node node;
 	
 	/** Maximum number of keys to track */
 	static final int MAX_ENTRIES = 20*1000;
 	/** Maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	static final int MAX_ENTRIES_PER_SHARD = MAX_ENTRIES / SHARDS;
+	static final int MAX_OFFERS_PER_SHARD = MAX_OFFERS / SHARDS;
 	/** Terminate a request if there was a DNF on the same key less than 10 minutes ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -88,9 +96,30 @@ public class FailureTable implements OOMHook {
 	/** Clean up old data every 10 minutes to save memory and improve privacy */
 	static final int CLEANUP_PERIOD = 10*60*1000;
 	
+	/** Offers we have been sent, and what happened to them. */
+	private final AtomicLong offersReceived = new AtomicLong();
+	private final AtomicLong offersNotAsked = new AtomicLong();
+	private final AtomicLong offersAlreadyHave = new AtomicLong();
+	private final AtomicLong offersAccepted = new AtomicLong();
+	/** Requests which looked for offers, and how many of them found some. */
+	private final AtomicLong offerLookups = new AtomicLong();
+	private final AtomicLong offerLookupHits = new AtomicLong();
+	/** Keys we found, and how many of them someone was waiting for. */
+	private final AtomicLong keysFound = new AtomicLong();
+	private final AtomicLong keysFoundWanted = new AtomicLong();
+
+	/** Part of the tables. LOCKING: Lock the shard to use either table. */
+	private static final class Shard {
+		/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
+		final LRUHashtable<Key,FailureTableEntry> entriesByKey = new LRUHashtable<Key,FailureTableEntry>();
+		/** BlockOfferList by key */
+		final LRUHashtable<Key,BlockOfferList> blockOfferListByKey = new LRUHashtable<Key,BlockOfferList>();
+	}
+
 	FailureTable(Node node) {
-		entriesByKey = new LRUHashtable<Key,FailureTableEntry>();
-		blockOfferListByKey = new LRUHashtable<Key,BlockOfferList>();
+		shards = new Shard[SHARDS];
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard();
 		this.node = node;
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
@@ -98,6 +127,12 @@ public class FailureTable implements OOMHook {
 		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
 	}
 	
+	/** The key's hash is cached and comes from the routing key, so this is cheap. */
+	private Shard shard(Key key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return shards[h >>> (32 - SHARD_BITS)];
+	}
+
 	public void start() {
 		offerExecutor.start(node.executor, "FailureTable offers executor for "+node.getDarknetPortNumber());
 		OOMHandler.addOOMHook(this);
@@ -125,17 +160,18 @@ public class FailureTable implements OOMHook {
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			shard.entriesByKey.push(key, entry);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 
-			trimEntries(now);
+			trimEntries(shard);
 		}
 	}
 	
@@ -160,11 +196,12 @@ public class FailureTable implements OOMHook {
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			shard.entriesByKey.push(key, entry);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -175,13 +212,15 @@ public class FailureTable implements OOMHook {
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
 			
-			trimEntries(now);
+			trimEntries(shard);
 		}
 	}
 	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
+	/** Only enforces the size limit, which costs at most one pop per key added. Old entries
+	 * are removed by the FailureTableCleaner. Call with the shard locked. */
+	private void trimEntries(Shard shard) {
+		while(shard.entriesByKey.size() > MAX_ENTRIES_PER_SHARD) {
+			shard.entriesByKey.popKey();
 		}
 	}
 
@@ -226,8 +265,9 @@ public class FailureTable implements OOMHook {
 				offers = newOffers;
 			}
 			if(offers.length < 1) {
-				synchronized(FailureTable.this) {
-					blockOfferListByKey.removeKey(entry.key);
+				Shard shard = shard(entry.key);
+				synchronized(shard) {
+					shard.blockOfferListByKey.removeKey(entry.key);
 				}
 				node.clientCore.dequeueOfferedKey(entry.key);
 			}
@@ -289,16 +329,19 @@ public class FailureTable implements OOMHook {
 		}
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
+		keysFound.incrementAndGet();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
-			blockOfferListByKey.removeKey(key);
+			shard.entriesByKey.removeKey(key);
+			shard.blockOfferListByKey.removeKey(key);
 		}
+		keysFoundWanted.incrementAndGet();
 		if(logMINOR) Logger.minor(this, "Offering key");
 		if(!node.enableULPRDataPropagation) return;
 		entry.offer();
@@ -319,13 +362,16 @@ public class FailureTable implements OOMHook {
 		if(!node.enableULPRDataPropagation) return;
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
+		offersReceived.incrementAndGet();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
+		}
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			offersNotAsked.incrementAndGet();
+			return; // we haven't asked for it
 		}
 		offerExecutor.execute(new Runnable() {
 			@Override
@@ -349,18 +395,21 @@ public class FailureTable implements OOMHook {
 		// although hopefully the client layer was tripped when we got it.
 		if(node.hasKey(key, false, true)) {
 			Logger.minor(this, "Already have key");
+			offersAlreadyHave.incrementAndGet();
 			return;
 		}
 		
 		// Re-check after potentially long disk I/O.
 		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
+		}
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			offersNotAsked.incrementAndGet();
+			return; // we haven't asked for it
 		}
 
 		/*
@@ -396,34 +445,37 @@ public class FailureTable implements OOMHook {
 		boolean heAsked = entry.askedByPeer(peer, now);
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
+			offersNotAsked.incrementAndGet();
 			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
+				synchronized(shard) {
+					shard.entriesByKey.removeKey(key);
 				}
 			}
 			return;
 		}
 		if(entry.isEmpty(now)) {
-			synchronized(this) {
-				entriesByKey.removeKey(key);
+			synchronized(shard) {
+				shard.entriesByKey.removeKey(key);
 			}
 		}
 		
 		// Valid offer.
+		offersAccepted.incrementAndGet();
 		
 		// Add to offers list
 		
-		synchronized(this) {			
+		BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
+		synchronized(shard) {
 			if(logMINOR) Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
-			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
+			BlockOfferList bl = shard.blockOfferListByKey.get(key);
 			if(bl == null) {
 				bl = new BlockOfferList(entry, offer);
 			} else {
 				bl.addOffer(offer);
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			shard.blockOfferListByKey.push(key, bl);
+			while(shard.blockOfferListByKey.size() > MAX_OFFERS_PER_SHARD)
+				shard.blockOfferListByKey.popKey();
 		}
 		
 		// Accept the offer.
@@ -437,15 +489,18 @@ public class FailureTable implements OOMHook {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private synchronized void trimOffersList(long now) {
-		while(true) {
-			if(blockOfferListByKey.isEmpty()) return;
-			BlockOfferList bl = blockOfferListByKey.peekValue();
-			if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-				if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-				blockOfferListByKey.popKey();
-			} else {
-				return;
+	/** Remove expired offers, oldest first. Called by the FailureTableCleaner. */
+	private void trimOffersList(Shard shard, long now) {
+		synchronized(shard) {
+			while(true) {
+				if(shard.blockOfferListByKey.isEmpty()) return;
+				BlockOfferList bl = shard.blockOfferListByKey.peekValue();
+				if(bl.isEmpty(now) || bl.expires() < now) {
+					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+shard.blockOfferListByKey.size());
+					shard.blockOfferListByKey.popKey();
+				} else {
+					return;
+				}
 			}
 		}
 	}
@@ -656,11 +711,14 @@ public class FailureTable implements OOMHook {
 
 	public OfferList getOffers(Key key) {
 		if(!node.enableULPRDataPropagation) return null;
+		offerLookups.incrementAndGet();
 		BlockOfferList bl;
-		synchronized(this) {
-			bl = blockOfferListByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			bl = shard.blockOfferListByKey.get(key);
 			if(bl == null) return null;
 		}
+		offerLookupHits.incrementAndGet();
 		return new OfferList(bl);
 	}
 
@@ -672,8 +730,9 @@ public class FailureTable implements OOMHook {
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if(!node.enablePerNodeFailureTables) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			return shard.entriesByKey.get(key);
 		}
 	}
 	
@@ -693,22 +752,25 @@ public class FailureTable implements OOMHook {
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
-			}
-			for(int i=0;i<entries.length;i++) {
-				if(entries[i].cleanup()) {
-					synchronized(FailureTable.this) {
-						synchronized(entries[i]) {
-						if(entries[i].isEmpty()) {
-							if(logMINOR) Logger.minor(this, "Removing entry for "+entries[i].key);
-							entriesByKey.removeKey(entries[i].key);
-						}
+			for(Shard shard : shards) {
+				FailureTableEntry[] entries;
+				synchronized(shard) {
+					entries = new FailureTableEntry[shard.entriesByKey.size()];
+					shard.entriesByKey.valuesToArray(entries);
+				}
+				for(int i=0;i<entries.length;i++) {
+					if(entries[i].cleanup()) {
+						synchronized(shard) {
+							synchronized(entries[i]) {
+							if(entries[i].isEmpty()) {
+								if(logMINOR) Logger.minor(this, "Removing entry for "+entries[i].key);
+								shard.entriesByKey.removeKey(entries[i].key);
+							}
+							}
 						}
 					}
 				}
+				trimOffersList(shard, System.currentTimeMillis());
 			}
 			long endTime = System.currentTimeMillis();
 			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
@@ -717,8 +779,9 @@ public class FailureTable implements OOMHook {
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) return false; // Nobody cares
 		}
 		return entry.othersWant(apartFrom);
@@ -726,30 +789,76 @@ public class FailureTable implements OOMHook {
 
 	@Override
 	public void handleLowMemory() throws Exception {
-		synchronized (this) {
-			int size = entriesByKey.size();
-			while(true) {
-				int newSize = entriesByKey.size();
-				if(newSize == 0 || newSize >= size / 2) return;
-				entriesByKey.popKey();
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				int size = shard.entriesByKey.size();
+				while(true) {
+					int newSize = shard.entriesByKey.size();
+					if(newSize == 0 || newSize <= size / 2) break;
+					shard.entriesByKey.popKey();
+				}
 			}
 		}
 	}
 
 	@Override
 	public void handleOutOfMemory() throws Exception {
-		synchronized (this) {
-			entriesByKey.clear();
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				shard.entriesByKey.clear();
+			}
 		}
 	}
 
 	/** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) return htl;
 		}
 		return entry.minRequestorHTL(htl);
 	}
+
+	/** @return The number of keys we are tracking failures or requestors for. */
+	public int countEntries() {
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				count += shard.entriesByKey.size();
+			}
+		}
+		return count;
+	}
+
+	/** @return The number of keys we have been offered. */
+	public int countOfferedKeys() {
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				count += shard.blockOfferListByKey.size();
+			}
+		}
+		return count;
+	}
+
+	public void drawULPRStatsBox(HTMLNode box) {
+		DecimalFormat pct = new DecimalFormat("##0.0%");
+		HTMLNode list = box.addChild("ul");
+		list.addChild("li", "Keys tracked: "+countEntries()+" (max "+MAX_ENTRIES+")");
+		list.addChild("li", "Keys with offers: "+countOfferedKeys()+" (max "+MAX_OFFERS+")");
+		long received = offersReceived.get();
+		list.addChild("li", "Offers received: "+received);
+		list.addChild("li", "Offers accepted: "+rate(offersAccepted.get(), received, pct));
+		list.addChild("li", "Offers not asked for: "+rate(offersNotAsked.get(), received, pct));
+		list.addChild("li", "Offers for keys we already have: "+rate(offersAlreadyHave.get(), received, pct));
+		list.addChild("li", "Requests which found offers: "+rate(offerLookupHits.get(), offerLookups.get(), pct));
+		list.addChild("li", "Keys found which were wanted: "+rate(keysFoundWanted.get(), keysFound.get(), pct));
+	}
+
+	private static String rate(long count, long total, DecimalFormat pct) {
+		if(total == 0) return Long.toString(count);
+		return count+" of "+total+" ("+pct.format((double) count / total)+")";
+	}
 }
@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides when the database job runner commits, and keeps statistics on the commits.
+ *
+ * Without group commit, we commit when a job asks for it, as we always have. With group
+ * commit, jobs that ask for a commit only ask for one within the latency budget: the commit
+ * happens when the budget runs out, when the queue empties, or when the transaction has
+ * grown to the maximum number of jobs, whichever comes first. With thousands of persistent
+ * requests, most jobs ask for a commit, so this turns many small commits into a few big
+ * ones.
+ *
+ * Callers that need to know that their changes have reached the disk can add a barrier,
+ * which is run after the next commit, rather than forcing a commit immediately.
+ */
+public class GroupCommitPolicy {
+
+	/** Bucket i of the jobs per commit histogram counts commits of up to 2^i jobs. */
+	public static final int JOBS_BUCKETS = 12;
+	/** Bucket i of the commit time histogram counts commits taking up to 2^i ms. */
+	public static final int LATENCY_BUCKETS = 14;
+
+	private boolean enabled;
+	private int maxJobs;
+	private int maxLatency;
+
+	/** Jobs run since the last commit. */
+	private int jobs;
+	/** When a commit was first asked for since the last commit, or -1. */
+	private long requested = -1;
+	private final List<Runnable> barriers = new ArrayList<Runnable>();
+
+	private final long[] jobsPerCommit = new long[JOBS_BUCKETS];
+	private final long[] commitTimes = new long[LATENCY_BUCKETS];
+	private long commits;
+	private long totalJobs;
+	private long totalCommitTime;
+
+	/**
+	 * @param maxJobs The maximum number of jobs in one transaction.
+	 * @param maxLatency The maximum time in milliseconds between a job asking for a commit and
+	 * the commit.
+	 */
+	public GroupCommitPolicy(boolean enabled, int maxJobs, int maxLatency) {
+		this.enabled = enabled;
+		setMaxJobs(maxJobs);
+		setMaxLatency(maxLatency);
+	}
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public synchronized int getMaxJobs() {
+		return maxJobs;
+	}
+
+	public synchronized void setMaxJobs(int maxJobs) {
+		if(maxJobs < 1) throw new IllegalArgumentException();
+		this.maxJobs = maxJobs;
+	}
+
+	public synchronized int getMaxLatency() {
+		return maxLatency;
+	}
+
+	public synchronized void setMaxLatency(int maxLatency) {
+		if(maxLatency < 0) throw new IllegalArgumentException();
+		this.maxLatency = maxLatency;
+	}
+
+	/**
+	 * Called after each job has run.
+	 * @param wantCommit True if the job, or the usual rules, asked for a commit.
+	 * @param queueEmpty True if there are no more jobs waiting.
+	 * @return True to commit now.
+	 */
+	public synchronized boolean afterJob(boolean wantCommit, boolean queueEmpty, long now) {
+		jobs++;
+		if(!enabled)
+			return wantCommit || (requested >= 0);
+		if(wantCommit && requested < 0)
+			requested = now;
+		if(jobs >= maxJobs) return true;
+		if(requested < 0) return false;
+		return queueEmpty || now - requested >= maxLatency;
+	}
+
+	/**
+	 * Run a callback after the next commit. Also asks for a commit, as if a job had.
+	 */
+	public synchronized void addBarrier(Runnable callback, long now) {
+		barriers.add(callback);
+		if(requested < 0)
+			requested = now;
+	}
+
+	/** Has anything asked for a commit which hasn't happened yet? */
+	public synchronized boolean commitPending() {
+		return requested >= 0;
+	}
+
+	/**
+	 * Called after committing.
+	 * @param time How long the commit took in milliseconds.
+	 * @return The barriers which can now be run.
+	 */
+	public synchronized Runnable[] committed(long time) {
+		jobsPerCommit[bucket(jobs, JOBS_BUCKETS)]++;
+		commitTimes[bucket(time, LATENCY_BUCKETS)]++;
+		commits++;
+		totalJobs += jobs;
+		totalCommitTime += time;
+		jobs = 0;
+		requested = -1;
+		Runnable[] ret = barriers.toArray(new Runnable[barriers.size()]);
+		barriers.clear();
+		return ret;
+	}
+
+	/** The smallest i such that value <= 2^i, or the last bucket. */
+	static int bucket(long value, int buckets) {
+		int i = 0;
+		while(i < buckets - 1 && value > (1L << i)) i++;
+		return i;
+	}
+
+	public synchronized long[] getJobsPerCommitHistogram() {
+		return jobsPerCommit.clone();
+	}
+
+	public synchronized long[] getCommitTimeHistogram() {
+		return commitTimes.clone();
+	}
+
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	public synchronized double getAverageJobsPerCommit() {
+		return commits == 0 ? 0.0 : ((double) totalJobs) / commits;
+	}
+
+	public synchronized double getAverageCommitTime() {
+		return commits == 0 ? 0.0 : ((double) totalCommitTime) / commits;
+	}
+
+}
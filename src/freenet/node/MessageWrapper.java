@@ -173,8 +173,13 @@ public class MessageWrapper {
 			dataLength = Math.min(end - start + 1, dataLength);
 			if(dataLength <= 0) return null;
 
-			fragmentData = new byte[dataLength];
-			System.arraycopy(item.buf, start, fragmentData, 0, dataLength);
+			if(start == 0 && dataLength == item.buf.length) {
+				// The whole message fits, and the fragment is only read from, so don't copy it.
+				fragmentData = item.buf;
+			} else {
+				fragmentData = new byte[dataLength];
+				System.arraycopy(item.buf, start, fragmentData, 0, dataLength);
+			}
 
 			sent.add(start, start + dataLength - 1);
 			if(logDEBUG) Logger.debug(this, "Using range "+start+" to "+(start+dataLength-1)+" gives "+sent+" on "+messageID);
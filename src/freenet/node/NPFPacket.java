@@ -45,10 +45,17 @@ class NPFPacket {
 	}
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, 0, plaintext.length, pn);
+	}
+
+	/** Parse a packet from part of a buffer, without copying it first. The fragments and
+	 * lossy messages are copied out, so the buffer can be reused afterwards. */
+	public static NPFPacket create(byte[] plaintext, int start, int length, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
-		int offset = 0;
+		int offset = start;
+		int end = start + length;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(end < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -61,7 +68,7 @@ class NPFPacket {
 
 		//Process received acks
 		int numAcks = plaintext[offset++] & 0xFF;
-		if(plaintext.length < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
+		if(end < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
 			packet.error = true;
 			return packet;
 		}
@@ -84,20 +91,20 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < end) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, end);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(end < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -108,7 +115,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(end < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -127,7 +134,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(end < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -164,12 +171,12 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			byte[] fragmentData = new byte[fragmentLength];
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > end) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+(offset - start)+" fragment length is "+fragmentLength+" plaintext length is "+length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
+			byte[] fragmentData = new byte[fragmentLength];
 			System.arraycopy(plaintext, offset, fragmentData, 0, fragmentLength);
 			offset += fragmentLength;
 
@@ -177,26 +184,26 @@ class NPFPacket {
 			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
 		}
 		
-		packet.length = offset;
+		packet.length = offset - start;
 
 		return packet;
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int end) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= end) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > end - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
@@ -204,7 +211,7 @@ class NPFPacket {
 			System.arraycopy(plaintext, offset, fragment, 0, len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == end) return offset;
 		}
 	}
 
@@ -293,9 +300,7 @@ class NPFPacket {
 
 		if(offset < buf.length) {
 			//More room, so add padding
-			byte[] padding = new byte[buf.length - offset];
-			paddingGen.nextBytes(padding);
-			System.arraycopy(padding, 0, buf, offset, padding.length);
+			fillPadding(buf, offset, buf.length - offset, paddingGen);
 
 			byte b = (byte) (buf[offset] & 0x9F); //Make sure firstFragment and isFragmented isn't set
 			if(b == 0x1F)
@@ -306,6 +311,17 @@ class NPFPacket {
 		return offset;
 	}
 
+	/** Fill part of a buffer with random bytes, the same way Random.nextBytes() would, but
+	 * without a temporary array. */
+	private static void fillPadding(byte[] buf, int offset, int length, Random paddingGen) {
+		int end = offset + length;
+		while(offset < end) {
+			int rnd = paddingGen.nextInt();
+			for(int n = Math.min(end - offset, 4); n-- > 0; rnd >>= 8)
+				buf[offset++] = (byte) rnd;
+		}
+	}
+
 	public boolean addAck(int ack) {
 		if(ack < 0) throw new IllegalArgumentException("Got negative ack: " + ack);
 		if(acks.contains(ack)) return true;
@@ -91,6 +91,15 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Taken for the whole of handling a received packet. Packets can be received on several
+	 * threads, and the watchlists and receive buffers are not otherwise protected. Taken
+	 * before any of the other locks. */
+	private final Object receiveLock = new Object();
+	/** For encrypting outgoing packets. LOCKING: Lock the object itself. */
+	private final PacketCrypto sendCrypto = new PacketCrypto();
+	/** For decrypting incoming packets and the sequence number watchlist.
+	 * LOCKING: Protected by receiveLock. */
+	private final PacketCrypto receiveCrypto = new PacketCrypto();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -116,6 +125,37 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
+		synchronized(receiveLock) {
+			return innerHandleReceivedPacket(buf, offset, length, now);
+		}
+	}
+
+	/**
+	 * Is the packet for one of our keys? Unlike handleReceivedPacket(), this doesn't
+	 * change the buffer or handle the packet, it only moves the sequence number watch
+	 * lists on if need be, so FNPPacketMangler can check several peers at once.
+	 */
+	public boolean checkReceivedPacket(byte[] buf, int offset, int length) {
+		if(length < hmacLength + 4) return false;
+		synchronized(receiveLock) {
+			for(int i = 0; i < 3; i++) {
+				SessionKey s;
+				if(i == 0) {
+					s = pn.getCurrentKeyTracker();
+				} else if (i == 1) {
+					s = pn.getPreviousKeyTracker();
+				} else {
+					s = pn.getUnverifiedKeyTracker();
+				}
+				if(s == null) continue;
+				if(findSequenceNumber(buf, offset, length, s) >= 0) return true;
+			}
+		}
+		return false;
+	}
+
+	/** If the packet is ours, decrypts it in place in the buffer, and handles it. */
+	private boolean innerHandleReceivedPacket(byte[] buf, int offset, int length, long now) {
 		NPFPacket packet = null;
 		SessionKey s = null;
 		for(int i = 0; i < 3; i++) {
@@ -127,7 +167,7 @@ public class NewPacketFormat implements PacketFormat {
 				s = pn.getUnverifiedKeyTracker();
 			}
 			if(s == null) continue;
-			packet = tryDecipherPacket(buf, offset, length, s);
+			packet = tryDecipherPacket(buf, offset, length, s, now);
 			if(packet != null) {
 				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
 				break;
@@ -141,7 +181,6 @@ public class NewPacketFormat implements PacketFormat {
 		pn.receivedPacket(false, true);
 		pn.verified(s);
 		pn.maybeRekey();
-		pn.reportIncomingPacket(buf, offset, length, now);
 
 		LinkedList<byte[]> finished = handleDecryptedPacket(packet, s);
 		if(logMINOR && !finished.isEmpty()) 
@@ -212,6 +251,22 @@ public class NewPacketFormat implements PacketFormat {
 			}
 
 			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
+			if(recvBuffer == null && fragment.firstFragment && fragment.fragmentLength > 0
+					&& fragment.messageLength == fragment.fragmentLength) {
+				// The usual case: the whole message is in one fragment. Use the fragment's
+				// data as it is, rather than copying it into a receive buffer.
+				synchronized(receiveBufferSizeLock) {
+					if((receiveBufferUsed + fragment.messageLength) > MAX_RECEIVE_BUFFER_SIZE) {
+						if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+						dontAck = true;
+						continue;
+					}
+				}
+				if(!completedMessage(fragment.messageID)) continue;
+				fullyReceived.add(fragment.fragmentData);
+				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed in one fragment");
+				continue;
+			}
 			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
 			if(recvBuffer == null) {
 				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
@@ -257,23 +312,7 @@ public class NewPacketFormat implements PacketFormat {
 				receiveBuffers.remove(fragment.messageID);
 				receiveMaps.remove(fragment.messageID);
 
-				synchronized(receivedMessages) {
-					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-					receivedMessages.add(fragment.messageID, fragment.messageID);
-
-					int oldWindow = messageWindowPtrReceived;
-					while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
-						messageWindowPtrReceived++;
-						if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
-					}
-
-					if(messageWindowPtrReceived < oldWindow) {
-						receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-						receivedMessages.remove(0, messageWindowPtrReceived);
-					} else {
-						receivedMessages.remove(oldWindow, messageWindowPtrReceived);
-					}
-				}
+				if(!completedMessage(fragment.messageID)) continue;
 
 				synchronized(sendBufferLock) {
 					receiveBufferUsed -= recvBuffer.messageLength;
@@ -303,6 +342,8 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else
+					pn.wakeUpSenderAt(System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
 			}
 		}
 
@@ -310,7 +351,43 @@ public class NewPacketFormat implements PacketFormat {
 		return fullyReceived;
 	}
 
-	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+	/** Record that a message has been fully received, and move the receive window.
+	 * @return False if we had already received it. */
+	private boolean completedMessage(int messageID) {
+		synchronized(receivedMessages) {
+			if(receivedMessages.contains(messageID, messageID)) return false;
+			receivedMessages.add(messageID, messageID);
+
+			int oldWindow = messageWindowPtrReceived;
+			while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
+				messageWindowPtrReceived++;
+				if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+			}
+
+			if(messageWindowPtrReceived < oldWindow) {
+				receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
+				receivedMessages.remove(0, messageWindowPtrReceived);
+			} else {
+				receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+			}
+		}
+		return true;
+	}
+
+	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey, long now) {
+		int sequenceNumber = findSequenceNumber(buf, offset, length, sessionKey);
+		if(sequenceNumber < 0) return null;
+		NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, sequenceNumber, now);
+		if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
+		return p;
+	}
+
+	/**
+	 * Find the packet's sequence number in the watch list for the key, and check the
+	 * HMAC. Doesn't change the buffer. Call with receiveLock held.
+	 * @return The sequence number, or -1 if the packet isn't for this key.
+	 */
+	private int findSequenceNumber(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
@@ -320,7 +397,7 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = keyContext.watchListOffset;
 			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = encryptSequenceNumber(seqNum++, sessionKey);
+				encryptSequenceNumber(seqNum++, sessionKey, keyContext.seqNumWatchList[i]);
 				if((seqNum == NUM_SEQNUMS) || (seqNum < 0)) seqNum = 0;
 			}
 		}
@@ -351,7 +428,7 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
 			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+				encryptSequenceNumber(seqNum++, sessionKey, keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length]);
 				if(seqNum == NUM_SEQNUMS) seqNum = 0;
 			}
 
@@ -368,46 +445,24 @@ outer:
 			
 			int sequenceNumber = (int) ((0l + keyContext.watchListOffset + i) % NUM_SEQNUMS);
 			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
-			// Copy it to avoid side-effects.
-			byte[] copy = new byte[length];
-			System.arraycopy(buf, offset, copy, 0, length);
-			NPFPacket p = decipherFromSeqnum(copy, 0, length, sessionKey, sequenceNumber);
-			if(p != null) {
-				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
-				return p;
-			}
+			if(receiveCrypto.hmac(sessionKey).verify(buf, offset + hmacLength, length - hmacLength, buf, offset, hmacLength))
+				return sequenceNumber;
 		}
 
-		return null;
+		return -1;
 	}
 
-	/** NOTE: THIS WILL DECRYPT THE DATA IN THE BUFFER !!! */
-	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] text = new byte[length - hmacLength];
-		System.arraycopy(buf, offset + hmacLength, text, 0, text.length);
-		byte[] hash = new byte[hmacLength];
-		System.arraycopy(buf, offset, hash, 0, hash.length);
-
-		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, text, hash)) return null;
+	/** NOTE: THIS WILL DECRYPT THE DATA IN THE BUFFER! The caller must have checked the
+	 * HMAC with findSequenceNumber(). */
+	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber, long now) {
+		// The sent packet hashes are of the ciphertext, so report it before decrypting in place.
+		pn.reportIncomingPacket(buf, offset, length, now);
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
+		byte[] IV = receiveCrypto.iv(sessionKey, sequenceNumber);
+		PCFBMode payloadCipher = receiveCrypto.cipher(sessionKey.incommingCipher, IV);
 		payloadCipher.blockDecipher(buf, offset + hmacLength, length - hmacLength);
 
-		byte[] payload = new byte[length - hmacLength];
-		System.arraycopy(buf, offset + hmacLength, payload, 0, length - hmacLength);
-
-		NPFPacket p = NPFPacket.create(payload, pn);
+		NPFPacket p = NPFPacket.create(buf, offset + hmacLength, length - hmacLength, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -427,24 +482,17 @@ outer:
 		return (((i1 < i2) && ((i2 - i1) > halfValue)) || ((i1 > i2) && (i1 - i2 < halfValue)));
 	}
 
-	private byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
-		byte[] seqNumBytes = new byte[4];
+	/** Write the encrypted form of a sequence number, as it will appear in an incoming
+	 * packet, to seqNumBytes. Call with receiveLock held. */
+	private void encryptSequenceNumber(int seqNum, SessionKey sessionKey, byte[] seqNumBytes) {
 		seqNumBytes[0] = (byte) (seqNum >>> 24);
 		seqNumBytes[1] = (byte) (seqNum >>> 16);
 		seqNumBytes[2] = (byte) (seqNum >>> 8);
 		seqNumBytes[3] = (byte) (seqNum);
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
+		byte[] IV = receiveCrypto.iv(sessionKey, seqNum);
+		PCFBMode cipher = receiveCrypto.cipher(sessionKey.incommingCipher, IV);
 		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
-		return seqNumBytes;
 	}
 
 	@Override
@@ -493,27 +541,19 @@ outer:
 			}
 		}
 
+		// This is the only allocation per packet here: the socket handler keeps the array
+		// until the packet has actually been sent.
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, hmacLength, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
+		synchronized(sendCrypto) {
+			byte[] IV = sendCrypto.iv(sessionKey, packet.getSequenceNumber());
+			PCFBMode payloadCipher = sendCrypto.cipher(sessionKey.outgoingCipher, IV);
+			payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
 
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - hmacLength];
-		System.arraycopy(data, hmacLength, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
-
-		System.arraycopy(hash, 0, data, 0, hmacLength);
+			//Add hash
+			sendCrypto.hmac(sessionKey).mac(data, hmacLength, paddedLen - hmacLength, data, 0, hmacLength);
+		}
 
 		try {
 			if(logMINOR) {
@@ -1027,8 +1067,8 @@ outer:
 		// Check for acks.
 		ret = Math.min(ret, timeCheckForAcks());
 		
-		// Always wake up after half an RTT, check whether stuff is lost or needs ack'ing.
-		ret = Math.min(ret, System.currentTimeMillis() + Math.min(100, (long)averageRTT()/2));
+		// Check whether anything in flight has been lost.
+		ret = Math.min(ret, timeCheckForLostPackets());
 		return ret;
 	}
 	
@@ -1242,13 +1282,14 @@ outer:
 	}
 
 	private static class PartiallyReceivedBuffer {
+		private static final byte[] EMPTY = new byte[0];
 		private int messageLength;
 		private byte[] buffer;
 		private NewPacketFormat npf;
 
 		private PartiallyReceivedBuffer(NewPacketFormat npf) {
 			messageLength = -1;
-			buffer = new byte[0];
+			buffer = EMPTY;
 			this.npf = npf;
 		}
 
@@ -1296,6 +1337,51 @@ outer:
 		}
 	}
 
+	/**
+	 * The cipher state for encrypting or decrypting packets, kept between packets so that
+	 * we don't create an IV, a PCFBMode, a digest and several temporary arrays for every
+	 * packet. Not thread-safe, see the locking comments on the fields using it.
+	 */
+	private static final class PacketCrypto {
+		private final HMAC.Keyed hmac = new HMAC.Keyed();
+		private byte[] iv;
+		private BlockCipher payloadCipher;
+		private PCFBMode pcfb;
+
+		/** @return The IV for the packet with the given sequence number. Only valid until
+		 * the next call. */
+		byte[] iv(SessionKey sessionKey, int seqNum) {
+			BlockCipher ivCipher = sessionKey.ivCipher;
+			int length = ivCipher.getBlockSize() / 8;
+			if(iv == null || iv.length != length)
+				iv = new byte[length];
+			System.arraycopy(sessionKey.ivNonce, 0, iv, 0, length);
+			iv[length - 4] = (byte) (seqNum >>> 24);
+			iv[length - 3] = (byte) (seqNum >>> 16);
+			iv[length - 2] = (byte) (seqNum >>> 8);
+			iv[length - 1] = (byte) (seqNum);
+			ivCipher.encipher(iv, iv);
+			return iv;
+		}
+
+		/** @return A PCFBMode for the cipher, reset to the IV. Reused if the cipher is the
+		 * same as last time. */
+		PCFBMode cipher(BlockCipher cipher, byte[] IV) {
+			if(cipher == payloadCipher) {
+				pcfb.reset(IV);
+			} else {
+				pcfb = PCFBMode.create(cipher, IV);
+				payloadCipher = cipher;
+			}
+			return pcfb;
+		}
+
+		HMAC.Keyed hmac(SessionKey sessionKey) {
+			hmac.setKey(sessionKey.hmacKey);
+			return hmac;
+		}
+	}
+
 	public int countSendableMessages() {
 		int x = 0;
 		synchronized(sendBufferLock) {
@@ -140,6 +140,7 @@ import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.NullFreenetStore;
+import freenet.store.OffHeapFreenetStore;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
@@ -264,6 +265,14 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
+		} else if(store instanceof OffHeapFreenetStore) {
+			OffHeapFreenetStore<T> ramstore = (OffHeapFreenetStore<T>)store;
+			try {
+				ramstore.migrateTo(newStore, canReadClientCache);
+			} catch (IOException e) {
+				Logger.error(this, "Caught migrating old store: "+e, e);
+			}
+			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
 			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			// FIXME
@@ -561,6 +570,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private int storeIOThreads;
+	private boolean storeMapMetadata;
+	/** Shared by all the salted-hash stores, null if storeIOThreads is 0. */
+	private java.util.concurrent.ExecutorService storeIOExecutor;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -661,29 +674,8 @@ public class Node implements TimeSkewDetectorCallback {
 	 * probabilistic decrement at the edges of the HTLs. */
 	boolean disableProbabilisticHTLs;
 
-	/** HashSet of currently running request UIDs */
-	private final HashMap<Long,UIDTag> runningUIDs;
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsBulk;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsBulk;
-
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsRT;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
+	/** Currently running requests and inserts, by UID */
+	private final UIDRegistry runningUIDs;
 
 
 	/** Semi-unique ID for swap requests. Used to identify us so that the
@@ -1134,28 +1126,7 @@ public class Node implements TimeSkewDetectorCallback {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
-		runningUIDs = new HashMap<Long,UIDTag>();
-		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-
-		runningCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
+		runningUIDs = new UIDRegistry();
 
 		this.securityLevels = new SecurityLevels(this, config);
 
@@ -2039,6 +2010,62 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeIOThreads", 0, sortOrder++, true, false, "Node.storeIOThreads", "Node.storeIOThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				synchronized(Node.this) {
+					return storeIOThreads;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					storeIOThreads = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeIOThreads");
+			}
+
+		}, false);
+
+		storeIOThreads = nodeConfig.getInt("storeIOThreads");
+		if(storeIOThreads < 0) storeIOThreads = 0;
+		if(storeIOThreads > 0) {
+			storeIOExecutor = SaltedHashFreenetStore.makeIOExecutor(storeIOThreads);
+			// The stores are closed by early jobs, so nothing needs the threads after that.
+			shutdownHook.addLateJob(new NativeThread("Shutdown datastore I/O threads", NativeThread.HIGH_PRIORITY, true) {
+
+				@Override
+				public void realRun() {
+					storeIOExecutor.shutdown();
+				}
+
+			});
+		}
+
+		nodeConfig.register("storeMapMetadata", false, sortOrder++, true, false, "Node.storeMapMetadata", "Node.storeMapMetadataLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeMapMetadata;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeMapMetadata = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeMapMetadata");
+			}
+
+		});
+
+		storeMapMetadata = nodeConfig.getBoolean("storeMapMetadata");
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 
 		final String suffix = getStoreSuffix();
@@ -3259,11 +3286,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new OffHeapFreenetStore<CHKBlock>(chkClientcache, maxClientCacheKeys);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new OffHeapFreenetStore<DSAPublicKey>(pubKeyClientcache, maxClientCacheKeys);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new OffHeapFreenetStore<SSKBlock>(sskClientcache, maxClientCacheKeys);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -3361,18 +3388,18 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMFS() {
 		chkDatastore = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new OffHeapFreenetStore<CHKBlock>(chkDatastore, maxStoreKeys);
 		chkDatacache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new OffHeapFreenetStore<CHKBlock>(chkDatacache, maxCacheKeys);
 		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new OffHeapFreenetStore<DSAPublicKey>(pubKeyDatastore, maxStoreKeys);
 		pubKeyDatacache = new PubkeyStore();
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new OffHeapFreenetStore<DSAPublicKey>(pubKeyDatacache, maxCacheKeys);
 		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new OffHeapFreenetStore<SSKBlock>(sskDatastore, maxStoreKeys);
 		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new OffHeapFreenetStore<SSKBlock>(sskDatacache, maxCacheKeys);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -3591,7 +3618,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey, storeMapMetadata);
+		fs.setIOExecutor(storeIOExecutor);
 		cb.setStore(fs);
 		return fs;
 	}
@@ -4330,6 +4358,137 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Look up a key for a remote request, as fetch(key, false, false, false, false, meta)
+	 * does. If the datastore and datacache are salted hash stores, they are read on the
+	 * store I/O threads, so the caller doesn't wait for the disk. The callback is called on
+	 * an I/O thread, or on the caller's thread if we don't need one, so it must not block.
+	 */
+	@SuppressWarnings("unchecked")
+	public void fetchRemoteAsync(Key key, BlockMetadata meta, SaltedHashFreenetStore.FetchCallback<KeyBlock> cb) {
+		FreenetStore<? extends KeyBlock> store;
+		FreenetStore<? extends KeyBlock> cache;
+		boolean migrating;
+		if(key instanceof NodeCHK) {
+			store = chkDatastore.getStore();
+			cache = chkDatacache.getStore();
+			migrating = oldCHK != null || oldCHKCache != null;
+		} else if(key instanceof NodeSSK) {
+			store = sskDatastore.getStore();
+			cache = sskDatacache.getStore();
+			migrating = oldSSK != null || oldSSKCache != null;
+		} else throw new IllegalArgumentException();
+		if(migrating || !(store instanceof SaltedHashFreenetStore) || !(cache instanceof SaltedHashFreenetStore)) {
+			cb.onFetched(fetch(key, false, false, false, false, meta));
+			return;
+		}
+		if(useSlashdotCache) {
+			// It's in memory, so there's no point going to another thread.
+			try {
+				KeyBlock block;
+				if(key instanceof NodeCHK)
+					block = chkSlashdotcache.fetch((NodeCHK)key, false, false, meta);
+				else
+					block = sskSlashdotcache.fetch((NodeSSK)key, false, false, false, false, meta);
+				if(block != null) {
+					reportStoreHit(key, true, false);
+					cb.onFetched(block);
+					return;
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		if(logMINOR) dumpStoreHits();
+		nodeStats.avgRequestLocation.report(key.toNormalizedDouble());
+		new RemoteStoreLookup<KeyBlock>(key, (SaltedHashFreenetStore<KeyBlock>)store, (SaltedHashFreenetStore<KeyBlock>)cache, meta, cb).start();
+	}
+
+	/** Reads the datastore, then if the key isn't there, the datacache, on the store I/O
+	 * threads. */
+	private class RemoteStoreLookup<T extends KeyBlock> implements SaltedHashFreenetStore.FetchCallback<T> {
+
+		private final Key key;
+		private final SaltedHashFreenetStore<T> store;
+		private final SaltedHashFreenetStore<T> cache;
+		private final BlockMetadata meta;
+		private final SaltedHashFreenetStore.FetchCallback<KeyBlock> cb;
+		private final boolean ignoreOldBlocks = !writeLocalToDatastore;
+		private boolean readingCache;
+
+		RemoteStoreLookup(Key key, SaltedHashFreenetStore<T> store, SaltedHashFreenetStore<T> cache, BlockMetadata meta, SaltedHashFreenetStore.FetchCallback<KeyBlock> cb) {
+			this.key = key;
+			this.store = store;
+			this.cache = cache;
+			this.meta = meta;
+			this.cb = cb;
+		}
+
+		void start() {
+			fetchFrom(store);
+		}
+
+		private void fetchFrom(SaltedHashFreenetStore<T> fs) {
+			byte[] fullKey = key instanceof NodeSSK ? ((NodeSSK)key).getFullKey() : null;
+			// Don't promote, as fetch() doesn't for a request which can't write to the datastore.
+			fs.fetchAsync(key.getRoutingKey(), fullKey, true, false, false, ignoreOldBlocks, meta, this);
+		}
+
+		@Override
+		public void onFetched(T block) {
+			if(block == null && !readingCache) {
+				readingCache = true;
+				fetchFrom(cache);
+				return;
+			}
+			if(block != null)
+				reportStoreHit(key, false, readingCache);
+			cb.onFetched(block);
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+			cb.onFetched(null);
+		}
+
+	}
+
+	/** Update the stats when fetchRemoteAsync() finds a key. */
+	private void reportStoreHit(Key key, boolean slashdot, boolean cache) {
+		double loc = key.toNormalizedDouble();
+		double dist = Location.distance(lm.getLocation(), loc);
+		if(key instanceof NodeCHK) {
+			if(slashdot) {
+				nodeStats.avgSlashdotCacheCHKSucess.report(loc);
+				if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
+					nodeStats.furthestSlashdotCacheCHKSuccess=dist;
+			} else if(cache) {
+				nodeStats.avgCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheCHKSuccess)
+					nodeStats.furthestCacheCHKSuccess=dist;
+			} else {
+				nodeStats.avgStoreCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreCHKSuccess)
+					nodeStats.furthestStoreCHKSuccess=dist;
+			}
+		} else {
+			if(slashdot) {
+				nodeStats.avgSlashdotCacheSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestSlashdotCacheSSKSuccess)
+					nodeStats.furthestSlashdotCacheSSKSuccess=dist;
+			} else if(cache) {
+				nodeStats.avgCacheSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheSSKSuccess)
+					nodeStats.furthestCacheSSKSuccess=dist;
+			} else {
+				nodeStats.avgStoreSSKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreSSKSuccess)
+					nodeStats.furthestStoreSSKSuccess=dist;
+			}
+		}
+	}
+
 	public CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4601,35 +4760,17 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public boolean lockUID(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
-		synchronized(runningUIDs) {
-			if(runningUIDs.containsKey(uid)) return false; // Already present.
-			runningUIDs.put(uid, tag);
-		}
-		// If these are switched around, we must remember to remove from both.
-		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerLock(map, (OfferReplyTag)tag, uid, ssk, insert, offerReply, local);
-		} else if(insert) {
-			HashMap<Long,InsertTag> map = getInsertTracker(ssk,local, realTimeFlag);
-			innerLock(map, (InsertTag)tag, uid, ssk, insert, offerReply, local);
-		} else {
-			HashMap<Long,RequestTag> map = getRequestTracker(ssk,local, realTimeFlag);
-			innerLock(map, (RequestTag)tag, uid, ssk, insert, offerReply, local);
-		}
+		if(!runningUIDs.lock(uid, tag)) return false; // Already present.
+		int category = UIDRegistry.category(ssk, insert, offerReply, local, realTimeFlag);
+		if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+runningUIDs.count(category), new Exception("debug"));
+		UIDTag old = runningUIDs.add(category, uid, tag);
+		if(old != null) {
+			Logger.error(this, "Already have UID in specific map ("+ssk+","+insert+","+offerReply+","+local+") but not in general map: trying to register "+tag+" but already have "+old);
+		}
+		if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+runningUIDs.count(category));
 		return true;
 	}
 
-	private<T extends UIDTag> void innerLock(HashMap<Long, T> map, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
-		synchronized(map) {
-			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size(), new Exception("debug"));
-			if(map.containsKey(uid)) {
-				Logger.error(this, "Already have UID in specific map ("+ssk+","+insert+","+offerReply+","+local+") but not in general map: trying to register "+tag+" but already have "+map.get(uid));
-			}
-			map.put(uid, tag);
-			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size());
-		}
-	}
-
 	/** Only used by UIDTag. */
 	void unlockUID(UIDTag tag, boolean canFail, boolean noRecord) {
 		unlockUID(tag.uid, tag.isSSK(), tag.isInsert(), canFail, tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag, tag, noRecord);
@@ -4639,44 +4780,24 @@ public class Node implements TimeSkewDetectorCallback {
 		if(!noRecord)
 			completed(uid);
 
-		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, (OfferReplyTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		} else if(insert) {
-			HashMap<Long,InsertTag> map = getInsertTracker(ssk,local, realTimeFlag);
-			innerUnlock(map, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		} else {
-			HashMap<Long,RequestTag> map = getRequestTracker(ssk,local, realTimeFlag);
-			innerUnlock(map, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		}
-
-		synchronized(runningUIDs) {
-			UIDTag oldTag = runningUIDs.get(uid);
-			if(oldTag == null) {
-				if(canFail) return;
-				throw new IllegalStateException("Could not unlock "+uid+ "! : ssk="+ssk+" insert="+insert+" canFail="+canFail+" offerReply="+offerReply+" local="+local);
-			} else if(tag != oldTag) {
-				if(canFail) return;
-				Logger.error(this, "Removing "+tag+" for "+uid+" but "+tag+" is registered!");
-				return;
+		int category = UIDRegistry.category(ssk, insert, offerReply, local, realTimeFlag);
+		if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+runningUIDs.count(category), new Exception("debug"));
+		if(!runningUIDs.remove(category, uid, tag)) {
+			if(canFail) {
+				if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+runningUIDs.get(category, uid)+" for "+uid);
 			} else {
-				runningUIDs.remove(uid);
+				Logger.error(this, "Removing "+tag+" for "+uid+" returned "+runningUIDs.get(category, uid));
 			}
 		}
-	}
+		if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+runningUIDs.count(category));
 
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> map, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
-		synchronized(map) {
-			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size(), new Exception("debug"));
-			if(map.get(uid) != tag) {
-				if(canFail) {
-					if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+map.get(uid)+" for "+uid);
-				} else {
-					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+map.get(uid));
-				}
-			} else
-				map.remove(uid);
-			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size());
+		UIDTag oldTag = runningUIDs.unlock(uid, tag);
+		if(oldTag == null) {
+			if(canFail) return;
+			throw new IllegalStateException("Could not unlock "+uid+ "! : ssk="+ssk+" insert="+insert+" canFail="+canFail+" offerReply="+offerReply+" local="+local);
+		} else if(tag != oldTag) {
+			if(canFail) return;
+			Logger.error(this, "Removing "+tag+" for "+uid+" but "+tag+" is registered!");
 		}
 	}
 
@@ -4694,123 +4815,86 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
-	public synchronized void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		synchronized(map) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+	/** Adds up the expected transfers for the tags which are routing to a node. */
+	private class TransferCounter implements UIDRegistry.TagVisitor {
+
+		private final PeerNode target;
+		private final int transfersPerInsert;
+		private final boolean ignoreLocalVsRemote;
+		int count;
+		int transfersOut;
+		int transfersIn;
+
+		TransferCounter(PeerNode target, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+			this.target = target;
+			this.transfersPerInsert = transfersPerInsert;
+			this.ignoreLocalVsRemote = ignoreLocalVsRemote;
+		}
+
+		@Override
+		public void visit(long uid, UIDTag tag) {
+			// Ordinary requests can be routed to an offered key.
+			// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
+			if(tag.currentlyFetchingOfferedKeyFrom(target) || tag.currentlyRoutingTo(target)) {
+				if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+uid);
+				transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+				transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
 				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
+			} else if(logDEBUG) Logger.debug(this, "Not counting "+uid);
+		}
+
+		void addTo(CountedRequests counter) {
 			counter.total += count;
 			counter.expectedTransfersIn += transfersIn;
 			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
-			}
 		}
+
+	}
+
+	/** Count the requests running in a category, and their expected transfers. This
+	 * just reads the running totals kept by the tags. */
+	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
+		int category = UIDRegistry.category(ssk, insert, offer, local, realTimeFlag);
+		runningUIDs.load.count(category, ignoreLocalVsRemote, transfersPerInsert, counter, counterSourceRestarted);
 	}
 
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		synchronized(map) {
-		int count = 0;
-		int transfersOut = 0;
-		int transfersIn = 0;
-		int countSR = 0;
-		int transfersOutSR = 0;
-		int transfersInSR = 0;
+		int category = UIDRegistry.category(ssk, insert, offer, local, realTimeFlag);
+		if(runningUIDs.count(category) == 0) return;
 		if(!requestsToNode) {
 			// If a request is adopted by us as a result of a timeout, it can be in the
 			// remote map despite having source == null. However, if a request is in the
 			// local map it will always have source == null.
 			if(source != null && local) return;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				if(tag.getSource() == source) {
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					count++;
-					transfersOut += out;
-					transfersIn += in;
-					if(counterSR != null && tag.countAsSourceRestarted()) {
-						countSR++;
-						transfersOutSR += out;
-						transfersInSR += in;
-					}
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-			}
-			if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSR != null) {
-				counterSR.total += countSR;
-				counterSR.expectedTransfersIn += transfersInSR;
-				counterSR.expectedTransfersOut += transfersOutSR;
-			}
+			// The tags keep running totals for their source, and for the ones which
+			// don't have one: local requests and those which have been reassigned to us.
+			UIDRegistry.Load load = source == null ? runningUIDs.noSourceLoad : source.runningLoad;
+			load.count(category, ignoreLocalVsRemote, transfersPerInsert, counter, counterSR);
 		} else {
 			// hasSourceRestarted is irrelevant for requests *to* a node.
 			// FIXME improve efficiency!
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// Ordinary requests can be routed to an offered key.
-				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-				if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-					count++;
-				} else if(tag.currentlyRoutingTo(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-					count++;
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-			}
-			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-		}
+			TransferCounter c = new TransferCounter(source, transfersPerInsert, ignoreLocalVsRemote);
+			runningUIDs.visit(category, c);
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+c.count+" of "+runningUIDs.count(category)+" for "+source);
+			c.addTo(counter);
 		}
 	}
-	
+
 	/**
 	 * @return [0] is the number of local requests waiting for slots, [1] is the
 	 * number of remote requests waiting for slots.
 	 */
 	public int[] countRequestsWaitingForSlots() {
 		// FIXME use a counter, but that means make sure it always removes it when something bad happens.
-		
+
 		int local = 0;
 		int remote = 0;
-		synchronized(runningUIDs) {
-			for(UIDTag tag : runningUIDs.values()) {
-				if(!tag.isWaitingForSlot()) continue;
-				if(tag.isLocal())
-					local++;
-				else
-					remote++;
-			}
+		for(UIDTag tag : runningUIDs.getAll()) {
+			if(!tag.isWaitingForSlot()) continue;
+			if(tag.isLocal())
+				local++;
+			else
+				remote++;
 		}
 		return new int[] { local, remote };
 	}
@@ -4820,56 +4904,6 @@ public class Node implements TimeSkewDetectorCallback {
 		tag.reassignToSelf();
 	}
 
-	private synchronized HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
-			boolean insert, boolean offer, boolean realTimeFlag) {
-		if(offer)
-			return getOfferTracker(ssk, realTimeFlag);
-		else if(insert)
-			return getInsertTracker(ssk, local, realTimeFlag);
-		else
-			return getRequestTracker(ssk, local, realTimeFlag);
-	}
-
-
-	private HashMap<Long, RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsRT : runningSSKGetUIDsRT;
-			} else {
-				return local ? runningLocalCHKGetUIDsRT : runningCHKGetUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsBulk : runningSSKGetUIDsBulk;
-			} else {
-				return local ? runningLocalCHKGetUIDsBulk : runningCHKGetUIDsBulk;
-			}
-		}
-	}
-
-	private HashMap<Long, InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsRT : runningSSKPutUIDsRT;
-			} else {
-				return local ? runningLocalCHKPutUIDsRT : runningCHKPutUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsBulk : runningSSKPutUIDsBulk;
-			} else {
-				return local ? runningLocalCHKPutUIDsBulk : runningCHKPutUIDsBulk;
-			}
-		}
-	}
-
-	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
-		if(realTimeFlag)
-			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
-		else
-			return ssk ? runningSSKOfferReplyUIDsBulk : runningCHKOfferReplyUIDsBulk;
-	}
-
 	// Must include bulk inserts so fairly long.
 	// 21 minutes is enough for a fatal timeout.
 	static final int TIMEOUT = 21 * 60 * 1000;
@@ -4882,69 +4916,31 @@ public class Node implements TimeSkewDetectorCallback {
 		@Override
 		public void run() {
 			try {
-				checkUIDs(runningLocalSSKGetUIDsRT);
-				checkUIDs(runningLocalCHKGetUIDsRT);
-				checkUIDs(runningLocalSSKPutUIDsRT);
-				checkUIDs(runningLocalCHKPutUIDsRT);
-				checkUIDs(runningSSKGetUIDsRT);
-				checkUIDs(runningCHKGetUIDsRT);
-				checkUIDs(runningSSKPutUIDsRT);
-				checkUIDs(runningCHKPutUIDsRT);
-				checkUIDs(runningSSKOfferReplyUIDsRT);
-				checkUIDs(runningCHKOfferReplyUIDsRT);
-				checkUIDs(runningLocalSSKGetUIDsBulk);
-				checkUIDs(runningLocalCHKGetUIDsBulk);
-				checkUIDs(runningLocalSSKPutUIDsBulk);
-				checkUIDs(runningLocalCHKPutUIDsBulk);
-				checkUIDs(runningSSKGetUIDsBulk);
-				checkUIDs(runningCHKGetUIDsBulk);
-				checkUIDs(runningSSKPutUIDsBulk);
-				checkUIDs(runningCHKPutUIDsBulk);
-				checkUIDs(runningSSKOfferReplyUIDsBulk);
-				checkUIDs(runningCHKOfferReplyUIDsBulk);
+				for(int i=0;i<UIDRegistry.CATEGORIES;i++)
+					checkUIDs(i);
 			} finally {
 				getTicker().queueTimedJob(this, 60*1000);
 			}
 		}
 
-		private void checkUIDs(HashMap<Long, ? extends UIDTag> map) {
-			Long[] uids;
-			UIDTag[] tags;
-			synchronized(map) {
-				uids = map.keySet().toArray(new Long[map.size()]);
-				tags = map.values().toArray(new UIDTag[map.size()]);
-			}
+		private void checkUIDs(int category) {
+			if(runningUIDs.count(category) == 0) return;
 			long now = System.currentTimeMillis();
-			for(int i=0;i<uids.length;i++) {
-				tags[i].maybeLogStillPresent(now, uids[i]);
+			for(UIDTag tag : runningUIDs.getAll(category)) {
+				tag.maybeLogStillPresent(now, tag.uid);
 			}
 		}
 	};
-	
 
-	public void onRestartOrDisconnect(PeerNode pn) {
-		onRestartOrDisconnect(pn, runningSSKGetUIDsRT);
-		onRestartOrDisconnect(pn, runningCHKGetUIDsRT);
-		onRestartOrDisconnect(pn, runningSSKPutUIDsRT);
-		onRestartOrDisconnect(pn, runningCHKPutUIDsRT);
-		onRestartOrDisconnect(pn, runningSSKOfferReplyUIDsRT);
-		onRestartOrDisconnect(pn, runningCHKOfferReplyUIDsRT);
-		onRestartOrDisconnect(pn, runningSSKGetUIDsBulk);
-		onRestartOrDisconnect(pn, runningCHKGetUIDsBulk);
-		onRestartOrDisconnect(pn, runningSSKPutUIDsBulk);
-		onRestartOrDisconnect(pn, runningCHKPutUIDsBulk);
-		onRestartOrDisconnect(pn, runningSSKOfferReplyUIDsBulk);
-		onRestartOrDisconnect(pn, runningCHKOfferReplyUIDsBulk);
-	}
-
-	private void onRestartOrDisconnect(PeerNode pn,
-			HashMap<Long, ? extends UIDTag> uids) {
-		synchronized(uids) {
-			for(UIDTag tag : uids.values()) {
+
+	public void onRestartOrDisconnect(final PeerNode pn) {
+		runningUIDs.visitSource(pn, new UIDRegistry.TagVisitor() {
+			@Override
+			public void visit(long uid, UIDTag tag) {
 				if(tag.isSource(pn))
 					tag.onRestartOrDisconnectSource();
 			}
-		}
+		});
 	}
 
 
@@ -4974,230 +4970,108 @@ public class Node implements TimeSkewDetectorCallback {
 		return sb.toString();
 	}
 
+	private int countRunning(boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag) {
+		return runningUIDs.count(UIDRegistry.category(ssk, insert, offerReply, local, realTimeFlag));
+	}
+
+	private int countRunning(boolean ssk, boolean insert, boolean offerReply, boolean local) {
+		return countRunning(ssk, insert, offerReply, local, true) + countRunning(ssk, insert, offerReply, local, false);
+	}
+
 	public int getNumSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		synchronized(runningLocalSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(true, false, false, false) + countRunning(true, false, false, true);
 	}
 
 	public int getNumCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		synchronized(runningLocalCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, false, false, false) + countRunning(false, false, false, true);
 	}
 
 	public int getNumSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		synchronized(runningLocalSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return countRunning(true, true, false, false) + countRunning(true, true, false, true);
 	}
 
 	public int getNumCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		synchronized(runningLocalCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, true, false, false) + countRunning(false, true, false, true);
 	}
 
 	public int getNumLocalSSKRequests() {
-		int total = 0;
-		synchronized(runningLocalSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(true, false, false, true);
 	}
 
 	public int getNumLocalCHKRequests() {
-		int total = 0;
-		synchronized(runningLocalCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, false, false, true);
 	}
 
 	public int getNumRemoteCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, false, false, false);
 	}
 
 	public int getNumRemoteSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		return total;
+		return countRunning(true, false, false, false);
 	}
 
 	public int getNumRemoteSSKRequests(boolean realTimeFlag) {
-		if(realTimeFlag) {
-			synchronized(runningSSKGetUIDsRT) {
-				return runningSSKGetUIDsRT.size();
-			}
-		} else {
-			synchronized(runningSSKGetUIDsBulk) {
-				return runningSSKGetUIDsBulk.size();
-			}
-		}
+		return countRunning(true, false, false, false, realTimeFlag);
 	}
 
 	public int getNumLocalCHKInserts() {
-		int total = 0;
-		synchronized(runningLocalCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, true, false, true);
 	}
 
 	public int getNumLocalSSKInserts() {
-		int total = 0;
-		synchronized(runningLocalSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return countRunning(true, true, false, true);
 	}
 
 	public int getNumRemoteCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		return total;
+		return countRunning(false, true, false, false);
 	}
 
 	public int getNumRemoteSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		return total;
+		return countRunning(true, true, false, false);
 	}
 
 	public int getNumRemoteCHKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKGetUIDsRT.size() : runningCHKGetUIDsBulk.size();
+		return countRunning(false, false, false, false, realTimeFlag);
 	}
 
 	public int getNumLocalSSKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalSSKPutUIDsRT.size() : runningLocalSSKPutUIDsBulk.size();
+		return countRunning(true, true, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalCHKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalCHKPutUIDsRT.size() : runningLocalCHKPutUIDsBulk.size();
+		return countRunning(false, true, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalCHKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalCHKGetUIDsRT.size() : runningLocalCHKGetUIDsBulk.size();
+		return countRunning(false, false, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalSSKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalSSKGetUIDsRT.size() : runningLocalSSKGetUIDsBulk.size();
+		return countRunning(true, false, false, true, realTimeFlag);
 	}
 
 	public int getNumRemoteSSKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningSSKPutUIDsRT.size() : runningSSKPutUIDsBulk.size();
+		return countRunning(true, true, false, false, realTimeFlag);
 	}
 
 	public int getNumRemoteCHKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKPutUIDsRT.size() : runningCHKPutUIDsBulk.size();
+		return countRunning(false, true, false, false, realTimeFlag);
 	}
 
 	public int getNumSSKOfferReplies() {
-		int total = 0;
-		synchronized(runningSSKOfferReplyUIDsRT) {
-			total += runningSSKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningSSKOfferReplyUIDsBulk) {
-			total += runningSSKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return countRunning(true, false, true, false);
 	}
 
 	public int getNumCHKOfferReplies() {
-		int total = 0;
-		synchronized(runningCHKOfferReplyUIDsRT) {
-			total += runningCHKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningCHKOfferReplyUIDsBulk) {
-			total += runningCHKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return countRunning(false, false, true, false);
 	}
 
 	public int getNumSSKOfferReplies(boolean realTimeFlag) {
-		return realTimeFlag ? runningSSKOfferReplyUIDsRT.size() : runningSSKOfferReplyUIDsBulk.size();
+		return countRunning(true, false, true, false, realTimeFlag);
 	}
 
 	public int getNumCHKOfferReplies(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKOfferReplyUIDsRT.size() : runningCHKOfferReplyUIDsBulk.size();
+		return countRunning(false, false, true, false, realTimeFlag);
 	}
 
 	public int getNumTransferringRequestSenders() {
@@ -5837,6 +5711,10 @@ public class Node implements TimeSkewDetectorCallback {
 		return opennet;
 	}
 
+	public FailureTable getFailureTable() {
+		return failureTable;
+	}
+
 	public synchronized boolean passOpennetRefsThroughDarknet() {
 		return passOpennetRefsThroughDarknet;
 	}
@@ -5941,24 +5819,17 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public int getTotalRunningUIDs() {
-		synchronized(runningUIDs) {
-			return runningUIDs.size();
-		}
+		return runningUIDs.size();
 	}
 
 	public void addRunningUIDs(Vector<Long> list) {
-		synchronized(runningUIDs) {
-			list.addAll(runningUIDs.keySet());
-		}
+		for(UIDTag tag : runningUIDs.getAll())
+			list.add(tag.uid);
 	}
 
 	public int getTotalRunningUIDsAlt() {
-		synchronized(runningUIDs) {
-			return this.runningCHKGetUIDsRT.size() + this.runningCHKPutUIDsRT.size() + this.runningSSKGetUIDsRT.size() +
-			this.runningSSKPutUIDsRT.size() + this.runningSSKOfferReplyUIDsRT.size() + this.runningCHKOfferReplyUIDsRT.size() +
-			this.runningCHKGetUIDsBulk.size() + this.runningCHKPutUIDsBulk.size() + this.runningSSKGetUIDsBulk.size() +
-			this.runningSSKPutUIDsBulk.size() + this.runningSSKOfferReplyUIDsBulk.size() + this.runningCHKOfferReplyUIDsBulk.size();
-		}
+		return getNumRemoteCHKRequests() + getNumRemoteCHKInserts() + getNumRemoteSSKRequests() +
+			getNumRemoteSSKInserts() + getNumSSKOfferReplies() + getNumCHKOfferReplies();
 	}
 
 	/**
@@ -522,6 +522,56 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 		});
 		alwaysCommit = nodeConfig.getBoolean("alwaysCommit");
+
+		nodeConfig.register("groupCommit", false, sortOrder++, true, false, "NodeClientCore.groupCommit", "NodeClientCore.groupCommitLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return groupCommit.isEnabled();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						groupCommit.setEnabled(val);
+					}
+
+		});
+		groupCommit.setEnabled(nodeConfig.getBoolean("groupCommit"));
+
+		nodeConfig.register("groupCommitMaxJobs", 1000, sortOrder++, true, false, "NodeClientCore.groupCommitMaxJobs", "NodeClientCore.groupCommitMaxJobsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return groupCommit.getMaxJobs();
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 1) throw new InvalidConfigValueException(l10n("groupCommitMaxJobsMustBeGreaterThanZero"));
+						groupCommit.setMaxJobs(val);
+					}
+
+		}, false);
+		groupCommit.setMaxJobs(nodeConfig.getInt("groupCommitMaxJobs"));
+
+		nodeConfig.register("groupCommitMaxLatency", 2000, sortOrder++, true, false, "NodeClientCore.groupCommitMaxLatency", "NodeClientCore.groupCommitMaxLatencyLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return groupCommit.getMaxLatency();
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0) throw new InvalidConfigValueException(l10n("groupCommitMaxLatencyMustNotBeNegative"));
+						groupCommit.setMaxLatency(val);
+					}
+
+		}, false);
+		groupCommit.setMaxLatency(nodeConfig.getInt("groupCommitMaxLatency"));
 	}
 
 	private void initUSK(ObjectContainer container) {
@@ -1807,6 +1857,8 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 	private long lastCommitted = System.currentTimeMillis();
 
+	public final GroupCommitPolicy groupCommit = new GroupCommitPolicy(false, 1000, 2000);
+
 	static final int MAX_COMMIT_INTERVAL = 30*1000;
 
 	static final int SOON_COMMIT_INTERVAL = 5*1000;
@@ -1833,42 +1885,44 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				if(job == null) throw new NullPointerException();
 				if(node == null) throw new NullPointerException();
 				boolean commit = job.run(node.db, clientContext);
+				boolean queueEmpty = !clientDatabaseExecutor.anyQueued();
 				boolean killed;
 				synchronized(NodeClientCore.this) {
 					killed = killedDatabase;
 					if(!killed) {
 						long now = System.currentTimeMillis();
-						if(now - lastCommitted > MAX_COMMIT_INTERVAL) {
-							lastCommitted = now;
-							commit = true;
+						boolean force = false;
+						if(now - lastCommitted > MAX_COMMIT_INTERVAL)
+							force = true;
+						if(groupCommit.isEnabled()) {
+							// The group commit latency budget decides how soon.
+							if(commitSoon) {
+								commitSoon = false;
+								commit = true;
+							}
 						} else if(commitSoon && now - lastCommitted > SOON_COMMIT_INTERVAL) {
 							commitSoon = false;
-							lastCommitted = now;
 							commit = true;
-						} else if(commitSoon && !clientDatabaseExecutor.anyQueued()) {
+						} else if(commitSoon && queueEmpty) {
 							commitSoon = false;
-							lastCommitted = now;
 							commit = true;
 						}
 						if(alwaysCommit)
-							commit = true;
+							force = true;
 						if(commitThisTransaction) {
-							commit = true;
+							force = true;
 							commitThisTransaction = false;
 						}
+						commit = groupCommit.afterJob(commit, queueEmpty, now) || force;
+						if(commit)
+							lastCommitted = now;
 					}
 				}
 				if(killed) {
 					node.db.rollback();
 					return;
 				} else if(commit) {
-					persistentTempBucketFactory.preCommit(node.db);
-					node.db.commit();
-					synchronized(NodeClientCore.this) {
-						lastCommitted = System.currentTimeMillis();
-					}
-					if(logMINOR) Logger.minor(this, "COMMITTED");
-					persistentTempBucketFactory.postCommit(node.db);
+					commitDatabase();
 				}
 			} catch (Throwable t) {
 				if(t instanceof OutOfMemoryError) {
@@ -2010,13 +2064,49 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		synchronized(NodeClientCore.this) {
 			if(killedDatabase) return;
 		}
+		commitDatabase();
+	}
+
+	/** Commit, and run any barriers waiting for it. Must be called on the database thread. */
+	private void commitDatabase() {
+		long start = System.currentTimeMillis();
 		persistentTempBucketFactory.preCommit(node.db);
 		node.db.commit();
+		long end = System.currentTimeMillis();
 		synchronized(NodeClientCore.this) {
-			lastCommitted = System.currentTimeMillis();
+			lastCommitted = end;
 		}
-		if(logMINOR) Logger.minor(this, "COMMITTED");
+		if(logMINOR) Logger.minor(this, "COMMITTED in "+(end-start)+"ms");
 		persistentTempBucketFactory.postCommit(node.db);
+		for(Runnable barrier : groupCommit.committed(end - start))
+			node.executor.execute(barrier, "Database commit barrier");
+	}
+
+	/** Does nothing, but gives the job runner a chance to commit. */
+	private static final DBJob NOOP_JOB = new DBJob() {
+
+		@Override
+		public boolean run(ObjectContainer container, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "Commit barrier";
+		}
+
+	};
+
+	@Override
+	public void addCommitBarrier(Runnable callback) throws DatabaseDisabledException {
+		synchronized(this) {
+			if(killedDatabase) throw new DatabaseDisabledException();
+		}
+		groupCommit.addBarrier(callback, System.currentTimeMillis());
+		// If we are on the database thread, the current job will commit, otherwise make sure
+		// there is a job to do so even if nothing else is queued.
+		if(!clientDatabaseExecutor.onThread())
+			queue(NOOP_JOB, NativeThread.NORM_PRIORITY, true);
 	}
 
 	private boolean commitThisTransaction;
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -22,6 +23,7 @@ import freenet.keys.NodeSSK;
 import freenet.node.NodeStats.PeerLoadStats;
 import freenet.node.NodeStats.RejectReason;
 import freenet.store.BlockMetadata;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -477,7 +479,7 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 	/**
 	 * Handle an incoming FNPDataRequest.
 	 */
-	private void innerHandleDataRequest(Message m, PeerNode source, boolean isSSK) {
+	private void innerHandleDataRequest(final Message m, final PeerNode source, final boolean isSSK) {
 		if(!source.isConnected()) {
 			if(logMINOR) Logger.minor(this, "Handling request off thread, source disconnected: "+source+" for "+m);
 			return;
@@ -498,9 +500,9 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 			}
 			return;
 		}
-        short htl = m.getShort(DMT.HTL);
-        Key key = (Key) m.getObject(DMT.FREENET_ROUTING_KEY);
-        boolean realTimeFlag = DMT.getRealTimeFlag(m);
+        final short htl = m.getShort(DMT.HTL);
+        final Key key = (Key) m.getObject(DMT.FREENET_ROUTING_KEY);
+        final boolean realTimeFlag = DMT.getRealTimeFlag(m);
         final RequestTag tag = new RequestTag(isSSK, RequestTag.START.REMOTE, source, realTimeFlag, id, node);
 		if(!node.lockUID(id, isSSK, false, false, false, realTimeFlag, tag)) {
 			if(logMINOR) Logger.minor(this, "Could not lock ID "+id+" -> rejecting (already running)");
@@ -521,7 +523,28 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 		// Object allocation is pretty cheap in modern Java anyway...
 		// If we do reuse it, call reset().
 		BlockMetadata meta = new BlockMetadata();
-		KeyBlock block = node.fetch(key, false, false, false, false, meta);
+		// Don't wait for the disk on the request queue thread.
+		node.fetchRemoteAsync(key, meta, new SaltedHashFreenetStore.FetchCallback<KeyBlock>() {
+
+			@Override
+			public void onFetched(KeyBlock block) {
+				startDataRequest(m, source, isSSK, htl, key, realTimeFlag, tag, block);
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				// fetchRemoteAsync() logs it and reports a miss.
+				startDataRequest(m, source, isSSK, htl, key, realTimeFlag, tag, null);
+			}
+
+		});
+	}
+
+	/** Called after the store lookup for an incoming data request, possibly on a store I/O
+	 * thread. Decides whether to accept the request, and if so starts the RequestHandler. */
+	private void startDataRequest(Message m, PeerNode source, boolean isSSK, short htl, Key key, boolean realTimeFlag, RequestTag tag, KeyBlock block) {
+		long id = m.getLong(DMT.UID);
+		ByteCounter ctr = isSSK ? node.nodeStats.sskRequestCtr : node.nodeStats.chkRequestCtr;
 		if(block != null)
 			tag.setNotRoutedOnwards();
 		
@@ -11,6 +11,7 @@ import org.tanukisoftware.wrapper.WrapperManager;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.DiffieHellman;
@@ -21,8 +22,11 @@ import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
+import freenet.support.api.BooleanCallback;
+import freenet.support.api.IntCallback;
 import freenet.support.io.NativeThread;
 
 /**
@@ -54,6 +58,8 @@ public class NodeStarter implements WrapperListener {
 	}
 
 	private FreenetFilePersistentConfig cfg;
+	private boolean workStealingExecutor;
+	private int executorMaxThreads;
 
 	// experimental osgi support
 	private static NodeStarter nodestarter_osgi = null;
@@ -118,7 +124,9 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = new SubConfig("logger", cfg);
 
-		PooledExecutor executor = new PooledExecutor();
+		// The executor is needed before the node is created, so it has its own config.
+		SubConfig executorConfig = new SubConfig("node.executor", cfg);
+		Executor executor = makeExecutor(executorConfig);
 
 		try {
 			System.out.println("Creating logger...");
@@ -130,7 +138,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor) executor).start();
+		else
+			((PooledExecutor) executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -184,6 +195,50 @@ public class NodeStarter implements WrapperListener {
 		return null;
 	}
 
+	private Executor makeExecutor(SubConfig executorConfig) {
+		int sortOrder = 0;
+		executorConfig.register("workStealing", false, sortOrder++, true, true, "NodeStarter.workStealingExecutor", "NodeStarter.workStealingExecutorLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return workStealingExecutor;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				workStealingExecutor = val;
+				throw new NodeNeedRestartException("Need to restart to change the executor");
+			}
+
+		});
+		workStealingExecutor = executorConfig.getBoolean("workStealing");
+
+		executorConfig.register("maxThreadsPerPriority", 64, sortOrder++, true, true, "NodeStarter.executorMaxThreads", "NodeStarter.executorMaxThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return executorMaxThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 1) throw new InvalidConfigValueException("Must be at least 1");
+				executorMaxThreads = val;
+				throw new NodeNeedRestartException("Need to restart to change the executor");
+			}
+
+		}, false);
+		executorMaxThreads = Math.max(1, executorConfig.getInt("maxThreadsPerPriority"));
+
+		executorConfig.finishedInitialization();
+
+		if(workStealingExecutor) {
+			System.out.println("Using work-stealing executor with up to "+executorMaxThreads+" threads per priority");
+			return new WorkStealingExecutor(executorMaxThreads);
+		}
+		return new PooledExecutor();
+	}
+
 	/**
 	 * Called when the application is shutting down.  The Wrapper assumes that
 	 *  this method will return fairly quickly.  If the shutdown code code
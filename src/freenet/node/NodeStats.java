@@ -1103,8 +1103,6 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		}
 	}
 	
-	private final Object serializeShouldRejectRequest = new Object();
-	
 	/** Should a request be accepted by this node, based on its local capacity?
 	 * This includes thread limits and ping times, but more importantly, 
 	 * mechanisms based on predicting worst case bandwidth usage for all running
@@ -1143,9 +1141,12 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	 * @return The reason for rejecting it, or null to accept it.
 	 */
 	public RejectReason shouldRejectRequest(boolean canAcceptAnyway, boolean isInsert, boolean isSSK, boolean isLocal, boolean isOfferReply, PeerNode source, boolean hasInStore, boolean preferInsert, boolean realTimeFlag, UIDTag tag) {
-		// Serialise shouldRejectRequest.
-		// It's not always called on the same thread, and things could be problematic if they interfere with each other.
-		synchronized(serializeShouldRejectRequest) {
+		// This is not serialised: it runs on many threads, for every incoming request.
+		// The running requests, in total and from the source (or for a local request, those
+		// without a source), are counted from running totals which the tags keep up to
+		// date, and the tag is counted as soon as setAccepted() is called at the end, so
+		// two requests accepted at the same moment can only overshoot the limits by one
+		// request each.
 		if(logMINOR) dumpByteCostAverages();
 
 		if(source != null) {
@@ -1310,7 +1311,6 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		
 		// Accept
 		return null;
-		}
 	}
 	
 	public int calculateMaxTransfersOut(PeerNode peer, boolean realTime,
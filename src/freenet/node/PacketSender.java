@@ -5,6 +5,7 @@ package freenet.node;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Vector;
 
 import freenet.clients.http.ExternalLinkToadlet;
@@ -18,6 +19,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.OOMHandler;
 import freenet.support.TimeUtil;
+import freenet.support.WakeupQueue;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
 
@@ -26,6 +28,13 @@ import freenet.support.math.MersenneTwister;
  *
  *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
  *         Acknowledgments or resend requests need to be sent urgently.
+ *
+ * Each peer is in a WakeupQueue with the time it next needs looking at, and we only look at
+ * the peers which are due. Anything which makes a peer need attention sooner (a message
+ * queued, an ack queued, a packet lost, the window opening up etc) must call wakeUp(pn) or
+ * wakeUpAt(pn, time). After looking at a peer we schedule it again for the earliest of its
+ * next urgent time, its next handshake, and MAX_PEER_IDLE from now for the housekeeping
+ * (timeouts, reconnecting etc).
  */
 // j16sdiz (22-Dec-2008):
 // FIXME this is the only class implements Ticker, everbody is using this as
@@ -62,14 +71,27 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final int MIN_OLD_OPENNET_CONNECT_DELAY = 60 * 1000;
+	/** We look at every peer at least this often, even if nothing has woken it up. */
+	static final int MAX_PEER_IDLE = 1000;
+	/** How often we check whether to send handshakes to old opennet peers. */
+	static final int OLD_OPENNET_PEERS_INTERVAL = 1000;
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
-	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private Vector<ResendPacketItem> rpiTemp;
 	private int[] rpiIntTemp;
 	private MersenneTwister localRandom;
+	/** When each peer next needs looking at. */
+	private final WakeupQueue<PeerNode> wakeups = new WakeupQueue<PeerNode>();
+	/** The peers we last scheduled. Compared by identity with PeerManager.myPeers, which is
+	 * replaced whenever a peer is added or removed. */
+	private PeerNode[] scheduledPeers;
+	/** The same peers, for looking them up. */
+	private HashSet<PeerNode> scheduledPeerSet = new HashSet<PeerNode>();
+	/** The peers which are due this time around. Only used by the sender thread. */
+	private final ArrayList<PeerNode> duePeers = new ArrayList<PeerNode>();
+	private long nextOldOpennetCheck;
 
 	PacketSender(Node node) {
 		this.node = node;
@@ -128,7 +150,6 @@ public class PacketSender implements Runnable {
 		 */
 		int brokeAt = 0;
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(OutOfMemoryError e) {
@@ -151,11 +172,20 @@ public class PacketSender implements Runnable {
         synchronized(pm) {
         	nodes = pm.myPeers;
         }
+		if(nodes != scheduledPeers)
+			updateScheduledPeers(nodes, now);
+		duePeers.clear();
+		wakeups.popDue(now, duePeers);
+		// Peers which have been removed may still be woken up, but we don't keep them.
+		for(Iterator<PeerNode> it = duePeers.iterator(); it.hasNext();)
+			if(!scheduledPeerSet.contains(it.next()))
+				it.remove();
 
-		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		boolean canSendThrottled = false;
+		// When we will be able to send throttled packets.
+		long throttledSendTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
@@ -166,7 +196,7 @@ public class PacketSender implements Runnable {
 			canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			throttledSendTime = now + canSendAt;
 		}
 		
 		/** The earliest time at which a peer needs to send a packet, which is before
@@ -189,13 +219,11 @@ public class PacketSender implements Runnable {
 		/** The peer(s) which lowestHandshakeTime is referring to */
 		ArrayList<PeerNode> handshakePeers = null;
 
-		for(int i = 0; i < nodes.length; i++) {
+		for(PeerNode pn : duePeers) {
 			now = System.currentTimeMillis();
-			int idx = i;
 			
 			// Basic peer maintenance.
 			
-			PeerNode pn = nodes[idx];
 			// For purposes of detecting not having received anything, which indicates a 
 			// serious connectivity problem, we want to look for *any* packets received, 
 			// including auth packets.
@@ -285,16 +313,6 @@ public class PacketSender implements Runnable {
 						}
 					}
 				}
-				
-				if(canSendThrottled || !shouldThrottle) {
-					long urgentTime = pn.getNextUrgentTime(now);
-					// Should spam the logs, unless there is a deadlock
-					if(urgentTime < Long.MAX_VALUE && logMINOR)
-						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
-					nextActionTime = Math.min(nextActionTime, urgentTime);
-				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
-				}
 			} else
 				// Not connected
 
@@ -347,6 +365,9 @@ public class PacketSender implements Runnable {
 			toSendAckOnly = null;
 		}
 		
+		/** The peer we chose to send to, if it didn't send anything. */
+		PeerNode sendFailed = null;
+
 		if(toSendPacket != null) {
 			try {
 				if(toSendPacket.maybeSendPacket(now, rpiTemp, rpiIntTemp, false)) {
@@ -359,8 +380,10 @@ public class PacketSender implements Runnable {
 						canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
 						if(logMINOR)
 							Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-						nextActionTime = Math.min(nextActionTime, now + canSendAt);
+						throttledSendTime = now + canSendAt;
 					}
+				} else {
+					sendFailed = toSendPacket;
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" on "+e.tracker+" : "+(toSendPacket.isOldFNP() ? "(old packet format)" : "(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
@@ -368,16 +391,6 @@ public class PacketSender implements Runnable {
 				onForceDisconnectBlockTooLong(toSendPacket, e);
 			}
 
-			if(canSendThrottled || !toSendPacket.shouldThrottle()) {
-				long urgentTime = toSendPacket.getNextUrgentTime(now);
-				// Should spam the logs, unless there is a deadlock
-				if(urgentTime < Long.MAX_VALUE && logMINOR)
-					Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + toSendPacket);
-				nextActionTime = Math.min(nextActionTime, urgentTime);
-			} else {
-				nextActionTime = Math.min(nextActionTime, toSendPacket.timeCheckForLostPackets());
-			}
-
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, rpiTemp, rpiIntTemp, true)) {
@@ -390,7 +403,7 @@ public class PacketSender implements Runnable {
 						canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
 						if(logMINOR)
 							Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-						nextActionTime = Math.min(nextActionTime, now + canSendAt);
+						throttledSendTime = now + canSendAt;
 					}
 				}
 			} catch (BlockedTooLongException e) {
@@ -398,16 +411,6 @@ public class PacketSender implements Runnable {
 				toSendAckOnly.forceDisconnect(true);
 				onForceDisconnectBlockTooLong(toSendAckOnly, e);
 			}
-
-			if(canSendThrottled || !toSendAckOnly.shouldThrottle()) {
-				long urgentTime = toSendAckOnly.getNextUrgentTime(now);
-				// Should spam the logs, unless there is a deadlock
-				if(urgentTime < Long.MAX_VALUE && logMINOR)
-					Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + toSendAckOnly);
-				nextActionTime = Math.min(nextActionTime, urgentTime);
-			} else {
-				nextActionTime = Math.min(nextActionTime, toSendAckOnly.timeCheckForLostPackets());
-			}
 		}
 		
 		if(toSendHandshake != null) {
@@ -419,15 +422,11 @@ public class PacketSender implements Runnable {
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
 		}
 		
-		// All of these take into account whether the data can be sent already.
-		// So we can include them in nextActionTime.
-		nextActionTime = Math.min(nextActionTime, lowestUrgentSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestAckTime);
-		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
-
-		// FIXME: If we send something we will have to go around the loop again.
-		// OPTIMISATION: We could track the second best, and check how many are in the array.
+		// Peers which still have something urgent to do will be due again immediately, so
+		// we will go around the loop again for them.
+		for(PeerNode pn : duePeers)
+			wakeups.schedule(pn, timeNextVisit(pn, now, canSendThrottled, throttledSendTime, pn == sendFailed));
+		duePeers.clear();
 		
 		/* Attempt to connect to old-opennet-peers.
 		 * Constantly send handshake packets, in order to get through a NAT.
@@ -435,7 +434,8 @@ public class PacketSender implements Runnable {
 		 * Well worth it to allow us to reconnect more quickly. */
 
 		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > 30*1000) {
+		if(om != null && node.getUptime() > 30*1000 && now >= nextOldOpennetCheck) {
+			nextOldOpennetCheck = now + OLD_OPENNET_PEERS_INTERVAL;
 			PeerNode[] peers = om.getOldPeers();
 
 			for(PeerNode pn : peers) {
@@ -472,33 +472,77 @@ public class PacketSender implements Runnable {
 		if((now - oldNow) > (10 * 1000))
 			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
 
-		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
-
 		if(now - node.startupTime > 60 * 1000 * 5)
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + Node.ALARM_TIME / 1000 + " seconds");
-				lastReportedNoPackets = now;
+				// Don't report it again for a while.
+				lastReceivedPacketFromAnyNode = now;
 			}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
+		// Hold the lock while deciding how long to sleep, so we can't miss a wakeUp().
+		synchronized(this) {
+			long nextActionTime = wakeups.nextTime();
+			if(om != null)
+				nextActionTime = Math.min(nextActionTime, nextOldOpennetCheck);
+			long sleepTime = nextActionTime - now;
+			if(sleepTime > 0) {
+				try {
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
 					wait(sleepTime);
+				} catch(InterruptedException e) {
+					// Ignore, just wake up.
 				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
+			} else {
+				if(logDEBUG)
+					Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+			}
+		}
+	}
+
+	/**
+	 * When do we next need to look at a peer?
+	 * @param sendFailed True if we tried to send a packet to the peer just now but it didn't
+	 * send anything. In that case we don't treat it as urgent just because it has a full
+	 * packet queued, or we would loop around trying it again.
+	 */
+	private long timeNextVisit(PeerNode pn, long now, boolean canSendThrottled, long throttledSendTime, boolean sendFailed) {
+		// The old packet format doesn't tell us about everything, so look at it as often as
+		// we used to.
+		long t = now + (pn.isOldFNP() ? MAX_COALESCING_DELAY : MAX_PEER_IDLE);
+		if(pn.isConnected()) {
+			long urgentTime = pn.getNextUrgentTime(now);
+			if(canSendThrottled || !pn.shouldThrottle()) {
+				// Should spam the logs, unless there is a deadlock
+				if(urgentTime < Long.MAX_VALUE && logMINOR)
+					Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
+				if(urgentTime != Long.MAX_VALUE && !sendFailed && pn.fullPacketQueued())
+					// We send full packets as soon as we can.
+					urgentTime = now;
+				t = Math.min(t, urgentTime);
+			} else {
+				// We can only send acks until the throttle lets us send again.
+				t = Math.min(t, pn.timeSendAcks());
+				t = Math.min(t, pn.timeCheckForLostPackets());
+				t = Math.min(t, Math.max(urgentTime, throttledSendTime));
 			}
-		} else {
-			if(logDEBUG)
-				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
 		}
+		return Math.min(t, pn.timeSendHandshake(now));
+	}
+
+	/** The peers have changed. Schedule the new ones immediately, and forget the old ones. */
+	private void updateScheduledPeers(PeerNode[] nodes, long now) {
+		HashSet<PeerNode> current = new HashSet<PeerNode>();
+		for(PeerNode pn : nodes) {
+			current.add(pn);
+			if(!wakeups.contains(pn))
+				wakeups.schedule(pn, now);
+		}
+		for(PeerNode pn : scheduledPeerSet)
+			if(!current.contains(pn))
+				wakeups.remove(pn);
+		scheduledPeers = nodes;
+		scheduledPeerSet = current;
 	}
 
 	private final HashSet<Peer> peersDumpedBlockedTooLong = new HashSet<Peer>();
@@ -624,11 +668,18 @@ public class PacketSender implements Runnable {
 
 	};
 
-	/** Wake up, and send any queued packets. */
-	void wakeUp() {
-		// Wake up if needed
-		synchronized(this) {
-			notifyAll();
+	/** Look at the peer as soon as possible, and send any queued packets. */
+	void wakeUp(PeerNode pn) {
+		wakeUpAt(pn, System.currentTimeMillis());
+	}
+
+	/** Look at the peer at the given time, or earlier if it is already scheduled earlier. */
+	void wakeUpAt(PeerNode pn, long time) {
+		if(wakeups.schedule(pn, time)) {
+			// It's the first in the queue, so we may be sleeping for too long.
+			synchronized(this) {
+				notifyAll();
+			}
 		}
 	}
 
@@ -650,7 +650,7 @@ public class PacketTracker {
 			synchronized(packetsToResend) {
 				packetsToResend.add(seqNumber);
 			}
-			pn.node.ps.wakeUp();
+			pn.wakeUpSender();
 		} else {
 			synchronized(this) {
 				if(nextPacketNumber <= seqNumber) {
@@ -753,7 +753,7 @@ public class PacketTracker {
 				} else
 					return false;
 		}
-		pn.node.ps.wakeUp();
+		pn.wakeUpSender();
 		return false;
 	}
 
@@ -1057,7 +1057,7 @@ public class PacketTracker {
 		}
 		pn.requeueMessageItems(messages, 0, messages.length, true);
 
-		pn.node.ps.wakeUp();
+		pn.wakeUpSender();
 	}
 
 	/**
@@ -364,6 +364,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 	/** A WeakReference to this object. Can be taken whenever a node object needs to refer to this object for a
 	 * long time, but without preventing it from being GC'ed. */
 	final WeakReference<PeerNode> myRef;
+	/** The expected transfers for the requests this node has sent us which are still
+	 * running. Maintained by the tags. */
+	final UIDRegistry.Load runningLoad = new UIDRegistry.Load();
 	/** The node is being disconnected, but it may take a while. */
 	private boolean disconnecting;
 	/** When did we last disconnect? Not Disconnected because a discrete event */
@@ -1155,17 +1158,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise it only needs to look at us by the time the message has to be sent.
+			// This is too early for bulk messages, but it will then schedule us for the
+			// real deadline.
+			wakeUpSenderAt(now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void wakeUpSenderAt(long time) {
+		node.ps.wakeUpAt(this, time);
 	}
 
 	@Override
@@ -2365,6 +2375,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 		
 		crypto.maybeBootConnection(this, replyTo.getFreenetAddress());
 
+		// We have new trackers, so the times the PacketSender has for us are out of date.
+		wakeUpSender();
+
 		return packets.trackerID;
 	}
 
@@ -6011,6 +6024,17 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
 	}
 
+	/** Is the packet a new format packet for one of our keys? Doesn't change the buffer or
+	 * handle the packet, see NewPacketFormat.checkReceivedPacket(). */
+	public boolean checkReceivedPacket(byte[] buf, int offset, int length) {
+		PacketFormat pf;
+		synchronized(this) {
+			pf = packetFormat;
+		}
+		if(!(pf instanceof NewPacketFormat)) return false;
+		return ((NewPacketFormat)pf).checkReceivedPacket(buf, offset, length);
+	}
+
 	public void checkForLostPackets() {
 		PacketFormat pf;
 		synchronized(this) {
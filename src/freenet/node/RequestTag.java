@@ -156,6 +156,7 @@ public class RequestTag extends UIDTag {
 
 	public synchronized void completedDownstreamTransfers() {
 		this.completedDownstreamTransfers = true;
+		loadChanged();
 	}
 
 	@Override
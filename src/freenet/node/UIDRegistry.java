@@ -0,0 +1,440 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import freenet.support.LinearProbingTable;
+
+/**
+ * The requests and inserts which are running on this node, by UID. Replaces a global
+ * HashMap<Long,UIDTag> and one map per type of request, all of which had to be locked
+ * (and one of them scanned, with the Node locked) for every lock, unlock and count.
+ *
+ * There are three indexes:
+ * - All the UIDs, to check that a UID isn't already running. This is split into stripes
+ * by the UID, each with its own lock.
+ * - The tags in each category (CHK/SSK, request/insert/offer reply, local/remote,
+ * realtime/bulk), each with its own lock, and a counter for each category which can be
+ * read without locking.
+ * - The remote tags from each source node.
+ *
+ * All the tables are open addressing hash tables keyed on the primitive UID.
+ *
+ * The expected transfers which load management needs are kept as running totals, see
+ * Load, globally, for each source node and for the tags without a source, and updated
+ * by the tags as they change.
+ */
+class UIDRegistry {
+
+	static final int STRIPES = 16;
+
+	static final int TYPE_REQUEST = 0;
+	static final int TYPE_INSERT = 1;
+	static final int TYPE_OFFER_REPLY = 2;
+
+	/** Request type x SSK x local x realtime. Offer replies are always remote. */
+	static final int CATEGORIES = 3 * 2 * 2 * 2;
+
+	static int category(boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag) {
+		int type;
+		if(offerReply) {
+			type = TYPE_OFFER_REPLY;
+			local = false;
+		} else if(insert)
+			type = TYPE_INSERT;
+		else
+			type = TYPE_REQUEST;
+		return (((type << 1) | (ssk ? 1 : 0)) << 2) | (local ? 2 : 0) | (realTimeFlag ? 1 : 0);
+	}
+
+	/** @return TYPE_REQUEST, TYPE_INSERT or TYPE_OFFER_REPLY. */
+	static int type(int category) {
+		return category >> 3;
+	}
+
+	private final UIDTable[] stripes;
+	private final UIDTable[] categories;
+	private final AtomicIntegerArray counts;
+	/** The remote tags from each node. Keyed by PeerNode.myRef, which is also what the
+	 * tags keep, so we can still find the entry after the PeerNode has gone. LOCKING: Lock
+	 * the map when using any of the tables. */
+	private final HashMap<WeakReference<PeerNode>, UIDTable> sources;
+	/** The expected transfers for all the running tags. */
+	final Load load;
+	/** The expected transfers for the running tags which don't have a source, i.e. for
+	 * which UIDTag.getSource() returns null. */
+	final Load noSourceLoad;
+
+	/**
+	 * Running totals of the tags in each category and their expected transfers, for
+	 * load management, which needs them for every incoming request. The tags add what
+	 * they are expected to transfer when they are registered, update it whenever
+	 * anything which affects it changes, and remove it when they are unregistered.
+	 * Everything is updated and read without locking. A reader may see a tag's change
+	 * half applied, but this is an estimate anyway.
+	 *
+	 * Tags which count as source restarted are counted twice: in the main totals, and in
+	 * the source restarted totals.
+	 */
+	static class Load {
+
+		/** The number of tags. */
+		static final int COUNT = 0;
+		/** expectedTransfersIn(false, ...) */
+		static final int IN = 1;
+		/** expectedTransfersIn(true, ...) */
+		static final int IN_IGNORE_LOCAL = 2;
+		/** expectedTransfersOut(false, ...), per outward transfer for inserts */
+		static final int OUT = 3;
+		/** expectedTransfersOut(true, ...), per outward transfer for inserts */
+		static final int OUT_IGNORE_LOCAL = 4;
+		static final int FIELDS = 5;
+
+		private final AtomicIntegerArray values = new AtomicIntegerArray(CATEGORIES * 2 * FIELDS);
+
+		private static int index(int category, boolean sourceRestarted) {
+			return (category * 2 + (sourceRestarted ? 1 : 0)) * FIELDS;
+		}
+
+		void add(int category, int[] load, boolean sourceRestarted) {
+			add(index(category, false), load, 1);
+			if(sourceRestarted)
+				add(index(category, true), load, 1);
+		}
+
+		void subtract(int category, int[] load, boolean sourceRestarted) {
+			add(index(category, false), load, -1);
+			if(sourceRestarted)
+				add(index(category, true), load, -1);
+		}
+
+		private void add(int offset, int[] load, int sign) {
+			for(int i=0;i<FIELDS;i++)
+				if(load[i] != 0) values.getAndAdd(offset + i, sign * load[i]);
+		}
+
+		int get(int category, boolean sourceRestarted, int field) {
+			return values.get(index(category, sourceRestarted) + field);
+		}
+
+		/** Add the totals for a category to the counters, in the same way as adding up
+		 * the tags one at a time.
+		 * @param counterSourceRestarted If not null, add the source restarted totals
+		 * here. They are also included in counter. */
+		void count(int category, boolean ignoreLocalVsRemote, int transfersPerInsert, Node.CountedRequests counter, Node.CountedRequests counterSourceRestarted) {
+			add(category, false, ignoreLocalVsRemote, transfersPerInsert, counter);
+			if(counterSourceRestarted != null)
+				add(category, true, ignoreLocalVsRemote, transfersPerInsert, counterSourceRestarted);
+		}
+
+		private void add(int category, boolean sourceRestarted, boolean ignoreLocalVsRemote, int transfersPerInsert, Node.CountedRequests counter) {
+			int offset = index(category, sourceRestarted);
+			int out = values.get(offset + (ignoreLocalVsRemote ? OUT_IGNORE_LOCAL : OUT));
+			if(type(category) == TYPE_INSERT)
+				out *= transfersPerInsert;
+			counter.total += values.get(offset + COUNT);
+			counter.expectedTransfersIn += values.get(offset + (ignoreLocalVsRemote ? IN_IGNORE_LOCAL : IN));
+			counter.expectedTransfersOut += out;
+		}
+
+	}
+
+	UIDRegistry() {
+		stripes = new UIDTable[STRIPES];
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new UIDTable();
+		categories = new UIDTable[CATEGORIES];
+		for(int i=0;i<CATEGORIES;i++)
+			categories[i] = new UIDTable();
+		counts = new AtomicIntegerArray(CATEGORIES);
+		sources = new HashMap<WeakReference<PeerNode>, UIDTable>();
+		load = new Load();
+		noSourceLoad = new Load();
+	}
+
+	private UIDTable stripe(long uid) {
+		return stripes[(int)(uid ^ (uid >>> 32)) & (STRIPES - 1)];
+	}
+
+	/** Register the UID.
+	 * @return False if it is already running. */
+	boolean lock(long uid, UIDTag tag) {
+		UIDTable stripe = stripe(uid);
+		synchronized(stripe) {
+			if(stripe.get(uid) != null) return false;
+			stripe.put(uid, tag);
+			return true;
+		}
+	}
+
+	/** Unregister the UID, if it belongs to the tag.
+	 * @return The tag which was registered, or null if there wasn't one. */
+	UIDTag unlock(long uid, UIDTag tag) {
+		UIDTable stripe = stripe(uid);
+		synchronized(stripe) {
+			UIDTag old = stripe.get(uid);
+			if(old == tag)
+				stripe.remove(uid, tag);
+			return old;
+		}
+	}
+
+	/** Add the tag to its category, and to its source if it has one, and start counting
+	 * its load.
+	 * @return The tag which was already in the category with this UID, which has been
+	 * replaced. This should not happen. */
+	UIDTag add(int category, long uid, UIDTag tag) {
+		UIDTable map = categories[category];
+		WeakReference<PeerNode> source = tag.getSourceRef();
+		PeerNode pn = source == null ? null : source.get();
+		UIDTag old;
+		synchronized(map) {
+			old = map.put(uid, tag);
+			if(old == null)
+				counts.incrementAndGet(category);
+			else
+				old.stopCountingLoad();
+			tag.startCountingLoad(category, load, pn == null ? null : pn.runningLoad, noSourceLoad);
+		}
+		if(source != null) {
+			synchronized(sources) {
+				if(old != null) removeFromSource(uid, old);
+				UIDTable s = sources.get(source);
+				if(s == null) {
+					s = new UIDTable();
+					sources.put(source, s);
+				}
+				s.put(uid, tag);
+			}
+		}
+		return old;
+	}
+
+	/** Remove the tag from its category and from its source, and stop counting its load.
+	 * @return False if some other tag (or none) is registered for the UID. */
+	boolean remove(int category, long uid, UIDTag tag) {
+		UIDTable map = categories[category];
+		synchronized(map) {
+			if(!map.remove(uid, tag)) return false;
+			counts.decrementAndGet(category);
+			tag.stopCountingLoad();
+		}
+		if(tag.getSourceRef() != null) {
+			synchronized(sources) {
+				removeFromSource(uid, tag);
+			}
+		}
+		return true;
+	}
+
+	private void removeFromSource(long uid, UIDTag tag) {
+		WeakReference<PeerNode> source = tag.getSourceRef();
+		if(source == null) return;
+		UIDTable s = sources.get(source);
+		if(s == null) return;
+		if(!s.remove(uid, tag)) return;
+		if(s.size() == 0)
+			sources.remove(source);
+	}
+
+	/** @return The tag registered in the category for the UID, if any. */
+	UIDTag get(int category, long uid) {
+		UIDTable map = categories[category];
+		synchronized(map) {
+			return map.get(uid);
+		}
+	}
+
+	/** The number of tags in the category. Doesn't lock anything. */
+	int count(int category) {
+		return counts.get(category);
+	}
+
+	/** Called for each tag in turn, with the index it is held on. */
+	interface TagVisitor {
+		void visit(long uid, UIDTag tag);
+	}
+
+	/** Visit every tag in the category, with the category locked. The visitor must not
+	 * take any locks other than the tag's. */
+	void visit(int category, TagVisitor visitor) {
+		UIDTable map = categories[category];
+		synchronized(map) {
+			map.visit(visitor);
+		}
+	}
+
+	/** Visit every tag from the source node, with the index locked. The visitor must not
+	 * take any locks other than the tag's. */
+	void visitSource(PeerNode source, TagVisitor visitor) {
+		synchronized(sources) {
+			UIDTable s = sources.get(source.myRef);
+			if(s != null) s.visit(visitor);
+		}
+	}
+
+	/** @return The total number of UIDs running. */
+	int size() {
+		int total = 0;
+		for(UIDTable stripe : stripes) {
+			synchronized(stripe) {
+				total += stripe.size();
+			}
+		}
+		return total;
+	}
+
+	/** @return All the running tags. */
+	UIDTag[] getAll() {
+		ArrayList<UIDTag> all = new ArrayList<UIDTag>();
+		for(UIDTable stripe : stripes) {
+			synchronized(stripe) {
+				stripe.addTo(all);
+			}
+		}
+		return all.toArray(new UIDTag[all.size()]);
+	}
+
+	/** @return The tags in the category. */
+	UIDTag[] getAll(int category) {
+		ArrayList<UIDTag> all = new ArrayList<UIDTag>();
+		UIDTable map = categories[category];
+		synchronized(map) {
+			map.addTo(all);
+		}
+		return all.toArray(new UIDTag[all.size()]);
+	}
+
+	/** A hash table from UID to tag, using linear probing and backward shift deletion, see
+	 * LinearProbingTable. Not thread-safe. An empty slot has a null tag. */
+	static class UIDTable extends LinearProbingTable {
+
+		private static final int MIN_CAPACITY = 16;
+
+		private long[] uids;
+		private UIDTag[] tags;
+		private int size;
+
+		UIDTable() {
+			uids = new long[MIN_CAPACITY];
+			tags = new UIDTag[MIN_CAPACITY];
+			mask = MIN_CAPACITY - 1;
+		}
+
+		private int home(long uid) {
+			// The low bits choose the stripe, so mix first.
+			int h = (int)(uid ^ (uid >>> 32));
+			return ((h * 0x9E3779B9) >>> 7) & mask;
+		}
+
+		@Override
+		protected boolean isFree(int i) {
+			return tags[i] == null;
+		}
+
+		@Override
+		protected int homeOf(int i) {
+			return home(uids[i]);
+		}
+
+		@Override
+		protected void move(int from, int to) {
+			uids[to] = uids[from];
+			tags[to] = tags[from];
+		}
+
+		@Override
+		protected void clear(int i) {
+			tags[i] = null;
+		}
+
+		UIDTag get(long uid) {
+			int i = home(uid);
+			while(true) {
+				UIDTag t = tags[i];
+				if(t == null) return null;
+				if(uids[i] == uid) return t;
+				i = next(i);
+			}
+		}
+
+		/** @return The tag which was replaced, if any. */
+		UIDTag put(long uid, UIDTag tag) {
+			if(tag == null) throw new NullPointerException();
+			int i = home(uid);
+			while(true) {
+				UIDTag t = tags[i];
+				if(t == null) break;
+				if(uids[i] == uid) {
+					tags[i] = tag;
+					return t;
+				}
+				i = next(i);
+			}
+			uids[i] = uid;
+			tags[i] = tag;
+			size++;
+			if(size * 2 > tags.length)
+				resize(tags.length * 2);
+			return null;
+		}
+
+		/** Remove the UID if it maps to the tag.
+		 * @return False if it doesn't. */
+		boolean remove(long uid, UIDTag tag) {
+			int i = home(uid);
+			while(true) {
+				UIDTag t = tags[i];
+				if(t == null) return false;
+				if(uids[i] == uid) {
+					if(t != tag) return false;
+					break;
+				}
+				i = next(i);
+			}
+			delete(i);
+			size--;
+			if(tags.length > MIN_CAPACITY && size * 8 < tags.length)
+				resize(tags.length / 2);
+			return true;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void visit(TagVisitor visitor) {
+			for(int i=0;i<tags.length;i++) {
+				UIDTag t = tags[i];
+				if(t != null) visitor.visit(uids[i], t);
+			}
+		}
+
+		void addTo(ArrayList<UIDTag> list) {
+			for(UIDTag t : tags)
+				if(t != null) list.add(t);
+		}
+
+		private void resize(int capacity) {
+			long[] oldUIDs = uids;
+			UIDTag[] oldTags = tags;
+			uids = new long[capacity];
+			tags = new UIDTag[capacity];
+			mask = capacity - 1;
+			for(int i=0;i<oldTags.length;i++) {
+				UIDTag t = oldTags[i];
+				if(t == null) continue;
+				int j = probeFree(home(oldUIDs[i]));
+				uids[j] = oldUIDs[i];
+				tags[j] = t;
+			}
+		}
+
+	}
+
+}
@@ -1,6 +1,7 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashSet;
 
 import freenet.support.Logger;
@@ -212,6 +213,7 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		loadChanged();
 	}
 
 	private boolean reassigned;
@@ -224,10 +226,98 @@ public abstract class UIDTag {
 		return sourceRef.get();
 	}
 
+	/** Where our expected transfers are added up while we are running, see
+	 * UIDRegistry.Load. Null if we are not registered. */
+	private UIDRegistry.Load globalLoad;
+	/** The load for the node which sent us the request, if any. */
+	private UIDRegistry.Load sourceLoad;
+	/** The load for the tags which don't have a source: local, reassigned, or whose
+	 * source has gone. */
+	private UIDRegistry.Load noSourceLoad;
+	private int loadCategory;
+	/** What we have currently added to the loads. */
+	private int[] load;
+	private boolean loadSourceRestarted;
+	private boolean loadFromSource;
+
+	/** Start adding our expected transfers to the running totals. Called when the UID
+	 * is locked. */
+	synchronized void startCountingLoad(int category, UIDRegistry.Load global, UIDRegistry.Load source, UIDRegistry.Load noSource) {
+		if(globalLoad != null) return;
+		globalLoad = global;
+		sourceLoad = source;
+		noSourceLoad = noSource;
+		loadCategory = category;
+		load = computeLoad();
+		loadSourceRestarted = countAsSourceRestarted();
+		loadFromSource = getSource() != null;
+		globalLoad.add(category, load, loadSourceRestarted);
+		UIDRegistry.Load l = sourceOrNoSourceLoad(loadFromSource);
+		if(l != null)
+			l.add(category, load, loadSourceRestarted);
+	}
+
+	/** Remove our expected transfers from the running totals. Called when the UID is
+	 * unlocked. */
+	synchronized void stopCountingLoad() {
+		if(globalLoad == null) return;
+		globalLoad.subtract(loadCategory, load, loadSourceRestarted);
+		UIDRegistry.Load l = sourceOrNoSourceLoad(loadFromSource);
+		if(l != null)
+			l.subtract(loadCategory, load, loadSourceRestarted);
+		globalLoad = null;
+		sourceLoad = null;
+		noSourceLoad = null;
+	}
+
+	/** Must be called, with the tag locked, whenever something changes which could affect
+	 * expectedTransfersIn(), expectedTransfersOut(), countAsSourceRestarted() or
+	 * getSource(). Updates the running totals so load management doesn't have to
+	 * look at every tag. */
+	protected final void loadChanged() {
+		if(globalLoad == null) return;
+		int[] newLoad = computeLoad();
+		boolean sr = countAsSourceRestarted();
+		boolean fromSource = getSource() != null;
+		if(sr == loadSourceRestarted && fromSource == loadFromSource && Arrays.equals(newLoad, load))
+			return;
+		globalLoad.subtract(loadCategory, load, loadSourceRestarted);
+		globalLoad.add(loadCategory, newLoad, sr);
+		UIDRegistry.Load l = sourceOrNoSourceLoad(loadFromSource);
+		if(l != null)
+			l.subtract(loadCategory, load, loadSourceRestarted);
+		l = sourceOrNoSourceLoad(fromSource);
+		if(l != null)
+			l.add(loadCategory, newLoad, sr);
+		load = newLoad;
+		loadSourceRestarted = sr;
+		loadFromSource = fromSource;
+	}
+
+	private UIDRegistry.Load sourceOrNoSourceLoad(boolean fromSource) {
+		return fromSource ? sourceLoad : noSourceLoad;
+	}
+
+	private int[] computeLoad() {
+		int[] l = new int[UIDRegistry.Load.FIELDS];
+		l[UIDRegistry.Load.COUNT] = 1;
+		l[UIDRegistry.Load.IN] = expectedTransfersIn(false, 1, true);
+		l[UIDRegistry.Load.IN_IGNORE_LOCAL] = expectedTransfersIn(true, 1, true);
+		l[UIDRegistry.Load.OUT] = expectedTransfersOut(false, 1, true);
+		l[UIDRegistry.Load.OUT_IGNORE_LOCAL] = expectedTransfersOut(true, 1, true);
+		return l;
+	}
+
+	/** The original source, for indexing. Null if the request was local. */
+	WeakReference<PeerNode> getSourceRef() {
+		return sourceRef;
+	}
+
 	/** Reassign the tag to us rather than its original sender. */
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		loadChanged();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -321,6 +411,7 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			loadChanged();
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
@@ -393,6 +484,7 @@ public abstract class UIDTag {
 
 	public synchronized void setAccepted() {
 		accepted = true;
+		loadChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -403,11 +495,13 @@ public abstract class UIDTag {
 	 * messages to the request source. */
 	public synchronized void timedOutToHandlerButContinued() {
 		timedOutButContinued = true;
+		loadChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
 	public synchronized void onRestartOrDisconnectSource() {
 		sourceRestarted = true;
+		loadChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
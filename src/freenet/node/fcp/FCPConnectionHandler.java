@@ -17,6 +17,7 @@ import com.db4o.ObjectContainer;
 import freenet.client.async.ClientContext;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
+import freenet.io.NioConnection;
 import freenet.node.RequestClient;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
@@ -62,6 +63,8 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** If non-null, sock is driven by a selector, and we must use this rather than its streams. */
+	final NioConnection nio;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
@@ -128,7 +131,16 @@ public class FCPConnectionHandler implements Closeable {
 	};
 	
 	public FCPConnectionHandler(Socket s, FCPServer server) {
+		this(s, null, server);
+	}
+
+	public FCPConnectionHandler(NioConnection conn, FCPServer server) {
+		this(conn.getSocket(), conn, server);
+	}
+
+	private FCPConnectionHandler(Socket s, NioConnection conn, FCPServer server) {
 		this.sock = s;
+		this.nio = conn;
 		this.server = server;
 		isClosed = false;
 		this.bf = server.core.tempBucketFactory;
@@ -220,11 +232,7 @@ public class FCPConnectionHandler implements Closeable {
 			inputClosed = true;
 			if(!outputClosed) return;
 		}
-		try {
-			sock.close();
-		} catch (IOException e) {
-			// Ignore
-		}
+		closeSocket();
 	}
 	
 	public void closedOutput() {
@@ -235,7 +243,16 @@ public class FCPConnectionHandler implements Closeable {
 		}
 		synchronized(this) {
 			outputClosed = true;
-			if(!inputClosed) return;
+			// With NIO, the input handler only runs when there is input, so may never notice.
+			if(!inputClosed && nio == null) return;
+		}
+		closeSocket();
+	}
+
+	private void closeSocket() {
+		if(nio != null) {
+			nio.close();
+			return;
 		}
 		try {
 			sock.close();
@@ -36,6 +36,9 @@ public class FCPConnectionInputHandler implements Runnable {
 
 	final FCPConnectionHandler handler;
 
+	private LineReadingInputStream lis;
+	private boolean firstMessage = true;
+
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 	}
@@ -43,6 +46,12 @@ public class FCPConnectionInputHandler implements Runnable {
 	void start() {
 		if (handler.sock == null)
 			return;
+		if (handler.nio != null) {
+			// Only runs when there is something to read.
+			lis = new LineReadingInputStream(handler.nio.getInputStream());
+			handler.nio.start(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
+			return;
+		}
 		handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
 	}
 
@@ -50,7 +59,11 @@ public class FCPConnectionInputHandler implements Runnable {
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
 		try {
-			realRun();
+			if(handler.nio != null) {
+				if(readAvailable()) return;
+			} else {
+				realRun();
+			}
 		} catch (TooLongException e) {
 			Logger.normal(this, "Caught "+e.getMessage(), e);
 		} catch (IOException e) {
@@ -68,91 +81,101 @@ public class FCPConnectionInputHandler implements Runnable {
 
 	public void realRun() throws IOException {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
-		LineReadingInputStream lis = new LineReadingInputStream(is);
-
-		boolean firstMessage = true;
+		lis = new LineReadingInputStream(is);
+		while(readMessage()) {}
+		Closer.close(is);
+	}
 
-		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.outputHandler.queue(msg);
-				Closer.close(is);
-				return;
-			}
-			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
-				Closer.close(is);
-				return;
-			}
-			if(messageType.equals(""))
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+	/**
+	 * Handle the messages which have arrived so far.
+	 * @return True if we have run out of input and will be called again when there is some.
+	 * False if the connection should be closed.
+	 */
+	private boolean readAvailable() throws IOException {
+		while(handler.nio.moreInput()) {
+			if(!readMessage()) return false;
+		}
+		return true;
+	}
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
-			}
+	/**
+	 * Read and run one message.
+	 * @return False if the connection should be closed.
+	 */
+	private boolean readMessage() throws IOException {
+		SimpleFieldSet fs;
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.outputHandler.queue(msg);
+			return false;
+		}
+		// Read a message
+		String messageType = lis.readLine(128, 128, true);
+		if(messageType == null)
+			return false;
+		if(messageType.equals(""))
+			return true;
+		fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return true;
+		}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-				}
-				continue;
-			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.outputHandler.queue(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+				return true;
 			}
 		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		firstMessage = false;
+		if(handler.isClosed())
+			return false;
+		return true;
 	}
 
 	public boolean objectCanNew(ObjectContainer container) {
@@ -21,6 +21,11 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final LinkedList<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** With NIO, there is no thread while there is nothing to send. Synced on outQueue. */
+	private boolean writerRunning;
+	/** Set by onClosed(). Synced on outQueue. */
+	private boolean closing;
+	private OutputStream os;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -42,14 +47,31 @@ public class FCPConnectionOutputHandler implements Runnable {
 	void start() {
 		if (handler.sock == null)
 			return;
+		if (handler.nio != null) {
+			// Started when something is queued.
+			os = new BufferedOutputStream(handler.nio.getOutputStream(), 4096);
+			return;
+		}
+		startWriter();
+	}
+
+	private void startWriter() {
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
+
+	/** Caller must hold the outQueue lock. */
+	private void maybeStartWriter() {
+		if(handler.nio == null || writerRunning || closedOutputQueue) return;
+		writerRunning = true;
+		startWriter();
+	}
 	
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
+		boolean finished = true;
 		try {
-			realRun();
+			finished = realRun();
 		} catch (IOException e) {
 			if(logMINOR)
 				Logger.minor(this, "Caught "+e, e);
@@ -61,16 +83,24 @@ public class FCPConnectionOutputHandler implements Runnable {
 			// Set the closed flag so that onClosed(), both on this thread and the input thread, doesn't wait forever.
 			// This happens in realRun() on a healthy exit, but we must do it here too to handle an exceptional exit.
 			// I.e. the other side closed the connection, and we threw an IOException.
-			synchronized(outQueue) {
-				closedOutputQueue = true;
+			if(finished) {
+				synchronized(outQueue) {
+					closedOutputQueue = true;
+				}
 			}
 		}
+		if(!finished) return;
 		handler.close();
 		handler.closedOutput();
 	}
  
-	private void realRun() throws IOException {
-		OutputStream os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
+	/**
+	 * @return True if the connection has closed, false if we have run out of messages and will
+	 * be started again when there are more (NIO only).
+	 */
+	private boolean realRun() throws IOException {
+		if(os == null)
+			os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
 		while(true) {
 			boolean closed;
 			FCPMessage msg = null;
@@ -87,7 +117,12 @@ public class FCPConnectionOutputHandler implements Runnable {
 						}
 						if(!flushed)
 							shouldFlush = true;
-						else {
+						else if(handler.nio != null) {
+							// The connection may have closed since we checked.
+							if(closing) continue;
+							writerRunning = false;
+							return false;
+						} else {
 							try {
 								outQueue.wait();
 							} catch (InterruptedException e) {
@@ -112,7 +147,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 				if(closed) {
 					os.flush();
 					os.close();
-					return;
+					return true;
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Sending "+msg);
@@ -144,12 +179,15 @@ public class FCPConnectionOutputHandler implements Runnable {
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			maybeStartWriter();
 		}
 	}
 
 	public void onClosed() {
 		synchronized(outQueue) {
 			outQueue.notifyAll();
+			closing = true;
+			maybeStartWriter();
 			// Give a chance to the output handler to flush
 			// its queue before the socket is closed
 			// @see #2019 - nextgens
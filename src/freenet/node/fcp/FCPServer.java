@@ -27,10 +27,13 @@ import freenet.client.async.DatabaseDisabledException;
 import freenet.client.async.DownloadCache;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
+import freenet.io.NioNetworkInterface;
+import freenet.io.NioSelectorPool;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
@@ -59,11 +62,16 @@ public class FCPServer implements Runnable, DownloadCache {
 	FCPPersistentRoot persistentRoot;
 	private static boolean logMINOR;
 	public final static int DEFAULT_FCP_PORT = 9481;
+	/** Selector threads when using NIO. Each can handle any number of connections. */
+	private static final int NIO_THREADS = 2;
 	NetworkInterface networkInterface;
 	final NodeClientCore core;
 	final Node node;
 	final int port;
 	private static boolean ssl = false;
+	private static boolean nio = false;
+	/** If non-null, connections are driven by a selector rather than a thread each. */
+	private NioSelectorPool selectorPool;
 	public final boolean enabled;
 	String bindTo;
 	private String allowedHosts;
@@ -120,6 +128,11 @@ public class FCPServer implements Runnable, DownloadCache {
 		try {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+			} else if(nio) {
+				// SSL needs a blocking socket, so NIO is only used without it.
+				tempNetworkInterface = NioNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				selectorPool = new NioSelectorPool("FCP", NIO_THREADS, node.executor);
+				selectorPool.start();
 			} else {
 				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
@@ -177,7 +190,11 @@ public class FCPServer implements Runnable, DownloadCache {
 		if(!node.isHasStarted()) return;
 		// Accept a connection
 		Socket s = networkInterface.accept();
-		FCPConnectionHandler ch = new FCPConnectionHandler(s, this);
+		FCPConnectionHandler ch;
+		if(selectorPool != null && s.getChannel() != null)
+			ch = new FCPConnectionHandler(selectorPool.wrap(s.getChannel()), this);
+		else
+			ch = new FCPConnectionHandler(s, this);
 		ch.start();
 	}
 
@@ -257,6 +274,27 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class FCPNIOCallback extends BooleanCallback {
+
+		@Override
+		public Boolean get() {
+			return nio;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			nio = val;
+			throw new NodeNeedRestartException("Cannot change NIO on the fly, please restart freenet");
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+	}
+
 	// FIXME: Consider moving everything except enabled into constructor
 	// Actually we could move enabled in too with an exception???
 
@@ -421,6 +459,8 @@ public class FCPServer implements Runnable, DownloadCache {
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("nio", false, sortOrder++, true, false, "FcpServer.nio", "FcpServer.nioLong", new FCPNIOCallback());
+		nio = fcpConfig.getBoolean("nio");
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
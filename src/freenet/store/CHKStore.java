@@ -5,6 +5,7 @@ import java.io.IOException;
 import freenet.crypt.DSAPublicKey;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
+import freenet.keys.Key;
 import freenet.keys.KeyVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -20,6 +21,8 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 	public CHKBlock construct(byte[] data, byte[] headers,
 			byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey ignored) throws KeyVerifyException {
 		if(data == null || headers == null) throw new CHKVerifyException("Need either data and headers");
+		if(fullKey != null && fullKey.length == NodeCHK.FULL_KEY_LENGTH && Key.isSupportedCryptoAlgorithm(fullKey[1]))
+			return CHKBlock.construct(data, headers, fullKey[1]);
 		return CHKBlock.construct(data, headers);
 	}
 
@@ -0,0 +1,637 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sleepycat.je.DatabaseException;
+
+import freenet.keys.KeyVerifyException;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.Fields;
+import freenet.support.LinearProbingTable;
+import freenet.support.Logger;
+
+/**
+ * In memory store which keeps the blocks outside the Java heap, so it can be given several
+ * gigabytes without adding to the garbage collector's work.
+ *
+ * Every block takes a fixed size slot: routing key, full key (if the callback stores them),
+ * header, data and a flags byte. The slots live in direct ByteBuffer "slabs" of up to
+ * SLAB_BYTES each, which are only allocated as the store fills up. The index is an open
+ * addressing hash table of slot numbers keyed on the routing key, and when the store is full
+ * we evict with CLOCK (second chance), which approximates LRU without having to move anything
+ * on a hit. On the heap we only keep a few bytes per block.
+ *
+ * The store is split into stripes by the hash of the routing key, each with its own slabs,
+ * index and lock. Each stripe can hold up to ceil(maxKeys / STRIPES) blocks, so the store
+ * may hold up to STRIPES-1 blocks more than maxKeys.
+ *
+ * Memory which is no longer needed after shrinking or clear() is freed when the garbage
+ * collector collects the slab; on a JVM with a low -XX:MaxDirectMemorySize we simply stop
+ * growing the stripe when we can't allocate a slab.
+ */
+public class OffHeapFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	static final int STRIPE_BITS = 4;
+	static final int STRIPES = 1 << STRIPE_BITS;
+	/** Maximum size of a single slab of direct memory. */
+	private static final int SLAB_BYTES = 16 * 1024 * 1024;
+	/** Size of the first slab in each stripe, in slots. Grows by doubling up to a full slab. */
+	private static final int MIN_SLAB_SLOTS = 16;
+	private static final int MIN_INDEX = 16;
+
+	private static final byte FLAG_OLD_BLOCK = 1;
+
+	private final StoreCallback<T> callback;
+	private final boolean storeFullKeys;
+	private final boolean collisionPossible;
+	private final int routingKeyLength;
+	private final int fullKeyLength;
+	private final int headerLength;
+	private final int dataLength;
+	private final int fullKeyOffset;
+	private final int headerOffset;
+	private final int dataOffset;
+	private final int flagsOffset;
+	private final int slotSize;
+	private final int slotsPerSlab;
+
+	private final Stripe[] stripes;
+
+	private volatile long maxKeys;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	public OffHeapFreenetStore(StoreCallback<T> callback, long maxKeys) {
+		this.callback = callback;
+		storeFullKeys = callback.storeFullKeys();
+		collisionPossible = callback.collisionPossible();
+		routingKeyLength = callback.routingKeyLength();
+		fullKeyLength = storeFullKeys ? callback.fullKeyLength() : 0;
+		headerLength = callback.headerLength();
+		dataLength = callback.dataLength();
+		fullKeyOffset = routingKeyLength;
+		headerOffset = fullKeyOffset + fullKeyLength;
+		dataOffset = headerOffset + headerLength;
+		flagsOffset = dataOffset + dataLength;
+		slotSize = flagsOffset + 1;
+		slotsPerSlab = Math.max(1, SLAB_BYTES / slotSize);
+		this.maxKeys = maxKeys;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Stripe[] stripes = (Stripe[]) new OffHeapFreenetStore.Stripe[STRIPES];
+		this.stripes = stripes;
+		int capacity = stripeCapacity(maxKeys);
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new Stripe(capacity);
+		callback.setStore(this);
+	}
+
+	private static int stripeCapacity(long maxKeys) {
+		return (int) Math.min(Integer.MAX_VALUE, (Math.max(0, maxKeys) + STRIPES - 1) / STRIPES);
+	}
+
+	/** The routing keys are hashes already, but mix them anyway so the stripe and the index
+	 * don't use the same bits. */
+	static int hash(byte[] routingKey) {
+		int h = Fields.hashCode(routingKey) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe stripe(int hash) {
+		return stripes[hash & (STRIPES - 1)];
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		int hash = hash(routingKey);
+		Stripe stripe = stripe(hash);
+		byte[] header;
+		byte[] data;
+		byte[] storedFullKey = null;
+		boolean oldBlock;
+		synchronized(stripe) {
+			int slot = stripe.lookup(hash, routingKey);
+			if(slot < 0) {
+				misses.incrementAndGet();
+				return null;
+			}
+			oldBlock = stripe.isOldBlock(slot);
+			if(ignoreOldBlocks && oldBlock) {
+				Logger.normal(this, "Ignoring old block");
+				return null;
+			}
+			// Only allocate once we know we have the block, a miss shouldn't create garbage.
+			header = new byte[headerLength];
+			data = new byte[dataLength];
+			stripe.read(slot, headerOffset, header);
+			stripe.read(slot, dataOffset, data);
+			if(storeFullKeys) {
+				storedFullKey = new byte[fullKeyLength];
+				stripe.read(slot, fullKeyOffset, storedFullKey);
+			}
+			if(!dontPromote)
+				stripe.referenced[slot] = true;
+		}
+		try {
+			T ret = callback.construct(data, header, routingKey, storedFullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			hits.incrementAndGet();
+			if(meta != null && oldBlock)
+				meta.setOldBlock();
+			return ret;
+		} catch (KeyVerifyException e) {
+			synchronized(stripe) {
+				int slot = stripe.lookup(hash, routingKey);
+				if(slot >= 0)
+					stripe.remove(slot);
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = storeFullKeys ? block.getFullKey() : null;
+		if(routingKey.length != routingKeyLength || data.length != dataLength || header.length != headerLength ||
+				(storeFullKeys && fullKey.length != fullKeyLength))
+			throw new IllegalArgumentException("Wrong block size for store");
+		writes.incrementAndGet();
+		int hash = hash(routingKey);
+		Stripe stripe = stripe(hash);
+		synchronized(stripe) {
+			int slot = stripe.lookup(hash, routingKey);
+			if(slot >= 0) {
+				if(collisionPossible) {
+					boolean equals = stripe.equals(slot, dataOffset, data) &&
+						stripe.equals(slot, headerOffset, header) &&
+						(storeFullKeys ? stripe.equals(slot, fullKeyOffset, fullKey) : true);
+					if(equals) {
+						if(!isOldBlock)
+							stripe.setOldBlock(slot, false);
+						return;
+					}
+					if(overwrite) {
+						stripe.write(slot, routingKey, fullKey, header, data, isOldBlock);
+					} else {
+						throw new KeyCollisionException();
+					}
+				} else {
+					if(!isOldBlock)
+						stripe.setOldBlock(slot, false);
+				}
+				return;
+			}
+			stripe.add(hash, routingKey, fullKey, header, data, isOldBlock);
+		}
+	}
+
+	@Override
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws DatabaseException, IOException {
+		maxKeys = maxStoreKeys;
+		int capacity = stripeCapacity(maxStoreKeys);
+		// Always shrink now, we'd evict on the next put() anyway.
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				stripe.setCapacity(capacity);
+			}
+		}
+	}
+
+	@Override
+	public long getMaxKeys() {
+		return maxKeys;
+	}
+
+	@Override
+	public long hits() {
+		return hits.get();
+	}
+
+	@Override
+	public long misses() {
+		return misses.get();
+	}
+
+	@Override
+	public long writes() {
+		return writes.get();
+	}
+
+	@Override
+	public long keyCount() {
+		long count = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				count += stripe.size;
+			}
+		}
+		return count;
+	}
+
+	/** The direct memory currently allocated for blocks, in bytes. */
+	public long allocatedBytes() {
+		long total = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				for(ByteBuffer slab : stripe.slabs)
+					total += slab.capacity();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return -1;
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		int hash = hash(routingKey);
+		Stripe stripe = stripe(hash);
+		synchronized(stripe) {
+			return stripe.lookup(hash, routingKey) >= 0;
+		}
+	}
+
+	public void clear() {
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	/** Copy every block to another store. One block at a time, so we don't need to hold
+	 * the whole store on the heap. */
+	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
+		for(Stripe stripe : stripes) {
+			for(int slot = 0;; slot++) {
+				byte[] routingKey = new byte[routingKeyLength];
+				byte[] header = new byte[headerLength];
+				byte[] data = new byte[dataLength];
+				byte[] fullKey = storeFullKeys ? new byte[fullKeyLength] : null;
+				boolean oldBlock;
+				synchronized(stripe) {
+					if(slot >= stripe.used) break;
+					if(!stripe.live[slot]) continue;
+					stripe.read(slot, 0, routingKey);
+					stripe.read(slot, headerOffset, header);
+					stripe.read(slot, dataOffset, data);
+					if(storeFullKeys)
+						stripe.read(slot, fullKeyOffset, fullKey);
+					oldBlock = stripe.isOldBlock(slot);
+				}
+				T ret;
+				try {
+					ret = callback.construct(data, header, routingKey, fullKey, canReadClientCache, false, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Caught while migrating: "+e, e);
+					continue;
+				}
+				try {
+					target.getStore().put(ret, data, header, false, oldBlock);
+				} catch (KeyCollisionException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return hits.get();
+			}
+
+			@Override
+			public long misses() {
+				return misses.get();
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return writes.get();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return null;
+	}
+
+	/**
+	 * One stripe of the store. All methods must be called with the stripe locked.
+	 *
+	 * Slots below used are either live, or on the free list (after a remove()). The index
+	 * is linear probing with backward shift deletion, see LinearProbingTable, holding
+	 * slot+1 so 0 is empty.
+	 */
+	private final class Stripe extends LinearProbingTable {
+
+		private ByteBuffer[] slabs = new ByteBuffer[0];
+		private int capacity;
+		private int used;
+		private int size;
+		/** The hash of the routing key in each slot, so we don't have to read the key to
+		 * find the slot in the index. */
+		private int[] hashes = new int[0];
+		private boolean[] live = new boolean[0];
+		private boolean[] referenced = new boolean[0];
+		private int[] free = new int[0];
+		private int freeCount;
+		private int hand;
+		private int[] index;
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+			index = new int[MIN_INDEX];
+			mask = MIN_INDEX - 1;
+		}
+
+		private int home(int hash) {
+			return (hash >>> STRIPE_BITS) & mask;
+		}
+
+		@Override
+		protected boolean isFree(int i) {
+			return index[i] == 0;
+		}
+
+		@Override
+		protected int homeOf(int i) {
+			return home(hashes[index[i] - 1]);
+		}
+
+		@Override
+		protected void move(int from, int to) {
+			index[to] = index[from];
+		}
+
+		@Override
+		protected void clear(int i) {
+			index[i] = 0;
+		}
+
+		/** @return The slot holding the routing key, or -1. */
+		int lookup(int hash, byte[] routingKey) {
+			int i = home(hash);
+			while(true) {
+				int s = index[i];
+				if(s == 0) return -1;
+				s--;
+				if(hashes[s] == hash && equals(s, 0, routingKey))
+					return s;
+				i = next(i);
+			}
+		}
+
+		/** @return The position of the slot in the index. It must be there. */
+		private int position(int slot) {
+			int i = home(hashes[slot]);
+			while(index[i] != slot + 1)
+				i = next(i);
+			return i;
+		}
+
+		boolean equals(int slot, int offset, byte[] buf) {
+			ByteBuffer slab = slabs[slot / slotsPerSlab];
+			int base = (slot % slotsPerSlab) * slotSize + offset;
+			for(int i=0;i<buf.length;i++)
+				if(slab.get(base + i) != buf[i]) return false;
+			return true;
+		}
+
+		void read(int slot, int offset, byte[] buf) {
+			ByteBuffer slab = slabs[slot / slotsPerSlab];
+			slab.position((slot % slotsPerSlab) * slotSize + offset);
+			slab.get(buf);
+		}
+
+		private void write(int slot, int offset, byte[] buf) {
+			ByteBuffer slab = slabs[slot / slotsPerSlab];
+			slab.position((slot % slotsPerSlab) * slotSize + offset);
+			slab.put(buf);
+		}
+
+		void write(int slot, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean oldBlock) {
+			write(slot, 0, routingKey);
+			if(storeFullKeys)
+				write(slot, fullKeyOffset, fullKey);
+			write(slot, headerOffset, header);
+			write(slot, dataOffset, data);
+			setOldBlock(slot, oldBlock);
+		}
+
+		boolean isOldBlock(int slot) {
+			ByteBuffer slab = slabs[slot / slotsPerSlab];
+			return (slab.get((slot % slotsPerSlab) * slotSize + flagsOffset) & FLAG_OLD_BLOCK) != 0;
+		}
+
+		void setOldBlock(int slot, boolean oldBlock) {
+			ByteBuffer slab = slabs[slot / slotsPerSlab];
+			slab.put((slot % slotsPerSlab) * slotSize + flagsOffset, oldBlock ? FLAG_OLD_BLOCK : 0);
+		}
+
+		void add(int hash, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean oldBlock) {
+			int slot = allocate();
+			if(slot < 0) return;
+			write(slot, routingKey, fullKey, header, data, oldBlock);
+			hashes[slot] = hash;
+			live[slot] = true;
+			// Only blocks which are fetched again get a second chance.
+			referenced[slot] = false;
+			if((size + 1) * 2 > index.length)
+				resizeIndex(index.length * 2);
+			index[probeFree(home(hash))] = slot + 1;
+			size++;
+		}
+
+		void remove(int slot) {
+			unindex(slot);
+			free[freeCount++] = slot;
+		}
+
+		/** Remove the slot from the index and mark it dead. */
+		private void unindex(int slot) {
+			delete(position(slot));
+			live[slot] = false;
+			size--;
+		}
+
+		/** @return A free slot, evicting if necessary, or -1 if the stripe has no room at all. */
+		private int allocate() {
+			if(freeCount > 0)
+				return free[--freeCount];
+			if(used < capacity && ensureBacked(used))
+				return used++;
+			if(used == 0) return -1;
+			return evict();
+		}
+
+		/** CLOCK: clear the referenced bit of each block we pass until we find one which
+		 * hasn't been used since last time round. */
+		private int evict() {
+			while(true) {
+				if(hand >= used) hand = 0;
+				int slot = hand++;
+				if(!live[slot]) continue;
+				if(referenced[slot]) {
+					referenced[slot] = false;
+					continue;
+				}
+				unindex(slot);
+				return slot;
+			}
+		}
+
+		/** Make sure there is direct memory for the slot, which is the next one after the
+		 * last used slot.
+		 * @return False if we couldn't allocate it. */
+		private boolean ensureBacked(int slot) {
+			int slabNo = slot / slotsPerSlab;
+			int slotInSlab = slot % slotsPerSlab;
+			ByteBuffer old = slabNo < slabs.length ? slabs[slabNo] : null;
+			if(old != null && slotInSlab < old.capacity() / slotSize) return true;
+			int slots = old == null ? MIN_SLAB_SLOTS : old.capacity() / slotSize * 2;
+			slots = Math.min(slotsPerSlab, Math.max(slots, slotInSlab + 1));
+			ByteBuffer slab;
+			try {
+				slab = ByteBuffer.allocateDirect(slots * slotSize);
+			} catch (OutOfMemoryError e) {
+				Logger.error(OffHeapFreenetStore.this, "Unable to allocate "+slots * slotSize+" bytes of direct memory for the store, limiting it to "+slot+" blocks per stripe: increase -XX:MaxDirectMemorySize to use the configured size", e);
+				capacity = slot;
+				return false;
+			}
+			if(old != null) {
+				old.clear();
+				slab.put(old);
+				slabs[slabNo] = slab;
+			} else {
+				ByteBuffer[] newSlabs = new ByteBuffer[slabNo + 1];
+				System.arraycopy(slabs, 0, newSlabs, 0, slabs.length);
+				newSlabs[slabNo] = slab;
+				slabs = newSlabs;
+			}
+			if(slot >= hashes.length)
+				resizeSlots(Math.max(MIN_SLAB_SLOTS, Math.min(capacity, hashes.length * 2)));
+			return true;
+		}
+
+		private void resizeSlots(int length) {
+			int[] newHashes = new int[length];
+			boolean[] newLive = new boolean[length];
+			boolean[] newReferenced = new boolean[length];
+			int[] newFree = new int[length];
+			int copy = Math.min(length, used);
+			System.arraycopy(hashes, 0, newHashes, 0, copy);
+			System.arraycopy(live, 0, newLive, 0, copy);
+			System.arraycopy(referenced, 0, newReferenced, 0, copy);
+			System.arraycopy(free, 0, newFree, 0, freeCount);
+			hashes = newHashes;
+			live = newLive;
+			referenced = newReferenced;
+			free = newFree;
+		}
+
+		private void resizeIndex(int length) {
+			index = new int[length];
+			mask = length - 1;
+			for(int slot = 0; slot < used; slot++) {
+				if(!live[slot]) continue;
+				index[probeFree(home(hashes[slot]))] = slot + 1;
+			}
+		}
+
+		/** Change the capacity. If it shrinks, evict blocks until they fit, then move the
+		 * blocks above the new capacity down into the gaps and release the slabs we no
+		 * longer need. */
+		void setCapacity(int newCapacity) {
+			capacity = newCapacity;
+			if(used <= newCapacity) return;
+			while(size > newCapacity)
+				evict();
+			byte[] buf = new byte[slotSize];
+			int to = 0;
+			for(int from = newCapacity; from < used; from++) {
+				if(!live[from]) continue;
+				while(live[to]) to++;
+				read(from, 0, buf);
+				write(to, 0, buf);
+				index[position(from)] = to + 1;
+				hashes[to] = hashes[from];
+				referenced[to] = referenced[from];
+				live[to] = true;
+				live[from] = false;
+			}
+			used = newCapacity;
+			freeCount = 0;
+			for(int slot = 0; slot < used; slot++)
+				if(!live[slot]) free[freeCount++] = slot;
+			if(hand >= used) hand = 0;
+			int slabCount = (used + slotsPerSlab - 1) / slotsPerSlab;
+			if(slabCount < slabs.length) {
+				ByteBuffer[] newSlabs = new ByteBuffer[slabCount];
+				System.arraycopy(slabs, 0, newSlabs, 0, slabCount);
+				slabs = newSlabs;
+			}
+			if(slabCount > 0) {
+				// Shrink the last slab too, it may be nearly all of the memory in a small store.
+				ByteBuffer last = slabs[slabCount - 1];
+				int slots = used - (slabCount - 1) * slotsPerSlab;
+				if(slots < last.capacity() / slotSize) {
+					try {
+						ByteBuffer slab = ByteBuffer.allocateDirect(slots * slotSize);
+						last.position(0);
+						last.limit(slots * slotSize);
+						slab.put(last);
+						slabs[slabCount - 1] = slab;
+					} catch (OutOfMemoryError e) {
+						// Keep the old one then.
+						last.clear();
+					}
+				}
+			}
+			if(used < hashes.length / 2)
+				resizeSlots(Math.max(MIN_SLAB_SLOTS, used));
+			int indexLength = MIN_INDEX;
+			while(size * 2 > indexLength) indexLength *= 2;
+			if(indexLength < index.length)
+				resizeIndex(indexLength);
+		}
+
+		void clear() {
+			slabs = new ByteBuffer[0];
+			hashes = new int[0];
+			live = new boolean[0];
+			referenced = new boolean[0];
+			free = new int[0];
+			freeCount = 0;
+			used = 0;
+			size = 0;
+			hand = 0;
+			index = new int[MIN_INDEX];
+			mask = MIN_INDEX - 1;
+		}
+
+	}
+
+}
@@ -3,53 +3,61 @@ package freenet.store;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sleepycat.je.DatabaseException;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUHashtable;
+import freenet.support.ConcurrentLRUCache;
 import freenet.support.Logger;
 
 /**
  * LRU in memory store.
  * 
  * For debugging / simulation only
+ * 
+ * Fetches don't take the store's lock. Blocks are never changed once they are in the
+ * cache, except for the old block flag; a put() which overwrites a block replaces it.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		volatile boolean oldBlock;
+		
+		Block(byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
 	}
 	
-	private final LRUHashtable<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final ConcurrentLRUCache<ByteArrayWrapper, Block> blocksByRoutingKey;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
-	
-	private long hits;
-	private long misses;
-	private long writes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
 		this.callback = callback;
-		this.blocksByRoutingKey = new LRUHashtable<ByteArrayWrapper, Block>();
-		this.maxKeys = maxKeys;
+		this.blocksByRoutingKey = new ConcurrentLRUCache<ByteArrayWrapper, Block>(maxKeys);
 		callback.setStore(this);
 	}
 	
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		Block block = blocksByRoutingKey.get(key);
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
 		if(ignoreOldBlocks && block.oldBlock) {
@@ -59,45 +67,46 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		try {
 			T ret =
 				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
+			hits.incrementAndGet();
 			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
+				blocksByRoutingKey.promote(key);
 			if(meta != null && block.oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			blocksByRoutingKey.remove(key, block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
-		return maxKeys;
+	public long getMaxKeys() {
+		return blocksByRoutingKey.getMaxEntries();
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
+	public long keyCount() {
 		return blocksByRoutingKey.size();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
+	/** Synchronized so that two puts for the same key don't race, fetches don't lock. */
 	@Override
 	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		writes++;
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
 		Block oldBlock = blocksByRoutingKey.get(key);
 		boolean storeFullKeys = callback.storeFullKeys();
@@ -112,11 +121,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 					return;
 				}
 				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
+					blocksByRoutingKey.push(key, new Block(header, data, storeFullKeys ? fullKey : null, isOldBlock));
 				} else {
 					throw new KeyCollisionException();
 				}
@@ -127,31 +132,19 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 				return;
 			}
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		blocksByRoutingKey.push(key, new Block(header, data, storeFullKeys ? fullKey : null, isOldBlock));
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws DatabaseException, IOException {
-		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		blocksByRoutingKey.setMaxEntries((int)Math.min(Integer.MAX_VALUE, maxStoreKeys));
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
@@ -175,6 +168,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
 			byte[] routingKey = routingKeyWrapped.get();
 			Block block = blocksByRoutingKey.get(routingKeyWrapped);
+			if(block == null) continue;
 			
 			T ret;
 			try {
@@ -197,12 +191,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,7 +206,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
 			
 		};
@@ -16,18 +16,35 @@ import freenet.support.Logger.LogLevel;
 /**
  * Lock Manager
  * 
- * Handle locking/unlocking of individual offsets.
+ * Handle locking/unlocking of individual offsets. Offsets are spread over a number of
+ * independently locked stripes, so that threads working on unrelated slots don't contend
+ * on a single lock.
  * 
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Number of lock stripes. Must be a power of 2. */
+	private static final int STRIPES = 64;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Lock[] entryLocks = new Lock[STRIPES];
+	private final Map<Long, Condition>[] lockMaps;
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Map<Long, Condition>[] maps = new Map[STRIPES];
+		lockMaps = maps;
+		for(int i=0;i<STRIPES;i++) {
+			entryLocks[i] = new ReentrantLock();
+			lockMaps[i] = new HashMap<Long, Condition>();
+		}
+	}
+
+	private static int stripe(long offset) {
+		// Neighbouring slots should go to different stripes.
+		long h = offset * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 58) & (STRIPES - 1);
 	}
 
 	/**
@@ -40,6 +57,9 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
+		int stripe = stripe(offset);
+		Lock entryLock = entryLocks[stripe];
+		Map<Long, Condition> lockMap = lockMaps[stripe];
 		Condition condition;
 		try {
 			entryLock.lock();
@@ -76,9 +96,11 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
+		int stripe = stripe(offset);
+		Lock entryLock = entryLocks[stripe];
 		entryLock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
+			Condition cond = lockMaps[stripe].remove(offset);
 			assert cond == condition;
 			cond.signal();
 		} finally {
@@ -91,14 +113,18 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for(int i=0;i<STRIPES;i++) {
+			Lock entryLock = entryLocks[i];
+			Map<Long, Condition> lockMap = lockMaps[i];
+			entryLock.lock();
+			try {
+				while (!lockMap.isEmpty()) {
+					Condition cond = lockMap.values().iterator().next();
+					cond.awaitUninterruptibly();
+				}
+			} finally {
+				entryLock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
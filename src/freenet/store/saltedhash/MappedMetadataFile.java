@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The metadata file of a {@link SaltedHashFreenetStore}, mapped into memory so that reading
+ * and writing entries doesn't need a system call each time. The file is mapped in segments
+ * because a single mapping can't be bigger than 2GB. Anything outside the mapped region goes
+ * to the channel, so callers can use this exactly like the FileChannel.
+ *
+ * The caller must make sure nobody is using the part of the mapping beyond the new length
+ * when the file is truncated, or they will crash the VM.
+ */
+final class MappedMetadataFile {
+
+	/** Size of a segment. A multiple of the entry length, so an entry is never split. */
+	static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final class Mapping {
+		final MappedByteBuffer[] segments;
+		final long length;
+
+		Mapping(MappedByteBuffer[] segments, long length) {
+			this.segments = segments;
+			this.length = length;
+		}
+	}
+
+	private final FileChannel fc;
+	private volatile Mapping mapping = new Mapping(new MappedByteBuffer[0], 0);
+
+	MappedMetadataFile(FileChannel fc) {
+		this.fc = fc;
+	}
+
+	/** The number of bytes, from the start of the file, which are mapped. */
+	long length() {
+		return mapping.length;
+	}
+
+	/**
+	 * Map the first length bytes of the file. When growing, the file must already be at least
+	 * that long. Segments which haven't changed are reused.
+	 */
+	synchronized void remap(long length) throws IOException {
+		Mapping old = mapping;
+		if(length == old.length) return;
+		int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		MappedByteBuffer[] segments = new MappedByteBuffer[count];
+		for(int i = 0; i < count; i++) {
+			long start = (long) i * SEGMENT_SIZE;
+			int size = (int) Math.min(SEGMENT_SIZE, length - start);
+			if(i < old.segments.length && old.segments[i].capacity() == size)
+				segments[i] = old.segments[i];
+			else
+				segments[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+		}
+		mapping = new Mapping(segments, length);
+	}
+
+	/**
+	 * Get a view of part of the file. Changes to the buffer go straight to the file.
+	 * @return The buffer, with position 0 and limit length, or null if the region is not
+	 * mapped or crosses a segment boundary.
+	 */
+	ByteBuffer slice(long position, int length) {
+		Mapping m = mapping;
+		if(position < 0 || position + length > m.length) return null;
+		int segment = (int) (position / SEGMENT_SIZE);
+		int offset = (int) (position % SEGMENT_SIZE);
+		if(offset + length > SEGMENT_SIZE) return null;
+		ByteBuffer buf = m.segments[segment].duplicate();
+		buf.limit(offset + length);
+		buf.position(offset);
+		return buf.slice();
+	}
+
+	/** Same as {@link FileChannel#read(ByteBuffer, long)}. */
+	int read(ByteBuffer dst, long position) throws IOException {
+		int length = dst.remaining();
+		ByteBuffer src = slice(position, length);
+		if(src == null) return fc.read(dst, position);
+		dst.put(src);
+		return length;
+	}
+
+	/** Same as {@link FileChannel#write(ByteBuffer, long)}. */
+	int write(ByteBuffer src, long position) throws IOException {
+		int length = src.remaining();
+		ByteBuffer dst = slice(position, length);
+		if(dst == null) return fc.write(src, position);
+		dst.put(src);
+		return length;
+	}
+
+	/** Write any changes to the disk. */
+	void force() {
+		for(MappedByteBuffer segment : mapping.segments)
+			segment.force();
+	}
+
+}
@@ -18,6 +18,12 @@ import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -141,15 +147,62 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		altStore = store;
 	}
 
+	/** Threads to read from the disk on, shared between all the stores. Null means we do all
+	 * the I/O on the caller's thread. */
+	private volatile Executor ioExecutor;
+
+	/**
+	 * Set the executor used by {@link #fetchAsync} and to read the candidate slots for a key
+	 * in parallel. This can be shared between several stores. If null, everything is done
+	 * on the caller's thread, as before.
+	 */
+	public void setIOExecutor(Executor executor) {
+		ioExecutor = executor;
+	}
+
+	/**
+	 * Create a pool of daemon threads suitable for {@link #setIOExecutor(Executor)}. Idle
+	 * threads exit after a minute.
+	 */
+	public static ThreadPoolExecutor makeIOExecutor(int threads) {
+		ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				NativeThread t = new NativeThread(r, "Datastore I/O thread "+(count++), NativeThread.HIGH_PRIORITY, true);
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+		exec.allowCoreThreadTimeOut(true);
+		return exec;
+	}
+
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate, resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param mapMetadata If true, map the metadata file into memory. Much faster for the
+	 * cleaner (resizing and rebuilding the slot filter), but uses a lot of address space, so
+	 * only sensible on a 64-bit VM.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mapMetadata) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, mapMetadata);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mapMetadata) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -187,6 +240,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		newStore |= openStoreFiles(baseDir, name);
+		if(mapMetadata) {
+			mappedMeta = new MappedMetadataFile(metaFC);
+			try {
+				mappedMeta.remap(metaRAF.length());
+			} catch (IOException e) {
+				// Probably out of address space.
+				Logger.error(this, "Unable to map metadata file for "+name+": "+e, e);
+				System.err.println("Unable to map metadata file for "+name+": "+e);
+				mappedMeta = null;
+			}
+		}
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
 		if(bloomFile.exists()) {
@@ -294,6 +358,58 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		return fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, true);
+	}
+
+	/** Called when an asynchronous fetch completes. Usually called on the I/O executor, so don't block. */
+	public interface FetchCallback<T extends StorableBlock> {
+
+		/** @param block The block, or null if it isn't in the store. */
+		void onFetched(T block);
+
+		void onFailure(IOException e);
+
+	}
+
+	/**
+	 * Fetch a block on the I/O executor, and call the callback when done. If there is no
+	 * I/O executor, the fetch is done and the callback called before returning.
+	 */
+	public void fetchAsync(final byte[] routingKey, final byte[] fullKey, final boolean dontPromote, final boolean canReadClientCache,
+			final boolean canReadSlashdotCache, final boolean ignoreOldBlocks, final BlockMetadata meta, final FetchCallback<T> cb) {
+		Runnable job = new Runnable() {
+
+			@Override
+			public void run() {
+				T block;
+				try {
+					// Don't wait for the executor on the executor.
+					block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, false);
+				} catch (IOException e) {
+					cb.onFailure(e);
+					return;
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" fetching from "+name, t);
+					cb.onFailure(new IOException("Internal error: "+t));
+					return;
+				}
+				cb.onFetched(block);
+			}
+
+		};
+		Executor exec = ioExecutor;
+		if(exec == null) {
+			job.run();
+			return;
+		}
+		try {
+			exec.execute(job);
+		} catch (RejectedExecutionException e) {
+			job.run();
+		}
+	}
+
+	private T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta, boolean parallelReads) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
@@ -317,7 +433,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return null;
 			}
 			try {
-				Entry entry = probeEntry(digestedKey, routingKey, true);
+				Entry entry = probeEntry(digestedKey, routingKey, true, parallelReads);
 				if (entry == null) {
 					misses.incrementAndGet();
 					return null;
@@ -363,18 +479,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private Entry probeEntry(byte[] digestedKey, byte[] routingKey, boolean withData) throws IOException {
+		return probeEntry(digestedKey, routingKey, withData, false);
+	}
+
+	/**
+	 * @param parallelReads If true, and we have an I/O executor, read the metadata for all
+	 * the candidate slots at once. Must not be set when running on the I/O executor.
+	 */
+	private Entry probeEntry(byte[] digestedKey, byte[] routingKey, boolean withData, boolean parallelReads) throws IOException {
 		
-		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, withData);
+		Entry entry = probeEntry0(digestedKey, routingKey, storeSize, withData, parallelReads);
 
 		if (entry == null && prevStoreSize != 0)
-			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, withData);
+			entry = probeEntry0(digestedKey, routingKey, prevStoreSize, withData, parallelReads);
 
 		return entry;
 	}
 
-	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
+	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData, boolean parallelReads) throws IOException {
 		Entry entry = null;
 		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
+		ByteBuffer[] metaData = parallelReads ? readMetaDataParallel(offset, digestedKey) : null;
 
 		for (int i = 0; i < offset.length; i++) {
 			if (logDEBUG)
@@ -382,7 +507,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			try {
 				if(storeFileOffsetReady == -1 || offset[i] < this.storeFileOffsetReady) {
-					entry = readEntry(offset[i], digestedKey, routingKey, withData);
+					entry = readEntry(offset[i], digestedKey, routingKey, withData, metaData == null ? null : metaData[i]);
 					if (entry != null)
 						return entry;
 				}
@@ -553,6 +678,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	/** The metadata file mapped into memory, or null to use metaFC. Only changed with
+	 * configLock held for writing. */
+	private volatile MappedMetadataFile mappedMeta;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
@@ -840,6 +968,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData) throws IOException {
+		return readEntry(offset, digestedRoutingKey, routingKey, withData, null);
+	}
+
+	/**
+	 * @param mbf The metadata for the slot, if it has already been read by
+	 * {@link #readMetaDataParallel(long[], byte[])}, otherwise null.
+	 */
+	private Entry readEntry(long offset, byte[] digestedRoutingKey, byte[] routingKey, boolean withData, ByteBuffer mbf) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		int cache = 0;
 		boolean validCache = false;
@@ -856,16 +992,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		if(mbf == null)
+			mbf = readMetaData(offset);
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
@@ -919,6 +1047,98 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	private ByteBuffer readMetaData(long offset) throws IOException {
+		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+
+		do {
+			int status = readMetaData(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+			if (status == -1) {
+				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+				throw new EOFException();
+			}
+		} while (mbf.hasRemaining());
+		mbf.flip();
+		return mbf;
+	}
+
+	/** True if the slot filter says the slot cannot contain the key, so we don't need to read it. */
+	private boolean slotFilterExcludes(long offset, byte[] digestedRoutingKey) {
+		if(slotFilterDisabled || !USE_SLOT_FILTER) return false;
+		int cache = slotFilter.get((int)offset);
+		return (cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedRoutingKey);
+	}
+
+	/**
+	 * Read the metadata for the slots we are going to probe at the same time, on the I/O
+	 * threads. The slots are scattered across the file so they can't be read in one go, but
+	 * concurrent positional reads let the OS and the disk reorder the seeks. The caller must
+	 * hold the locks for the key.
+	 * @return The metadata for each offset, or null where it hasn't been read (not ready,
+	 * excluded by the slot filter, or the read failed - readEntry() will retry and report the
+	 * error). Returns null if there is at most one slot to read.
+	 */
+	private ByteBuffer[] readMetaDataParallel(final long[] offset, byte[] digestedKey) {
+		Executor exec = ioExecutor;
+		if(exec == null) return null;
+		int count = 0;
+		boolean[] needed = new boolean[offset.length];
+		for(int i = 0; i < offset.length; i++) {
+			if(offset[i] >= Integer.MAX_VALUE) return null;
+			if(!(storeFileOffsetReady == -1 || offset[i] < this.storeFileOffsetReady)) continue;
+			if(slotFilterExcludes(offset[i], digestedKey)) continue;
+			needed[i] = true;
+			count++;
+		}
+		if(count < 2) return null;
+		final ByteBuffer[] metaData = new ByteBuffer[offset.length];
+		final CountDownLatch done = new CountDownLatch(count - 1);
+		int first = -1;
+		for(int i = 0; i < offset.length; i++) {
+			if(!needed[i]) continue;
+			if(first == -1) {
+				// Read this one ourselves.
+				first = i;
+				continue;
+			}
+			final int slot = i;
+			Runnable job = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						metaData[slot] = readMetaData(offset[slot]);
+					} catch (IOException e) {
+						// readEntry() will try again.
+					} finally {
+						done.countDown();
+					}
+				}
+
+			};
+			try {
+				exec.execute(job);
+			} catch (RejectedExecutionException e) {
+				job.run();
+			}
+		}
+		try {
+			metaData[first] = readMetaData(offset[first]);
+		} catch (IOException e) {
+			// readEntry() will try again.
+		}
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		return metaData;
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -993,7 +1213,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
 		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+			int status = writeMetaData(bf, Entry.METADATA_LENGTH * offset + bf.position());
 			if (status == -1)
 				throw new EOFException();
 		} while (bf.hasRemaining());
@@ -1011,9 +1231,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		entry.curOffset = offset;
 	}
 
+	private int readMetaData(ByteBuffer buf, long position) throws IOException {
+		MappedMetadataFile mapped = mappedMeta;
+		return mapped == null ? metaFC.read(buf, position) : mapped.read(buf, position);
+	}
+
+	private int writeMetaData(ByteBuffer buf, long position) throws IOException {
+		MappedMetadataFile mapped = mappedMeta;
+		return mapped == null ? metaFC.write(buf, position) : mapped.write(buf, position);
+	}
+
 	private void flushAndClose() {
 		Logger.normal(this, "Flush and closing this store: " + name);
 		try {
+			if(mappedMeta != null)
+				mappedMeta.force();
 			metaFC.force(true);
 			metaFC.close();
 		} catch (Exception e) {
@@ -1104,13 +1336,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
+			if(mappedMeta != null)
+				setMetaFileLengthMapped(newMetaLen);
+			else
+				metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
 	}
 
+	/**
+	 * Change the length of the metadata file, and the mapping to match. Accessing the mapping
+	 * beyond the end of the file will crash the VM, so everyone else must be kept out while
+	 * we do this. Must not be called with configLock held.
+	 */
+	private void setMetaFileLengthMapped(long newMetaLen) throws IOException {
+		configLock.writeLock().lock();
+		try {
+			try {
+				if(newMetaLen < mappedMeta.length())
+					mappedMeta.remap(newMetaLen);
+				metaRAF.setLength(newMetaLen);
+				mappedMeta.remap(newMetaLen);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to map metadata file for "+name+", not using mmap from now on: "+e, e);
+				mappedMeta = null;
+				metaRAF.setLength(newMetaLen);
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
 	// ------------- Configuration
 	/**
 	 * Configuration File
@@ -1678,20 +1936,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
 
-				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
+				// If the metadata is mapped, work on it in place.
+				MappedMetadataFile mapped = mappedMeta;
+				ByteBuffer buf = mapped == null ? null : mapped.slice(startFileOffset, (int) bufLen);
+				boolean inPlace = buf != null;
 				boolean dirty = false;
-				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+				if (!inPlace) {
+					buf = ByteBuffer.allocate((int) bufLen);
+					try {
+						while (buf.hasRemaining()) {
+							int status = readMetaData(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
+					} catch (IOException ioe) {
+						if (shutdown)
+							return false;
+						Logger.error(this, "unexpected IOException", ioe);
 					}
-				} catch (IOException ioe) {
-					if (shutdown)
-						return false;
-					Logger.error(this, "unexpected IOException", ioe);
+					buf.flip();
 				}
-				buf.flip();
 
 				try {
 					for (int j = 0; !shutdown && buf.limit() > j * Entry.METADATA_LENGTH; j++) {
@@ -1746,12 +2010,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 				} finally {
 					// write back.
-					if (dirty) {
+					if (dirty && !inPlace) {
 						buf.flip();
 
 						try {
 							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+								writeMetaData(buf, startFileOffset + buf.position());
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
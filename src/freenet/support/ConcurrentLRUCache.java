@@ -0,0 +1,402 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache which can be used from many threads at once. It has the same
+ * push/pop/get API as LRUHashtable, but LRUHashtable takes one lock for everything, which
+ * makes it a bottleneck when it is on a hot path.
+ *
+ * The keys are split into segments by hash, each with its own lock, map and LRU list, so
+ * threads working on different keys rarely contend. Every push stamps the entry from a
+ * global counter, so each segment's list is in stamp order, and the globally least recently
+ * used entry is the oldest tail of any segment. We keep the tail's stamp in a volatile in
+ * each segment so finding it doesn't need any locks.
+ *
+ * The cache can be bounded by the number of entries, by the total weight of the entries
+ * (e.g. their size in bytes, as given by a Weigher), or both. When a push takes it over
+ * either limit the least recently used entries are evicted and passed to the
+ * EvictionListener, outside of any lock. With several threads pushing at once the limits
+ * may be exceeded briefly, or one entry more than necessary may be evicted. Entries can
+ * still be popped by hand as with LRUHashtable.
+ *
+ * Like LRUHashtable, get() does not promote; use push() or promote() for that.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+	/** Gives the weight of an entry, e.g. its size in bytes. Must not change while the entry
+	 * is in the cache. */
+	public interface Weigher<K, V> {
+		long weigh(K key, V value);
+	}
+
+	/** Called when an entry is evicted because the cache is over one of its limits. Not
+	 * called for entries which are popped or removed by hand, or replaced by push(). */
+	public interface EvictionListener<K, V> {
+		void onEvict(K key, V value);
+	}
+
+	static final int SEGMENT_BITS = 4;
+	static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+	private final Segment<K, V>[] segments;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong weight = new AtomicLong();
+	/** Stamps entries with the order they were last pushed in. */
+	private final AtomicLong clock = new AtomicLong();
+	private final Weigher<K, V> weigher;
+	private final EvictionListener<K, V> listener;
+	private volatile int maxEntries;
+	private volatile long maxWeight;
+
+	/** An unbounded cache: entries are only removed by hand. */
+	public ConcurrentLRUCache() {
+		this(Integer.MAX_VALUE, Long.MAX_VALUE, null, null);
+	}
+
+	/** A cache which keeps at most maxEntries entries. */
+	public ConcurrentLRUCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE, null, null);
+	}
+
+	/**
+	 * @param maxEntries The maximum number of entries.
+	 * @param maxWeight The maximum total weight of the entries.
+	 * @param weigher Gives the weight of each entry. If null, every entry weighs nothing.
+	 * @param listener Told about entries which are evicted. May be null.
+	 */
+	public ConcurrentLRUCache(int maxEntries, long maxWeight, Weigher<K, V> weigher, EvictionListener<K, V> listener) {
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.listener = listener;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Segment<K, V>[] segments = new Segment[SEGMENTS];
+		this.segments = segments;
+		for(int i=0;i<SEGMENTS;i++)
+			segments[i] = new Segment<K, V>();
+	}
+
+	private Segment<K, V> segment(Object key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return segments[h >>> (32 - SEGMENT_BITS)];
+	}
+
+	/**
+	 * Add an entry, or replace the value of an existing entry, and move it to the most
+	 * recently used position. Then evict entries if we are over either limit.
+	 * @return The value it replaced, or null. The eviction listener isn't called for it.
+	 */
+	public V push(K key, V value) {
+		if(key == null || value == null) throw new NullPointerException();
+		long w = weigher == null ? 0 : weigher.weigh(key, value);
+		Segment<K, V> s = segment(key);
+		V old = null;
+		synchronized(s) {
+			Entry<K, V> e = s.map.get(key);
+			if(e == null) {
+				e = new Entry<K, V>(key);
+				s.map.put(key, e);
+				size.incrementAndGet();
+				weight.addAndGet(w);
+			} else {
+				old = e.value;
+				s.unlink(e);
+				weight.addAndGet(w - e.weight);
+			}
+			e.value = value;
+			e.weight = w;
+			e.stamp = clock.incrementAndGet();
+			s.linkFirst(e);
+		}
+		evict();
+		return old;
+	}
+
+	/**
+	 * Get the value for a key and move it to the most recently used position.
+	 * @return The value, or null if it isn't in the cache.
+	 */
+	public V promote(K key) {
+		Segment<K, V> s = segment(key);
+		synchronized(s) {
+			Entry<K, V> e = s.map.get(key);
+			if(e == null) return null;
+			s.unlink(e);
+			e.stamp = clock.incrementAndGet();
+			s.linkFirst(e);
+			return e.value;
+		}
+	}
+
+	/** Get the value for a key. Does not promote it. */
+	public V get(K key) {
+		Segment<K, V> s = segment(key);
+		synchronized(s) {
+			Entry<K, V> e = s.map.get(key);
+			return e == null ? null : e.value;
+		}
+	}
+
+	public boolean containsKey(K key) {
+		Segment<K, V> s = segment(key);
+		synchronized(s) {
+			return s.map.containsKey(key);
+		}
+	}
+
+	public boolean removeKey(K key) {
+		Segment<K, V> s = segment(key);
+		synchronized(s) {
+			Entry<K, V> e = s.map.remove(key);
+			if(e == null) return false;
+			removed(s, e);
+			return true;
+		}
+	}
+
+	/** Remove the entry for the key only if it still has the given value.
+	 * @return True if it was removed. */
+	public boolean remove(K key, V value) {
+		Segment<K, V> s = segment(key);
+		synchronized(s) {
+			Entry<K, V> e = s.map.get(key);
+			if(e == null || !e.value.equals(value)) return false;
+			s.map.remove(key);
+			removed(s, e);
+			return true;
+		}
+	}
+
+	/** Call with the segment locked, after removing the entry from the map. */
+	private void removed(Segment<K, V> s, Entry<K, V> e) {
+		s.unlink(e);
+		size.decrementAndGet();
+		weight.addAndGet(-e.weight);
+	}
+
+	/** @return The segment with the least recently used tail, or null if they are all
+	 * empty. Doesn't lock, so the caller must check again. */
+	private Segment<K, V> oldestSegment() {
+		Segment<K, V> oldest = null;
+		long stamp = Long.MAX_VALUE;
+		for(Segment<K, V> s : segments) {
+			long t = s.oldestStamp;
+			if(t < stamp) {
+				stamp = t;
+				oldest = s;
+			}
+		}
+		return oldest;
+	}
+
+	/** Remove the least recently used entry.
+	 * @return The entry, or null if the cache is empty. */
+	private Entry<K, V> pop() {
+		while(true) {
+			Segment<K, V> s = oldestSegment();
+			if(s == null) return null;
+			synchronized(s) {
+				Entry<K, V> e = s.head.prev;
+				if(e == s.head) continue; // Emptied since we looked.
+				s.map.remove(e.key);
+				removed(s, e);
+				return e;
+			}
+		}
+	}
+
+	private Entry<K, V> peek() {
+		while(true) {
+			Segment<K, V> s = oldestSegment();
+			if(s == null) return null;
+			synchronized(s) {
+				Entry<K, V> e = s.head.prev;
+				if(e != s.head) return e;
+			}
+		}
+	}
+
+	/** @return The least recently used key, after removing it. */
+	public K popKey() {
+		Entry<K, V> e = pop();
+		return e == null ? null : e.key;
+	}
+
+	/** @return The least recently used value, after removing it. */
+	public V popValue() {
+		Entry<K, V> e = pop();
+		return e == null ? null : e.value;
+	}
+
+	/** @return The least recently used key. */
+	public K peekKey() {
+		Entry<K, V> e = peek();
+		return e == null ? null : e.key;
+	}
+
+	/** @return The least recently used value. */
+	public V peekValue() {
+		Entry<K, V> e = peek();
+		return e == null ? null : e.value;
+	}
+
+	private void evict() {
+		while(size.get() > maxEntries || weight.get() > maxWeight) {
+			Entry<K, V> e = pop();
+			if(e == null) return;
+			if(listener != null) {
+				try {
+					listener.onEvict(e.key, e.value);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" evicting "+e.key, t);
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/** The total weight of the entries. */
+	public long weight() {
+		return weight.get();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/** Change the maximum number of entries, evicting if necessary. */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	/** Change the maximum total weight, evicting if necessary. */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+		evict();
+	}
+
+	/** Remove everything, without calling the eviction listener. */
+	public void clear() {
+		for(Segment<K, V> s : segments) {
+			synchronized(s) {
+				for(Entry<K, V> e : s.map.values())
+					removed(s, e);
+				s.map.clear();
+			}
+		}
+	}
+
+	/** @return The keys, least recently used first. A snapshot, not a view. */
+	public Enumeration<K> keys() {
+		ArrayList<K> keys = new ArrayList<K>();
+		for(Entry<K, V> e : snapshot())
+			keys.add(e.key);
+		return Collections.enumeration(keys);
+	}
+
+	/** @return The values, least recently used first. A snapshot, not a view. */
+	public Enumeration<V> values() {
+		ArrayList<V> values = new ArrayList<V>();
+		for(Entry<K, V> e : snapshot())
+			values.add(e.value);
+		return Collections.enumeration(values);
+	}
+
+	private ArrayList<Entry<K, V>> snapshot() {
+		ArrayList<Entry<K, V>> entries = new ArrayList<Entry<K, V>>(size.get());
+		for(Segment<K, V> s : segments) {
+			synchronized(s) {
+				for(Entry<K, V> e = s.head.prev; e != s.head; e = e.prev)
+					entries.add(new Entry<K, V>(e));
+			}
+		}
+		Collections.sort(entries, STAMP_ORDER);
+		return entries;
+	}
+
+	private static final Comparator<Entry<?, ?>> STAMP_ORDER = new Comparator<Entry<?, ?>>() {
+
+		@Override
+		public int compare(Entry<?, ?> a, Entry<?, ?> b) {
+			return a.stamp < b.stamp ? -1 : (a.stamp == b.stamp ? 0 : 1);
+		}
+
+	};
+
+	private static final class Entry<K, V> {
+
+		final K key;
+		V value;
+		long weight;
+		long stamp;
+		Entry<K, V> prev;
+		Entry<K, V> next;
+
+		Entry(K key) {
+			this.key = key;
+		}
+
+		/** Copy for a snapshot. */
+		Entry(Entry<K, V> e) {
+			key = e.key;
+			value = e.value;
+			stamp = e.stamp;
+		}
+
+	}
+
+	/** A map and a circular LRU list, most recently used after the head. Lock the segment
+	 * to use it. */
+	private static final class Segment<K, V> {
+
+		final HashMap<K, Entry<K, V>> map = new HashMap<K, Entry<K, V>>();
+		final Entry<K, V> head = new Entry<K, V>((K) null);
+		/** The stamp of the least recently used entry, or Long.MAX_VALUE if empty. */
+		volatile long oldestStamp = Long.MAX_VALUE;
+
+		Segment() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		void linkFirst(Entry<K, V> e) {
+			e.prev = head;
+			e.next = head.next;
+			head.next.prev = e;
+			head.next = e;
+			oldestStamp = head.prev.stamp;
+		}
+
+		void unlink(Entry<K, V> e) {
+			e.prev.next = e.next;
+			e.next.prev = e.prev;
+			e.prev = null;
+			e.next = null;
+			oldestStamp = head.prev == head ? Long.MAX_VALUE : head.prev.stamp;
+		}
+
+	}
+
+}
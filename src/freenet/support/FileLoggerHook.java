@@ -22,7 +22,6 @@ import java.util.LinkedList;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -47,6 +46,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 	private volatile boolean closed = false;
 	private boolean closedFinished = false;
+	private final Object closeLock = new Object();
 
 	protected int INTERVAL = Calendar.MINUTE;
 	protected int INTERVAL_MULTIPLIER = 5;
@@ -84,6 +84,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private DateFormat df;
 	private int[] fmt;
 	private String[] str;
+	/** Whether the format includes the thread name and the hash code, which have to be looked
+	 * up on the logging thread. */
+	private boolean logThreadName;
+	private boolean logHashCode;
 
 	/** Stream to write data to (compressed if rotate is on) */
 	protected OutputStream logStream;
@@ -104,23 +108,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * The logging threads only put the raw details of each message in the ring, without taking
+	 * any locks. The WriterThread formats them, and does the compression and rotation. If the
+	 * ring fills up, messages are dropped and the writer says how many.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final LogRingBuffer ring;
 
 	long maxOldLogfilesDiskUsage;
 	protected final LinkedList<OldLogFile> logFiles = new LinkedList<OldLogFile>();
@@ -140,10 +137,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		ring.setMaxBytes(len);
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -233,7 +227,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -244,7 +238,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -293,11 +286,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			// When we first wrote something which hasn't been flushed yet, or -1.
+			long firstUnflushed = -1;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -316,67 +306,33 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500, (int)(Math.min(maxWait-thisTime, Integer.MAX_VALUE))));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+					LogRingBuffer.Record r = ring.peek();
+					if(r != null) {
+						byte[] b;
+						try {
+							b = format(r);
+						} finally {
+							ring.remove(r);
 						}
+						write(b);
+						if(firstUnflushed == -1) firstUnflushed = thisTime;
+					}
+					long dropped = ring.takeDropped();
+					if(dropped > 0) {
+						write(("GRRR: ERROR: Logging too fast, dropped " + dropped + " entries, "
+								+ ring.bytes() + " bytes in memory\n").getBytes());
+						if(firstUnflushed == -1) firstUnflushed = thisTime;
 					}
-					if(timeoutFlush || died) {
-						// Flush to disk 
+					// Unless we are writing flat out, don't flush until the time threshold is exceeded.
+					long flush = flushTime;
+					if(firstUnflushed != -1 && (thisTime >= firstUnflushed + flush || (r == null && closed))) {
 						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+						if(altLogStream != null)
+							myWrite(altLogStream, null);
+						firstUnflushed = -1;
 					}
-					if(died) {
+					if(r != null) continue;
+					if(closed) {
 						try {
 							logStream.close();
 						} catch (IOException e) {
@@ -389,16 +345,17 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closeLock) {
 							closedFinished = true;
-							list.notifyAll();
+							closeLock.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+					long wait = 500;
+					if(firstUnflushed != -1)
+						wait = Math.max(1, Math.min(wait, firstUnflushed + flush - thisTime));
+					ring.await(wait);
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -412,6 +369,12 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		private void write(byte[] b) {
+			myWrite(logStream, b);
+			if(altLogStream != null)
+				myWrite(altLogStream, b);
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -522,7 +485,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** Only used by the WriterThread. */
+	private final Date myDate = new Date();
+	private StringBuilder formatBuffer = new StringBuilder(1024);
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -833,7 +798,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		ring = new LogRingBuffer(MAX_LIST_SIZE, 10 * (1 << 20));
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -854,6 +819,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			int type = numberOf(f[i]);
 			if(type == UNAME)
 				getUName();
+			if(type == THREAD)
+				logThreadName = true;
+			if(type == HASHCODE)
+				logHashCode = true;
 			if (!comment && (type != 0)) {
 				if (sb.length() > 0) {
 					strVec.add(sb.toString());
@@ -902,8 +871,32 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		if (closed)
 			return;
-		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+
+		// Anything which might throw has to happen before we claim a slot.
+		// The thread name and hash code may have changed by the time the writer gets to it.
+		int hashCode = (o != null && logHashCode) ? o.hashCode() : 0;
+		String thread = logThreadName ? Thread.currentThread().getName() : null;
+		int weight = (msg == null ? 4 : msg.length()) + LINE_OVERHEAD;
+		if(e != null) weight += STACK_TRACE_OVERHEAD;
+
+		LogRingBuffer.Record r = ring.claim(weight);
+		if(r == null) return; // Counted, the writer will say how many we lost.
+		r.time = System.currentTimeMillis();
+		r.source = c;
+		r.hasObject = o != null;
+		r.hashCode = hashCode;
+		r.thread = thread;
+		r.priority = priority;
+		r.message = msg;
+		r.error = e;
+		ring.publish(r);
+	}
+
+	/** Format a record. Only called by the WriterThread. */
+	private byte[] format(LogRingBuffer.Record r) {
+		if(r.raw != null) return r.raw;
+		StringBuilder sb = formatBuffer;
+		sb.setLength(0);
 		int sctr = 0;
 
 		for (int i = 0; i < fmt.length; ++i) {
@@ -912,29 +905,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					myDate.setTime(r.time);
+					sb.append(df.format(myDate));
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(r.source == null ? "<none>" : r.source.getName());
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!r.hasObject
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(r.hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(r.thread);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(r.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(r.message);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -944,6 +934,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		sb.append('\n');
 
 		// Write stacktrace if available
+		Throwable e = r.error;
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -967,66 +958,32 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			else break;
 		}
 
-		logString(sb.toString().getBytes());
+		byte[] b = sb.toString().getBytes();
+		// Don't hang on to a huge buffer after logging a huge message.
+		if(sb.capacity() > 65536)
+			formatBuffer = new StringBuilder(1024);
+		return b;
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
+	/** Rough size of a formatted stack trace, for estimating memory usage. */
+	private static final int STACK_TRACE_OVERHEAD = 1024;
 	
+	/** Queue already formatted bytes to be written to the log. Never blocks; if we are logging
+	 * too fast they are dropped. */
 	public void logString(byte[] b) {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes();
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes();
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
-		}
+		if (closed)
+			return;
+		LogRingBuffer.Record r = ring.claim(b.length + LINE_OVERHEAD);
+		if(r == null) return;
+		r.raw = b;
+		ring.publish(r);
 	}
 
+	/** @return The estimated memory used by messages waiting to be written. */
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return ring.bytes();
 	}
 
 	public static int numberOf(char c) {
@@ -1053,19 +1010,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		ring.wakeUp();
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			close();
+			synchronized(closeLock) {
 				long deadline = System.currentTimeMillis() + 10*1000;
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closeLock.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1197,7 +1155,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
 	}
 }
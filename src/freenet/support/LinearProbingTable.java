@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * The probing and deletion for an open addressing hash table with linear probing and
+ * backward shift deletion, so there are no tombstones. The subclass keeps the keys and
+ * values in its own arrays, usually of primitives, and tells us which positions are free,
+ * where the entry at a position would like to be, and how to move and clear entries.
+ *
+ * The capacity must be a power of two, and mask must be the capacity minus one. Not
+ * thread-safe.
+ */
+public abstract class LinearProbingTable {
+
+	protected int mask;
+
+	/** @return True if there is no entry at the position. */
+	protected abstract boolean isFree(int i);
+
+	/** @return The position which the entry at the position hashes to. */
+	protected abstract int homeOf(int i);
+
+	/** Move the entry at one position to another, which is free. */
+	protected abstract void move(int from, int to);
+
+	/** Remove the entry at the position, e.g. null out the value. */
+	protected abstract void clear(int i);
+
+	/** @return The next position after i. */
+	protected final int next(int i) {
+		return (i + 1) & mask;
+	}
+
+	/** @return The first free position, starting at home. The table must not be full. */
+	protected final int probeFree(int home) {
+		int i = home;
+		while(!isFree(i))
+			i = next(i);
+		return i;
+	}
+
+	/** Remove the entry at the position, and shift back any entries after it which would
+	 * otherwise become unreachable. */
+	protected final void delete(int i) {
+		int j = i;
+		while(true) {
+			j = next(j);
+			if(isFree(j)) break;
+			// Can the entry at j move to i? Only if its home is not cyclically in (i, j].
+			if(cyclicallyBetween(i, homeOf(j), j)) continue;
+			move(j, i);
+			i = j;
+		}
+		clear(i);
+	}
+
+	/** @return True if k is in (i, j], going round the end of the table if j < i. */
+	public static boolean cyclicallyBetween(int i, int k, int j) {
+		return (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+	}
+
+}
@@ -0,0 +1,189 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * A bounded queue of log records between any number of logging threads and a single writer
+ * thread, which doesn't take any locks. The records are allocated up front and reused, so a
+ * logging thread only claims a slot, fills in the raw details of the message and publishes it;
+ * all the formatting is left to the writer.
+ *
+ * Each slot has a sequence number which says whether it is free for the producer at a given
+ * position, or published for the consumer. Producers claim a position with a compare and set
+ * on the tail, so they never wait for each other or for the writer. If the ring is full, or
+ * the estimated memory used by the queued messages is over the limit, the record is dropped
+ * and counted instead, so logging never blocks the thread doing the logging. The writer can
+ * then say how many it lost.
+ *
+ * A claimed slot must always be published, and the writer can't get past it until it is, so
+ * callers should do anything which might throw before claiming.
+ */
+public final class LogRingBuffer {
+
+	/** The contents of one slot. Filled in by the producer between claim() and publish(), and
+	 * read by the consumer between peek() and remove(). */
+	public static final class Record {
+
+		/** When the message was logged. */
+		public long time;
+		public Class<?> source;
+		/** Whether the message was logged with an object, and if so its hash code. */
+		public boolean hasObject;
+		public int hashCode;
+		/** The name of the logging thread, or null if the format doesn't need it. */
+		public String thread;
+		public LogLevel priority;
+		public String message;
+		public Throwable error;
+		/** If not null, already formatted bytes to write as they are, and the other fields are
+		 * ignored. */
+		public byte[] raw;
+
+		long position;
+		int weight;
+
+		void clear() {
+			source = null;
+			thread = null;
+			priority = null;
+			message = null;
+			error = null;
+			raw = null;
+		}
+
+	}
+
+	private final Record[] records;
+	/** For each slot: equal to a position if free for the producer at that position, or to
+	 * the position plus one if published at that position. */
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only used by the consumer. */
+	private long head;
+	/** The estimated memory used by the queued records. */
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile long maxBytes;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile Thread consumer;
+	private volatile boolean consumerWaiting;
+
+	/**
+	 * @param minCapacity The minimum number of records. Rounded up to a power of 2.
+	 * @param maxBytes The maximum estimated memory used by the queued records.
+	 */
+	public LogRingBuffer(int minCapacity, long maxBytes) {
+		int capacity = 1;
+		while(capacity < minCapacity)
+			capacity <<= 1;
+		records = new Record[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int i=0;i<capacity;i++) {
+			records[i] = new Record();
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Claim the next slot. The caller must fill it in and then publish() it.
+	 * @param weight The estimated memory used by the message.
+	 * @return The slot, or null if the record was dropped because the buffer is full.
+	 */
+	public Record claim(int weight) {
+		if(bytes.addAndGet(weight) > maxBytes) {
+			bytes.addAndGet(-weight);
+			dropped.incrementAndGet();
+			return null;
+		}
+		long pos = tail.get();
+		while(true) {
+			int idx = (int)pos & mask;
+			long seq = sequences.get(idx);
+			if(seq == pos) {
+				if(tail.compareAndSet(pos, pos+1)) {
+					Record r = records[idx];
+					r.position = pos;
+					r.weight = weight;
+					return r;
+				}
+			} else if(seq < pos) {
+				// The consumer hasn't finished with the record from the last time round.
+				bytes.addAndGet(-weight);
+				dropped.incrementAndGet();
+				return null;
+			}
+			pos = tail.get();
+		}
+	}
+
+	/** Make a claimed record visible to the consumer, and wake it up if it is waiting. */
+	public void publish(Record r) {
+		sequences.set((int)r.position & mask, r.position + 1);
+		if(consumerWaiting)
+			LockSupport.unpark(consumer);
+	}
+
+	/** Consumer only.
+	 * @return The oldest published record, or null if there isn't one. */
+	public Record peek() {
+		int idx = (int)head & mask;
+		if(sequences.get(idx) != head + 1) return null;
+		return records[idx];
+	}
+
+	/** Consumer only. Free the record returned by peek() for reuse. */
+	public void remove(Record r) {
+		r.clear();
+		bytes.addAndGet(-r.weight);
+		sequences.set((int)head & mask, head + records.length);
+		head++;
+	}
+
+	/** Consumer only. Wait until a record is published, wakeUp() is called, or the timeout
+	 * expires. May return early. */
+	public void await(long timeout) {
+		consumer = Thread.currentThread();
+		consumerWaiting = true;
+		try {
+			if(peek() == null)
+				LockSupport.parkNanos(this, timeout * 1000 * 1000);
+		} finally {
+			consumerWaiting = false;
+		}
+	}
+
+	/** Wake up the consumer if it is waiting, e.g. because we are closing. */
+	public void wakeUp() {
+		Thread t = consumer;
+		if(t != null) LockSupport.unpark(t);
+	}
+
+	/** @return The number of records dropped since the last call. */
+	public long takeDropped() {
+		return dropped.getAndSet(0);
+	}
+
+	/** @return The estimated memory used by the queued records. */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int capacity() {
+		return records.length;
+	}
+
+}
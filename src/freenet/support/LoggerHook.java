@@ -6,7 +6,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class LoggerHook extends Logger {
 
-	protected LogLevel threshold;
+	protected volatile LogLevel threshold;
 
 	public static final class DetailedThreshold {
 		final String section;
@@ -25,7 +25,7 @@ public abstract class LoggerHook extends Logger {
 		this.threshold = parseThreshold(thresh.toUpperCase());
 	}
 
-	public DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
+	public volatile DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
 	private CopyOnWriteArrayList<LogThresholdCallback> thresholdsCallbacks = new CopyOnWriteArrayList<LogThresholdCallback>();
 
 	/**
@@ -184,12 +184,9 @@ public abstract class LoggerHook extends Logger {
 
 	@Override
 	public boolean instanceShouldLog(LogLevel priority, Class<?> c) {
-		DetailedThreshold[] thresholds;
-		LogLevel thresh;
-		synchronized(this) {
-			thresholds = detailedThresholds;
-			thresh = threshold;
-		}
+		// Both are volatile and replaced rather than modified, so we don't need to lock.
+		DetailedThreshold[] thresholds = detailedThresholds;
+		LogLevel thresh = threshold;
 		if ((c != null) && (thresholds.length > 0)) {
 			String cname = c.getName();
 				for(DetailedThreshold dt : thresholds) {
@@ -9,8 +9,9 @@ package freenet.support;
 public class LoggerHookChain extends LoggerHook {
 
     // Best performance, least synchronization.
-    // We will only very rarely add or remove hooks
-    private LoggerHook[] hooks;
+    // We will only very rarely add or remove hooks, so replace the array when we do and
+    // let log() read it without locking.
+    private volatile LoggerHook[] hooks;
 
     /**
      * Create a logger. Threshhold set to NORMAL.
@@ -40,7 +41,7 @@ public class LoggerHookChain extends LoggerHook {
      * @implements LoggerHook.log()
      */
     @Override
-	public synchronized void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
+	public void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
         LoggerHook[] myHooks = hooks;
         for(int i=0;i<myHooks.length;i++) {
             myHooks[i].log(o,c,msg,e,priority);
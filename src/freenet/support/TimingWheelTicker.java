@@ -0,0 +1,362 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker based on a hierarchical timing wheel, with the same behaviour as
+ * {@link PrioritizedTicker}. Queueing and removing a job don't take any locks: new and
+ * cancelled jobs are handed to the ticker thread on lock-free queues, and only the ticker
+ * thread touches the wheel. Inserting, cancelling and running a job are all O(1), whereas
+ * PrioritizedTicker needs O(log n) for each and holds a single lock while doing it.
+ *
+ * The wheel has a resolution of one millisecond. The first level has a slot for each of the
+ * next 256 milliseconds, and each of the 4 levels above it covers 64 times as long as the one
+ * below, so up to 2^32 milliseconds (about 50 days) ahead. Jobs further in the future wait
+ * at the top of the wheel and are re-inserted when it comes round. As in the Linux kernel,
+ * a slot on a higher level is emptied into the levels below it when the level below wraps.
+ */
+public class TimingWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final int ROOT_BITS = 8;
+	private static final int ROOT_SIZE = 1 << ROOT_BITS;
+	private static final int ROOT_MASK = ROOT_SIZE - 1;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+	private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+	private static final int LEVELS = 4;
+	/** The furthest ahead a job can be placed on the wheel. */
+	private static final long MAX_DELTA = (1L << (ROOT_BITS + LEVELS * LEVEL_BITS)) - 1;
+	static final int MAX_SLEEP_TIME = 200;
+
+	private static final int PENDING = 0;
+	private static final int DONE = 1;
+
+	/** Compares jobs by identity, like PrioritizedTicker does for noDupes. */
+	private static final class JobKey {
+		final Runnable job;
+
+		JobKey(Runnable job) {
+			this.job = job;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof JobKey)) return false;
+			return ((JobKey)o).job == job;
+		}
+
+		@Override
+		public int hashCode() {
+			return job.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		final JobKey key;
+		final String name;
+		/** When to run the job, in milliseconds. */
+		final long time;
+		/** PENDING until the job is either run or cancelled. */
+		volatile int state;
+		// Only used by the ticker thread.
+		Entry prev;
+		Entry next;
+		/** The head of the slot list we are on, or null. */
+		Entry slot;
+
+		Entry(JobKey key, String name, long time) {
+			this.key = key;
+			this.name = name;
+			this.time = time;
+		}
+
+		/** List head. */
+		Entry() {
+			this(null, null, 0);
+			prev = next = this;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+name;
+		}
+	}
+
+	private static final AtomicIntegerFieldUpdater<Entry> STATE =
+		AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+	/** Jobs queued but not yet on the wheel. */
+	private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+	/** Jobs cancelled since the ticker thread last looked, to take off the wheel. */
+	private final ConcurrentLinkedQueue<Entry> cancelled = new ConcurrentLinkedQueue<Entry>();
+	/** The most recently queued entry for each job, for noDupes and removeQueuedJob(). */
+	private final ConcurrentHashMap<JobKey, Entry> queuedByJob = new ConcurrentHashMap<JobKey, Entry>();
+	private final AtomicInteger queued = new AtomicInteger();
+
+	// Only used by the ticker thread.
+	private final Entry[] root = new Entry[ROOT_SIZE];
+	private final Entry[][] levels = new Entry[LEVELS][LEVEL_SIZE];
+	/** The next tick (millisecond) whose slot hasn't been run yet. */
+	private long nextTick;
+	/** Number of entries on the wheel, including cancelled ones which haven't been removed. */
+	private int onWheel;
+
+	/** When the ticker thread will next wake up by itself. */
+	private volatile long wakeTime = Long.MAX_VALUE;
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		for(int i = 0; i < ROOT_SIZE; i++)
+			root[i] = new Entry();
+		for(int i = 0; i < LEVELS; i++)
+			for(int j = 0; j < LEVEL_SIZE; j++)
+				levels[i][j] = new Entry();
+		nextTick = System.currentTimeMillis();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in TimingWheelTicker: " + t, t);
+				System.err.println("Caught in TimingWheelTicker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		Entry e;
+		while((e = cancelled.poll()) != null)
+			unlink(e);
+		while((e = incoming.poll()) != null) {
+			if(e.state == PENDING)
+				insert(e);
+		}
+
+		long now = System.currentTimeMillis();
+		if(onWheel == 0 && nextTick < now)
+			nextTick = now; // Nothing to do in between.
+
+		ArrayList<Entry> jobsToRun = null;
+		while(nextTick <= now) {
+			int index = (int) (nextTick & ROOT_MASK);
+			if(index == 0) cascade();
+			Entry head = root[index];
+			while(head.next != head) {
+				e = head.next;
+				unlink(e);
+				if(!STATE.compareAndSet(e, PENDING, DONE)) continue; // Cancelled.
+				queued.decrementAndGet();
+				queuedByJob.remove(e.key, e);
+				if(jobsToRun == null)
+					jobsToRun = new ArrayList<Entry>();
+				jobsToRun.add(e);
+			}
+			nextTick++;
+		}
+
+		if(jobsToRun != null)
+			for(Entry r : jobsToRun) {
+				if(logMINOR)
+					Logger.minor(this, "Running " + r);
+				if(r.key.job instanceof FastRunnable)
+					// Run in-line
+
+					try {
+						r.key.job.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running " + r, t);
+					}
+				else
+					try {
+						executor.execute(r.key.job, r.name, true);
+					} catch(OutOfMemoryError oom) {
+						OOMHandler.handleOOM(oom);
+						System.err.println("Will retry above failed operation...");
+						queueTimedJob(r.key.job, r.name, 200, true, false);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught in TimingWheelTicker: " + t, t);
+						System.err.println("Caught in TimingWheelTicker: " + t);
+						t.printStackTrace();
+					}
+			}
+
+		long wakeAt = Math.min(nextDue(), System.currentTimeMillis() + MAX_SLEEP_TIME);
+		wakeTime = wakeAt;
+		// Anything queued after this point will see the new wakeTime, and unpark us if needed.
+		if(!incoming.isEmpty() || !cancelled.isEmpty()) return;
+		long sleepTime = wakeAt - System.currentTimeMillis();
+		if(sleepTime > 0) {
+			if(logMINOR)
+				Logger.minor(this, "Sleeping for " + sleepTime);
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleepTime));
+		}
+	}
+
+	/** Empty the next slot on each higher level into the levels below, as they wrap round. */
+	private void cascade() {
+		for(int level = 0; level < LEVELS; level++) {
+			int index = (int) ((nextTick >> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK);
+			Entry head = levels[level][index];
+			while(head.next != head) {
+				Entry e = head.next;
+				unlink(e);
+				if(e.state == PENDING)
+					insert(e);
+			}
+			if(index != 0) break;
+		}
+	}
+
+	/** The time of the next job on the first level, or when the first level wraps. */
+	private long nextDue() {
+		long tick = nextTick;
+		for(int i = 0; i < ROOT_SIZE; i++, tick++) {
+			int index = (int) (tick & ROOT_MASK);
+			if(index == 0 && i != 0) break;
+			if(root[index].next != root[index]) return tick;
+		}
+		return tick;
+	}
+
+	private void insert(Entry e) {
+		long time = Math.max(e.time, nextTick);
+		long delta = time - nextTick;
+		if(delta > MAX_DELTA) {
+			// Park it at the furthest slot, it will be re-inserted when we get there.
+			delta = MAX_DELTA;
+			time = nextTick + delta;
+		}
+		Entry head;
+		if(delta < ROOT_SIZE) {
+			head = root[(int) (time & ROOT_MASK)];
+		} else {
+			int level = 0;
+			while(delta >= 1L << (ROOT_BITS + (level + 1) * LEVEL_BITS))
+				level++;
+			head = levels[level][(int) ((time >> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK)];
+		}
+		e.slot = head;
+		e.prev = head.prev;
+		e.next = head;
+		head.prev.next = e;
+		head.prev = e;
+		onWheel++;
+	}
+
+	private void unlink(Entry e) {
+		if(e.slot == null) return;
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = e.next = null;
+		e.slot = null;
+		onWheel--;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time. The parameters are the same as for
+	 * {@link PrioritizedTicker#queueTimedJob(Runnable, String, long, boolean, boolean)}, except
+	 * that noDupes is cheap here.
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		// Run directly *if* that won't cause any priority problems.
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		if(offset < 0) offset = 0;
+		JobKey key = new JobKey(runner);
+		Entry e = new Entry(key, name, System.currentTimeMillis() + offset);
+		while(true) {
+			Entry old = queuedByJob.get(key);
+			if(old != null && noDupes && old.state == PENDING && old.time <= e.time) {
+				Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+				return;
+			}
+			if(old == null ? queuedByJob.putIfAbsent(key, e) == null : queuedByJob.replace(key, old, e)) {
+				// Delete the existing job because the new job will run first.
+				if(old != null && noDupes)
+					cancel(old);
+				break;
+			}
+		}
+		queued.incrementAndGet();
+		incoming.add(e);
+		if(e.time < wakeTime)
+			LockSupport.unpark(myThread);
+	}
+
+	private void cancel(Entry e) {
+		if(STATE.compareAndSet(e, PENDING, DONE)) {
+			queued.decrementAndGet();
+			cancelled.add(e);
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public int queuedJobs() {
+		return queued.get();
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		Entry e = queuedByJob.remove(new JobKey(runnable));
+		if(e != null)
+			cancel(e);
+	}
+
+}
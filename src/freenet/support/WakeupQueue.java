@@ -0,0 +1,117 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A set of items, each with the time at which it next needs attention, for a thread which
+ * only wants to look at the items which are due rather than scanning all of them. Each item
+ * is in the queue at most once. Scheduling an item which is already queued only ever moves it
+ * earlier, so several events can ask for an item to be looked at and it is looked at once, at
+ * the earliest time any of them asked for. Items are popped when they are due, and the caller
+ * schedules them again when it has dealt with them.
+ *
+ * Items with the same time are popped in the order they were scheduled.
+ */
+public class WakeupQueue<T> {
+
+	private final HashMap<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+	private final TreeSet<Entry<T>> queue = new TreeSet<Entry<T>>();
+	private long counter;
+
+	/**
+	 * Schedule an item, unless it is already scheduled for the same time or earlier.
+	 * @return True if the item is now the first in the queue, so whatever is waiting for the
+	 * queue may need to wake up earlier than it planned to.
+	 */
+	public synchronized boolean schedule(T item, long time) {
+		Entry<T> e = entries.get(item);
+		if(e != null) {
+			if(e.time <= time) return false;
+			queue.remove(e);
+		}
+		e = new Entry<T>(item, time, counter++);
+		entries.put(item, e);
+		queue.add(e);
+		return queue.first() == e;
+	}
+
+	/** @return True if the item was queued. */
+	public synchronized boolean remove(T item) {
+		Entry<T> e = entries.remove(item);
+		if(e == null) return false;
+		queue.remove(e);
+		return true;
+	}
+
+	public synchronized boolean contains(T item) {
+		return entries.containsKey(item);
+	}
+
+	/** @return The time the item is scheduled for, or Long.MAX_VALUE if it isn't queued. */
+	public synchronized long getTime(T item) {
+		Entry<T> e = entries.get(item);
+		return e == null ? Long.MAX_VALUE : e.time;
+	}
+
+	/**
+	 * Remove every item which is due, i.e. scheduled for now or earlier.
+	 * @param out The due items are added to this, earliest first.
+	 * @return The number of items removed.
+	 */
+	public synchronized int popDue(long now, Collection<T> out) {
+		int count = 0;
+		Iterator<Entry<T>> it = queue.iterator();
+		while(it.hasNext()) {
+			Entry<T> e = it.next();
+			if(e.time > now) break;
+			it.remove();
+			entries.remove(e.item);
+			out.add(e.item);
+			count++;
+		}
+		return count;
+	}
+
+	/** @return The time of the first item, or Long.MAX_VALUE if the queue is empty. */
+	public synchronized long nextTime() {
+		if(queue.isEmpty()) return Long.MAX_VALUE;
+		return queue.first().time;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	private static final class Entry<T> implements Comparable<Entry<T>> {
+
+		final T item;
+		final long time;
+		/** Breaks ties between items with the same time. */
+		final long sequence;
+
+		Entry(T item, long time, long sequence) {
+			this.item = item;
+			this.time = time;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry<T> o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			if(sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,397 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a pool of long-lived worker threads for each priority, as an alternative to
+ * {@link PooledExecutor}. Nothing here takes a global lock: jobs go onto lock-free queues,
+ * and idle workers park until they are needed. A job submitted from a worker goes onto that
+ * worker's own queue, and idle workers steal from the other workers' queues when there is
+ * nothing on the shared queue.
+ *
+ * Each pool is limited to maxThreads, but jobs often wait for other jobs at the same
+ * priority, so a hard limit could deadlock the node. If a job has waited for
+ * {@link #STARVATION_TIME} and no worker has become free, we start another worker anyway.
+ * Workers which have been idle for {@link #TIMEOUT} exit.
+ *
+ * Workers are created with the priority of their pool. A thread can't create a thread with a
+ * higher native priority than its own, so if the caller's priority is too low, the worker is
+ * created by our own spawner thread, which runs at maximum priority.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Idle workers exit after this long. */
+	static final int TIMEOUT = 5 * 60 * 1000;
+	/** Start another worker, even beyond the limit, if a job has waited this long with no
+	 * worker becoming free. */
+	static final int STARVATION_TIME = 1000;
+	/** How often the spawner thread looks for waiting jobs. */
+	static final int CHECK_INTERVAL = 100;
+
+	private final Band[] bands = new Band[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreads;
+	/** Pools which need a worker created at a higher priority than the caller's. */
+	private final ConcurrentLinkedQueue<Band> spawnRequests = new ConcurrentLinkedQueue<Band>();
+	private final NativeThread spawner;
+	private volatile boolean started;
+
+	/**
+	 * @param maxThreads The number of workers for each priority. More may be started if jobs
+	 * are waiting for too long.
+	 */
+	public WorkStealingExecutor(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException();
+		this.maxThreads = maxThreads;
+		for(int i = 0; i < bands.length; i++)
+			bands[i] = new Band(i + 1);
+		spawner = new NativeThread(new Runnable() {
+
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						spawnerRun();
+					} catch(OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " in executor spawner", t);
+					}
+				}
+			}
+
+		}, "Executor thread spawner", NativeThread.MAX_PRIORITY, false);
+		spawner.setDaemon(true);
+	}
+
+	public synchronized void start() {
+		if(started) return;
+		started = true;
+		spawner.start();
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Band band = bands[prio - 1];
+		Job job = new Job(runnable, jobName);
+		band.queued.incrementAndGet();
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).band == band)
+			((Worker) current).local.add(job);
+		else
+			band.shared.add(job);
+		wakeOrStart(band, fromTicker);
+	}
+
+	private void wakeOrStart(Band band, boolean fromTicker) {
+		Worker idle = band.idle.poll();
+		if(idle != null) {
+			LockSupport.unpark(idle);
+			return;
+		}
+		// Otherwise wait for a worker to become free, the spawner will deal with it if it takes
+		// too long.
+		if(!band.reserveThread(maxThreads)) return;
+		if(started && NativeThread.usingNativeCode() && band.prio > Thread.currentThread().getPriority()) {
+			// Get the spawner to create it with the right priority, since we can't.
+			spawnRequests.add(band);
+			LockSupport.unpark(spawner);
+		} else
+			band.startWorker(!fromTicker);
+	}
+
+	private void spawnerRun() {
+		Band band;
+		while((band = spawnRequests.poll()) != null)
+			band.startWorker(false);
+		long now = System.nanoTime();
+		for(Band b : bands)
+			b.checkWaiting(now);
+		LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL));
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, bands[i].threads.get() - bands[i].idle.size());
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].idle.size();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		int count = 0;
+		for(Band band : bands)
+			count += band.idle.size();
+		return count;
+	}
+
+	/** Count the jobs waiting for a worker at each priority level */
+	public int[] queuedJobs() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].queued.get();
+		return result;
+	}
+
+	/** Average time jobs at each priority level have waited for a worker, in milliseconds */
+	public double[] averageWaitTimes() {
+		double[] result = new double[bands.length];
+		for(int i = 0; i < result.length; i++) {
+			long started = bands[i].jobsStarted.get();
+			if(started > 0)
+				result[i] = bands[i].totalWaitNanos.get() / (started * 1000000.0);
+		}
+		return result;
+	}
+
+	/** Count the jobs which have been started at each priority level */
+	public long[] jobsStarted() {
+		long[] result = new long[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].jobsStarted.get();
+		return result;
+	}
+
+	/** Count the workers which have been created at each priority level */
+	public long[] threadsCreated() {
+		long[] result = new long[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].threadCounter.get();
+		return result;
+	}
+
+	private static class Job {
+		final Runnable runnable;
+		final String name;
+		final long queuedTime = System.nanoTime();
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+		}
+	}
+
+	/** The queues and workers for a single priority. */
+	private class Band {
+		final int prio;
+		/** Jobs submitted from outside the pool. */
+		final ConcurrentLinkedQueue<Job> shared = new ConcurrentLinkedQueue<Job>();
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Workers which are parked waiting for a job. */
+		final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+		/** Workers running or starting. */
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		final AtomicLong jobsStarted = new AtomicLong();
+		final AtomicLong totalWaitNanos = new AtomicLong();
+		/** Only used by the spawner thread. */
+		long lastExtraWorker;
+
+		Band(int prio) {
+			this.prio = prio;
+		}
+
+		boolean reserveThread(int max) {
+			while(true) {
+				int count = threads.get();
+				if(count >= max) return false;
+				if(threads.compareAndSet(count, count + 1)) return true;
+			}
+		}
+
+		/** Start a worker. The caller must already have counted it in threads. */
+		void startWorker(boolean dontCheckRenice) {
+			long threadNo = threadCounter.getAndIncrement();
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker w = new Worker(this, "Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo, dontCheckRenice);
+			w.setDaemon(true);
+			workers.add(w);
+			try {
+				w.start();
+			} catch(Throwable t) {
+				workers.remove(w);
+				threads.decrementAndGet();
+				Logger.error(this, "Unable to start worker: " + t, t);
+				if(t instanceof OutOfMemoryError) throw (OutOfMemoryError) t;
+			}
+		}
+
+		/** Find a job: our own queue first, then the shared queue, then the other workers. */
+		Job next(Worker w) {
+			Job job = w.local.poll();
+			if(job == null)
+				job = shared.poll();
+			if(job == null) {
+				Object[] all = workers.toArray();
+				int start = w.stealFrom++;
+				for(int i = 0; i < all.length && job == null; i++) {
+					Worker victim = (Worker) all[(start + i) % all.length];
+					if(victim != w)
+						job = victim.local.poll();
+				}
+			}
+			if(job != null) {
+				queued.decrementAndGet();
+				jobsStarted.incrementAndGet();
+				totalWaitNanos.addAndGet(System.nanoTime() - job.queuedTime);
+			}
+			return job;
+		}
+
+		/** When the longest waiting job was queued, or Long.MAX_VALUE if there are none. */
+		long oldestQueuedTime() {
+			long oldest = Long.MAX_VALUE;
+			Job job = shared.peek();
+			if(job != null) oldest = job.queuedTime;
+			for(Worker w : workers) {
+				job = w.local.peek();
+				if(job != null && job.queuedTime - oldest < 0)
+					oldest = job.queuedTime;
+			}
+			return oldest;
+		}
+
+		/** Called by the spawner thread to make sure jobs don't wait forever. */
+		void checkWaiting(long now) {
+			if(queued.get() <= 0 || !idle.isEmpty()) return;
+			long oldest = oldestQueuedTime();
+			if(oldest == Long.MAX_VALUE) return;
+			long waited = TimeUnit.NANOSECONDS.toMillis(now - oldest);
+			if(waited < CHECK_INTERVAL) return;
+			if(reserveThread(maxThreads)) {
+				startWorker(false);
+			} else if(waited >= STARVATION_TIME && TimeUnit.NANOSECONDS.toMillis(now - lastExtraWorker) >= STARVATION_TIME) {
+				lastExtraWorker = now;
+				threads.incrementAndGet();
+				Logger.normal(this, "All " + (threads.get() - 1) + " workers at priority " + prio + " are busy and a job has waited " + waited + "ms, starting another");
+				startWorker(false);
+			}
+		}
+	}
+
+	private class Worker extends NativeThread {
+		final Band band;
+		final String defaultName;
+		final long threadNo;
+		/** Jobs submitted by this worker. */
+		final ConcurrentLinkedQueue<Job> local = new ConcurrentLinkedQueue<Job>();
+		/** Where to start looking when stealing. */
+		int stealFrom;
+
+		Worker(Band band, String defaultName, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, band.prio, dontCheckRenice);
+			this.band = band;
+			this.defaultName = defaultName;
+			this.threadNo = threadNo;
+			stealFrom = (int) threadNo;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			long idleSince = -1;
+			while(true) {
+				Job job = band.next(this);
+				if(job == null) {
+					if(idleSince == -1) {
+						idleSince = System.currentTimeMillis();
+						setName(defaultName);
+					}
+					band.idle.add(this);
+					// Check again in case a job was queued before we were on the idle list.
+					job = band.next(this);
+					if(job == null) {
+						LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(TIMEOUT));
+						// If we are not on the list any more, somebody has a job for us.
+						boolean woken = !band.idle.remove(this);
+						if(woken || System.currentTimeMillis() - idleSince < TIMEOUT) continue;
+						if(exit()) {
+							if(logMINOR)
+								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+							return;
+						}
+						continue;
+					}
+					band.idle.remove(this);
+				}
+				idleSince = -1;
+
+				// Run the job
+				try {
+					setName(job.name + "(" + threadNo + ")");
+					job.runnable.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + job, t);
+				}
+				ranJobs++;
+			}
+		}
+
+		/** @return False if a job has turned up, so we should carry on. */
+		private boolean exit() {
+			band.workers.remove(this);
+			band.threads.decrementAndGet();
+			// A job may have been queued just after we stopped counting as idle.
+			if(band.queued.get() > 0 || !local.isEmpty()) {
+				band.threads.incrementAndGet();
+				band.workers.add(this);
+				return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.db4o.ObjectContainer;
+
+import freenet.crypt.CTRMode;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SHA256;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * A proxy Bucket which adds:
+ * - Encryption with Rijndael in counter mode, with a random, ephemeral key and IV.
+ * - Padding to the next PO2 size.
+ *
+ * The same as PaddedEphemerallyEncryptedBucket, except that because counter mode can start
+ * anywhere, skipping on an input stream doesn't have to decrypt everything it skips, and the
+ * data is encrypted and decrypted a block at a time rather than a byte at a time. We use this
+ * for new temp buckets; PaddedEphemerallyEncryptedBucket is still needed for existing
+ * persistent buckets.
+ *
+ * CRYPTO WARNING: The key is only safe to use once, see CTRMode. Writing the data again
+ * through a new output stream rewrites the same positions, so each output stream after the
+ * first uses a new IV, the hash of the previous one.
+ */
+public class CTREncryptedBucket implements Bucket {
+
+	private final Bucket bucket;
+	private final int minPaddedSize;
+	/** The decryption key. */
+	private final byte[] key;
+	/** The IV for the current data. Replaced for each output stream. */
+	private byte[] iv;
+	private final byte[] randomSeed;
+	private long dataLength;
+	private boolean readOnly;
+	private int lastOutputStream;
+
+	static final int BUFFER_SIZE = 32768;
+
+        private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/**
+	 * Create a padded encrypted proxy bucket.
+	 * @param bucket The bucket which we are proxying to. Must be empty.
+	 * @param minSize The minimum padded size of the file (after it has been closed).
+	 * @param strongPRNG a strong prng we will key from.
+	 * @param weakPRNG a week prng we will padd from.
+	 * Serialization: Note that it is not our responsibility to free the random number generators,
+	 * but we WILL free the underlying bucket.
+	 */
+	public CTREncryptedBucket(Bucket bucket, int minSize, RandomSource strongPRNG, Random weakPRNG) {
+		this.bucket = bucket;
+		if(bucket.size() != 0) throw new IllegalArgumentException("Bucket must be empty");
+		randomSeed = new byte[32];
+		weakPRNG.nextBytes(randomSeed);
+		key = new byte[32];
+		strongPRNG.nextBytes(key);
+		iv = new byte[32];
+		strongPRNG.nextBytes(iv);
+		this.minPaddedSize = minSize;
+	}
+
+	public CTREncryptedBucket(CTREncryptedBucket orig, Bucket newBucket) {
+		synchronized(orig) {
+			this.dataLength = orig.dataLength;
+			this.key = orig.key.clone();
+			this.iv = orig.iv.clone();
+		}
+		this.randomSeed = null; // Will be read-only
+		setReadOnly();
+		this.bucket = newBucket;
+		this.minPaddedSize = orig.minPaddedSize;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if(readOnly) throw new IOException("Read only");
+		OutputStream os = bucket.getOutputStream();
+		int streamNumber;
+		byte[] currentIV;
+		synchronized(this) {
+			dataLength = 0;
+			streamNumber = ++lastOutputStream;
+			// Don't reuse the keystream for different data.
+			if(streamNumber > 1)
+				iv = SHA256.digest(iv);
+			currentIV = iv;
+		}
+		return new CTREncryptedOutputStream(os, streamNumber, getCTR(currentIV));
+	}
+
+	private class CTREncryptedOutputStream extends OutputStream {
+
+		final CTRMode ctr;
+		final OutputStream out;
+		final int streamNumber;
+		private byte[] buffer;
+		private boolean closed;
+
+		public CTREncryptedOutputStream(OutputStream out, int streamNumber, CTRMode ctr) {
+			this.out = out;
+			this.streamNumber = streamNumber;
+			this.ctr = ctr;
+		}
+
+		private void checkOpen() throws IOException {
+			if(closed) throw new IOException("Already closed!");
+			if(streamNumber != lastOutputStream)
+				throw new IllegalStateException("Writing to old stream in "+getName());
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			checkOpen();
+			int toWrite = ctr.process(b);
+			synchronized(CTREncryptedBucket.this) {
+				out.write(toWrite);
+				dataLength++;
+			}
+		}
+
+		@Override
+		public void write(byte[] buf) throws IOException {
+			write(buf, 0, buf.length);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			checkOpen();
+			if(length == 0) return;
+			if(buffer == null)
+				buffer = new byte[Math.min(BUFFER_SIZE, Math.max(length, 4096))];
+			while(length > 0) {
+				int chunk = Math.min(length, buffer.length);
+				System.arraycopy(buf, offset, buffer, 0, chunk);
+				ctr.process(buffer, 0, chunk);
+				synchronized(CTREncryptedBucket.this) {
+					out.write(buffer, 0, chunk);
+					dataLength += chunk;
+				}
+				offset += chunk;
+				length -= chunk;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			try {
+				if(streamNumber != lastOutputStream) {
+					Logger.normal(this, "Not padding out to length because have been superceded: "+getName());
+					return;
+				}
+				Random random = new MersenneTwister(randomSeed);
+				synchronized(CTREncryptedBucket.this) {
+					long finalLength = paddedLength();
+					long padding = finalLength - dataLength;
+					byte[] buf = new byte[(int) Math.min(padding, 65536)];
+					long writtenPadding = 0;
+					while(writtenPadding < padding) {
+						int left = (int) Math.min(padding - writtenPadding, buf.length);
+						random.nextBytes(buf);
+						out.write(buf, 0, left);
+						writtenPadding += left;
+					}
+				}
+			} finally {
+				closed = true;
+				out.flush();
+				out.close();
+			}
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		byte[] currentIV;
+		synchronized(this) {
+			currentIV = iv;
+		}
+		return new CTREncryptedInputStream(bucket.getInputStream(), getCTR(currentIV));
+	}
+
+	private class CTREncryptedInputStream extends InputStream {
+
+		final InputStream in;
+		final CTRMode ctr;
+
+		public CTREncryptedInputStream(InputStream in, CTRMode ctr) {
+			this.in = in;
+			this.ctr = ctr;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(ctr.getPosition() >= size()) return -1;
+			int x = in.read();
+			if(x == -1) return x;
+			return ctr.process(x);
+		}
+
+		@Override
+		public final int available() {
+			long x = Math.min(size() - ctr.getPosition(), Integer.MAX_VALUE);
+			return (x < 0) ? 0 : (int) x;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if((length+offset > buf.length) || (offset < 0) || (length < 0))
+				throw new ArrayIndexOutOfBoundsException("a="+offset+", b="+length+", length "+buf.length);
+			int x = available();
+			if(x <= 0) return -1;
+			length = Math.min(length, x);
+			int readBytes = in.read(buf, offset, length);
+			if(readBytes <= 0) return readBytes;
+			ctr.process(buf, offset, readBytes);
+			return readBytes;
+		}
+
+		@Override
+		public int read(byte[] buf) throws IOException {
+			return read(buf, 0, buf.length);
+		}
+
+		/** Skip on the underlying stream, without decrypting anything. */
+		@Override
+		public long skip(long bytes) throws IOException {
+			long skipped = in.skip(Math.min(bytes, available()));
+			if(skipped > 0)
+				ctr.seek(ctr.getPosition() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Return the length of the data in the proxied bucket, after padding.
+	 */
+	public synchronized long paddedLength() {
+		long max = PaddedEphemerallyEncryptedBucket.paddedLength(dataLength, minPaddedSize);
+		if(logMINOR)
+			Logger.minor(this, "Padded: "+max+" was: "+dataLength+" for "+getName());
+		return max;
+	}
+
+	private CTRMode getCTR(byte[] iv) {
+		Rijndael aes;
+		try {
+			aes = new Rijndael(256, 256);
+		} catch (UnsupportedCipherException e) {
+			throw new Error(e);
+		}
+		aes.initialize(key);
+		return new CTRMode(aes, iv);
+	}
+
+	@Override
+	public String getName() {
+		return "Encrypted:"+bucket.getName();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+ ':' +bucket;
+	}
+
+	@Override
+	public synchronized long size() {
+		return dataLength;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public void setReadOnly() {
+		readOnly = true;
+	}
+
+	/**
+	 * @return The underlying Bucket.
+	 */
+	public Bucket getUnderlying() {
+		return bucket;
+	}
+
+	@Override
+	public void free() {
+		bucket.free();
+	}
+
+	@Override
+	public void storeTo(ObjectContainer container) {
+		bucket.storeTo(container);
+		container.store(this);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		if(logMINOR)
+			Logger.minor(this, "Removing from database: "+this);
+		bucket.removeFrom(container);
+		container.delete(this);
+	}
+
+	public void objectOnActivate(ObjectContainer container) {
+		// Cascading activation of dependancies
+		container.activate(bucket, 1);
+	}
+
+	@Override
+	public Bucket createShadow() {
+		Bucket newUnderlying = bucket.createShadow();
+		if(newUnderlying == null) return null;
+		return new CTREncryptedBucket(this, newUnderlying);
+	}
+
+}
@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+
+import freenet.crypt.CTRMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * A proxy RandomAccessThing which encrypts with Rijndael (256 bit key, 256 bit block) in
+ * counter mode, so any part of it can be read or written without touching the rest.
+ *
+ * CRYPTO WARNING: Overwriting data in place reuses the keystream, see CTRMode. Only use this
+ * for temporary data with a random, ephemeral key.
+ */
+public class EncryptedRandomAccessThing implements RandomAccessThing {
+
+	private final RandomAccessThing underlying;
+	private final CTRMode ctr;
+	/** For encrypting data to write without changing the caller's buffer. */
+	private byte[] buffer;
+
+	static final int BUFFER_SIZE = 32768;
+
+	/**
+	 * @param underlying Where to keep the encrypted data.
+	 * @param key The 32 byte key. Must be random and only used once.
+	 * @param iv The 32 byte IV.
+	 */
+	public EncryptedRandomAccessThing(RandomAccessThing underlying, byte[] key, byte[] iv) {
+		this.underlying = underlying;
+		Rijndael aes;
+		try {
+			aes = new Rijndael(256, 256);
+		} catch (UnsupportedCipherException e) {
+			throw new Error(e);
+		}
+		aes.initialize(key);
+		ctr = new CTRMode(aes, iv);
+	}
+
+	@Override
+	public long size() throws IOException {
+		return underlying.size();
+	}
+
+	@Override
+	public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
+			throws IOException {
+		underlying.pread(fileOffset, buf, bufOffset, length);
+		ctr.process(fileOffset, buf, bufOffset, length);
+	}
+
+	@Override
+	public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
+			throws IOException {
+		if(buffer == null)
+			buffer = new byte[BUFFER_SIZE];
+		ctr.seek(fileOffset);
+		while(length > 0) {
+			int chunk = Math.min(length, buffer.length);
+			System.arraycopy(buf, bufOffset, buffer, 0, chunk);
+			ctr.process(buffer, 0, chunk);
+			underlying.pwrite(fileOffset, buffer, 0, chunk);
+			fileOffset += chunk;
+			bufOffset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void close() {
+		underlying.close();
+	}
+
+}
@@ -262,21 +262,29 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 	 * Return the length of the data in the proxied bucket, after padding.
 	 */
 	public synchronized long paddedLength() {
+		long max = paddedLength(dataLength, minPaddedSize);
+		if(logMINOR)
+			Logger.minor(this, "Padded: "+max+" was: "+dataLength+" for "+getName());
+		return max;
+	}
+
+	/**
+	 * @return The length to pad to: the minimum size, or the next power of 2 times it which is
+	 * at least the data length.
+	 */
+	static long paddedLength(long dataLength, long minPaddedSize) {
 		long size = dataLength;
 		if(size < minPaddedSize) size = minPaddedSize;
 		if(size == minPaddedSize) return size;
 		long min = minPaddedSize;
-		long max = (long)minPaddedSize << 1;
+		long max = minPaddedSize << 1;
 		while(true) {
 			if(max < 0)
 				throw new Error("Impossible size: "+size+" - min="+min+", max="+max);
 			if(size < min)
 				throw new IllegalStateException("???");
-			if((size >= min) && (size <= max)) {
-				if(logMINOR)
-					Logger.minor(this, "Padded: "+max+" was: "+dataLength+" for "+getName());
+			if((size >= min) && (size <= max))
 				return max;
-			}
 			min = max;
 			max = max << 1;
 		}
@@ -188,7 +188,7 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 		if(rawBucket == null)
 			rawBucket = new PersistentTempFileBucket(fg.makeRandomFilename(), fg);
 		if(encrypt)
-			rawBucket = new PaddedEphemerallyEncryptedBucket(rawBucket, 1024, strongPRNG, weakPRNG);
+			rawBucket = new CTREncryptedBucket(rawBucket, 1024, strongPRNG, weakPRNG);
 		if(mustWrap)
 			rawBucket = new DelayedFreeBucket(this, rawBucket);
 		return rawBucket;
@@ -3,9 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.io;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -633,6 +635,38 @@ public class TempBucketFactory implements BucketFactory {
 	private Bucket _makeFileBucket() {
 		Bucket fileBucket = new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator, true);
 		// Do we want it to be encrypted?
-		return (reallyEncrypt ? new PaddedEphemerallyEncryptedBucket(fileBucket, 1024, strongPRNG, weakPRNG) : fileBucket);
+		return (reallyEncrypt ? new CTREncryptedBucket(fileBucket, 1024, strongPRNG, weakPRNG) : fileBucket);
+	}
+
+	/**
+	 * Create a temporary file of a fixed size, for random access. Encrypted with a random key if
+	 * we are encrypting temp files. The file is deleted when it is closed.
+	 */
+	public RandomAccessThing makeRandomAccessThing(long size) throws IOException {
+		final File file = filenameGenerator.makeRandomFile();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+		} catch (IOException e) {
+			Closer.close(raf);
+			file.delete();
+			throw e;
+		}
+		RandomAccessThing rat = new RandomAccessFileWrapper(raf) {
+
+			@Override
+			public void close() {
+				super.close();
+				file.delete();
+			}
+
+		};
+		if(!reallyEncrypt) return rat;
+		byte[] key = new byte[32];
+		byte[] iv = new byte[32];
+		strongPRNG.nextBytes(key);
+		strongPRNG.nextBytes(iv);
+		return new EncryptedRandomAccessThing(rat, key, iv);
 	}
 }
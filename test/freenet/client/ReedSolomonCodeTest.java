@@ -0,0 +1,235 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.TestProperty;
+
+public class ReedSolomonCodeTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private int oldThreads;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		oldThreads = ReedSolomonCode.getThreads();
+		ReedSolomonCode.setThreads(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ReedSolomonCode.setThreads(oldThreads);
+		super.tearDown();
+	}
+
+	/** Multiply the slow way, so we don't share any tables with the code being tested. */
+	private static int gfMul(int a, int b) {
+		int r = 0;
+		while(b != 0) {
+			if((b & 1) != 0) r ^= a;
+			a <<= 1;
+			if((a & 0x100) != 0) a ^= 0x11D;
+			b >>= 1;
+		}
+		return r;
+	}
+
+	private static final int[] INVERSE = new int[256];
+	/** The point for block i in Rizzo's code: 0, then successive powers of 2. */
+	private static final int[] POINTS = new int[256];
+
+	static {
+		for(int a = 1; a < 256; a++)
+			for(int b = 1; b < 256; b++)
+				if(gfMul(a, b) == 1) INVERSE[a] = b;
+		POINTS[1] = 1;
+		for(int i = 2; i < 256; i++)
+			POINTS[i] = gfMul(POINTS[i-1], 2);
+	}
+
+	/**
+	 * The coefficients to evaluate the polynomial through (POINTS[i], data[i]) at x, by
+	 * Lagrange interpolation.
+	 */
+	private static int[] lagrange(int k, int x) {
+		int[] coefficients = new int[k];
+		for(int i = 0; i < k; i++) {
+			int term = 1;
+			for(int j = 0; j < k; j++) {
+				if(i == j) continue;
+				term = gfMul(term, gfMul(x ^ POINTS[j], INVERSE[POINTS[i] ^ POINTS[j]]));
+			}
+			coefficients[i] = term;
+		}
+		return coefficients;
+	}
+
+	private static Buffer[] buffers(byte[] buf, int count, int length) {
+		Buffer[] buffers = new Buffer[count];
+		for(int i = 0; i < count; i++)
+			buffers[i] = new Buffer(buf, i * length, length);
+		return buffers;
+	}
+
+	/** The check blocks are the same as the onion code, which is defined by interpolation. */
+	public void testMatchesInterpolation() {
+		checkInterpolation(5, 12, 13);
+		checkInterpolation(32, 64, 9);
+		checkInterpolation(128, 255, 3);
+	}
+
+	private void checkInterpolation(int k, int n, int length) {
+		ReedSolomonCode code = new ReedSolomonCode(k, n);
+		byte[] data = new byte[k * length];
+		random.nextBytes(data);
+		byte[] check = new byte[(n - k) * length];
+		int[] index = new int[n - k];
+		for(int i = 0; i < index.length; i++)
+			index[i] = k + i;
+		code.encode(buffers(data, k, length), buffers(check, n - k, length), index);
+		for(int i = k; i < n; i++) {
+			int[] coefficients = lagrange(k, POINTS[i]);
+			for(int pos = 0; pos < length; pos++) {
+				int expected = 0;
+				for(int j = 0; j < k; j++)
+					expected ^= gfMul(coefficients[j], data[j * length + pos] & 0xFF);
+				assertEquals("Block "+i+" byte "+pos, expected, check[(i - k) * length + pos] & 0xFF);
+			}
+		}
+	}
+
+	public void testSingleDataBlock() {
+		ReedSolomonCode code = new ReedSolomonCode(1, 3);
+		byte[] data = new byte[100];
+		random.nextBytes(data);
+		byte[] check = new byte[200];
+		code.encode(buffers(data, 1, 100), buffers(check, 2, 100), new int[] { 1, 2 });
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(check, 0, 100)));
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(check, 100, 200)));
+	}
+
+	public void testRoundTrip() {
+		// The usual segment shapes, and an odd length to test the tail of each chunk.
+		roundTrip(128, 256, 32768);
+		roundTrip(128, 255, 32768);
+		roundTrip(100, 201, 4099);
+		roundTrip(3, 7, 5);
+	}
+
+	private void roundTrip(int k, int n, int length) {
+		ReedSolomonCode code = new ReedSolomonCode(k, n);
+		byte[] data = new byte[k * length];
+		random.nextBytes(data);
+		byte[] check = new byte[(n - k) * length];
+		int[] checkIndex = new int[n - k];
+		for(int i = 0; i < checkIndex.length; i++)
+			checkIndex[i] = k + i;
+		code.encode(buffers(data, k, length), buffers(check, n - k, length), checkIndex);
+
+		// Pick k random blocks, in a random order.
+		int[] all = new int[n];
+		for(int i = 0; i < n; i++) all[i] = i;
+		for(int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = all[i]; all[i] = all[j]; all[j] = t;
+		}
+		int[] index = Arrays.copyOf(all, k);
+		byte[] buf = new byte[k * length];
+		for(int i = 0; i < k; i++) {
+			if(index[i] < k)
+				System.arraycopy(data, index[i] * length, buf, i * length, length);
+			else
+				System.arraycopy(check, (index[i] - k) * length, buf, i * length, length);
+		}
+		code.decode(buffers(buf, k, length), index);
+		assertTrue(Arrays.equals(data, buf));
+	}
+
+	/** Same packets, shuffled and encoded the same way as CodeTest. */
+	public void testShuffled() {
+		int k = 192;
+		int length = 4096;
+		ReedSolomonCode code = new ReedSolomonCode(k, 256);
+		int[] index = new int[k];
+		for(int i = 0; i < k; i++)
+			index[i] = k - i;
+		byte[] src = new byte[k * length];
+		random.nextBytes(src);
+		byte[] repair = new byte[k * length];
+		code.encode(buffers(src, k, length), buffers(repair, k, length), index);
+		code.decode(buffers(repair, k, length), index);
+		assertTrue(Arrays.equals(src, repair));
+	}
+
+	public void testSameAsOnionCode() {
+		int k = 128;
+		int n = 255;
+		int length = 4096;
+		byte[] data = new byte[k * length];
+		random.nextBytes(data);
+		int[] index = new int[n - k];
+		for(int i = 0; i < index.length; i++)
+			index[i] = k + i;
+		byte[] check = new byte[(n - k) * length];
+		byte[] onionCheck = new byte[(n - k) * length];
+		new ReedSolomonCode(k, n).encode(buffers(data, k, length), buffers(check, n - k, length), index);
+		new PureCode(k, n).encode(buffers(data, k, length), buffers(onionCheck, n - k, length), index.clone());
+		assertTrue(Arrays.equals(onionCheck, check));
+	}
+
+	private static final int BENCHMARK_LENGTH = 32768;
+
+	/** Encode and decode a whole segment, for the two usual segment shapes. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int round = 0; round < 3; round++) {
+			for(int n : new int[] { 256, 255 }) {
+				int k = 128;
+				System.out.println("k="+k+" n="+n+": PureCode: "+benchmark(null, new PureCode(k, n), k, n));
+				ReedSolomonCode.setThreads(1);
+				System.out.println("k="+k+" n="+n+": ReedSolomonCode, 1 thread: "+benchmark(new ReedSolomonCode(k, n), null, k, n));
+				ReedSolomonCode.setThreads(cores);
+				System.out.println("k="+k+" n="+n+": ReedSolomonCode, "+cores+" threads: "+benchmark(new ReedSolomonCode(k, n), null, k, n));
+			}
+		}
+	}
+
+	private String benchmark(ReedSolomonCode code, FECCode onion, int k, int n) {
+		byte[] data = new byte[k * BENCHMARK_LENGTH];
+		random.nextBytes(data);
+		// Encode all the check blocks, then decode from the check blocks only.
+		int checks = Math.min(n - k, k);
+		int[] index = new int[checks];
+		for(int i = 0; i < checks; i++)
+			index[i] = n - checks + i;
+		byte[] buf = new byte[k * BENCHMARK_LENGTH];
+		long t1 = System.nanoTime();
+		if(code != null)
+			code.encode(buffers(data, k, BENCHMARK_LENGTH), buffers(buf, checks, BENCHMARK_LENGTH), index);
+		else
+			onion.encode(buffers(data, k, BENCHMARK_LENGTH), buffers(buf, checks, BENCHMARK_LENGTH), index.clone());
+		long t2 = System.nanoTime();
+		int[] decodeIndex = new int[k];
+		for(int i = 0; i < k; i++)
+			decodeIndex[i] = i < checks ? index[i] : i;
+		if(checks < k)
+			System.arraycopy(data, checks * BENCHMARK_LENGTH, buf, checks * BENCHMARK_LENGTH, (k - checks) * BENCHMARK_LENGTH);
+		if(code != null)
+			code.decode(buffers(buf, k, BENCHMARK_LENGTH), decodeIndex);
+		else
+			onion.decode(buffers(buf, k, BENCHMARK_LENGTH), decodeIndex);
+		long t3 = System.nanoTime();
+		assertTrue(Arrays.equals(data, buf));
+		return "encode "+(t2-t1)/1000000+"ms, decode "+(t3-t2)/1000000+"ms";
+	}
+
+}
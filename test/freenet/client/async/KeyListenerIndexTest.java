@@ -0,0 +1,183 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+
+public class KeyListenerIndexTest extends TestCase {
+
+	private static class Listener implements KeyListener {
+
+		final int id;
+
+		Listener(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return true;
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return 0;
+		}
+
+		@Override
+		public int[] getSaltedKeyPrefixes(ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Do nothing.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public boolean isRealTime() {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "Listener "+id;
+		}
+
+	}
+
+	public void testPrefix() {
+		byte[] key = new byte[32];
+		key[0] = (byte) 0x80;
+		key[1] = 0x01;
+		key[2] = (byte) 0xff;
+		key[3] = 0x7f;
+		assertEquals(0x8001ff7f, KeyListenerIndex.prefix(key));
+	}
+
+	public void testAddRemove() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		Listener a = new Listener(0);
+		Listener b = new Listener(1);
+		assertNull(index.get(1, null));
+		index.add(1, a);
+		index.add(1, b);
+		index.add(1, a);
+		index.add(2, b);
+		assertEquals(4, index.size());
+		List<KeyListener> list = index.get(1, null);
+		assertEquals(2, list.size());
+		assertTrue(list.contains(a));
+		assertTrue(list.contains(b));
+		// a was added twice, so it is still there after one remove.
+		assertTrue(index.remove(1, a));
+		assertTrue(index.get(1, null).contains(a));
+		assertTrue(index.remove(1, a));
+		assertFalse(index.remove(1, a));
+		list = index.get(1, null);
+		assertEquals(1, list.size());
+		assertSame(b, list.get(0));
+		assertFalse(index.remove(3, b));
+		index.remove(new int[] { 1, 2 }, b);
+		assertEquals(0, index.size());
+		assertNull(index.get(1, null));
+		assertNull(index.get(2, null));
+	}
+
+	/** Compare against a simple implementation, with lots of collisions, growing and
+	 * shrinking. */
+	public void testRandom() {
+		Random random = new Random(1234);
+		KeyListenerIndex index = new KeyListenerIndex();
+		Listener[] listeners = new Listener[20];
+		for(int i=0;i<listeners.length;i++)
+			listeners[i] = new Listener(i);
+		Map<Integer, List<KeyListener>> expected = new HashMap<Integer, List<KeyListener>>();
+		int size = 0;
+		for(int round = 0; round < 200000; round++) {
+			// Cluster the prefixes so a few shards get long probe sequences.
+			int prefix = random.nextBoolean() ? random.nextInt(3000) << 20 : random.nextInt(3000);
+			Listener listener = listeners[random.nextInt(listeners.length)];
+			List<KeyListener> l = expected.get(prefix);
+			boolean grow = (round / 50000) % 2 == 0;
+			if(random.nextInt(10) < (grow ? 7 : 3)) {
+				index.add(prefix, listener);
+				if(l == null) {
+					l = new ArrayList<KeyListener>();
+					expected.put(prefix, l);
+				}
+				l.add(listener);
+				size++;
+			} else {
+				boolean removed = l != null && l.remove(listener);
+				assertEquals(removed, index.remove(prefix, listener));
+				if(removed) size--;
+			}
+			if(round % 1000 == 0) {
+				assertEquals(size, index.size());
+				for(Map.Entry<Integer, List<KeyListener>> e : expected.entrySet()) {
+					List<KeyListener> got = index.get(e.getKey(), null);
+					if(e.getValue().isEmpty()) {
+						assertNull(got);
+						continue;
+					}
+					for(KeyListener k : e.getValue())
+						assertTrue(got.contains(k));
+					for(KeyListener k : got)
+						assertTrue(e.getValue().contains(k));
+				}
+			}
+		}
+	}
+
+}
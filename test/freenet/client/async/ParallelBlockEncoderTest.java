@@ -0,0 +1,162 @@
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class ParallelBlockEncoderTest extends TestCase {
+
+	private PooledExecutor executor;
+
+	@Override
+	protected void setUp() {
+		executor = new PooledExecutor();
+		executor.start();
+	}
+
+	/** Records what was delivered, and checks it is in order on the calling thread. */
+	private static class OrderedJob implements ParallelBlockEncoder.Job {
+
+		final Object[] results;
+		final Thread caller = Thread.currentThread();
+		final Random random = new Random(0);
+		int delivered;
+
+		OrderedJob(int count) {
+			results = new Object[count];
+		}
+
+		@Override
+		public Object encode(int i) throws CHKEncodeException, IOException {
+			try {
+				Thread.sleep(random.nextInt(3));
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			if(i % 10 == 3) throw new IOException("Failed "+i);
+			if(i % 10 == 7) throw new IllegalStateException("Failed "+i);
+			return Integer.valueOf(i);
+		}
+
+		@Override
+		public void deliver(int i, Object result) {
+			assertSame(caller, Thread.currentThread());
+			assertEquals(delivered++, i);
+			results[i] = result;
+		}
+
+		void check() {
+			assertEquals(results.length, delivered);
+			for(int i=0;i<results.length;i++) {
+				if(i % 10 == 3)
+					assertTrue(results[i] instanceof IOException);
+				else if(i % 10 == 7)
+					assertTrue(results[i] instanceof IllegalStateException);
+				else
+					assertEquals(Integer.valueOf(i), results[i]);
+			}
+		}
+
+	}
+
+	public void testInOrder() {
+		for(ParallelBlockEncoder encoder : new ParallelBlockEncoder[] {
+				new ParallelBlockEncoder(null, 4), new ParallelBlockEncoder(executor, 1), new ParallelBlockEncoder(executor, 4) }) {
+			for(int count : new int[] { 0, 1, 2, 100 }) {
+				OrderedJob job = new OrderedJob(count);
+				encoder.run(count, job, true);
+				job.check();
+			}
+			assertEquals(103, encoder.getBlocksEncoded());
+			assertTrue(encoder.getBlocksEncodedPerSecond() > 0);
+		}
+		assertEquals(1, new ParallelBlockEncoder(null, 4).getThreads());
+	}
+
+	/** Several batches at once, and a batch started from inside another one. */
+	public void testConcurrentBatches() throws InterruptedException {
+		final ParallelBlockEncoder encoder = new ParallelBlockEncoder(executor, 3);
+		final Throwable[] failed = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						final OrderedJob[] inner = new OrderedJob[5];
+						encoder.run(inner.length, new ParallelBlockEncoder.Job() {
+							@Override
+							public Object encode(int i) {
+								OrderedJob job = new OrderedJob(20);
+								encoder.run(20, job, true);
+								job.check();
+								return job;
+							}
+							@Override
+							public void deliver(int i, Object result) {
+								inner[i] = (OrderedJob) result;
+							}
+						}, false);
+						for(OrderedJob job : inner)
+							assertNotNull(job);
+					} catch (Throwable e) {
+						synchronized(failed) {
+							failed[0] = e;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		synchronized(failed) {
+			if(failed[0] != null) throw new AssertionError(failed[0]);
+		}
+		assertEquals(threads.length * 5 * 20, encoder.getBlocksEncoded());
+	}
+
+	private static final int BENCHMARK_BLOCKS = 512;
+
+	/** Encoding a segment's worth of splitfile blocks, on one thread and on one per core. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(1);
+		final byte[][] blocks = new byte[BENCHMARK_BLOCKS][CHKBlock.DATA_LENGTH];
+		for(byte[] block : blocks)
+			random.nextBytes(block);
+		final byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int round = 0; round < 3; round++) {
+			for(int threads : new int[] { 1, cores }) {
+				for(final byte algo : new byte[] { Key.ALGO_AES_PCFB_256_SHA256, Key.ALGO_AES_CTR_256_SHA256 }) {
+					ParallelBlockEncoder encoder = new ParallelBlockEncoder(executor, threads);
+					final ClientCHK[] keys = new ClientCHK[blocks.length];
+					encoder.run(blocks.length, new ParallelBlockEncoder.Job() {
+						@Override
+						public Object encode(int i) throws CHKEncodeException {
+							return ClientCHKBlock.encodeSplitfileBlock(blocks[i].clone(), cryptoKey, algo).getClientKey();
+						}
+						@Override
+						public void deliver(int i, Object result) {
+							keys[i] = (ClientCHK) result;
+						}
+					}, true);
+					assertFalse(Arrays.asList(keys).contains(null));
+					System.out.println((algo == Key.ALGO_AES_CTR_256_SHA256 ? "CTR " : "PCFB")+" on "+threads+" threads: "+encoder.getBlocksEncodedPerSecond()+" blocks/sec");
+				}
+			}
+		}
+	}
+
+}
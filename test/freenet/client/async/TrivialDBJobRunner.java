@@ -127,4 +127,22 @@ public class TrivialDBJobRunner implements DBJobRunner {
 		// Ignore
 	}
 
+	@Override
+	public void addCommitBarrier(final Runnable callback) throws DatabaseDisabledException {
+		// Every job is committed, so just wait for the ones already queued.
+		executor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				callback.run();
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.MIN_PRIORITY;
+			}
+
+		});
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+/**
+ * Tests for the tokenizer in HTMLFilter, mostly that text and tags which are split across
+ * reads come out the same as when they are not, and a throughput benchmark over a corpus of
+ * generated pages.
+ */
+public class HTMLFilterTest extends TestCase {
+
+	private static final String BASE_URI = "http://localhost:8888/";
+
+	private static final String[] WORDS = {
+		"freenet", "the", "of", "a", "key", "insert", "request", "node", "peer", "darknet",
+		"splitfile", "&amp;", "&lt;", "&eacute;t&eacute;", "café", "日本語",
+		"русский", "&nbsp;", "2 < 3", "x>y", "'quoted'", "\"dq\""
+	};
+
+	/** Generated pages, as bytes in UTF-8. */
+	static byte[][] samplePages(int count, long seed) {
+		Random random = new Random(seed);
+		byte[][] pages = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			try {
+				pages[i] = samplePage(random).getBytes("UTF-8");
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * A page with a bit of everything: headers, styles, scripts, comments, links and images,
+	 * forms, tables, attributes with all kinds of quoting, entities and non-ASCII text.
+	 */
+	static String samplePage(Random random) {
+		StringBuilder sb = new StringBuilder();
+		if(random.nextInt(10) == 0) sb.append('\uFEFF');
+		if(random.nextBoolean())
+			sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" \"http://www.w3.org/TR/html4/loose.dtd\">\n");
+		sb.append("<html>\n<head>\n<title>");
+		words(sb, random, 5);
+		sb.append("</title>\n");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+		if(random.nextBoolean())
+			sb.append("<style type=\"text/css\">\nbody { color: #333; background: url(/CHK@abc/bg.png) }\n.x { font-weight: bold }\n</style>\n");
+		if(random.nextInt(3) == 0)
+			sb.append("<script type=\"text/javascript\">var x = 1 < 2; document.write('<b>hi</b>');</script>\n");
+		sb.append("</head>\n<body class=\"main\" onload=\"evil()\">\n");
+		int blocks = 20 + random.nextInt(60);
+		for(int i = 0; i < blocks; i++) {
+			switch(random.nextInt(12)) {
+			case 0:
+				sb.append("<h").append(1 + random.nextInt(3)).append(" id=h").append(i).append('>');
+				words(sb, random, 6);
+				sb.append("</h1>\n");
+				break;
+			case 1:
+				sb.append("<!-- ");
+				words(sb, random, 8);
+				sb.append(random.nextBoolean() ? " -- double dash <b> " : "");
+				sb.append(" -->\n");
+				break;
+			case 2:
+				sb.append("<a href=\"/USK@abcdefghijklmnopqrstuvwxyz0123456789,ABCDEFGHIJKLMNOP,AQACAAE/site/").append(i).append("/page.html\" title='link ").append(i).append("'>");
+				words(sb, random, 3);
+				sb.append("</a>\n");
+				break;
+			case 3:
+				sb.append("<img src=\"img").append(i).append(".png\" alt=\"");
+				words(sb, random, 2);
+				sb.append("\" width=100 height = '50' />\n");
+				break;
+			case 4:
+				sb.append("<table border=\"1\"><tr><th>a</th><th>b</th></tr><tr><td>");
+				words(sb, random, 3);
+				sb.append("</td><td>").append(random.nextInt()).append("</td></tr></table>\n");
+				break;
+			case 5:
+				sb.append("<form action=\"/post\" method=\"post\"><input type=\"text\" name=\"q\" value=\"");
+				words(sb, random, 2);
+				sb.append("\"><input type=submit></form>\n");
+				break;
+			case 6:
+				sb.append("<div style=\"color: red; margin: 0 auto\" class=\"c").append(i).append("\">");
+				words(sb, random, 20);
+				sb.append("</div>\n");
+				break;
+			case 7:
+				sb.append("<blink>unknown tag</blink><font face=\"Arial\" color=red>");
+				words(sb, random, 4);
+				sb.append("</font>\n");
+				break;
+			case 8:
+				sb.append("<ul>");
+				for(int j = 0; j < 5; j++) {
+					sb.append("<li>");
+					words(sb, random, 4);
+				}
+				sb.append("</ul>\n");
+				break;
+			case 9:
+				sb.append("<p>");
+				words(sb, random, 10);
+				// Nulls are deleted, and stray zero width spaces.
+				if(random.nextInt(4) == 0) sb.append('\u0000').append('\uFEFF');
+				sb.append(" < not a tag ").append("<br>").append("\n");
+				break;
+			case 10:
+				sb.append("<iframe src=\"http://example.com/\"></iframe><object data=\"x\"></object>\n");
+				break;
+			default:
+				sb.append("<p align='center'>");
+				words(sb, random, 40);
+				sb.append("</p>\n");
+			}
+		}
+		sb.append("</body>\n</html>\n");
+		return sb.toString();
+	}
+
+	private static void words(StringBuilder sb, Random random, int max) {
+		int count = 1 + random.nextInt(max);
+		for(int i = 0; i < count; i++) {
+			if(i > 0) sb.append(random.nextInt(8) == 0 ? "\n" : " ");
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+	}
+
+	static byte[] filter(byte[] data) throws IOException, Exception {
+		return filter(new ByteArrayInputStream(data));
+	}
+
+	private static byte[] filter(InputStream is) throws IOException, Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new HTMLFilter().readFilter(is, os, "UTF-8", null, new GenericReadFilterCallback(new URI(BASE_URI), null, null));
+		return os.toByteArray();
+	}
+
+	/** Returns one byte at a time, so every read ends in the middle of something. */
+	private static class TrickleInputStream extends ByteArrayInputStream {
+
+		TrickleInputStream(byte[] buf) {
+			super(buf);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, 1));
+		}
+
+	}
+
+	public void testSplitReads() throws Exception {
+		for(byte[] page : samplePages(20, 1)) {
+			String expected = new String(filter(page), "UTF-8");
+			String trickled = new String(filter(new TrickleInputStream(page)), "UTF-8");
+			assertEquals(expected, trickled);
+		}
+	}
+
+	/** Text longer than any buffer, and a comment and attribute value likewise. */
+	public void testLongRuns() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 20000; i++)
+			text.append("word").append(i % 10).append(' ');
+		String t = text.toString();
+		String page = "<html><body><p>"+t+"</p><!--"+t+"--><p title=\""+t+"\">x</p></body></html>";
+		String out = new String(filter(page.getBytes("UTF-8")), "UTF-8");
+		assertEquals("<html><body><p>"+t+"</p><!-- "+t+" --><p title=\""+t+"\">x</p></body></html>", out);
+	}
+
+	public void testNullsAndBOM() throws Exception {
+		String page = "\uFEFF<html><body>a\u0000b\uFEFFc\u0001d</body></html>";
+		String out = new String(filter(page.getBytes("UTF-8")), "UTF-8");
+		assertEquals("\uFEFF<html><body>abcd</body></html>", out);
+	}
+
+	public void testTextBeforeHTML() throws Exception {
+		try {
+			filter("text <html></html>".getBytes("UTF-8"));
+			fail("Text before the first tag should be rejected");
+		} catch (DataFilterException e) {
+			// Ok.
+		}
+		// Whitespace is fine.
+		filter(" \n<html></html>".getBytes("UTF-8"));
+	}
+
+	private static final int BENCHMARK_PAGES = 500;
+
+	/** Filter a corpus of generated pages, and report the throughput in MB/s. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		byte[][] pages = samplePages(BENCHMARK_PAGES, 1234);
+		long total = 0;
+		for(byte[] page : pages)
+			total += page.length;
+		for(int round = 0; round < 10; round++) {
+			long start = System.nanoTime();
+			for(byte[] page : pages)
+				filter(page);
+			long time = System.nanoTime() - start;
+			System.out.println("HTMLFilter: "+pages.length+" pages, "+total+" bytes in "+time/1000000+"ms: "+
+					((total * 1000.0 * 1000.0 * 1000.0) / (time * 1024.0 * 1024.0))+" MB/s");
+		}
+	}
+
+}
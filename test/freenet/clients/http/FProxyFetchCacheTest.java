@@ -0,0 +1,125 @@
+package freenet.clients.http;
+
+import junit.framework.TestCase;
+
+import freenet.client.FetchContext;
+import freenet.client.events.SimpleEventProducer;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class FProxyFetchCacheTest extends TestCase {
+
+	private static final REFILTER_POLICY ACCEPT_OLD = REFILTER_POLICY.ACCEPT_OLD;
+
+	private static FetchContext context(boolean filterData, String overrideMIME) {
+		return new FetchContext(1024*1024, 1024*1024, 1024, 1, 1, 1, false, 0, 0, 0, true, true, false,
+				filterData, 128, 128, new ArrayBucketFactory(), new SimpleEventProducer(), false, false, null, overrideMIME);
+	}
+
+	private static FreenetURI uri(int i) throws Exception {
+		return new FreenetURI("KSK@test"+i);
+	}
+
+	/** A bucket which remembers whether it has been freed. */
+	private static class Data extends ArrayBucket {
+
+		boolean freed;
+
+		Data(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	public void testTakeAndGiveBack() throws Exception {
+		FProxyFetchCache cache = new FProxyFetchCache(1000);
+		FetchContext fctx = context(true, null);
+		Data data = new Data(100);
+		assertTrue(cache.offer(uri(1), fctx, ACCEPT_OLD, data, "text/html"));
+		assertEquals(100, cache.getTotalSize());
+		// Different filter settings.
+		assertNull(cache.take(uri(1), context(false, null), ACCEPT_OLD, 1000));
+		assertNull(cache.take(uri(1), context(true, "text/plain"), ACCEPT_OLD, 1000));
+		// Too big for the request.
+		assertNull(cache.take(uri(1), fctx, ACCEPT_OLD, 99));
+		FProxyFetchCache.Entry e = cache.take(uri(1), context(true, null), ACCEPT_OLD, 1000);
+		assertSame(data, e.data);
+		assertEquals("text/html", e.mimeType);
+		// The caller owns it now.
+		assertNull(cache.take(uri(1), fctx, ACCEPT_OLD, 1000));
+		assertEquals(0, cache.getTotalSize());
+		assertFalse(data.freed);
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	public void testEviction() throws Exception {
+		FProxyFetchCache cache = new FProxyFetchCache(1000);
+		FetchContext fctx = context(true, null);
+		Data[] data = new Data[5];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = new Data(200);
+			assertTrue(cache.offer(uri(i), fctx, ACCEPT_OLD, data[i], "text/html"));
+		}
+		assertEquals(5, cache.size());
+		// Using an entry and giving it back makes it the most recently used.
+		FProxyFetchCache.Entry e = cache.take(uri(0), fctx, ACCEPT_OLD, 1000);
+		assertTrue(cache.offer(uri(0), fctx, ACCEPT_OLD, e.data, e.mimeType));
+		Data extra = new Data(200);
+		assertTrue(cache.offer(uri(5), fctx, ACCEPT_OLD, extra, "text/html"));
+		assertTrue(data[1].freed);
+		assertFalse(data[0].freed);
+		assertEquals(1000, cache.getTotalSize());
+		assertNull(cache.take(uri(1), fctx, ACCEPT_OLD, 1000));
+		cache.setMaxSize(400);
+		assertEquals(400, cache.getTotalSize());
+		assertTrue(data[2].freed);
+		assertTrue(data[3].freed);
+		assertTrue(data[4].freed);
+		assertFalse(data[0].freed);
+		assertFalse(extra.freed);
+	}
+
+	public void testTooBig() throws Exception {
+		FProxyFetchCache cache = new FProxyFetchCache(1000);
+		Data data = new Data(1000 / FProxyFetchCache.MAX_ENTRY_FRACTION + 1);
+		assertFalse(cache.offer(uri(1), context(true, null), ACCEPT_OLD, data, "text/html"));
+		assertFalse(data.freed);
+		assertEquals(0, cache.size());
+	}
+
+	/** Offering the same key again replaces the old data. */
+	public void testReplace() throws Exception {
+		FProxyFetchCache cache = new FProxyFetchCache(1000);
+		FetchContext fctx = context(true, null);
+		Data a = new Data(100);
+		Data b = new Data(50);
+		assertTrue(cache.offer(uri(1), fctx, ACCEPT_OLD, a, "text/html"));
+		assertTrue(cache.offer(uri(1), fctx, ACCEPT_OLD, b, "text/html"));
+		assertTrue(a.freed);
+		assertEquals(50, cache.getTotalSize());
+		assertSame(b, cache.take(uri(1), fctx, ACCEPT_OLD, 1000).data);
+	}
+
+	/** Entries are only shared with the same refilter policy, and RE_FETCH never uses them. */
+	public void testRefilterPolicy() throws Exception {
+		FProxyFetchCache cache = new FProxyFetchCache(1000);
+		FetchContext fctx = context(true, null);
+		Data data = new Data(100);
+		assertFalse(cache.offer(uri(1), fctx, REFILTER_POLICY.RE_FETCH, data, "text/html"));
+		assertEquals(0, cache.size());
+		assertTrue(cache.offer(uri(1), fctx, ACCEPT_OLD, data, "text/html"));
+		assertNull(cache.take(uri(1), fctx, REFILTER_POLICY.RE_FETCH, 1000));
+		assertNull(cache.take(uri(1), fctx, REFILTER_POLICY.RE_FILTER, 1000));
+		assertSame(data, cache.take(uri(1), fctx, ACCEPT_OLD, 1000).data);
+	}
+
+}
@@ -0,0 +1,67 @@
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.HexUtil;
+
+import junit.framework.TestCase;
+
+public class AESCTRCipherTest extends TestCase {
+
+	/** NIST SP 800-38A F.5.5, CTR-AES256.Encrypt. The counter carries into the 15th byte. */
+	private static final byte[] KEY = HexUtil.hexToBytes("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+	private static final byte[] IV = HexUtil.hexToBytes("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+	private static final byte[] PLAINTEXT = HexUtil.hexToBytes(
+			"6bc1bee22e409f96e93d7e117393172a" +
+			"ae2d8a571e03ac9c9eb76fac45af8e51" +
+			"30c81c46a35ce411e5fbc1191a0a52ef" +
+			"f69f2445df4f9b17ad2b417be66c3710");
+	private static final byte[] CIPHERTEXT = HexUtil.hexToBytes(
+			"601ec313775789a5b7a7f504bbf3d228" +
+			"f443e3ca4d62b59aca84e990cacaf5c5" +
+			"2b0930daa23de94ce87017ba2d84988d" +
+			"dfc9c58db67aada613c2dd08457941a6");
+
+	public void testKnownAnswer() {
+		for(AESCTRCipher ctr : new AESCTRCipher[] { AESCTRCipher.create(KEY, IV), AESCTRCipher.createJava(KEY, IV) }) {
+			byte[] buf = PLAINTEXT.clone();
+			ctr.process(buf, 0, buf.length);
+			assertTrue(Arrays.equals(CIPHERTEXT, buf));
+		}
+	}
+
+	/** The JCE and our Rijndael give the same result, however the data is split up, and the
+	 * counter carries across all the bytes. */
+	public void testSameAsJava() {
+		Random random = new Random(0);
+		byte[] key = new byte[32];
+		byte[] iv = new byte[32];
+		for(int i=0;i<20;i++) {
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			if(i % 2 == 0)
+				Arrays.fill(iv, 4, 16, (byte)0xFF);
+			byte[] expected = new byte[5000];
+			random.nextBytes(expected);
+			byte[] plaintext = expected.clone();
+			AESCTRCipher.createJava(key, iv).process(expected, 0, expected.length);
+			assertFalse(Arrays.equals(plaintext, expected));
+
+			byte[] buf = plaintext.clone();
+			AESCTRCipher ctr = AESCTRCipher.create(key, iv);
+			int offset = 0;
+			while(offset < buf.length) {
+				int length = Math.min(buf.length - offset, random.nextInt(100));
+				ctr.process(buf, offset, length);
+				offset += length;
+			}
+			assertTrue(Arrays.equals(expected, buf));
+
+			// Decrypting is the same as encrypting.
+			AESCTRCipher.createJava(key, iv).process(buf, 0, buf.length);
+			assertTrue(Arrays.equals(plaintext, buf));
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.ciphers.Rijndael;
+
+import junit.framework.TestCase;
+
+public class CTRModeTest extends TestCase {
+
+	private static Rijndael cipher(Random random) throws UnsupportedCipherException {
+		Rijndael aes = new Rijndael(256, 256);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		aes.initialize(key);
+		return aes;
+	}
+
+	/** The keystream is the encryption of the IV XORed with the block number. */
+	public void testKeystream() throws UnsupportedCipherException {
+		Random random = new Random(0);
+		Rijndael aes = cipher(random);
+		byte[] iv = new byte[32];
+		random.nextBytes(iv);
+		CTRMode ctr = new CTRMode(aes, iv);
+		byte[] data = new byte[32 * 300];
+		ctr.process(data, 0, data.length);
+		for(long block : new long[] { 0, 1, 255, 256, 299 }) {
+			byte[] counter = iv.clone();
+			counter[31] ^= (byte) block;
+			counter[30] ^= (byte) (block >> 8);
+			byte[] expected = new byte[32];
+			aes.encipher(counter, expected);
+			assertTrue(Arrays.equals(expected, Arrays.copyOfRange(data, (int) block * 32, (int) block * 32 + 32)));
+		}
+	}
+
+	/** Any split of the data, in any order, at any position, gives the same result. */
+	public void testSeek() throws UnsupportedCipherException {
+		Random random = new Random(1);
+		Rijndael aes = cipher(random);
+		byte[] iv = new byte[32];
+		random.nextBytes(iv);
+		byte[] plaintext = new byte[10000];
+		random.nextBytes(plaintext);
+		byte[] expected = plaintext.clone();
+		new CTRMode(aes, iv).process(expected, 0, expected.length);
+
+		CTRMode ctr = new CTRMode(aes, iv);
+		for(int i=0;i<200;i++) {
+			int start = random.nextInt(plaintext.length);
+			int length = random.nextInt(Math.min(200, plaintext.length - start) + 1);
+			byte[] buf = new byte[length + 10];
+			System.arraycopy(plaintext, start, buf, 5, length);
+			ctr.process(start, buf, 5, length);
+			assertEquals(start + length, ctr.getPosition());
+			assertTrue(Arrays.equals(Arrays.copyOfRange(expected, start, start + length), Arrays.copyOfRange(buf, 5, 5 + length)));
+			// Byte at a time.
+			if(start + length < plaintext.length)
+				assertEquals(expected[start + length] & 0xFF, ctr.process(plaintext[start + length]));
+		}
+
+		// Decrypting is the same as encrypting.
+		new CTRMode(aes, iv).process(expected, 0, expected.length);
+		assertTrue(Arrays.equals(plaintext, expected));
+	}
+
+}
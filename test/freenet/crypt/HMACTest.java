@@ -0,0 +1,36 @@
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HMACTest extends TestCase {
+
+	/** HMAC.Keyed must give the same MACs as macWithSHA256, for short, block sized and long
+	 * keys, and when the key changes. */
+	public void testKeyed() {
+		Random random = new Random(0);
+		HMAC.Keyed keyed = new HMAC.Keyed();
+		for(int keyLength : new int[] { 0, 1, 32, 64, 65, 200 }) {
+			byte[] key = new byte[keyLength];
+			random.nextBytes(key);
+			keyed.setKey(key);
+			for(int i = 0; i < 10; i++) {
+				byte[] text = new byte[random.nextInt(2000)];
+				random.nextBytes(text);
+				byte[] expected = HMAC.macWithSHA256(key, text, 32);
+
+				byte[] buf = new byte[text.length + 20];
+				System.arraycopy(text, 0, buf, 7, text.length);
+				byte[] mac = new byte[40];
+				keyed.mac(buf, 7, text.length, mac, 3, 32);
+				assertTrue(Arrays.equals(expected, Arrays.copyOfRange(mac, 3, 35)));
+				assertTrue(keyed.verify(buf, 7, text.length, mac, 3, 10));
+				mac[5] ^= 1;
+				assertFalse(keyed.verify(buf, 7, text.length, mac, 3, 10));
+			}
+		}
+	}
+
+}
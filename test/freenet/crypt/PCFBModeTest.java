@@ -0,0 +1,198 @@
+package freenet.crypt;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.HexUtil;
+import freenet.support.TestProperty;
+
+public class PCFBModeTest extends TestCase {
+
+	private static final int[] SIZES = new int[] { 128, 192, 256 };
+
+	/** SHA-256 of 100000 random bytes enciphered in random sized pieces, for each key and block
+	 * size, from before RijndaelPCFBMode did whole blocks at a time. */
+	private static final String[] KNOWN_DIGESTS = new String[] {
+		"c07eba6e3289da93cf3c67536c8d6e93c1b75f6ba6b77bdf5cc64d06d2e923b9",
+		"1a4b982b522260c05d93fcf7668546a7b5f979ad2c00e3ed323951dc2ebfdc14",
+		"c5dd8ba894a62f55aa6fe8a352e9491a0faacefbe3f8a32657dc51f549ae9b4c",
+		"79b34b50f119c394e5157706fb457853fdc74bd986b37bdea2529656c20667b3",
+		"6e50c047fe833a64e65dbd9eb3bff1e028329c249e5b625da0480caf6c9be9d6",
+		"18ff3f4f7effecce98b009bcefd05a842ab9ee1fe3260acc029fa9f53a632ad2",
+		"23f814279dc059a09fd587cdc9ebb604b309062fbef21922ccfa32995852104f",
+		"301f92490845a2b1b9dae9062b50f2111e1726fbcaaf29975800cb10ac611398",
+		"56d2fccdb08ea53847336c888c255022b8e052a30cb541629a830af0b5058b0c"
+	};
+
+	public void testKnownDigests() throws Exception {
+		int x = 0;
+		for(int blockSize : SIZES) {
+			for(int keySize : SIZES) {
+				Random random = new Random(keySize * 1000 + blockSize);
+				Rijndael aes = new Rijndael(keySize, blockSize);
+				byte[] key = new byte[keySize / 8];
+				random.nextBytes(key);
+				aes.initialize(key);
+				// Skip the blocks used by RijndaelTest.testAllSizes().
+				byte[] block = new byte[blockSize / 8];
+				for(int i=0;i<1000;i++)
+					random.nextBytes(block);
+				byte[] iv = new byte[blockSize / 8];
+				random.nextBytes(iv);
+				byte[] data = new byte[100000];
+				random.nextBytes(data);
+				PCFBMode pcfb = PCFBMode.create(aes, iv);
+				assertTrue(pcfb instanceof RijndaelPCFBMode);
+				Random chunks = new Random(7);
+				int offset = 0;
+				while(offset < data.length) {
+					int length = Math.min(data.length - offset, chunks.nextInt(3000));
+					pcfb.blockEncipher(data, offset, length);
+					offset += length;
+				}
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				assertEquals(keySize+"/"+blockSize, KNOWN_DIGESTS[x++], HexUtil.bytesToHex(md.digest(data)));
+			}
+		}
+	}
+
+	/** Whole blocks at a time must give the same result as the generic PCFBMode, however the
+	 * data is split up, including single bytes. */
+	public void testSameAsGeneric() throws Exception {
+		Random random = new Random(0);
+		for(int size : SIZES) {
+			Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			random.nextBytes(key);
+			aes.initialize(key);
+			byte[] iv = new byte[size / 8];
+			random.nextBytes(iv);
+			byte[] plaintext = new byte[20000];
+			random.nextBytes(plaintext);
+
+			byte[] expected = plaintext.clone();
+			new PCFBMode(aes, iv, 0).blockEncipher(expected, 0, expected.length);
+
+			for(int i=0;i<5;i++) {
+				byte[] buf = plaintext.clone();
+				PCFBMode pcfb = PCFBMode.create(aes, iv);
+				int offset = 0;
+				while(offset < buf.length) {
+					int length = Math.min(buf.length - offset, random.nextInt(i * 50 + 2));
+					if(length == 1 && random.nextBoolean())
+						buf[offset] = (byte) pcfb.encipher(buf[offset]);
+					else
+						pcfb.blockEncipher(buf, offset, length);
+					offset += length;
+				}
+				assertTrue(Arrays.equals(expected, buf));
+
+				pcfb = PCFBMode.create(aes, iv);
+				offset = 0;
+				while(offset < buf.length) {
+					int length = Math.min(buf.length - offset, random.nextInt(i * 50 + 2));
+					if(length == 1 && random.nextBoolean())
+						buf[offset] = (byte) pcfb.decipher(buf[offset]);
+					else
+						pcfb.blockDecipher(buf, offset, length);
+					offset += length;
+				}
+				assertTrue(Arrays.equals(plaintext, buf));
+			}
+		}
+	}
+
+	public void testByteBuffer() throws Exception {
+		Random random = new Random(1);
+		Rijndael aes = new Rijndael(256, 256);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		aes.initialize(key);
+		byte[] iv = new byte[32];
+		random.nextBytes(iv);
+		byte[] plaintext = new byte[10000];
+		random.nextBytes(plaintext);
+		byte[] expected = plaintext.clone();
+		PCFBMode.create(aes, iv).blockEncipher(expected, 0, expected.length);
+
+		for(boolean direct : new boolean[] { false, true }) {
+			ByteBuffer buf = direct ? ByteBuffer.allocateDirect(plaintext.length + 200) : ByteBuffer.allocate(plaintext.length + 200);
+			// Not at the start of the array.
+			buf.position(100);
+			buf = buf.slice();
+			buf.put(plaintext);
+			buf.flip();
+			PCFBMode pcfb = PCFBMode.create(aes, iv);
+			buf.limit(1001);
+			pcfb.blockEncipher(buf);
+			assertEquals(1001, buf.position());
+			buf.limit(plaintext.length);
+			pcfb.blockEncipher(buf);
+			assertEquals(plaintext.length, buf.position());
+			byte[] out = new byte[plaintext.length];
+			buf.flip();
+			buf.get(out);
+			assertTrue(Arrays.equals(expected, out));
+
+			buf.flip();
+			PCFBMode.create(aes, iv).blockDecipher(buf);
+			buf.flip();
+			buf.get(out);
+			assertTrue(Arrays.equals(plaintext, out));
+		}
+	}
+
+	private static final int BENCHMARK_SIZE = 32 * 1024;
+	private static final int BENCHMARK_ITERATIONS = 1000;
+
+	/** Single threaded, so MB/sec per core. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(2);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		byte[] iv = new byte[32];
+		random.nextBytes(iv);
+		byte[] buf = new byte[BENCHMARK_SIZE];
+		random.nextBytes(buf);
+		for(int round = 0; round < 3; round++) {
+			for(int size : new int[] { 128, 256 }) {
+				Rijndael aes = new Rijndael(256, size);
+				aes.initialize(key);
+				PCFBMode generic = new PCFBMode(aes, iv, 0);
+				PCFBMode bulk = PCFBMode.create(aes, iv);
+				long genericTime = time(generic, buf);
+				long bulkTime = time(bulk, buf);
+				System.out.println("256/"+size+": generic PCFB "+mbPerSecond(genericTime)+" MB/sec, Rijndael PCFB "+mbPerSecond(bulkTime)+" MB/sec");
+			}
+			// 100 keys used over and over, which are cached, and all different keys, which aren't.
+			for(int distinct : new int[] { 100, 65536 }) {
+				long start = System.nanoTime();
+				int keys = 100000;
+				for(int i=0;i<keys;i++) {
+					int k = i % distinct;
+					key[0] = (byte) k;
+					key[1] = (byte) (k >> 8);
+					new Rijndael(256, 256).initialize(key);
+				}
+				System.out.println("Key setups with "+distinct+" keys: "+(keys * 1000000000L / (System.nanoTime() - start))+"/sec");
+			}
+		}
+	}
+
+	private static long time(PCFBMode pcfb, byte[] buf) {
+		long start = System.nanoTime();
+		for(int i=0;i<BENCHMARK_ITERATIONS;i++)
+			pcfb.blockEncipher(buf, 0, buf.length);
+		return System.nanoTime() - start;
+	}
+
+	private static long mbPerSecond(long nanos) {
+		return (long)BENCHMARK_SIZE * BENCHMARK_ITERATIONS * 1000 / nanos;
+	}
+
+}
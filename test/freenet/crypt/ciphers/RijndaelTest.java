@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.crypt.ciphers;
 
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -1083,4 +1084,79 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	/** SHA-256 of encrypting then decrypting 1000 random blocks for each key and block size,
+	 * from before the key schedule was flattened and the rounds unrolled. */
+	private static final String[][] ALL_SIZES = new String[][] {
+		{ "128", "128", "52b560accb315b3e1baf80017e5a26391b66af23a2111560523dbf6e328dd40a" },
+		{ "192", "128", "5b033d8bcac8b3b7e760db999393dbf1748e9b26ee73f22146b38a758689afc4" },
+		{ "256", "128", "3d18dbb24ced26c81f990c673e4e04098665faa05f6e7c4adfe23b98a9e6a5c7" },
+		{ "128", "192", "2830a4064b80d9f7366cdfa63802549c73d7e80f392099a2750757bde405f206" },
+		{ "192", "192", "95dd5b94448df40d15faf2f39df8156165e8c38dfbab309c2fc00a24a069392a" },
+		{ "256", "192", "30024a7f4158f7d6f401113d18173d22303db3303030f48ce8aa0a9348119b9e" },
+		{ "128", "256", "6c9301851b69e7d6c47c3b16aca7b5912ecbd7e6c4f45a256a8678d919f52e9a" },
+		{ "192", "256", "d1b260532a5213c9967b353e980e44d8bd720f3e8c58e4acccdf2b3c6e621f95" },
+		{ "256", "256", "2891eebaa127d1978599e1a8d49fa12d8ed97d7f3fbc17eb072fe11386e5e2c1" }
+	};
+
+	public void testAllSizes() throws Exception {
+		for (String[] sizes : ALL_SIZES) {
+			int keySize = Integer.parseInt(sizes[0]);
+			int blockSize = Integer.parseInt(sizes[1]);
+			Random random = new Random(keySize * 1000 + blockSize);
+			Rijndael aes = new Rijndael(keySize, blockSize);
+			byte[] key = new byte[keySize / 8];
+			random.nextBytes(key);
+			aes.initialize(key);
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] plain = new byte[blockSize / 8];
+			byte[] cipher = new byte[plain.length];
+			byte[] plain2 = new byte[plain.length];
+			for (int i = 0; i < 1000; i++) {
+				random.nextBytes(plain);
+				aes.encipher(plain, cipher);
+				md.update(cipher);
+				aes.decipher(cipher, plain2);
+				md.update(plain2);
+				assertTrue(Arrays.equals(plain, plain2));
+			}
+			assertEquals(keySize + "/" + blockSize, sizes[2], HexUtil.bytesToHex(md.digest()));
+		}
+	}
+
+	/** Expanded keys are cached by key and block size, and give the same results as
+	 * uncached ones. */
+	public void testKeyCache() throws UnsupportedCipherException {
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		byte[] plain = new byte[32];
+		rand.nextBytes(plain);
+		byte[][] results = new byte[3][];
+		int[] blockSizes = new int[] { 128, 192, 256 };
+		for (int i = 0; i < blockSizes.length; i++) {
+			byte[] block = Arrays.copyOf(plain, blockSizes[i] / 8);
+			for (int j = 0; j < 2; j++) {
+				Rijndael aes = new Rijndael(256, blockSizes[i]);
+				aes.initializeCached(key);
+				byte[] cipher = new byte[block.length];
+				aes.encipher(block, cipher);
+				if (j == 0)
+					results[i] = cipher;
+				else
+					assertTrue(Arrays.equals(results[i], cipher));
+			}
+		}
+		assertFalse(Arrays.equals(results[0], Arrays.copyOf(results[2], 16)));
+		Rijndael aes = new Rijndael(256, 256);
+		aes.initialize(key);
+		byte[] cipher = new byte[32];
+		aes.encipher(plain, cipher);
+		assertTrue(Arrays.equals(results[2], cipher));
+		// A different key which starts the same.
+		aes = new Rijndael(128, 128);
+		aes.initializeCached(key);
+		cipher = new byte[16];
+		aes.encipher(Arrays.copyOf(plain, 16), cipher);
+		assertFalse(Arrays.equals(results[0], cipher));
+	}
 }
@@ -0,0 +1,201 @@
+package freenet.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.PooledExecutor;
+import freenet.support.io.LineReadingInputStream;
+
+public class NioConnectionTest extends TestCase {
+
+	private PooledExecutor executor;
+	private NioSelectorPool pool;
+	private ServerSocketChannel server;
+	private Thread acceptor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = new PooledExecutor();
+		executor.start();
+		pool = new NioSelectorPool("Test", 2, executor);
+		pool.start();
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		acceptor = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						SocketChannel channel = server.accept();
+						NioConnection conn = pool.wrap(channel);
+						conn.start(new Handler(conn), "Test handler");
+					}
+				} catch (IOException e) {
+					// Closed.
+				}
+			}
+
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		pool.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Simple protocol: "echo <text>" returns the text, "data <length>" followed by that many
+	 * bytes returns the bytes, "close" closes the connection.
+	 */
+	private static class Handler implements Runnable {
+
+		private final NioConnection conn;
+		private final LineReadingInputStream lis;
+
+		Handler(NioConnection conn) {
+			this.conn = conn;
+			lis = new LineReadingInputStream(conn.getInputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(conn.moreInput()) {
+					String line = lis.readLine(1024, 128, false);
+					if(line == null || line.equals("close")) {
+						conn.close();
+						return;
+					}
+					OutputStream os = conn.getOutputStream();
+					if(line.startsWith("echo ")) {
+						os.write((line.substring(5)+"\n").getBytes("US-ASCII"));
+					} else if(line.startsWith("data ")) {
+						int length = Integer.parseInt(line.substring(5));
+						byte[] buf = new byte[4096];
+						while(length > 0) {
+							int read = lis.read(buf, 0, Math.min(buf.length, length));
+							if(read < 0) throw new IOException("EOF");
+							os.write(buf, 0, read);
+							length -= read;
+						}
+					}
+				}
+			} catch (IOException e) {
+				conn.close();
+			}
+		}
+
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket();
+		s.connect(server.socket().getLocalSocketAddress());
+		s.setSoTimeout(30000);
+		return s;
+	}
+
+	/** Many keep-alive connections, each sending several requests, some pipelined. */
+	public void testManyConnections() throws IOException {
+		Socket[] sockets = new Socket[100];
+		LineReadingInputStream[] in = new LineReadingInputStream[sockets.length];
+		for(int i = 0; i < sockets.length; i++) {
+			sockets[i] = connect();
+			in[i] = new LineReadingInputStream(sockets[i].getInputStream());
+		}
+		for(int round = 0; round < 10; round++) {
+			for(int i = 0; i < sockets.length; i++) {
+				OutputStream os = sockets[i].getOutputStream();
+				os.write(("echo "+i+" "+round+"\n").getBytes("US-ASCII"));
+				if(i % 2 == 0)
+					os.write(("echo pipelined "+i+"\n").getBytes("US-ASCII"));
+			}
+			for(int i = 0; i < sockets.length; i++) {
+				assertEquals(i+" "+round, in[i].readLine(1024, 128, false));
+				if(i % 2 == 0)
+					assertEquals("pipelined "+i, in[i].readLine(1024, 128, false));
+			}
+		}
+		for(int i = 0; i < sockets.length; i++) {
+			sockets[i].getOutputStream().write("close\n".getBytes("US-ASCII"));
+			assertEquals(-1, sockets[i].getInputStream().read());
+			sockets[i].close();
+		}
+	}
+
+	/** More than both buffers, so reading and writing both have to stop and start again. */
+	public void testLargeTransfer() throws Exception {
+		final Socket s = connect();
+		final byte[] data = new byte[4*1024*1024];
+		new Random(1234).nextBytes(data);
+		final IOException[] failure = new IOException[1];
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					OutputStream os = s.getOutputStream();
+					os.write(("data "+data.length+"\n").getBytes("US-ASCII"));
+					for(int i = 0; i < data.length; i += 1000)
+						os.write(data, i, Math.min(1000, data.length - i));
+					os.write("echo done\n".getBytes("US-ASCII"));
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+
+		};
+		writer.start();
+		InputStream is = s.getInputStream();
+		byte[] buf = new byte[data.length];
+		new DataInputStream(is).readFully(buf);
+		assertTrue(Arrays.equals(data, buf));
+		assertEquals("done", new LineReadingInputStream(is).readLine(1024, 128, false));
+		writer.join();
+		assertNull(failure[0]);
+		s.close();
+	}
+
+	/** A line split across several packets. Also tests mark and reset across reads. */
+	public void testSplitLine() throws Exception {
+		Socket s = connect();
+		OutputStream os = s.getOutputStream();
+		s.setTcpNoDelay(true);
+		byte[] line = "echo split across packets\n".getBytes("US-ASCII");
+		for(int i = 0; i < line.length; i++) {
+			os.write(line[i]);
+			os.flush();
+			Thread.sleep(5);
+		}
+		assertEquals("split across packets", new LineReadingInputStream(s.getInputStream()).readLine(1024, 128, false));
+		s.close();
+	}
+
+	/** The connection is closed when the other side closes it. */
+	public void testRemoteClose() throws Exception {
+		int before = pool.connections();
+		Socket s = connect();
+		s.getOutputStream().write("echo hello\n".getBytes("US-ASCII"));
+		assertEquals("hello", new LineReadingInputStream(s.getInputStream()).readLine(1024, 128, false));
+		s.close();
+		for(int i = 0; i < 100 && pool.connections() > before; i++)
+			Thread.sleep(50);
+		assertEquals(before, pool.connections());
+	}
+
+}
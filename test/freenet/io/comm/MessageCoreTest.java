@@ -0,0 +1,199 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class MessageCoreTest extends TestCase {
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		core = new MessageCore(executor);
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+
+		Message matched;
+		boolean timedOut;
+		boolean timeoutNow;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched = m;
+		}
+
+		@Override
+		public synchronized boolean shouldTimeout() {
+			return timeoutNow;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut = true;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			// Ignore
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore
+		}
+
+	}
+
+	private Callback addFilter(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	public void testMatchesOnlyByUID() throws DisconnectedException {
+		Callback[] cbs = new Callback[100];
+		for(int i=0;i<cbs.length;i++)
+			cbs[i] = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, (long)i).setTimeout(60*1000));
+		Message m = DMT.createFNPRejectedLoop(42);
+		core.checkFilters(m, null);
+		for(int i=0;i<cbs.length;i++) {
+			if(i == 42)
+				assertSame(m, cbs[i].matched);
+			else
+				assertNull(cbs[i].matched);
+		}
+		// Only one filter gets each message.
+		Callback other = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 42L).setTimeout(60*1000));
+		assertNull(other.matched);
+		// Wrong type, same uid.
+		core.checkFilters(DMT.createFNPAccepted(43), null);
+		assertNull(cbs[43].matched);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testEarliestTimeoutWins() throws DisconnectedException {
+		Callback late = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(60*1000));
+		Callback byUID = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(50*1000));
+		Callback any = addFilter(MessageFilter.create().setTimeout(40*1000));
+		Callback early = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(30*1000));
+		Callback sameTimeout = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(30*1000));
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertNotNull(early.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		// Filters with the same timeout match in the order they were added.
+		assertNotNull(sameTimeout.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertNotNull(any.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertNotNull(byUID.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertNotNull(late.matched);
+	}
+
+	public void testOrChain() throws DisconnectedException {
+		MessageFilter accepted = MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 7L).setTimeout(60*1000);
+		MessageFilter rejected = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 7L).setTimeout(60*1000);
+		Callback cb = addFilter(accepted.or(rejected));
+		Message m = DMT.createFNPRejectedLoop(7);
+		core.checkFilters(m, null);
+		assertSame(m, cb.matched);
+		// Removed from both buckets.
+		core.checkFilters(DMT.createFNPAccepted(7), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testMatchesUnclaimed() throws DisconnectedException {
+		Message m = DMT.createFNPRejectedLoop(3);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		Callback cb = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 3L).setTimeout(60*1000));
+		assertSame(m, cb.matched);
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testTimeouts() throws DisconnectedException, InterruptedException {
+		Callback shortTimeout = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(50));
+		Callback longTimeout = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 2L).setTimeout(60*1000));
+		Callback early = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 3L).setTimeout(60*1000));
+		Callback noTimeout = addFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 4L).setNoTimeout());
+		synchronized(early) {
+			early.timeoutNow = true;
+		}
+		core.removeTimedOutFilters(0);
+		assertTrue(early.timedOut);
+		assertFalse(shortTimeout.timedOut);
+		Thread.sleep(2 * MessageFilterIndex.TICK_LENGTH + 50);
+		core.removeTimedOutFilters(0);
+		assertTrue(shortTimeout.timedOut);
+		assertFalse(longTimeout.timedOut);
+		assertFalse(noTimeout.timedOut);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertNull(shortTimeout.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(2), null);
+		assertNotNull(longTimeout.matched);
+		core.checkFilters(DMT.createFNPRejectedLoop(4), null);
+		assertNotNull(noTimeout.matched);
+	}
+
+	public void testWaitFor() throws DisconnectedException {
+		MessageFilter filter = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 5L).setTimeout(50);
+		long start = System.currentTimeMillis();
+		assertNull(core.waitFor(filter, null));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		// Must have been removed, so the message is unclaimed.
+		core.checkFilters(DMT.createFNPRejectedLoop(5), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	private static final int BENCHMARK_FILTERS = 10000;
+
+	/** Compare checkFilters() against a linear scan of a sorted list, as it used to be. */
+	public void testBenchmark() throws DisconnectedException {
+		if(!TestProperty.BENCHMARK) return;
+		Message[] messages = new Message[BENCHMARK_FILTERS];
+		for(int i=0;i<messages.length;i++)
+			messages[i] = DMT.createFNPRejectedLoop(i);
+		for(int round=0;round<5;round++) {
+			ArrayList<MessageFilter> filters = new ArrayList<MessageFilter>(BENCHMARK_FILTERS);
+			for(int i=0;i<BENCHMARK_FILTERS;i++)
+				filters.add(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, (long)i).setTimeout(60*1000+i));
+			LinkedList<MessageFilter> list = new LinkedList<MessageFilter>(filters);
+			long now = System.currentTimeMillis();
+			long t1 = System.nanoTime();
+			// Worst case for the list: the last filter added matches first.
+			for(int i=messages.length-1;i>=0;i--) {
+				for(ListIterator<MessageFilter> it = list.listIterator();it.hasNext();) {
+					if(it.next().match(messages[i], now) == MATCHED.MATCHED) {
+						it.remove();
+						break;
+					}
+				}
+			}
+			long t2 = System.nanoTime();
+			for(MessageFilter f : filters)
+				addFilter(f);
+			long t3 = System.nanoTime();
+			for(int i=messages.length-1;i>=0;i--)
+				core.checkFilters(messages[i], null);
+			long t4 = System.nanoTime();
+			assertEquals(0, core.getUnclaimedFIFOSize());
+			System.out.println("Matching "+BENCHMARK_FILTERS+" messages against "+BENCHMARK_FILTERS+" filters: list "+
+					(t2-t1)/1000000+"ms, index "+(t4-t3)/1000000+"ms (adding filters "+(t3-t2)/1000000+"ms)");
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package freenet.keys;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.TestProperty;
+import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.io.ArrayBucket;
+
+public class ClientCHKBlockTest extends TestCase {
+
+	private static final byte[] ALGOS = new byte[] { Key.ALGO_AES_PCFB_256_SHA256, Key.ALGO_AES_CTR_256_SHA256 };
+
+	private static ClientCHKBlock encode(byte[] data, byte cryptoAlgorithm) throws CHKEncodeException, IOException {
+		return ClientCHKBlock.encode(new ArrayBucket(data), false, true, (short)-1, data.length, null, false, null, cryptoAlgorithm);
+	}
+
+	/** Encode, send the block over the network (i.e. type, headers and data), and decode it
+	 * with the key from the URI. */
+	public void testRoundTrip() throws Exception {
+		Random random = new Random(0);
+		for(byte algo : ALGOS) {
+			for(int length : new int[] { 0, 1, 1000, CHKBlock.DATA_LENGTH }) {
+				byte[] data = new byte[length];
+				random.nextBytes(data);
+				ClientCHKBlock block = encode(data, algo);
+				ClientCHK key = block.getClientKey();
+				assertEquals(algo, key.cryptoAlgorithm);
+				assertEquals(algo, ((NodeCHK)key.getNodeKey(false)).cryptoAlgorithm);
+
+				ClientCHK fetchKey = new ClientCHK(key.getURI());
+				CHKBlock fetched = (CHKBlock) Key.createBlock(fetchKey.getNodeKey(false).getType(), null, block.getRawHeaders(), block.getRawData(), null);
+				assertEquals(fetchKey.getNodeKey(false), fetched.getKey());
+				assertTrue(Arrays.equals(data, new ClientCHKBlock(fetched, fetchKey).memoryDecode()));
+
+				// The full key, as stored in the datastore.
+				byte[] fullKey = fetched.getKey().getFullKey();
+				assertEquals(algo, fullKey[1]);
+				assertTrue(Arrays.equals(fetched.getRoutingKey(), NodeCHK.routingKeyFromFullKey(fullKey)));
+			}
+		}
+	}
+
+	/** Old blocks, and blocks inserted with a different algorithm, still decode, and the
+	 * encoding is convergent, but the algorithms don't give the same key. */
+	public void testConvergent() throws Exception {
+		byte[] data = "Hello world".getBytes("UTF-8");
+		ClientCHKBlock pcfb = encode(data, (byte)0);
+		assertEquals(Key.ALGO_AES_PCFB_256_SHA256, pcfb.getClientKey().cryptoAlgorithm);
+		assertEquals(pcfb.getClientKey(), encode(data, Key.ALGO_AES_PCFB_256_SHA256).getClientKey());
+		ClientCHKBlock ctr = encode(data, Key.ALGO_AES_CTR_256_SHA256);
+		assertEquals(ctr.getClientKey(), encode(data, Key.ALGO_AES_CTR_256_SHA256).getClientKey());
+		assertFalse(Arrays.equals(pcfb.getClientKey().getRoutingKey(), ctr.getClientKey().getRoutingKey()));
+		assertTrue(Arrays.equals(data, pcfb.memoryDecode()));
+		assertTrue(Arrays.equals(data, ctr.memoryDecode()));
+	}
+
+	/** Splitfile blocks share a key. With CTR, they must not share the keystream. */
+	public void testSplitfileKey() throws Exception {
+		Random random = new Random(1);
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		byte[] a = new byte[CHKBlock.DATA_LENGTH];
+		byte[] b = new byte[CHKBlock.DATA_LENGTH];
+		random.nextBytes(a);
+		ClientCHKBlock blockA = ClientCHKBlock.encodeSplitfileBlock(a.clone(), cryptoKey, Key.ALGO_AES_CTR_256_SHA256);
+		ClientCHKBlock blockB = ClientCHKBlock.encodeSplitfileBlock(b.clone(), cryptoKey, Key.ALGO_AES_CTR_256_SHA256);
+		assertTrue(Arrays.equals(cryptoKey, blockA.getClientKey().getCryptoKey()));
+		// b is all zeros, so the same keystream would give a XOR b.
+		byte[] xor = blockA.getRawData().clone();
+		for(int i=0;i<xor.length;i++)
+			xor[i] ^= blockB.getRawData()[i];
+		assertFalse(Arrays.equals(a, xor));
+		assertTrue(Arrays.equals(a, blockA.memoryDecode()));
+		assertTrue(Arrays.equals(b, blockB.memoryDecode()));
+	}
+
+	public void testCorrupt() throws Exception {
+		byte[] data = new byte[1000];
+		new Random(2).nextBytes(data);
+		ClientCHKBlock block = encode(data, Key.ALGO_AES_CTR_256_SHA256);
+		byte[] corrupt = block.getRawData().clone();
+		corrupt[10] ^= 1;
+		try {
+			new ClientCHKBlock(corrupt, block.getRawHeaders(), block.getClientKey(), true);
+			fail("Hash should not verify");
+		} catch (CHKVerifyException e) {
+			// Expected.
+		}
+		try {
+			new ClientCHKBlock(corrupt, block.getRawHeaders(), block.getClientKey(), false).memoryDecode();
+			fail("MAC should not verify");
+		} catch (CHKDecodeException e) {
+			// Expected.
+		}
+	}
+
+	public void testSSK() throws Exception {
+		RandomSource random = new DummyRandomSource(3);
+		for(byte algo : ALGOS) {
+			InsertableClientSSK insertKey = InsertableClientSSK.createRandom(random, "test", algo);
+			// Can be parsed from the URIs.
+			InsertableClientSSK parsedInsertKey = InsertableClientSSK.create(insertKey.getInsertURI());
+			assertEquals(algo, parsedInsertKey.cryptoAlgorithm);
+			byte[] data = new byte[800];
+			random.nextBytes(data);
+			ClientSSKBlock block = parsedInsertKey.encode(new ArrayBucket(data), false, true, (short)-1, data.length, random, null, false);
+			assertEquals(algo, block.getRawHeaders()[3]);
+
+			ClientSSK fetchKey = new ClientSSK(insertKey.getURI());
+			assertEquals(algo, fetchKey.cryptoAlgorithm);
+			fetchKey.setPublicKey(insertKey.getPubKey());
+			SSKBlock fetched = new SSKBlock(block.getRawData(), block.getRawHeaders(), (NodeSSK) fetchKey.getNodeKey(true), false);
+			assertTrue(Arrays.equals(data, ClientSSKBlock.construct(fetched, fetchKey).memoryDecode()));
+		}
+	}
+
+	public void testUnknownAlgorithm() throws Exception {
+		ClientCHK key = encode(new byte[10], Key.ALGO_AES_CTR_256_SHA256).getClientKey();
+		try {
+			new ClientCHK(key.getRoutingKey(), key.getCryptoKey(), ClientCHK.getExtra((byte)4, (short)-1, false));
+			fail("Should not accept an unknown crypto algorithm");
+		} catch (MalformedURLException e) {
+			// Expected.
+		}
+	}
+
+	private static final int BENCHMARK_BLOCKS = 500;
+
+	/** Encoding and decoding full CHK blocks with PCFB (our Rijndael) against CTR (the JCE). */
+	public void testBenchmark() throws CHKEncodeException, CHKDecodeException, IOException, InvalidCompressionCodecException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		new Random(4).nextBytes(data);
+		for(int round = 0; round < 3; round++) {
+			for(byte algo : ALGOS) {
+				ClientCHKBlock[] blocks = new ClientCHKBlock[BENCHMARK_BLOCKS];
+				long start = System.nanoTime();
+				for(int i=0;i<BENCHMARK_BLOCKS;i++) {
+					data[0] = (byte) i;
+					data[1] = (byte) (i >> 8);
+					blocks[i] = encode(data, algo);
+				}
+				long encode = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(ClientCHKBlock block : blocks)
+					block.memoryDecode();
+				long decode = System.nanoTime() - start;
+				System.out.println((algo == Key.ALGO_AES_CTR_256_SHA256 ? "CTR:  " : "PCFB: ")+"encode "+(BENCHMARK_BLOCKS * 1000000000L / encode)+
+						" blocks/sec, decode "+(BENCHMARK_BLOCKS * 1000000000L / decode)+" blocks/sec");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package freenet.node;
+
+import junit.framework.TestCase;
+
+public class GroupCommitPolicyTest extends TestCase {
+
+	private static class Flag implements Runnable {
+
+		boolean ran;
+
+		@Override
+		public void run() {
+			ran = true;
+		}
+
+	}
+
+	/** Without group commit, commit whenever a job asks. */
+	public void testDisabled() {
+		GroupCommitPolicy policy = new GroupCommitPolicy(false, 10, 1000);
+		assertFalse(policy.afterJob(false, false, 0));
+		assertTrue(policy.afterJob(true, false, 0));
+		policy.committed(5);
+		for(int i = 0; i < 20; i++)
+			assertFalse(policy.afterJob(false, false, i));
+		Flag flag = new Flag();
+		policy.addBarrier(flag, 0);
+		assertTrue(policy.afterJob(false, false, 0));
+		Runnable[] barriers = policy.committed(5);
+		assertEquals(1, barriers.length);
+		assertSame(flag, barriers[0]);
+	}
+
+	/** A commit is delayed until the latency budget runs out, or the queue empties. */
+	public void testLatency() {
+		GroupCommitPolicy policy = new GroupCommitPolicy(true, 1000, 100);
+		assertFalse(policy.afterJob(true, false, 0));
+		assertTrue(policy.commitPending());
+		assertFalse(policy.afterJob(true, false, 50));
+		assertFalse(policy.afterJob(false, false, 99));
+		assertTrue(policy.afterJob(false, false, 100));
+		policy.committed(1);
+		assertFalse(policy.commitPending());
+		// Nothing asked for a commit, so the queue emptying doesn't matter.
+		assertFalse(policy.afterJob(false, true, 200));
+		assertTrue(policy.afterJob(true, true, 201));
+	}
+
+	/** Transactions are bounded even if no job asks for a commit. */
+	public void testMaxJobs() {
+		GroupCommitPolicy policy = new GroupCommitPolicy(true, 10, 100000);
+		for(int i = 0; i < 9; i++)
+			assertFalse(policy.afterJob(i % 2 == 0, false, i));
+		assertTrue(policy.afterJob(false, false, 9));
+		policy.committed(1);
+		assertEquals(1, policy.getCommits());
+		assertEquals(10.0, policy.getAverageJobsPerCommit());
+	}
+
+	public void testBarrier() {
+		GroupCommitPolicy policy = new GroupCommitPolicy(true, 1000, 100);
+		Flag a = new Flag();
+		Flag b = new Flag();
+		policy.addBarrier(a, 0);
+		assertFalse(policy.afterJob(false, false, 10));
+		policy.addBarrier(b, 20);
+		assertTrue(policy.afterJob(false, true, 30));
+		Runnable[] barriers = policy.committed(1);
+		assertEquals(2, barriers.length);
+		assertEquals(0, policy.committed(1).length);
+	}
+
+	public void testHistograms() {
+		GroupCommitPolicy policy = new GroupCommitPolicy(true, 100000, 100);
+		int[] jobs = { 1, 2, 3, 4, 5, 100000 };
+		for(int count : jobs) {
+			for(int i = 0; i < count; i++)
+				policy.afterJob(false, false, 0);
+			policy.committed(count);
+		}
+		long[] histogram = policy.getJobsPerCommitHistogram();
+		assertEquals(1, histogram[0]);
+		assertEquals(1, histogram[1]);
+		assertEquals(2, histogram[2]);
+		assertEquals(1, histogram[3]);
+		assertEquals(1, histogram[GroupCommitPolicy.JOBS_BUCKETS - 1]);
+		long[] times = policy.getCommitTimeHistogram();
+		assertEquals(1, times[0]);
+		assertEquals(1, times[GroupCommitPolicy.LATENCY_BUCKETS - 1]);
+		assertEquals(6, policy.getCommits());
+	}
+
+}
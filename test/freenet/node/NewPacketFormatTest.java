@@ -3,11 +3,20 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Random;
 
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class NewPacketFormatTest extends TestCase {
@@ -333,4 +342,140 @@ public class NewPacketFormatTest extends TestCase {
 		}
 	}
 	
+	/** Sends its packets, encrypted, straight to the other peer's NewPacketFormat. */
+	private static class LoopbackPeerNode extends NullBasePeerNode {
+
+		NewPacketFormat npf;
+		LoopbackPeerNode other;
+		final PeerMessageQueue queue = new PeerMessageQueue(this) {
+			@Override
+			public boolean mustSendNow(long now) {
+				// Send each message at once, rather than waiting to coalesce it with others.
+				return true;
+			}
+		};
+		final Random paddingGen = new Random(0);
+		final LinkedList<byte[]> received = new LinkedList<byte[]>();
+		/** If true, flip a bit in each packet sent, which the other side should reject. */
+		boolean corrupt;
+
+		@Override
+		public PeerMessageQueue getMessageQueue() {
+			return queue;
+		}
+
+		@Override
+		public Random paddingGen() {
+			return paddingGen;
+		}
+
+		@Override
+		public void verified(SessionKey s) {
+			// Do nothing
+		}
+
+		@Override
+		public void sendEncryptedPacket(byte[] data) {
+			if(corrupt) data[data.length - 1] ^= 1;
+			assertEquals(!corrupt, other.npf.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), null));
+		}
+
+		@Override
+		public void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+			received.add(Arrays.copyOfRange(data, offset, offset + length));
+		}
+
+	}
+
+	private static BlockCipher cipher(byte[] key) throws UnsupportedCipherException {
+		Rijndael cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	private static void connect(LoopbackPeerNode a, LoopbackPeerNode b) throws UnsupportedCipherException {
+		Random random = new Random(1);
+		byte[] abKey = new byte[32];
+		byte[] baKey = new byte[32];
+		byte[] ivKey = new byte[32];
+		byte[] ivNonce = new byte[32];
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(abKey);
+		random.nextBytes(baKey);
+		random.nextBytes(ivKey);
+		random.nextBytes(ivNonce);
+		random.nextBytes(hmacKey);
+		a.currentKey = new SessionKey(null, null, cipher(abKey), abKey, cipher(baKey), baKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0));
+		b.currentKey = new SessionKey(null, null, cipher(baKey), baKey, cipher(abKey), abKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0));
+		a.npf = new NewPacketFormat(a, 0, 0);
+		b.npf = new NewPacketFormat(b, 0, 0);
+		a.other = b;
+		b.other = a;
+	}
+
+	/** Queue a message and send it. */
+	private static void send(LoopbackPeerNode from, byte[] message) throws BlockedTooLongException {
+		from.queue.queueAndEstimateSize(new MessageItem(message, null, false, null, (short) 0, false, false), 1024);
+		assertTrue(from.npf.maybeSendPacket(System.currentTimeMillis(), null, null, false));
+	}
+
+	public void testEncryptedRoundTrip() throws BlockedTooLongException, UnsupportedCipherException {
+		LoopbackPeerNode a = new LoopbackPeerNode();
+		LoopbackPeerNode b = new LoopbackPeerNode();
+		connect(a, b);
+		Random random = new Random(2);
+		for(int i = 0; i < 100; i++) {
+			byte[] message = new byte[1024];
+			random.nextBytes(message);
+			send(i % 2 == 0 ? a : b, message);
+			LoopbackPeerNode to = i % 2 == 0 ? b : a;
+			assertEquals(1, to.received.size());
+			assertTrue(Arrays.equals(message, to.received.removeFirst()));
+		}
+
+		// A corrupted packet is rejected, and the connection still works afterwards.
+		a.corrupt = true;
+		send(a, new byte[1024]);
+		assertTrue(b.received.isEmpty());
+		byte[] message = new byte[1024];
+		random.nextBytes(message);
+		send(b, message);
+		assertTrue(Arrays.equals(message, a.received.removeFirst()));
+	}
+
+	private static final int BENCHMARK_PACKETS = 100000;
+
+	/**
+	 * Send messages back and forth between two peers, through the real encryption, and report
+	 * packets per second, and how many bytes are allocated per packet sent and received. The
+	 * allocation count includes creating the messages to send.
+	 */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Method allocated = null;
+		try {
+			allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			System.out.println("Can't count allocations on this VM");
+		}
+		long thread = Thread.currentThread().getId();
+		for(int round = 0; round < 3; round++) {
+			LoopbackPeerNode a = new LoopbackPeerNode();
+			LoopbackPeerNode b = new LoopbackPeerNode();
+			connect(a, b);
+			byte[] message = new byte[1024];
+			long allocatedBefore = allocated == null ? 0 : (Long) allocated.invoke(threads, thread);
+			long start = System.nanoTime();
+			for(int i = 0; i < BENCHMARK_PACKETS; i++) {
+				send(i % 2 == 0 ? a : b, message);
+				(i % 2 == 0 ? b : a).received.clear();
+			}
+			long time = System.nanoTime() - start;
+			long allocatedAfter = allocated == null ? 0 : (Long) allocated.invoke(threads, thread);
+			System.out.println((BENCHMARK_PACKETS * 1000000000L / time)+" packets/sec, "
+					+((allocatedAfter - allocatedBefore) / BENCHMARK_PACKETS)+" bytes allocated per packet");
+		}
+	}
+
 }
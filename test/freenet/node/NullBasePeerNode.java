@@ -169,6 +169,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void wakeUpSenderAt(long time) {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
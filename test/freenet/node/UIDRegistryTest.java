@@ -0,0 +1,285 @@
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.Node.CountedRequests;
+import freenet.support.TestProperty;
+
+public class UIDRegistryTest extends TestCase {
+
+	private static RequestTag tag(long uid, boolean ssk, boolean realTime) {
+		return new RequestTag(ssk, RequestTag.START.LOCAL, null, realTime, uid, null);
+	}
+
+	public void testCategories() {
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for(int i=0;i<32;i++) {
+			boolean ssk = (i & 1) != 0;
+			boolean insert = (i & 2) != 0;
+			boolean offer = (i & 4) != 0;
+			boolean local = (i & 8) != 0;
+			boolean realTime = (i & 16) != 0;
+			if(offer && (insert || local)) continue;
+			int category = UIDRegistry.category(ssk, insert, offer, local, realTime);
+			assertTrue(category >= 0 && category < UIDRegistry.CATEGORIES);
+			assertTrue(seen.add(category));
+		}
+		// Offer replies are always counted as remote.
+		assertEquals(UIDRegistry.category(true, false, true, false, true), UIDRegistry.category(true, false, true, true, true));
+	}
+
+	public void testLockUnlock() {
+		UIDRegistry registry = new UIDRegistry();
+		int category = UIDRegistry.category(false, false, false, true, false);
+		RequestTag a = tag(1, false, false);
+		RequestTag b = tag(1, false, false);
+		assertTrue(registry.lock(1, a));
+		assertFalse(registry.lock(1, b));
+		assertNull(registry.add(category, 1, a));
+		assertEquals(1, registry.count(category));
+		assertEquals(1, registry.size());
+		assertEquals(0, registry.count(UIDRegistry.category(false, false, false, true, true)));
+		// Wrong tag.
+		assertFalse(registry.remove(category, 1, b));
+		assertSame(a, registry.unlock(1, b));
+		assertEquals(1, registry.size());
+		assertTrue(registry.remove(category, 1, a));
+		assertEquals(0, registry.count(category));
+		assertSame(a, registry.unlock(1, a));
+		assertNull(registry.unlock(1, a));
+		assertEquals(0, registry.size());
+		assertTrue(registry.lock(1, b));
+	}
+
+	/** Compare the tables against a HashMap, growing and shrinking. */
+	public void testRandom() {
+		Random random = new Random(5678);
+		UIDRegistry registry = new UIDRegistry();
+		int category = UIDRegistry.category(true, false, false, true, true);
+		Map<Long, RequestTag> expected = new HashMap<Long, RequestTag>();
+		long[] uids = new long[5000];
+		for(int i=0;i<uids.length;i++)
+			uids[i] = random.nextBoolean() ? random.nextLong() : i;
+		for(int round = 0; round < 100000; round++) {
+			long uid = uids[random.nextInt(uids.length)];
+			boolean grow = (round / 25000) % 2 == 0;
+			RequestTag old = expected.get(uid);
+			if(random.nextInt(10) < (grow ? 7 : 3)) {
+				RequestTag t = tag(uid, true, true);
+				boolean locked = registry.lock(uid, t);
+				assertEquals(old == null, locked);
+				if(locked) {
+					assertNull(registry.add(category, uid, t));
+					expected.put(uid, t);
+				}
+			} else if(old != null) {
+				assertTrue(registry.remove(category, uid, old));
+				assertSame(old, registry.unlock(uid, old));
+				expected.remove(uid);
+			} else {
+				assertNull(registry.get(category, uid));
+			}
+			if(round % 1000 == 0) {
+				assertEquals(expected.size(), registry.count(category));
+				assertEquals(expected.size(), registry.size());
+				for(Map.Entry<Long, RequestTag> e : expected.entrySet())
+					assertSame(e.getValue(), registry.get(category, e.getKey()));
+				assertEquals(expected.size(), registry.getAll(category).length);
+			}
+		}
+	}
+
+	/** A random local tag of any type. */
+	private static UIDTag randomTag(Random random, long uid) {
+		boolean ssk = random.nextBoolean();
+		boolean realTime = random.nextInt(4) == 0;
+		switch(random.nextInt(4)) {
+		case 0:
+			return new InsertTag(ssk, InsertTag.START.LOCAL, null, realTime, uid, null);
+		case 1:
+			return new OfferReplyTag(ssk, null, realTime, uid, null);
+		default:
+			return tag(uid, ssk, realTime);
+		}
+	}
+
+	private static int category(UIDTag tag) {
+		return UIDRegistry.category(tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag);
+	}
+
+	private static void lock(UIDRegistry registry, UIDTag tag) {
+		assertTrue(registry.lock(tag.uid, tag));
+		assertNull(registry.add(category(tag), tag.uid, tag));
+	}
+
+	private static void unlock(UIDRegistry registry, UIDTag tag) {
+		assertTrue(registry.remove(category(tag), tag.uid, tag));
+		assertSame(tag, registry.unlock(tag.uid, tag));
+	}
+
+	/** Change something which affects the tag's expected transfers. */
+	private static void randomChange(Random random, UIDTag tag) {
+		switch(random.nextInt(5)) {
+		case 0:
+			tag.setAccepted();
+			break;
+		case 1:
+			tag.setNotRoutedOnwards();
+			break;
+		case 2:
+			if(tag instanceof RequestTag)
+				((RequestTag)tag).completedDownstreamTransfers();
+			break;
+		case 3:
+			tag.timedOutToHandlerButContinued();
+			break;
+		default:
+			tag.onRestartOrDisconnectSource();
+		}
+	}
+
+	/** Add up the expected transfers one tag at a time, the old way. */
+	private static void scan(UIDRegistry registry, int category, final boolean ignoreLocalVsRemote, final int transfersPerInsert,
+			final CountedRequests counter, final CountedRequests counterSR) {
+		registry.visit(category, new UIDRegistry.TagVisitor() {
+			@Override
+			public void visit(long uid, UIDTag tag) {
+				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+				counter.total++;
+				counter.expectedTransfersOut += out;
+				counter.expectedTransfersIn += in;
+				if(tag.countAsSourceRestarted()) {
+					counterSR.total++;
+					counterSR.expectedTransfersOut += out;
+					counterSR.expectedTransfersIn += in;
+				}
+			}
+		});
+	}
+
+	private static void assertSame(CountedRequests expected, CountedRequests got) {
+		assertEquals(expected.total, got.total);
+		assertEquals(expected.expectedTransfersIn, got.expectedTransfersIn);
+		assertEquals(expected.expectedTransfersOut, got.expectedTransfersOut);
+	}
+
+	/** The running totals must always match adding up the tags. */
+	public void testLoad() {
+		Random random = new Random(91011);
+		UIDRegistry registry = new UIDRegistry();
+		ArrayList<UIDTag> running = new ArrayList<UIDTag>();
+		long uid = 0;
+		for(int round = 0; round < 20000; round++) {
+			int x = random.nextInt(10);
+			if(x < 4 || running.isEmpty()) {
+				UIDTag tag = randomTag(random, uid++);
+				lock(registry, tag);
+				running.add(tag);
+			} else if(x < 7) {
+				unlock(registry, running.remove(random.nextInt(running.size())));
+			} else {
+				randomChange(random, running.get(random.nextInt(running.size())));
+			}
+			if(round % 100 == 0) {
+				int transfersPerInsert = 1 + random.nextInt(3);
+				for(int category = 0; category < UIDRegistry.CATEGORIES; category++) {
+					for(int i=0;i<2;i++) {
+						boolean ignoreLocalVsRemote = i == 1;
+						CountedRequests expected = new CountedRequests();
+						CountedRequests expectedSR = new CountedRequests();
+						scan(registry, category, ignoreLocalVsRemote, transfersPerInsert, expected, expectedSR);
+						CountedRequests got = new CountedRequests();
+						CountedRequests gotSR = new CountedRequests();
+						registry.load.count(category, ignoreLocalVsRemote, transfersPerInsert, got, gotSR);
+						assertSame(expected, got);
+						assertSame(expectedSR, gotSR);
+						// They are all local, so none of them has a source.
+						got = new CountedRequests();
+						gotSR = new CountedRequests();
+						registry.noSourceLoad.count(category, ignoreLocalVsRemote, transfersPerInsert, got, gotSR);
+						assertSame(expected, got);
+						assertSame(expectedSR, gotSR);
+					}
+				}
+			}
+		}
+		while(!running.isEmpty())
+			unlock(registry, running.remove(running.size() - 1));
+		for(int category = 0; category < UIDRegistry.CATEGORIES; category++)
+			for(int field = 0; field < UIDRegistry.Load.FIELDS; field++) {
+				assertEquals(0, registry.load.get(category, false, field));
+				assertEquals(0, registry.noSourceLoad.get(category, false, field));
+			}
+	}
+
+	private static final int BENCHMARK_RUNNING = 2000;
+	private static final int BENCHMARK_ARRIVALS = 20000;
+
+	/**
+	 * Replay a trace of request arrivals through the load counting part of
+	 * NodeStats.shouldRejectRequest: for each arrival, count what is running in every
+	 * category, decide whether to accept it, and if so lock it. Each accepted request
+	 * changes state a few times and then finishes. Compares reading the running totals
+	 * with adding up the tags, which is what it used to do.
+	 */
+	public void testRejectBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round = 0; round < 5; round++) {
+			for(int i=0;i<2;i++) {
+				boolean incremental = i == 0;
+				long start = System.nanoTime();
+				int accepted = replayTrace(incremental);
+				long time = System.nanoTime() - start;
+				System.out.println((incremental ? "Running totals: " : "Adding up tags: ")+BENCHMARK_ARRIVALS+" arrivals ("+accepted+" accepted) in "+
+						time/1000000+"ms: "+(time/BENCHMARK_ARRIVALS)+"ns per decision");
+			}
+		}
+	}
+
+	private int replayTrace(boolean incremental) {
+		Random random = new Random(1213);
+		UIDRegistry registry = new UIDRegistry();
+		ArrayList<UIDTag> running = new ArrayList<UIDTag>();
+		int accepted = 0;
+		for(int i=0;i<BENCHMARK_ARRIVALS;i++) {
+			UIDTag tag = randomTag(random, i);
+			// What RunningRequestsSnapshot counts for the global limits.
+			CountedRequests count = new CountedRequests();
+			CountedRequests countSR = new CountedRequests();
+			for(int local = 0; local < 2; local++) {
+				for(int type = 0; type < 3; type++) {
+					if(type == UIDRegistry.TYPE_OFFER_REPLY && local == 1) continue;
+					for(int ssk = 0; ssk < 2; ssk++) {
+						int category = UIDRegistry.category(ssk == 1, type == UIDRegistry.TYPE_INSERT, type == UIDRegistry.TYPE_OFFER_REPLY, local == 1, tag.realTimeFlag);
+						if(incremental)
+							registry.load.count(category, false, 1, count, countSR);
+						else
+							scan(registry, category, false, 1, count, countSR);
+					}
+				}
+			}
+			if(count.expectedTransfersOut + count.expectedTransfersIn < BENCHMARK_RUNNING * 2) {
+				lock(registry, tag);
+				tag.setAccepted();
+				running.add(tag);
+				accepted++;
+			}
+			if(!running.isEmpty()) {
+				UIDTag t = running.get(random.nextInt(running.size()));
+				if(random.nextInt(3) == 0)
+					unlock(registry, running.remove(running.indexOf(t)));
+				else
+					randomChange(random, t);
+			}
+		}
+		return accepted;
+	}
+
+}
@@ -0,0 +1,167 @@
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class OffHeapFreenetStoreTest extends TestCase {
+
+	public void testSimple() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> ramStore = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		ClientCHK key = block.getClientKey();
+		assertNull(store.fetch(key.getNodeCHK(), false, false, null));
+		store.put(block, false);
+
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(verify, key));
+		assertEquals(1, ramStore.keyCount());
+		assertEquals(1, ramStore.hits());
+		assertEquals(1, ramStore.misses());
+		assertEquals(1, ramStore.writes());
+		assertEquals(1, ramStore.getSessionAccessStats().hits());
+		assertTrue(ramStore.probablyInStore(key.getNodeCHK().getRoutingKey()));
+
+		ramStore.clear();
+		assertEquals(0, ramStore.keyCount());
+		assertNull(store.fetch(key.getNodeCHK(), false, false, null));
+	}
+
+	public void testOldBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		store.put(block, true);
+
+		ClientCHK key = block.getClientKey();
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(verify, key));
+
+		// ignoreOldBlocks works.
+		assertNull(store.fetch(key.getNodeCHK(), false, true, null));
+
+		// Put it with oldBlock = false should unset the flag.
+		store.put(block, false);
+		verify = store.fetch(key.getNodeCHK(), false, true, null);
+		assertEquals(test, decodeBlock(verify, key));
+	}
+
+	/** Fill the store several times over. It must stay within its size, and everything it
+	 * still has must be intact. */
+	public void testEviction() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		int maxKeys = 2 * OffHeapFreenetStore.STRIPES;
+		OffHeapFreenetStore<CHKBlock> ramStore = new OffHeapFreenetStore<CHKBlock>(store, maxKeys);
+		ClientCHKBlock[] blocks = encodeBlocks(200);
+		for(ClientCHKBlock block : blocks) {
+			store.put(block, false);
+			assertTrue(ramStore.keyCount() <= maxKeys);
+		}
+		assertEquals(maxKeys, checkBlocks(store, blocks));
+		assertEquals(blocks.length, ramStore.writes());
+	}
+
+	/** A block which is fetched regularly should survive a stream of new blocks. */
+	public void testPromote() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 4 * OffHeapFreenetStore.STRIPES);
+		ClientCHKBlock popular = encodeBlock("popular");
+		ClientCHK key = popular.getClientKey();
+		store.put(popular, false);
+		for(ClientCHKBlock block : encodeBlocks(200)) {
+			store.put(block, false);
+			assertEquals("popular", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+	}
+
+	/** Shrinking moves the surviving blocks down into the remaining slots. */
+	public void testShrink() throws Exception {
+		CHKStore store = new CHKStore();
+		int maxKeys = 20 * OffHeapFreenetStore.STRIPES;
+		OffHeapFreenetStore<CHKBlock> ramStore = new OffHeapFreenetStore<CHKBlock>(store, maxKeys);
+		ClientCHKBlock[] blocks = encodeBlocks(120);
+		for(ClientCHKBlock block : blocks)
+			store.put(block, false);
+		assertEquals(blocks.length, checkBlocks(store, blocks));
+		long allocated = ramStore.allocatedBytes();
+
+		int smaller = 3 * OffHeapFreenetStore.STRIPES;
+		ramStore.setMaxKeys(smaller, true);
+		assertEquals(smaller, ramStore.getMaxKeys());
+		assertTrue(ramStore.keyCount() <= smaller);
+		assertEquals(ramStore.keyCount(), checkBlocks(store, blocks));
+		assertTrue(ramStore.allocatedBytes() < allocated);
+
+		// And grow again.
+		ramStore.setMaxKeys(maxKeys, true);
+		for(ClientCHKBlock block : blocks)
+			store.put(block, false);
+		assertEquals(blocks.length, checkBlocks(store, blocks));
+	}
+
+	public void testMigrate() throws Exception {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> ramStore = new OffHeapFreenetStore<CHKBlock>(store, 100);
+		ClientCHKBlock[] blocks = encodeBlocks(20);
+		store.put(blocks[0], true);
+		for(int i=1;i<blocks.length;i++)
+			store.put(blocks[i], false);
+		CHKStore target = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(target, 100);
+		ramStore.migrateTo(target, false);
+		assertEquals(blocks.length, checkBlocks(target, blocks));
+		ClientCHK key = blocks[0].getClientKey();
+		assertNull(target.fetch(key.getNodeCHK(), false, true, null));
+	}
+
+	/** @return The number of blocks which are still in the store. */
+	private int checkBlocks(CHKStore store, ClientCHKBlock[] blocks) throws IOException, CHKVerifyException, CHKDecodeException {
+		int found = 0;
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), true, false, null);
+			if(verify == null) continue;
+			assertEquals("test"+i, decodeBlock(verify, key));
+			found++;
+		}
+		return found;
+	}
+
+	private ClientCHKBlock[] encodeBlocks(int count) throws CHKEncodeException, IOException {
+		ClientCHKBlock[] blocks = new ClientCHKBlock[count];
+		for(int i=0;i<count;i++)
+			blocks[i] = encodeBlock("test"+i);
+		return blocks;
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -0,0 +1,178 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+/** Tests for the salted hash store: I/O executor, async fetches and the mapped metadata file. */
+public class SaltedHashFreenetStoreTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private File tempDir;
+	private ThreadPoolExecutor ioExecutor;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-saltedhashstoretest");
+		tempDir.mkdir();
+		ioExecutor = SaltedHashFreenetStore.makeIOExecutor(4);
+	}
+
+	@Override
+	protected void tearDown() {
+		ioExecutor.shutdown();
+		FileUtil.removeAll(tempDir);
+	}
+
+	private SaltedHashFreenetStore<CHKBlock> makeStore(CHKStore store, String name, boolean useSlotFilter) throws IOException {
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(new File(tempDir, name), "teststore", store, weakPRNG, 20, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, null, null);
+		saltStore.setIOExecutor(ioExecutor);
+		saltStore.start(null, true);
+		return saltStore;
+	}
+
+	public void testParallelProbes() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		// Without the slot filter, every probe reads all the candidate slots.
+		SaltedHashFreenetStore<CHKBlock> saltStore = makeStore(store, "parallel", false);
+
+		ClientCHK[] keys = new ClientCHK[10];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlock("test" + i);
+			store.put(block, false);
+			keys[i] = block.getClientKey();
+		}
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		assertNull(store.fetch(encodeBlock("not there").getClientKey().getNodeCHK(), false, false, null));
+		saltStore.close();
+	}
+
+	private static class Callback implements SaltedHashFreenetStore.FetchCallback<CHKBlock> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private CHKBlock block;
+		private IOException failure;
+
+		@Override
+		public void onFetched(CHKBlock block) {
+			this.block = block;
+			done.countDown();
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		CHKBlock waitFor() throws IOException, InterruptedException {
+			done.await();
+			if(failure != null) throw failure;
+			return block;
+		}
+
+	}
+
+	public void testFetchAsync() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = makeStore(store, "async", true);
+
+		ClientCHK[] keys = new ClientCHK[10];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlock("test" + i);
+			store.put(block, false);
+			keys[i] = block.getClientKey();
+		}
+		Callback[] callbacks = new Callback[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			NodeCHK key = keys[i].getNodeCHK();
+			callbacks[i] = new Callback();
+			saltStore.fetchAsync(key.getRoutingKey(), key.getFullKey(), false, false, false, false, null, callbacks[i]);
+		}
+		for(int i=0;i<keys.length;i++)
+			assertEquals("test" + i, decodeBlock(callbacks[i].waitFor(), keys[i]));
+
+		NodeCHK missing = encodeBlock("not there").getClientKey().getNodeCHK();
+		Callback cb = new Callback();
+		saltStore.fetchAsync(missing.getRoutingKey(), missing.getFullKey(), false, false, false, false, null, cb);
+		assertNull(cb.waitFor());
+		saltStore.close();
+	}
+
+	public void testMappedMetadata() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File dir = new File(tempDir, "mapped");
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(dir, "teststore", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, null, null, true);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[10];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlock("test" + i);
+			store.put(block, false);
+			keys[i] = block.getClientKey();
+		}
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		saltStore.close();
+
+		// Grow it, the cleaner works on the mapping in place.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(dir, "teststore", store, weakPRNG, 40, false, SemiOrderedShutdownHook.get(), true, true, null, null, true);
+		saltStore.start(null, true);
+		assertEquals(40, saltStore.getMaxKeys());
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		saltStore.close();
+
+		// The changes were written to the file.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(dir, "teststore", store, weakPRNG, 40, false, SemiOrderedShutdownHook.get(), true, true, null, null, false);
+		saltStore.start(null, true);
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		saltStore.close();
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -0,0 +1,272 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ConcurrentLRUCacheTest extends TestCase {
+
+	public void testPushPop() {
+		ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>();
+		assertNull(cache.popKey());
+		assertNull(cache.peekValue());
+		for(int i=0;i<100;i++)
+			assertNull(cache.push(i, "v"+i));
+		assertEquals(100, cache.size());
+		// Promote some, the rest keep their order.
+		assertEquals("v10", cache.push(10, "w10"));
+		assertEquals("v20", cache.promote(20));
+		assertNull(cache.promote(1000));
+		// get() doesn't promote.
+		assertEquals("v0", cache.get(0));
+		assertEquals(Integer.valueOf(0), cache.peekKey());
+		for(int i=0;i<100;i++) {
+			if(i == 10 || i == 20) continue;
+			assertEquals(Integer.valueOf(i), cache.popKey());
+		}
+		assertEquals("w10", cache.popValue());
+		assertEquals("v20", cache.popValue());
+		assertTrue(cache.isEmpty());
+		assertNull(cache.popValue());
+	}
+
+	public void testNull() {
+		ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>();
+		try {
+			cache.push(null, "a");
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+		try {
+			cache.push(1, null);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+	}
+
+	public void testRemove() {
+		ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>();
+		cache.push(1, "a");
+		cache.push(2, "b");
+		assertTrue(cache.containsKey(1));
+		assertFalse(cache.remove(1, "b"));
+		assertTrue(cache.remove(1, "a"));
+		assertFalse(cache.containsKey(1));
+		assertFalse(cache.removeKey(1));
+		assertTrue(cache.removeKey(2));
+		assertEquals(0, cache.size());
+		cache.push(3, "c");
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(3));
+		assertNull(cache.peekKey());
+	}
+
+	public void testKeys() {
+		ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>();
+		for(int i=0;i<50;i++)
+			cache.push(i, "v"+i);
+		cache.promote(0);
+		Enumeration<Integer> keys = cache.keys();
+		for(int i=1;i<50;i++)
+			assertEquals(Integer.valueOf(i), keys.nextElement());
+		assertEquals(Integer.valueOf(0), keys.nextElement());
+		assertFalse(keys.hasMoreElements());
+		Enumeration<String> values = cache.values();
+		assertEquals("v1", values.nextElement());
+	}
+
+	private static class Evictions implements ConcurrentLRUCache.EvictionListener<Integer, String> {
+
+		final ArrayList<Integer> evicted = new ArrayList<Integer>();
+
+		@Override
+		public synchronized void onEvict(Integer key, String value) {
+			assertEquals("v"+key, value);
+			evicted.add(key);
+		}
+
+	}
+
+	private static final ConcurrentLRUCache.Weigher<Integer, String> LENGTH = new ConcurrentLRUCache.Weigher<Integer, String>() {
+
+		@Override
+		public long weigh(Integer key, String value) {
+			return value.length();
+		}
+
+	};
+
+	public void testMaxEntries() {
+		Evictions evictions = new Evictions();
+		ConcurrentLRUCache<Integer, String> cache =
+			new ConcurrentLRUCache<Integer, String>(10, Long.MAX_VALUE, null, evictions);
+		for(int i=0;i<10;i++)
+			cache.push(i, "v"+i);
+		cache.promote(0);
+		cache.push(10, "v10");
+		cache.push(11, "v11");
+		assertEquals(10, cache.size());
+		assertEquals(2, evictions.evicted.size());
+		assertEquals(Integer.valueOf(1), evictions.evicted.get(0));
+		assertEquals(Integer.valueOf(2), evictions.evicted.get(1));
+		assertTrue(cache.containsKey(0));
+		cache.setMaxEntries(5);
+		assertEquals(5, cache.size());
+		assertEquals(7, evictions.evicted.size());
+		assertTrue(cache.containsKey(0));
+	}
+
+	public void testMaxWeight() {
+		Evictions evictions = new Evictions();
+		ConcurrentLRUCache<Integer, String> cache =
+			new ConcurrentLRUCache<Integer, String>(Integer.MAX_VALUE, 100, LENGTH, evictions);
+		for(int i=0;i<40;i++)
+			cache.push(i, "v"+i);
+		// 10 * 2 + 30 * 3 = 110
+		assertTrue(cache.weight() <= 100);
+		assertEquals(Integer.valueOf(0), evictions.evicted.get(0));
+		long total = 0;
+		for(Enumeration<String> e = cache.values(); e.hasMoreElements();)
+			total += e.nextElement().length();
+		assertEquals(total, cache.weight());
+		// Replacing changes the weight.
+		cache.setMaxWeight(Long.MAX_VALUE);
+		long before = cache.weight();
+		cache.push(39, "v39");
+		assertEquals(before, cache.weight());
+		cache.removeKey(39);
+		assertEquals(before - 3, cache.weight());
+	}
+
+	/** Everything pushed must be either in the cache or evicted, and the counts must add up. */
+	public void testConcurrent() throws InterruptedException {
+		final Evictions evictions = new Evictions();
+		final ConcurrentLRUCache<Integer, String> cache =
+			new ConcurrentLRUCache<Integer, String>(500, 1500, LENGTH, evictions);
+		final AtomicInteger inserted = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for(int t=0;t<threads.length;t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<50000;i++) {
+						int key = random.nextInt(2000);
+						if(random.nextInt(4) == 0) {
+							if(cache.push(key, "v"+key) == null)
+								inserted.incrementAndGet();
+						} else {
+							String v = cache.promote(key);
+							if(v != null) assertEquals("v"+key, v);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertTrue(cache.size() <= 500);
+		assertTrue(cache.weight() <= 1500);
+		assertEquals(inserted.get(), cache.size() + evictions.evicted.size());
+		int count = 0;
+		long total = 0;
+		for(Enumeration<String> e = cache.values(); e.hasMoreElements();) {
+			total += e.nextElement().length();
+			count++;
+		}
+		assertEquals(count, cache.size());
+		assertEquals(total, cache.weight());
+	}
+
+	private static final int BENCHMARK_KEYS = 20000;
+	private static final int BENCHMARK_CAPACITY = 10000;
+	private static final int BENCHMARK_OPS = 2000000;
+
+	private interface Cache {
+		void access(Integer key);
+	}
+
+	/** Like the callers of LRUHashtable: get, then push to promote or add it. */
+	private static class Synchronized implements Cache {
+
+		final LRUHashtable<Integer, Integer> table = new LRUHashtable<Integer, Integer>();
+
+		@Override
+		public void access(Integer key) {
+			synchronized(table) {
+				Integer v = table.get(key);
+				table.push(key, v == null ? key : v);
+				while(table.size() > BENCHMARK_CAPACITY)
+					table.popKey();
+			}
+		}
+
+	}
+
+	private static class Concurrent implements Cache {
+
+		final ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<Integer, Integer>(BENCHMARK_CAPACITY);
+
+		@Override
+		public void access(Integer key) {
+			if(cache.promote(key) == null)
+				cache.push(key, key);
+		}
+
+	}
+
+	/**
+	 * Compare LRUHashtable (with the usual external lock around get/push/trim) against
+	 * ConcurrentLRUCache, on 1, 4 and 16 threads, with a skewed key distribution so most
+	 * accesses are hits.
+	 */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round = 0; round < 3; round++) {
+			for(int threads : new int[] { 1, 4, 16 }) {
+				long sync = run(new Synchronized(), threads);
+				long conc = run(new Concurrent(), threads);
+				System.out.println(threads+" threads: LRUHashtable "+opsPerSecond(sync)+" ops/sec, ConcurrentLRUCache "+opsPerSecond(conc)+" ops/sec");
+			}
+		}
+	}
+
+	private static long opsPerSecond(long nanos) {
+		return BENCHMARK_OPS * 1000000000L / nanos;
+	}
+
+	private static long run(final Cache cache, int threadCount) throws InterruptedException {
+		Thread[] threads = new Thread[threadCount];
+		final int ops = BENCHMARK_OPS / threadCount;
+		for(int t=0;t<threadCount;t++) {
+			final Random random = new Random(t);
+			final Integer[] keys = new Integer[ops];
+			for(int i=0;i<ops;i++) {
+				// Roughly 80% of accesses to 20% of the keys.
+				int k = random.nextInt(5) < 4 ? random.nextInt(BENCHMARK_KEYS / 5) : random.nextInt(BENCHMARK_KEYS);
+				keys[i] = k;
+			}
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(Integer key : keys)
+						cache.access(key);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,167 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import freenet.support.Logger.LogLevel;
+
+import junit.framework.TestCase;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static void closeAndWait(FileLoggerHook hook) {
+		hook.new CloserThread().run();
+	}
+
+	public void testFormat() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "c h t p: m", null, LogLevel.MINOR);
+		hook.start();
+		Object o = new Object() {
+			@Override
+			public int hashCode() {
+				return 0xabc;
+			}
+		};
+		String oldName = Thread.currentThread().getName();
+		Thread.currentThread().setName("logging thread");
+		try {
+			hook.log(o, String.class, "first", null, LogLevel.NORMAL);
+		} finally {
+			// The name is taken when we log, not when it is written.
+			Thread.currentThread().setName(oldName);
+		}
+		hook.log(null, null, "ignored", null, LogLevel.DEBUG);
+		hook.log(null, null, "second", new Exception("oops"), LogLevel.ERROR);
+		hook.logString("raw\n".getBytes());
+		closeAndWait(hook);
+		hook.log(null, null, "after closing", null, LogLevel.ERROR);
+
+		String[] lines = new String(os.toByteArray()).split("\n");
+		assertEquals("java.lang.String abc logging thread NORMAL: first", lines[0]);
+		assertEquals("<none> <none> "+oldName+" ERROR: second", lines[1]);
+		assertEquals("java.lang.Exception: oops", lines[2]);
+		assertTrue(lines[3].startsWith("\tat "+getClass().getName()));
+		assertEquals("raw", lines[lines.length-1]);
+		assertEquals(0, hook.listBytes());
+	}
+
+	public void testConcurrent() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(os, "t m", null, LogLevel.MINOR);
+		hook.setMaxListBytes(Long.MAX_VALUE);
+		hook.start();
+		final int perThread = 2000;
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread("t"+t) {
+				@Override
+				public void run() {
+					for(int i=0;i<perThread;i++) {
+						hook.log(null, null, Integer.toString(i), null, LogLevel.NORMAL);
+						// Don't overrun the ring, we want to see everything.
+						while(hook.listBytes() > 100 * 1000)
+							Thread.yield();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		closeAndWait(hook);
+		int[] next = new int[threads.length];
+		for(String line : new String(os.toByteArray()).split("\n")) {
+			assertFalse(line, line.startsWith("GRRR"));
+			String[] s = line.split(" ");
+			int t = Integer.parseInt(s[0].substring(1));
+			assertEquals(next[t]++, Integer.parseInt(s[1]));
+		}
+		for(int n : next)
+			assertEquals(perThread, n);
+	}
+
+	/** When the ring is full, messages are dropped and the writer says how many. */
+	public void testDropped() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", null, LogLevel.MINOR);
+		hook.setMaxListBytes(1000);
+		// Not started yet, so nothing is written.
+		for(int i=0;i<100;i++)
+			hook.log(null, null, "message "+i, null, LogLevel.NORMAL);
+		hook.start();
+		closeAndWait(hook);
+		String out = new String(os.toByteArray());
+		assertTrue(out.startsWith("message 0\n"));
+		assertTrue(out, out.contains("GRRR: ERROR: Logging too fast, dropped "));
+	}
+
+	/** Discards everything, but counts the lines. Only used by the writer thread. */
+	private static class CountingOutputStream extends OutputStream {
+
+		volatile long lines;
+
+		@Override
+		public void write(int b) {
+			if(b == '\n') lines++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			long l = lines;
+			for(int i=off;i<off+len;i++)
+				if(b[i] == '\n') l++;
+			lines = l;
+		}
+
+	}
+
+	private static final int BENCHMARK_CALLS = 1000000;
+
+	/** Log from 1, 4 and 16 threads at once through the global Logger, as the node does. The
+	 * writer can't keep up with that, so most messages are dropped, but the callers shouldn't
+	 * be held up. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		CountingOutputStream os = new CountingOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(os, "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+		hook.start();
+		Logger.setupChain();
+		Logger.globalSetThreshold(LogLevel.MINOR);
+		Logger.globalAddHook(hook);
+		try {
+			for(int round = 0; round < 3; round++) {
+				for(int threadCount : new int[] { 1, 4, 16 }) {
+					Thread[] threads = new Thread[threadCount];
+					final int calls = BENCHMARK_CALLS / threadCount;
+					for(int t=0;t<threadCount;t++) {
+						threads[t] = new Thread() {
+							@Override
+							public void run() {
+								for(int i=0;i<calls;i++)
+									Logger.normal(this, "Benchmark message number "+i);
+							}
+						};
+					}
+					long start = System.nanoTime();
+					for(Thread t : threads)
+						t.start();
+					for(Thread t : threads)
+						t.join();
+					long nanos = System.nanoTime() - start;
+					// Let the writer catch up.
+					while(hook.listBytes() > 0)
+						Thread.sleep(10);
+					Thread.sleep(100);
+					long written = os.lines;
+					os.lines = 0;
+					System.out.println(threadCount+" threads: "+(BENCHMARK_CALLS * 1000000000L / nanos)+" calls/sec, "+written+" lines written");
+				}
+			}
+		} finally {
+			Logger.globalRemoveHook(hook);
+			closeAndWait(hook);
+		}
+	}
+
+}
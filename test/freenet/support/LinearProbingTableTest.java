@@ -0,0 +1,128 @@
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LinearProbingTableTest extends TestCase {
+
+	/** A fixed size set of positive longs. 0 is free. */
+	private static class LongSet extends LinearProbingTable {
+
+		private final long[] keys;
+		/** Only use this many of the low bits of the key for the home position, to get
+		 * long clusters. */
+		private final int homeBits;
+		private final int offset;
+
+		LongSet(int capacity, int homeBits, int offset) {
+			keys = new long[capacity];
+			mask = capacity - 1;
+			this.homeBits = homeBits;
+			this.offset = offset;
+		}
+
+		private int home(long key) {
+			return ((int)(key & ((1 << homeBits) - 1)) + offset) & mask;
+		}
+
+		@Override
+		protected boolean isFree(int i) {
+			return keys[i] == 0;
+		}
+
+		@Override
+		protected int homeOf(int i) {
+			return home(keys[i]);
+		}
+
+		@Override
+		protected void move(int from, int to) {
+			keys[to] = keys[from];
+		}
+
+		@Override
+		protected void clear(int i) {
+			keys[i] = 0;
+		}
+
+		private int find(long key) {
+			int i = home(key);
+			while(true) {
+				if(keys[i] == 0) return -1;
+				if(keys[i] == key) return i;
+				i = next(i);
+			}
+		}
+
+		boolean contains(long key) {
+			return find(key) >= 0;
+		}
+
+		boolean add(long key) {
+			if(contains(key)) return false;
+			keys[probeFree(home(key))] = key;
+			return true;
+		}
+
+		boolean remove(long key) {
+			int i = find(key);
+			if(i < 0) return false;
+			delete(i);
+			return true;
+		}
+
+	}
+
+	public void testCyclicallyBetween() {
+		assertTrue(LinearProbingTable.cyclicallyBetween(2, 3, 5));
+		assertTrue(LinearProbingTable.cyclicallyBetween(2, 5, 5));
+		assertFalse(LinearProbingTable.cyclicallyBetween(2, 2, 5));
+		assertFalse(LinearProbingTable.cyclicallyBetween(2, 6, 5));
+		assertFalse(LinearProbingTable.cyclicallyBetween(2, 1, 5));
+		// Going round the end.
+		assertTrue(LinearProbingTable.cyclicallyBetween(14, 15, 1));
+		assertTrue(LinearProbingTable.cyclicallyBetween(14, 0, 1));
+		assertTrue(LinearProbingTable.cyclicallyBetween(14, 1, 1));
+		assertFalse(LinearProbingTable.cyclicallyBetween(14, 14, 1));
+		assertFalse(LinearProbingTable.cyclicallyBetween(14, 2, 1));
+	}
+
+	/** Everything hashes to the same position near the end, so the cluster goes round. */
+	public void testWrap() {
+		LongSet set = new LongSet(8, 0, 6);
+		for(long key = 1; key <= 5; key++)
+			assertTrue(set.add(key));
+		assertTrue(set.remove(1));
+		assertTrue(set.remove(3));
+		for(long key = 1; key <= 5; key++)
+			assertEquals(key != 1 && key != 3, set.contains(key));
+		assertTrue(set.remove(5));
+		assertTrue(set.remove(2));
+		assertTrue(set.remove(4));
+		for(int i=0;i<8;i++)
+			assertTrue(set.isFree(i));
+	}
+
+	/** Compare against a HashSet, with a poor hash so there are long clusters. */
+	public void testRandom() {
+		Random random = new Random(1415);
+		for(int homeBits = 2; homeBits <= 10; homeBits += 4) {
+			LongSet set = new LongSet(256, homeBits, 250);
+			HashSet<Long> expected = new HashSet<Long>();
+			for(int round = 0; round < 50000; round++) {
+				long key = 1 + random.nextInt(400);
+				if(random.nextBoolean() && expected.size() < 200)
+					assertEquals(expected.add(key), set.add(key));
+				else
+					assertEquals(expected.remove(key), set.remove(key));
+				if(round % 1000 == 0) {
+					for(long k = 1; k <= 400; k++)
+						assertEquals(expected.contains(k), set.contains(k));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package freenet.support;
+
+import freenet.support.Logger.LogLevel;
+
+import junit.framework.TestCase;
+
+public class LogRingBufferTest extends TestCase {
+
+	public void testOrder() {
+		LogRingBuffer ring = new LogRingBuffer(5, Long.MAX_VALUE);
+		assertEquals(8, ring.capacity());
+		assertNull(ring.peek());
+		for(int round=0;round<3;round++) {
+			for(int i=0;i<6;i++) {
+				LogRingBuffer.Record r = ring.claim(10);
+				r.message = "m"+i;
+				r.priority = LogLevel.NORMAL;
+				ring.publish(r);
+			}
+			assertEquals(60, ring.bytes());
+			for(int i=0;i<6;i++) {
+				LogRingBuffer.Record r = ring.peek();
+				assertEquals("m"+i, r.message);
+				ring.remove(r);
+				assertNull(r.message);
+			}
+			assertNull(ring.peek());
+			assertEquals(0, ring.bytes());
+		}
+	}
+
+	/** A claimed record holds up the consumer until it is published. */
+	public void testUnpublished() {
+		LogRingBuffer ring = new LogRingBuffer(4, Long.MAX_VALUE);
+		LogRingBuffer.Record a = ring.claim(1);
+		LogRingBuffer.Record b = ring.claim(1);
+		ring.publish(b);
+		assertNull(ring.peek());
+		ring.publish(a);
+		assertSame(a, ring.peek());
+		ring.remove(a);
+		assertSame(b, ring.peek());
+	}
+
+	public void testDrop() {
+		LogRingBuffer ring = new LogRingBuffer(4, 100);
+		for(int i=0;i<4;i++)
+			ring.publish(ring.claim(10));
+		// Full.
+		assertNull(ring.claim(10));
+		assertEquals(1, ring.takeDropped());
+		assertEquals(0, ring.takeDropped());
+		ring.remove(ring.peek());
+		// Too many bytes.
+		assertNull(ring.claim(80));
+		assertNotNull(ring.claim(70));
+		assertEquals(100, ring.bytes());
+		assertEquals(1, ring.takeDropped());
+	}
+
+	/** Everything logged is either written, in order for each thread, or counted as dropped. */
+	public void testConcurrent() throws InterruptedException {
+		final LogRingBuffer ring = new LogRingBuffer(256, Long.MAX_VALUE);
+		final int perThread = 50000;
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<perThread;i++) {
+						LogRingBuffer.Record r = ring.claim(1);
+						if(r == null) {
+							Thread.yield();
+							continue;
+						}
+						r.hashCode = thread;
+						r.time = i;
+						ring.publish(r);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		long[] last = new long[threads.length];
+		for(int i=0;i<last.length;i++)
+			last[i] = -1;
+		long received = 0;
+		while(true) {
+			LogRingBuffer.Record r = ring.peek();
+			if(r == null) {
+				boolean alive = false;
+				for(Thread t : threads)
+					alive |= t.isAlive();
+				if(!alive && ring.peek() == null) break;
+				ring.await(10);
+				continue;
+			}
+			assertTrue(r.time > last[r.hashCode]);
+			last[r.hashCode] = r.time;
+			received++;
+			ring.remove(r);
+		}
+		assertEquals((long)threads.length * perThread, received + ring.takeDropped());
+		assertEquals(0, ring.bytes());
+	}
+
+}
@@ -0,0 +1,181 @@
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import freenet.node.FastRunnable;
+
+public class TimingWheelTickerTest extends TestCase {
+
+	private Executor realExec;
+
+	private TimingWheelTicker ticker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		realExec = new PooledExecutor();
+		ticker = new TimingWheelTicker(realExec, 0);
+		ticker.start();
+	}
+
+	private int runCount = 0;
+
+	Runnable simpleRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(TimingWheelTickerTest.this) {
+				runCount++;
+			}
+		}
+
+	};
+
+	private synchronized int runCount() {
+		return runCount;
+	}
+
+	public void testSimple() throws InterruptedException {
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, 0);
+		Thread.sleep(10);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, 100);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(50);
+		assertEquals(1, ticker.queuedJobs());
+		assertEquals(1, runCount());
+		Thread.sleep(200);
+		assertEquals(0, ticker.queuedJobs());
+		assertEquals(2, runCount());
+	}
+
+	public void testDeduping() throws InterruptedException {
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 150, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(250);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		// Now backwards
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 150, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(250);
+		assertEquals(2, runCount());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testRemove() throws InterruptedException {
+		ticker.queueTimedJob(simpleRunnable, 50);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.removeQueuedJob(simpleRunnable);
+		assertEquals(0, ticker.queuedJobs());
+		// Removing something which isn't queued is harmless.
+		ticker.removeQueuedJob(simpleRunnable);
+		Thread.sleep(150);
+		assertEquals(0, runCount());
+	}
+
+	private class OrderedJob implements FastRunnable {
+
+		private final int index;
+		private final int[] order;
+		private final CountDownLatch done;
+
+		OrderedJob(int index, int[] order, CountDownLatch done) {
+			this.index = index;
+			this.order = order;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			synchronized(order) {
+				order[index] = (int) (order.length - done.getCount());
+			}
+			done.countDown();
+		}
+
+	}
+
+	/** Jobs on the higher levels of the wheel must come down to the first level in time. */
+	public void testOrderAcrossLevels() throws InterruptedException {
+		long[] offsets = new long[] { 1200, 30, 700, 260, 5, 400 };
+		int[] order = new int[offsets.length];
+		CountDownLatch done = new CountDownLatch(offsets.length);
+		long start = System.currentTimeMillis();
+		for(int i=0;i<offsets.length;i++)
+			ticker.queueTimedJob(new OrderedJob(i, order, done), "Job "+i, offsets[i], true, false);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 1200);
+		synchronized(order) {
+			assertEquals(5, order[0]);
+			assertEquals(1, order[1]);
+			assertEquals(4, order[2]);
+			assertEquals(2, order[3]);
+			assertEquals(0, order[4]);
+			assertEquals(3, order[5]);
+		}
+	}
+
+	private static final int BENCHMARK_JOBS = 100000;
+
+	private static class CountingJob implements FastRunnable {
+
+		private final CountDownLatch done;
+
+		CountingJob(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			done.countDown();
+		}
+
+	}
+
+	/** Queue, cancel and run 100k jobs on each ticker. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		PrioritizedTicker prioritized = new PrioritizedTicker(realExec, 1);
+		prioritized.start();
+		for(int round=0;round<5;round++) {
+			System.out.println("PrioritizedTicker: "+benchmark(prioritized));
+			System.out.println("TimingWheelTicker: "+benchmark(ticker));
+		}
+	}
+
+	private String benchmark(Ticker t) throws InterruptedException {
+		Random random = new Random(1234);
+		CountDownLatch done = new CountDownLatch(BENCHMARK_JOBS);
+		Runnable[] jobs = new Runnable[BENCHMARK_JOBS];
+		for(int i=0;i<jobs.length;i++)
+			jobs[i] = new CountingJob(done);
+		// Far enough ahead that nothing runs while we are queueing and cancelling.
+		long t1 = System.nanoTime();
+		for(int i=0;i<jobs.length;i++)
+			t.queueTimedJob(jobs[i], "Benchmark", 60*1000+random.nextInt(60*1000), true, false);
+		long t2 = System.nanoTime();
+		for(int i=0;i<jobs.length;i++)
+			t.removeQueuedJob(jobs[i]);
+		long t3 = System.nanoTime();
+		// Now run them all, spread over a second.
+		for(int i=0;i<jobs.length;i++)
+			t.queueTimedJob(jobs[i], "Benchmark", random.nextInt(1000), true, false);
+		long t4 = System.nanoTime();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		long t5 = System.nanoTime();
+		return "queue "+(t2-t1)/1000000+"ms, remove "+(t3-t2)/1000000+"ms, queue "+(t4-t3)/1000000+
+			"ms and run "+(t5-t3)/1000000+"ms for "+BENCHMARK_JOBS+" jobs";
+	}
+
+}
@@ -0,0 +1,83 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class WakeupQueueTest extends TestCase {
+
+	public void testSchedule() {
+		WakeupQueue<String> queue = new WakeupQueue<String>();
+		assertEquals(Long.MAX_VALUE, queue.nextTime());
+		assertTrue(queue.schedule("a", 100));
+		assertFalse(queue.schedule("b", 200));
+		assertTrue(queue.schedule("c", 50));
+		// Only ever moves earlier.
+		assertFalse(queue.schedule("c", 300));
+		assertEquals(50, queue.getTime("c"));
+		assertFalse(queue.schedule("b", 150));
+		assertEquals(150, queue.getTime("b"));
+		assertEquals(3, queue.size());
+		assertEquals(50, queue.nextTime());
+
+		ArrayList<String> due = new ArrayList<String>();
+		assertEquals(0, queue.popDue(49, due));
+		assertEquals(2, queue.popDue(100, due));
+		assertEquals("c", due.get(0));
+		assertEquals("a", due.get(1));
+		assertFalse(queue.contains("a"));
+		assertEquals(Long.MAX_VALUE, queue.getTime("a"));
+		assertEquals(150, queue.nextTime());
+
+		assertTrue(queue.remove("b"));
+		assertFalse(queue.remove("b"));
+		assertTrue(queue.isEmpty());
+	}
+
+	/** Items due at the same time come out in the order they were scheduled. */
+	public void testTies() {
+		WakeupQueue<Integer> queue = new WakeupQueue<Integer>();
+		for(int i=0;i<10;i++)
+			queue.schedule(i, 10);
+		ArrayList<Integer> due = new ArrayList<Integer>();
+		queue.popDue(10, due);
+		for(int i=0;i<10;i++)
+			assertEquals(Integer.valueOf(i), due.get(i));
+	}
+
+	/** Compare against a map of the earliest time each item was scheduled for. */
+	public void testRandom() {
+		Random random = new Random(1415);
+		WakeupQueue<Integer> queue = new WakeupQueue<Integer>();
+		Map<Integer, Long> expected = new HashMap<Integer, Long>();
+		long now = 0;
+		for(int round = 0; round < 20000; round++) {
+			int item = random.nextInt(200);
+			if(random.nextInt(3) > 0) {
+				long time = now + random.nextInt(1000);
+				queue.schedule(item, time);
+				Long old = expected.get(item);
+				if(old == null || old > time)
+					expected.put(item, time);
+			} else {
+				now += random.nextInt(100);
+				ArrayList<Integer> due = new ArrayList<Integer>();
+				queue.popDue(now, due);
+				long last = Long.MIN_VALUE;
+				for(Integer i : due) {
+					long t = expected.remove(i);
+					assertTrue(t <= now);
+					assertTrue(t >= last);
+					last = t;
+				}
+				for(long t : expected.values())
+					assertTrue(t > now);
+			}
+			assertEquals(expected.size(), queue.size());
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static class CountingJob implements Runnable {
+
+		private final CountDownLatch done;
+		private final AtomicInteger count;
+
+		CountingJob(CountDownLatch done, AtomicInteger count) {
+			this.done = done;
+			this.count = count;
+		}
+
+		@Override
+		public void run() {
+			count.incrementAndGet();
+			done.countDown();
+		}
+
+	}
+
+	private static class PrioJob implements PrioRunnable {
+
+		private final Runnable job;
+		private final int prio;
+
+		PrioJob(Runnable job, int prio) {
+			this.job = job;
+			this.prio = prio;
+		}
+
+		@Override
+		public void run() {
+			job.run();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+
+	}
+
+	public void testManyJobs() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		executor.start();
+		int jobs = 10000;
+		CountDownLatch done = new CountDownLatch(jobs);
+		AtomicInteger count = new AtomicInteger();
+		for(int i=0;i<jobs;i++) {
+			int prio = NativeThread.MIN_PRIORITY + (i % NativeThread.MAX_PRIORITY);
+			executor.execute(new PrioJob(new CountingJob(done, count), prio), "Test job "+i);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(jobs, count.get());
+		long started = 0;
+		for(long l : executor.jobsStarted())
+			started += l;
+		assertEquals(jobs, started);
+		for(int queued : executor.queuedJobs())
+			assertEquals(0, queued);
+		// Never more than the limit, because nothing blocked.
+		int[] running = executor.runningThreads();
+		int[] waiting = executor.waitingThreads();
+		for(int i=0;i<running.length;i++)
+			assertTrue(running[i] + waiting[i] <= 4);
+	}
+
+	/** Jobs submitted from a worker go on its own queue, and other workers steal them. */
+	public void testJobsFromJobs() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		executor.start();
+		final int jobs = 1000;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger count = new AtomicInteger();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for(int i=0;i<jobs;i++)
+					executor.execute(new CountingJob(done, count), "Child job "+i);
+			}
+
+		}, "Parent job");
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(jobs, count.get());
+	}
+
+	/**
+	 * A job which waits for another job at the same priority must not deadlock, even when the
+	 * limit has been reached: the starved job gets an extra thread.
+	 */
+	public void testNoDeadlock() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(1);
+		executor.start();
+		final CountDownLatch inner = new CountDownLatch(1);
+		final CountDownLatch outer = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						inner.countDown();
+					}
+
+				}, "Inner job");
+				try {
+					if(inner.await(10, TimeUnit.SECONDS))
+						outer.countDown();
+				} catch (InterruptedException e) {
+					// Fail.
+				}
+			}
+
+		}, "Outer job");
+		assertTrue(outer.await(10, TimeUnit.SECONDS));
+		int prio = NativeThread.NORM_PRIORITY - 1;
+		assertTrue(executor.threadsCreated()[prio] >= 2);
+		assertTrue(executor.averageWaitTimes()[prio] > 0);
+	}
+
+	private static final int BENCHMARK_JOBS = 100000;
+	private static final int BENCHMARK_SUBMITTERS = 4;
+
+	/** Run 100k tiny jobs, submitted from several threads, on each executor. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		PooledExecutor pooled = new PooledExecutor();
+		pooled.start();
+		WorkStealingExecutor stealing = new WorkStealingExecutor(64);
+		stealing.start();
+		for(int round=0;round<5;round++) {
+			System.out.println("PooledExecutor: "+benchmark(pooled)+"ms");
+			System.out.println("WorkStealingExecutor: "+benchmark(stealing)+"ms");
+		}
+	}
+
+	private long benchmark(final Executor executor) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(BENCHMARK_JOBS);
+		final AtomicInteger count = new AtomicInteger();
+		Thread[] submitters = new Thread[BENCHMARK_SUBMITTERS];
+		long start = System.nanoTime();
+		for(int i=0;i<submitters.length;i++) {
+			submitters[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for(int j=0;j<BENCHMARK_JOBS/BENCHMARK_SUBMITTERS;j++)
+						executor.execute(new CountingJob(done, count), "Benchmark");
+				}
+
+			};
+			submitters[i].start();
+		}
+		assertTrue(done.await(120, TimeUnit.SECONDS));
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+}
@@ -0,0 +1,169 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+
+public class CTREncryptedBucketTest extends BucketTestBase {
+	private RandomSource strongPRNG = new DummyRandomSource(12345);
+	private Random weakPRNG = new DummyRandomSource(54321);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new CTREncryptedBucket(makeFileBucket(), 1024, strongPRNG, weakPRNG);
+	}
+
+	private TempFileBucket makeFileBucket() throws IOException {
+		FilenameGenerator filenameGenerator = new FilenameGenerator(weakPRNG, false, null, "junit");
+		return new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	private static byte[] write(Bucket bucket, int length, Random random) throws IOException {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		OutputStream os = bucket.getOutputStream();
+		// A mixture of single bytes and arrays of different sizes.
+		int i = 0;
+		while(i < length) {
+			if(random.nextInt(10) == 0) {
+				os.write(data[i++]);
+			} else {
+				int n = Math.min(length - i, random.nextInt(70000));
+				os.write(data, i, n);
+				i += n;
+			}
+		}
+		os.close();
+		return data;
+	}
+
+	public void testSkip() throws IOException {
+		Random random = new Random(1);
+		CTREncryptedBucket bucket = (CTREncryptedBucket) makeBucket(0);
+		try {
+			byte[] data = write(bucket, 100000, random);
+			assertEquals(data.length, bucket.size());
+			assertEquals(131072, bucket.paddedLength());
+			assertEquals(131072, bucket.getUnderlying().size());
+			for(int i=0;i<20;i++) {
+				int start = random.nextInt(data.length);
+				InputStream is = bucket.getInputStream();
+				assertEquals(start, is.skip(start));
+				byte[] buf = new byte[Math.min(data.length - start, 1000)];
+				new DataInputStream(is).readFully(buf);
+				assertTrue(Arrays.equals(Arrays.copyOfRange(data, start, start + buf.length), buf));
+				is.close();
+			}
+			InputStream is = bucket.getInputStream();
+			assertEquals(data.length, is.skip(data.length + 1000));
+			assertEquals(-1, is.read());
+			is.close();
+		} finally {
+			bucket.free();
+		}
+	}
+
+	/** The data on disk must not be the plaintext, and writing it again must not reuse the
+	 * keystream. */
+	public void testEncrypted() throws IOException {
+		CTREncryptedBucket bucket = (CTREncryptedBucket) makeBucket(0);
+		try {
+			byte[] zeros = new byte[4096];
+			OutputStream os = bucket.getOutputStream();
+			os.write(zeros);
+			os.close();
+			byte[] first = BucketTools.toByteArray(bucket.getUnderlying());
+			assertFalse(Arrays.equals(zeros, Arrays.copyOf(first, zeros.length)));
+
+			os = bucket.getOutputStream();
+			os.write(zeros);
+			os.close();
+			byte[] second = BucketTools.toByteArray(bucket.getUnderlying());
+			assertFalse(Arrays.equals(Arrays.copyOf(first, zeros.length), Arrays.copyOf(second, zeros.length)));
+			assertTrue(Arrays.equals(zeros, BucketTools.toByteArray(bucket)));
+
+			Bucket shadow = bucket.createShadow();
+			assertTrue(shadow.isReadOnly());
+			assertTrue(Arrays.equals(zeros, BucketTools.toByteArray(shadow)));
+		} finally {
+			bucket.free();
+		}
+	}
+
+	private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+	private static final int BENCHMARK_READS = 200;
+	private static final int BENCHMARK_READ_SIZE = 4096;
+
+	/**
+	 * Compare PaddedEphemerallyEncryptedBucket against CTREncryptedBucket, writing and reading
+	 * the whole bucket sequentially, and reading small pieces at random positions.
+	 */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = new byte[BENCHMARK_SIZE];
+		new Random(0).nextBytes(data);
+		byte[] buf = new byte[65536];
+		for(int round = 0; round < 3; round++) {
+			for(int type = 0; type < 2; type++) {
+				Bucket bucket = type == 0 ?
+						new PaddedEphemerallyEncryptedBucket(makeFileBucket(), 1024, strongPRNG, weakPRNG) :
+						new CTREncryptedBucket(makeFileBucket(), 1024, strongPRNG, weakPRNG);
+				try {
+					long start = System.nanoTime();
+					OutputStream os = bucket.getOutputStream();
+					for(int i=0;i<data.length;i+=buf.length)
+						os.write(data, i, buf.length);
+					os.close();
+					long write = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					InputStream is = bucket.getInputStream();
+					while(is.read(buf) > 0);
+					is.close();
+					long read = System.nanoTime() - start;
+
+					Random random = new Random(1);
+					byte[] small = new byte[BENCHMARK_READ_SIZE];
+					// PCFB has to decrypt everything before the position, so do fewer.
+					int reads = type == 0 ? BENCHMARK_READS / 20 : BENCHMARK_READS;
+					start = System.nanoTime();
+					for(int i=0;i<reads;i++) {
+						is = bucket.getInputStream();
+						long skip = random.nextInt(BENCHMARK_SIZE - small.length);
+						while(skip > 0)
+							skip -= is.skip(skip);
+						new DataInputStream(is).readFully(small);
+						is.close();
+					}
+					long randomRead = System.nanoTime() - start;
+
+					System.out.println((type == 0 ? "PCFB" : "CTR ")+": sequential write "+mbPerSecond(write)+" MB/sec, sequential read "+
+							mbPerSecond(read)+" MB/sec, random "+BENCHMARK_READ_SIZE+" byte reads "+(reads * 1000000000L / randomRead)+"/sec");
+				} finally {
+					bucket.free();
+				}
+			}
+		}
+	}
+
+	private static long mbPerSecond(long nanos) {
+		return (long)BENCHMARK_SIZE * 1000 / nanos;
+	}
+
+}
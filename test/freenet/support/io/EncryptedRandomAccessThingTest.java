@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.TestProperty;
+
+public class EncryptedRandomAccessThingTest extends TestCase {
+	private RandomSource strongPRNG = new DummyRandomSource(43210);
+	private Random weakPRNG = new Random(12340);
+	private Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+
+	/** Random writes and reads must match a plain array, and nothing is written in the clear. */
+	public void testRandomAccess() throws IOException {
+		byte[] key = new byte[32];
+		byte[] iv = new byte[32];
+		strongPRNG.nextBytes(key);
+		strongPRNG.nextBytes(iv);
+		byte[] underlying = new byte[100000];
+		ByteArrayRandomAccessThing raw = new ByteArrayRandomAccessThing(underlying);
+		EncryptedRandomAccessThing rat = new EncryptedRandomAccessThing(raw, key, iv);
+		byte[] expected = new byte[underlying.length];
+		// An encrypted file of zeros.
+		rat.pwrite(0, expected, 0, expected.length);
+		assertFalse(Arrays.equals(expected, underlying));
+
+		Random random = new Random(2);
+		for(int i=0;i<500;i++) {
+			int start = random.nextInt(expected.length);
+			int length = random.nextInt(Math.min(expected.length - start, 70000) + 1);
+			if(random.nextBoolean()) {
+				byte[] buf = new byte[length + 3];
+				random.nextBytes(buf);
+				byte[] copy = buf.clone();
+				rat.pwrite(start, buf, 3, length);
+				// Doesn't change the caller's buffer.
+				assertTrue(Arrays.equals(copy, buf));
+				System.arraycopy(buf, 3, expected, start, length);
+				assertFalse(length > 32 && Arrays.equals(Arrays.copyOfRange(buf, 3, 3 + length), Arrays.copyOfRange(underlying, start, start + length)));
+			} else {
+				byte[] buf = new byte[length];
+				rat.pread(start, buf, 0, length);
+				assertTrue(Arrays.equals(Arrays.copyOfRange(expected, start, start + length), buf));
+			}
+		}
+		assertEquals(expected.length, rat.size());
+	}
+
+	public void testTempBucketFactory() throws IOException {
+		FilenameGenerator fg = new FilenameGenerator(weakPRNG, false, null, "junit");
+		int files = countFiles(fg);
+		for(boolean encrypt : new boolean[] { false, true }) {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 128, strongPRNG, weakPRNG, encrypt);
+			RandomAccessThing rat = tbf.makeRandomAccessThing(10000);
+			assertEquals(encrypt, rat instanceof EncryptedRandomAccessThing);
+			assertEquals(10000, rat.size());
+			byte[] data = new byte[1000];
+			weakPRNG.nextBytes(data);
+			rat.pwrite(5000, data, 0, data.length);
+			byte[] buf = new byte[1000];
+			rat.pread(5000, buf, 0, buf.length);
+			assertTrue(Arrays.equals(data, buf));
+			assertEquals(files + 1, countFiles(fg));
+			rat.close();
+			// Deleted on close.
+			assertEquals(files, countFiles(fg));
+		}
+	}
+
+	private static int countFiles(FilenameGenerator fg) {
+		int count = 0;
+		File[] files = fg.getDir().listFiles();
+		if(files == null) return 0;
+		for(File f : files)
+			if(fg.matches(f)) count++;
+		return count;
+	}
+
+	private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+	private static final int BENCHMARK_OPS = 20000;
+	private static final int BENCHMARK_BLOCK = 4096;
+
+	/** Random reads and writes of 4KB blocks in a 16MB temp file, with and without encryption. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		FilenameGenerator fg = new FilenameGenerator(weakPRNG, false, null, "junit");
+		byte[] buf = new byte[BENCHMARK_BLOCK];
+		for(int round = 0; round < 3; round++) {
+			for(boolean encrypt : new boolean[] { false, true }) {
+				TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 128, strongPRNG, weakPRNG, encrypt);
+				RandomAccessThing rat = tbf.makeRandomAccessThing(BENCHMARK_SIZE);
+				try {
+					Random random = new Random(3);
+					long start = System.nanoTime();
+					for(int i=0;i<BENCHMARK_OPS;i++) {
+						long offset = (long)random.nextInt(BENCHMARK_SIZE / BENCHMARK_BLOCK) * BENCHMARK_BLOCK;
+						if((i & 1) == 0)
+							rat.pwrite(offset, buf, 0, buf.length);
+						else
+							rat.pread(offset, buf, 0, buf.length);
+					}
+					long nanos = System.nanoTime() - start;
+					System.out.println((encrypt ? "CTR:   " : "Plain: ")+(BENCHMARK_OPS * 1000000000L / nanos)+" random "+BENCHMARK_BLOCK+" byte ops/sec");
+				} finally {
+					rat.close();
+				}
+			}
+		}
+	}
+
+}